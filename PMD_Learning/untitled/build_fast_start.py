@@ -0,0 +1,164 @@
+import argparse
+import os
+import re
+import shutil
+import statistics
+import subprocess
+import time
+
+# Fast-startup packaging for the ATM terminals.
+#
+# Every variant runs as a short-lived `main`, so JVM startup and class loading
+# dominate a session. For each variant this script:
+#   1. compiles the variant with the shared classes into its own jar
+#      (string concatenation is compiled inline: the invokedynamic bootstrap
+#      costs tens of milliseconds on the first prompt),
+#   2. records an AppCDS archive from a training session (login, balance, deposit,
+#      withdrawal, history, exit), so the account, transaction and terminal classes
+#      are mapped pre-parsed and pre-verified instead of loaded from the jar,
+#   3. builds a GraalVM native image of the terminal when `native-image` is on PATH,
+#   4. measures time to first prompt for the plain jar, the jar with its archive,
+#      and the native image.
+#
+# The claude and chatGpt launchers start another variant's terminal and do not
+# compile on their own; their packaged entry point starts the file's own ATM.
+
+# === CONFIGURATION ===
+BASE_DIR = os.path.dirname(os.path.abspath(__file__))
+SRC_DIR = os.path.join(BASE_DIR, "src")
+BUILD_DIR = os.path.join(BASE_DIR, "build")
+JAVA = "java"
+JAVAC = "javac"
+JAR = "jar"
+NATIVE_IMAGE = "native-image"
+JAVAC_FLAGS = ["-encoding", "UTF-8", "-nowarn", "-XDstringConcat=inline"]
+# A session lasts seconds: skip the optimizing compiler and use the simplest collector
+RUN_FLAGS = ["-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC"]
+NATIVE_FLAGS = ["--no-fallback", "-O1"]
+FIRST_PROMPT = b"Account Number"
+
+# variant -> (source file, entry point, account, PIN, asks "another transaction?")
+PROFILES = {
+    "claude": ("claude_ATM.java", "claude_ATM", "12345", "1234", False),
+    "gemini": ("gemini_ATM.java", "gemini_ATM", "12345", "1234", False),
+    "deepseek": ("deepseek_ATM.java", "deepseek_ATM", "12345", "1111", True),
+    "qwen": ("qwen_ATM.java", "qwen_ATM", "12345", "1234", False),
+    "chatGpt": ("chatGpt_ATM.java", "chatGpt_ATM", "12345", "1111", False),
+}
+
+
+def training_session(account, pin, asks_to_continue):
+    script = f"{account}\n{pin}\n1\n2\n500\n3\n500\n4\n5\n"
+    return (script + ("no\n" if asks_to_continue else "")).encode()
+
+
+def short_session(account, pin, asks_to_continue):
+    script = f"{account}\n{pin}\n1\n5\n"
+    return (script + ("no\n" if asks_to_continue else "")).encode()
+
+
+def run(cmd, **kwargs):
+    result = subprocess.run(cmd, capture_output=True, **kwargs)
+    if result.returncode != 0:
+        print(f"❌ {' '.join(cmd[:3])} ... failed:")
+        print(result.stderr.decode(errors="replace")[-2000:])
+        raise SystemExit(1)
+    return result
+
+
+def stage_sources(variant, source_file, out_dir):
+    src = os.path.join(out_dir, "src")
+    os.makedirs(src)
+    for name in os.listdir(SRC_DIR):
+        if name.endswith(".java") and not name.endswith("_ATM.java"):
+            shutil.copy(os.path.join(SRC_DIR, name), src)
+    with open(os.path.join(SRC_DIR, source_file), encoding="utf-8") as f:
+        source = f.read()
+    # the launcher must start this file's own terminal
+    source = re.sub(r"\b(?:gemini|deepseek)_ATM atm = new (?:gemini|deepseek)_ATM\(\);",
+                    "ATM atm = new ATM();", source) if variant in ("claude", "chatGpt") else source
+    with open(os.path.join(src, source_file), "w", encoding="utf-8") as f:
+        f.write(source)
+    return src
+
+
+def build_variant(variant, native):
+    source_file, main_class, account, pin, asks = PROFILES[variant]
+    out_dir = os.path.join(BUILD_DIR, variant)
+    shutil.rmtree(out_dir, ignore_errors=True)
+    src = stage_sources(variant, source_file, out_dir)
+    classes = os.path.join(out_dir, "classes")
+    run([JAVAC, *JAVAC_FLAGS, "-sourcepath", src, "-d", classes, os.path.join(src, source_file)])
+
+    jar = os.path.join(out_dir, f"{variant}-atm.jar")
+    run([JAR, "--create", "--file", jar, "--main-class", main_class, "-C", classes, "."])
+
+    archive = os.path.join(out_dir, f"{variant}-atm.jsa")
+    run([JAVA, *RUN_FLAGS, f"-XX:ArchiveClassesAtExit={archive}", "-jar", jar],
+        input=training_session(account, pin, asks))
+
+    image = None
+    if native:
+        image = os.path.join(out_dir, f"{variant}-atm")
+        run([NATIVE_IMAGE, *NATIVE_FLAGS, "-jar", jar, "-o", image])
+    return jar, archive, image
+
+
+def time_to_prompt(cmd, session, runs):
+    samples = []
+    for _ in range(runs):
+        start = time.perf_counter()
+        process = subprocess.Popen(cmd, stdin=subprocess.PIPE, stdout=subprocess.PIPE, stderr=subprocess.DEVNULL)
+        seen = b""
+        while FIRST_PROMPT not in seen:
+            chunk = os.read(process.stdout.fileno(), 4096)
+            if not chunk:
+                break
+            seen += chunk
+        samples.append((time.perf_counter() - start) * 1000)
+        process.communicate(session)
+    return statistics.median(samples)
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Build fast-starting ATM terminals (AppCDS jar and native image).")
+    parser.add_argument("--variants", default="all", help="comma-separated variants, or all")
+    parser.add_argument("--runs", type=int, default=5, help="launches per measurement")
+    parser.add_argument("--no-native", action="store_true", help="skip the native image even if GraalVM is present")
+    args = parser.parse_args()
+
+    variants = list(PROFILES) if args.variants == "all" else args.variants.split(",")
+    native = not args.no_native and shutil.which(NATIVE_IMAGE) is not None
+    if not args.no_native and not native:
+        print(f"⚠ `{NATIVE_IMAGE}` not found on PATH; building AppCDS jars only (install GraalVM for native images).")
+
+    print(f"Building {', '.join(variants)} into {BUILD_DIR}")
+    rows = []
+    for variant in variants:
+        if variant not in PROFILES:
+            print(f"⚠ Unknown variant: {variant}")
+            continue
+        jar, archive, image = build_variant(variant, native)
+        _, _, account, pin, asks = PROFILES[variant]
+        session = short_session(account, pin, asks)
+        plain = time_to_prompt([JAVA, "-jar", jar], session, args.runs)
+        cds = time_to_prompt([JAVA, *RUN_FLAGS, f"-XX:SharedArchiveFile={archive}", "-jar", jar], session, args.runs)
+        aot = time_to_prompt([image], session, args.runs) if image else None
+        rows.append((variant, plain, cds, aot))
+        print(f"✅ {variant}: {os.path.relpath(jar, BASE_DIR)}, {os.path.relpath(archive, BASE_DIR)}"
+              + (f", {os.path.relpath(image, BASE_DIR)}" if image else ""))
+
+    print("\nTime to first prompt (median of %d launches)" % args.runs)
+    print(f"{'variant':<9} {'jar ms':>8} {'AppCDS ms':>10} {'native ms':>10}")
+    for variant, plain, cds, aot in rows:
+        print(f"{variant:<9} {plain:8.0f} {cds:10.0f} {('%10.0f' % aot) if aot is not None else '%10s' % '-'}")
+
+    print("\nRun a terminal with its archive:")
+    print(f"  {JAVA} {' '.join(RUN_FLAGS)} -XX:SharedArchiveFile=build/<variant>/<variant>-atm.jsa"
+          " -jar build/<variant>/<variant>-atm.jar")
+    if native:
+        print("or natively: build/<variant>/<variant>-atm")
+
+
+if __name__ == "__main__":
+    main()
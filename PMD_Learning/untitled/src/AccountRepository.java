@@ -0,0 +1,86 @@
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.function.Function;
+
+/**
+ * Where a terminal finds and keeps its accounts. The in-memory implementation
+ * is the original registry; FileLedgerStore keeps the full book on local disk
+ * and only hot accounts on the heap.
+ *
+ * A repository is also a ledger listener: attach it to every account it hands
+ * out so postings reach it. The in-memory one ignores them.
+ */
+public interface AccountRepository<A> extends LedgerListener, Closeable {
+
+    /**
+     * @return the account, or null if there is none with that number. The same
+     *         instance is returned for as long as anyone holds it.
+     */
+    A find(String accountNumber);
+
+    /**
+     * Stores a new account unless one with the same number already exists
+     * @return true if the account was stored
+     */
+    boolean insert(A account);
+
+    /**
+     * Stores the account, or marks it changed
+     */
+    void save(A account);
+
+    /**
+     * Every account. An on-disk store returns a view that loads each account as
+     * iteration reaches it, so batch jobs should iterate it rather than copy it.
+     */
+    Collection<A> all();
+
+    int size();
+
+    @Override
+    default void onPosted(long sequence, String accountNumber, String type, double amount, double balanceAfter,
+                          long timestampMillis) {
+        // nothing to persist
+    }
+
+    /**
+     * Writes anything still buffered
+     */
+    default void flush() throws IOException {
+    }
+
+    @Override
+    default void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Turns accounts into bytes and back, for stores that keep them off the heap
+     */
+    interface Codec<A> {
+        String key(A account);
+        void write(A account, DataOutput out) throws IOException;
+        A read(DataInput in) throws IOException;
+
+        static <A> Codec<A> of(Function<A, String> key, Writer<A> writer, Reader<A> reader) {
+            return new Codec<A>() {
+                @Override public String key(A account) { return key.apply(account); }
+                @Override public void write(A account, DataOutput out) throws IOException { writer.write(account, out); }
+                @Override public A read(DataInput in) throws IOException { return reader.read(in); }
+            };
+        }
+    }
+
+    @FunctionalInterface
+    interface Writer<A> {
+        void write(A account, DataOutput out) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface Reader<A> {
+        A read(DataInput in) throws IOException;
+    }
+}
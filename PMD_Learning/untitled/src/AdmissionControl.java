@@ -0,0 +1,217 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control in front of the terminal operations.
+ *
+ * Every login attempt and every menu request is charged to two token buckets,
+ * one for the terminal and one for the account, so a misbehaving terminal or a
+ * flood against one account is refused before it reaches the account store. A
+ * bucket is a single AtomicLong holding its theoretical arrival time (the
+ * generic cell rate algorithm): taking a token is one compare-and-set, and a
+ * bucket that has refilled is indistinguishable from a new one, so idle buckets
+ * are simply dropped when the map grows past its bound.
+ *
+ * On top of that, a global limiter caps the sessions the node serves at once. A
+ * login beyond the cap is shed at once with a "busy" reply instead of queueing,
+ * so sessions already admitted keep their latency under overload; their own
+ * requests are only ever rate limited, never shed for load.
+ */
+public class AdmissionControl {
+
+    public static final double DEFAULT_TERMINAL_RATE = 10;
+    public static final double DEFAULT_ACCOUNT_RATE = 10;
+    public static final int DEFAULT_BURST = 30;
+    public static final int DEFAULT_MAX_SESSIONS = 1024;
+
+    private static final int MAX_TRACKED_KEYS = 100_000;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final AtomicInteger TERMINAL_IDS = new AtomicInteger();
+
+    public enum Decision {
+        ADMITTED(""),
+        TERMINAL_RATE_LIMITED("Too many requests from this terminal. Please wait a moment and try again."),
+        ACCOUNT_RATE_LIMITED("Too many requests for this account. Please wait a moment and try again."),
+        BUSY("The system is busy. Please try again shortly.");
+
+        private final String message;
+
+        Decision(String message) {
+            this.message = message;
+        }
+
+        /** What to tell the customer */
+        public String getMessage() { return message; }
+    }
+
+    /**
+     * One admitted session's slot; closing it more than once is harmless
+     */
+    public final class Permit implements AutoCloseable {
+        private final AtomicBoolean open = new AtomicBoolean(true);
+
+        @Override
+        public void close() {
+            if (open.getAndSet(false)) {
+                sessions.decrementAndGet();
+            }
+        }
+    }
+
+    private final Buckets terminals;
+    private final Buckets accounts;
+    private final int maxSessions;
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final LongAdder[] decisions = new LongAdder[Decision.values().length];
+
+    /**
+     * @param terminalRate sustained requests per second per terminal, or Infinity for no limit
+     * @param accountRate sustained requests per second per account, or Infinity for no limit
+     * @param burst requests either kind of bucket allows at once after being idle
+     * @param maxSessions sessions served at once before logins are shed
+     */
+    public AdmissionControl(double terminalRate, double accountRate, int burst, int maxSessions) {
+        if (!(terminalRate > 0) || !(accountRate > 0) || burst <= 0 || maxSessions <= 0) {
+            throw new IllegalArgumentException("Rates, burst and session limit must be positive.");
+        }
+        this.terminals = new Buckets(terminalRate, burst);
+        this.accounts = new Buckets(accountRate, burst);
+        this.maxSessions = maxSessions;
+        for (int i = 0; i < decisions.length; i++) {
+            decisions[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Ten requests a second per terminal and per account with bursts of 30, and
+     * 1024 sessions; overridden by -Datm.admission.terminalRate, accountRate,
+     * burst and maxSessions
+     */
+    public static AdmissionControl withDefaults() {
+        return new AdmissionControl(
+                doubleProperty("atm.admission.terminalRate", DEFAULT_TERMINAL_RATE),
+                doubleProperty("atm.admission.accountRate", DEFAULT_ACCOUNT_RATE),
+                Integer.getInteger("atm.admission.burst", DEFAULT_BURST),
+                Integer.getInteger("atm.admission.maxSessions", DEFAULT_MAX_SESSIONS));
+    }
+
+    /**
+     * A process-unique id for a new terminal
+     */
+    public static String nextTerminalId() {
+        return "T" + TERMINAL_IDS.incrementAndGet();
+    }
+
+    /**
+     * Charges a login attempt, and sheds it if the node is already serving its limit of sessions
+     */
+    public Decision admitLogin(String terminalId, String accountNumber) {
+        if (sessions.get() >= maxSessions) {
+            return count(Decision.BUSY);
+        }
+        return admitRequest(terminalId, accountNumber);
+    }
+
+    /**
+     * Charges one request of a logged-in session
+     */
+    public Decision admitRequest(String terminalId, String accountNumber) {
+        long now = System.nanoTime();
+        if (!terminals.tryTake(terminalId, now)) {
+            return count(Decision.TERMINAL_RATE_LIMITED);
+        }
+        if (!accounts.tryTake(accountNumber, now)) {
+            return count(Decision.ACCOUNT_RATE_LIMITED);
+        }
+        return count(Decision.ADMITTED);
+    }
+
+    /**
+     * Takes a session slot after a successful login. Logins racing past
+     * admitLogin can overshoot the limit by the number of them in flight.
+     */
+    public Permit openSession() {
+        sessions.incrementAndGet();
+        return new Permit();
+    }
+
+    public int getActiveSessions() {
+        return sessions.get();
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public long getCount(Decision decision) {
+        return decisions[decision.ordinal()].sum();
+    }
+
+    private Decision count(Decision decision) {
+        decisions[decision.ordinal()].increment();
+        return decision;
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Token buckets by key, as theoretical arrival times in nanoseconds
+     */
+    private static final class Buckets {
+        private final ConcurrentHashMap<String, AtomicLong> byKey = new ConcurrentHashMap<>();
+        private final boolean unlimited;
+        private final long intervalNanos;
+        private final long burstNanos;
+        private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+        Buckets(double ratePerSecond, int burst) {
+            this.unlimited = Double.isInfinite(ratePerSecond);
+            this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+            this.burstNanos = intervalNanos * burst;
+        }
+
+        boolean tryTake(String key, long now) {
+            if (unlimited) {
+                return true;
+            }
+            AtomicLong bucket = byKey.get(key);
+            if (bucket == null) {
+                sweepIfFull(now);
+                bucket = byKey.computeIfAbsent(key, k -> new AtomicLong(now));
+            }
+            while (true) {
+                long arrival = bucket.get();
+                long next = Math.max(arrival, now) + intervalNanos;
+                if (next - now > burstNanos) {
+                    return false;
+                }
+                if (bucket.compareAndSet(arrival, next)) {
+                    return true;
+                }
+            }
+        }
+
+        // refilled buckets carry no state, so dropping them changes nothing
+        private void sweepIfFull(long now) {
+            long last = lastSweep.get();
+            if (byKey.size() >= MAX_TRACKED_KEYS && now - last >= SWEEP_INTERVAL_NANOS
+                    && lastSweep.compareAndSet(last, now)) {
+                byKey.values().removeIf(bucket -> bucket.get() <= now);
+            }
+        }
+    }
+}
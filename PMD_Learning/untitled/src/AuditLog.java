@@ -0,0 +1,359 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured audit trail of logins and money movements, as JSON lines.
+ *
+ * Terminals hand each record to a ring of pre-allocated slots and return: a
+ * record is a compare-and-set to claim a sequence, a few field writes into the
+ * slot and a release store to publish it. One daemon thread drains published
+ * slots in order, formats them and writes them to the current file in batches,
+ * so the customer path never waits on formatting or disk. Files roll over when
+ * they reach their size limit.
+ *
+ * When the writer falls a full ring behind, the overflow policy decides: DROP
+ * counts the record as dropped and returns at once, and the writer notes the gap
+ * in the file; BLOCK waits for a free slot, which keeps every record at the cost
+ * of the terminal stalling behind the disk. PINs are never recorded, only the
+ * outcome of each attempt.
+ *
+ * Without a directory (-Datm.audit.dir) the log is disabled and record() costs
+ * nothing.
+ */
+public class AuditLog {
+
+    public static final int DEFAULT_BUFFER = 8192;
+    public static final long DEFAULT_FILE_BYTES = 64L << 20;
+
+    private static final int MAX_BATCH = 512;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    public enum Event {
+        LOGIN, LOGOUT, DEPOSIT, WITHDRAWAL
+    }
+
+    public enum Overflow {
+        /** Lose the record and return; the gap is noted in the file */
+        DROP,
+        /** Wait for the writer to free a slot */
+        BLOCK
+    }
+
+    private final Path directory;
+    private final Overflow overflow;
+    private final long maxFileBytes;
+    private final Slot[] slots;
+    private final int mask;
+    // slot i holds sequence published[i] once it is ready to be written
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // writer state, touched only by the writer thread (and close() once it has stopped)
+    private final StringBuilder batch = new StringBuilder(MAX_BATCH * 128);
+    private OutputStream file;
+    private long fileBytes;
+    private int fileCount;
+    private long droppedNoted;
+    private long timeMillis = Long.MIN_VALUE;
+    private String timeText;
+
+    /**
+     * @param directory where the audit files go, or null to disable auditing
+     * @param bufferSize records the ring holds; rounded up to a power of two
+     * @param overflow what record() does when the ring is full
+     * @param maxFileBytes size at which a new file is started
+     */
+    public AuditLog(Path directory, int bufferSize, Overflow overflow, long maxFileBytes) {
+        if (bufferSize <= 0 || maxFileBytes <= 0) {
+            throw new IllegalArgumentException("Buffer size and file size must be positive.");
+        }
+        this.directory = directory;
+        this.overflow = overflow;
+        this.maxFileBytes = maxFileBytes;
+        int capacity = directory == null ? 1 : Integer.highestOneBit(Math.max(1, bufferSize - 1)) << 1;
+        this.slots = new Slot[capacity];
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+            published.set(i, -1);
+        }
+        if (directory == null) {
+            this.writer = null;
+            return;
+        }
+        this.writer = new Thread(this::drainLoop, "audit-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        // whatever is still in the ring at exit goes to disk
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "audit-shutdown"));
+    }
+
+    /**
+     * Writes to -Datm.audit.dir if set, with -Datm.audit.buffer records,
+     * -Datm.audit.overflow=drop|block (drop by default) and -Datm.audit.fileMb per file
+     */
+    public static AuditLog withDefaults() {
+        String dir = System.getProperty("atm.audit.dir");
+        Overflow overflow = "block".equalsIgnoreCase(System.getProperty("atm.audit.overflow"))
+                ? Overflow.BLOCK : Overflow.DROP;
+        return new AuditLog(dir != null ? Paths.get(dir) : null,
+                Integer.getInteger("atm.audit.buffer", DEFAULT_BUFFER), overflow,
+                Long.getLong("atm.audit.fileMb", DEFAULT_FILE_BYTES >> 20) << 20);
+    }
+
+    public boolean isEnabled() {
+        return writer != null;
+    }
+
+    /**
+     * Queues one audit record without waiting for I/O (unless the policy is BLOCK and the ring is full)
+     * @param amount the money involved, or NaN for none
+     * @param outcome short code such as OK, BAD_PIN or INSUFFICIENT_FUNDS
+     * @return false if the record was dropped
+     */
+    public boolean record(Event event, String terminalId, String accountNumber, double amount, String outcome) {
+        if (writer == null) {
+            return true;
+        }
+        long sequence;
+        while (true) {
+            sequence = claimed.get();
+            if (sequence - consumed >= slots.length) {
+                if (overflow == Overflow.DROP || !running) {
+                    dropped.increment();
+                    return false;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+            } else if (claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+        int index = (int) (sequence & mask);
+        Slot slot = slots[index];
+        slot.timestampMillis = LedgerClock.currentTimeMillis();
+        slot.event = event;
+        slot.terminalId = terminalId;
+        slot.accountNumber = accountNumber;
+        slot.amount = amount;
+        slot.outcome = outcome;
+        published.lazySet(index, sequence);
+        return true;
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return records taken from the ring but lost to a write error
+     */
+    public long getLost() {
+        return lost.sum();
+    }
+
+    /**
+     * Stops the writer once everything already queued is written, and closes the current file
+     */
+    public void close() {
+        if (writer == null || !running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        while (true) {
+            boolean stopping = !running;
+            int n = drain();
+            if (n == 0) {
+                flushQuietly();
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Audit log: close failed: " + e.getMessage());
+        }
+    }
+
+    // formats and writes the next run of published records; returns how many
+    private int drain() {
+        long next = consumed;
+        int n = 0;
+        batch.setLength(0);
+        long droppedNow = dropped.sum();
+        if (droppedNow != droppedNoted) {
+            appendGap(droppedNow - droppedNoted);
+            droppedNoted = droppedNow;
+        }
+        while (n < MAX_BATCH) {
+            int index = (int) ((next + n) & mask);
+            if (published.get(index) != next + n) {
+                break;
+            }
+            appendRecord(next + n, slots[index]);
+            n++;
+        }
+        if (n > 0) {
+            // the slots are copied out; producers may reuse them
+            consumed = next + n;
+        }
+        if (batch.length() > 0) {
+            try {
+                write(batch.toString().getBytes(StandardCharsets.UTF_8));
+                written.add(n);
+            } catch (IOException e) {
+                System.err.println("Audit log: write failed: " + e.getMessage());
+                lost.add(n);
+                closeQuietly();
+            }
+        }
+        return n;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (file == null || (fileBytes > 0 && fileBytes + bytes.length > maxFileBytes)) {
+            roll();
+        }
+        file.write(bytes);
+        fileBytes += bytes.length;
+    }
+
+    private void roll() throws IOException {
+        closeQuietly();
+        Files.createDirectories(directory);
+        String name = String.format("audit-%tY%<tm%<td-%<tH%<tM%<tS-%d.jsonl",
+                LedgerClock.currentTimeMillis(), fileCount++);
+        file = Files.newOutputStream(directory.resolve(name), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = 0;
+    }
+
+    private void flushQuietly() {
+        if (file != null) {
+            try {
+                file.flush();
+            } catch (IOException e) {
+                System.err.println("Audit log: flush failed: " + e.getMessage());
+                closeQuietly();
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // the next write opens a new file
+            }
+            file = null;
+        }
+    }
+
+    private void appendRecord(long sequence, Slot slot) {
+        batch.append("{\"seq\":").append(sequence)
+                .append(",\"time\":\"").append(timeText(slot.timestampMillis)).append('"')
+                .append(",\"event\":\"").append(slot.event).append('"');
+        appendString(",\"terminal\":", slot.terminalId);
+        appendString(",\"account\":", slot.accountNumber);
+        if (!Double.isNaN(slot.amount)) {
+            appendAmount(slot.amount);
+        }
+        appendString(",\"outcome\":", slot.outcome);
+        batch.append("}\n");
+    }
+
+    private void appendGap(long count) {
+        batch.append("{\"time\":\"").append(timeText(LedgerClock.currentTimeMillis()))
+                .append("\",\"event\":\"DROPPED\",\"count\":").append(count).append("}\n");
+    }
+
+    // records arrive in bursts within the same millisecond; format each instant once
+    private String timeText(long millis) {
+        if (millis != timeMillis) {
+            timeMillis = millis;
+            timeText = Instant.ofEpochMilli(millis).toString();
+        }
+        return timeText;
+    }
+
+    private void appendAmount(double amount) {
+        long paise = Math.round(amount * 100);
+        batch.append(",\"amount\":");
+        if (paise < 0) {
+            batch.append('-');
+            paise = -paise;
+        }
+        long fraction = paise % 100;
+        batch.append(paise / 100).append('.').append(fraction < 10 ? "0" : "").append(fraction);
+    }
+
+    private void appendString(String name, String value) {
+        batch.append(name);
+        if (value == null) {
+            batch.append("null");
+            return;
+        }
+        batch.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                batch.append('\\').append(c);
+            } else if (c < 0x20) {
+                batch.append(String.format("\\u%04x", (int) c));
+            } else {
+                batch.append(c);
+            }
+        }
+        batch.append('"');
+    }
+
+    /**
+     * One pre-allocated record; written by the producer that claimed it, read by the writer
+     */
+    private static final class Slot {
+        long timestampMillis;
+        Event event;
+        String terminalId;
+        String accountNumber;
+        double amount;
+        String outcome;
+    }
+}
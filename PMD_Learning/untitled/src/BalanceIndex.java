@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index over account balances and last activity, for operational
+ * queries such as "largest balances", "accounts below the minimum balance" or
+ * "accounts dormant for 90 days", without scanning the registry.
+ *
+ * Every account has one immutable Entry, held in a map by account number and in
+ * two concurrent skip lists, one ordered by balance and one by last posting time.
+ * As a ledger listener the index replaces an account's entry on each posting: a
+ * removal and an insertion per list, O(log n), lock-free, and already serialized
+ * per account by the account lock. Queries walk a list from one end or from a
+ * bound, so they cost O(log n) plus the rows returned.
+ *
+ * Queries run alongside postings. An account whose entry is being replaced may
+ * be missed for that instant, but a replaced entry is never returned: each row is
+ * checked against the account's current entry.
+ *
+ * Accounts join the index when a terminal prepares them (all of them for the
+ * in-memory registry), and an on-disk store reports every stored account, with
+ * its last posting time, when it opens, so accounts this process never loads are
+ * still found. Balances are indexed in whole paise.
+ */
+public class BalanceIndex implements LedgerListener {
+
+    /**
+     * One account's position in the index
+     */
+    public static final class Entry {
+        private final String accountNumber;
+        private final long balancePaise;
+        private final long lastActivityMillis;
+
+        Entry(String accountNumber, long balancePaise, long lastActivityMillis) {
+            this.accountNumber = accountNumber;
+            this.balancePaise = balancePaise;
+            this.lastActivityMillis = lastActivityMillis;
+        }
+
+        public String getAccountNumber() { return accountNumber; }
+        public double getBalance() { return balancePaise / 100.0; }
+        /** @return time of the last posting, or 0 if none is known */
+        public long getLastActivityMillis() { return lastActivityMillis; }
+
+        @Override
+        public String toString() {
+            return String.format("%s %.2f", accountNumber, getBalance());
+        }
+    }
+
+    private static final Comparator<Entry> BY_BALANCE = (a, b) -> {
+        int c = Long.compare(a.balancePaise, b.balancePaise);
+        return c != 0 ? c : a.accountNumber.compareTo(b.accountNumber);
+    };
+    private static final Comparator<Entry> BY_ACTIVITY = (a, b) -> {
+        int c = Long.compare(a.lastActivityMillis, b.lastActivityMillis);
+        return c != 0 ? c : a.accountNumber.compareTo(b.accountNumber);
+    };
+    // sorts before every real account number, so a probe bounds a balance or time exactly
+    private static final String LOWEST = "";
+
+    private final ConcurrentHashMap<String, Entry> current = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Entry> byBalance = new ConcurrentSkipListSet<>(BY_BALANCE);
+    private final ConcurrentSkipListSet<Entry> byActivity = new ConcurrentSkipListSet<>(BY_ACTIVITY);
+
+    /**
+     * Adds an account with no postings seen yet. An account already indexed (one an
+     * on-disk store evicted and loaded again) keeps its entry and last activity.
+     */
+    public void track(String accountNumber, double balance) {
+        track(accountNumber, balance, 0);
+    }
+
+    /**
+     * Adds an account whose last posting is already known, e.g. from the store at startup
+     */
+    public void track(String accountNumber, double balance, long lastActivityMillis) {
+        current.computeIfAbsent(accountNumber, number -> {
+            Entry entry = new Entry(number, toPaise(balance), lastActivityMillis);
+            byBalance.add(entry);
+            byActivity.add(entry);
+            return entry;
+        });
+    }
+
+    @Override
+    public void onPosted(long sequence, String accountNumber, String type, double amount, double balanceAfter,
+                         long timestampMillis) {
+        Entry entry = new Entry(accountNumber, toPaise(balanceAfter), timestampMillis);
+        Entry previous = current.get(accountNumber);
+        // an entry at the same position would be refused by the list, so it is swapped out first;
+        // otherwise the new entry goes in before the old one leaves, and the account is never missing
+        boolean sameBalance = previous != null && previous.balancePaise == entry.balancePaise;
+        boolean sameTime = previous != null && previous.lastActivityMillis == entry.lastActivityMillis;
+        if (sameBalance) {
+            byBalance.remove(previous);
+        }
+        if (sameTime) {
+            byActivity.remove(previous);
+        }
+        byBalance.add(entry);
+        byActivity.add(entry);
+        current.put(accountNumber, entry);
+        if (previous != null) {
+            if (!sameBalance) {
+                byBalance.remove(previous);
+            }
+            if (!sameTime) {
+                byActivity.remove(previous);
+            }
+        }
+    }
+
+    public void remove(String accountNumber) {
+        Entry previous = current.remove(accountNumber);
+        if (previous != null) {
+            byBalance.remove(previous);
+            byActivity.remove(previous);
+        }
+    }
+
+    public Entry get(String accountNumber) {
+        return current.get(accountNumber);
+    }
+
+    public int size() {
+        return current.size();
+    }
+
+    /**
+     * @return up to n accounts, largest balance first
+     */
+    public List<Entry> largest(int n) {
+        return collect(byBalance.descendingSet(), n);
+    }
+
+    /**
+     * @return up to n accounts, smallest balance first
+     */
+    public List<Entry> smallest(int n) {
+        return collect(byBalance, n);
+    }
+
+    /**
+     * @return up to limit accounts with balance strictly below the threshold, smallest first
+     */
+    public List<Entry> below(double balance, int limit) {
+        return collect(byBalance.headSet(probe(toPaise(balance), 0), false), limit);
+    }
+
+    /**
+     * @return up to limit accounts with min &lt;= balance &lt; max, smallest first
+     */
+    public List<Entry> between(double min, double max, int limit) {
+        return collect(byBalance.subSet(probe(toPaise(min), 0), true, probe(toPaise(max), 0), false), limit);
+    }
+
+    /**
+     * @return up to limit accounts with no posting since the given time, least recently active first
+     */
+    public List<Entry> inactiveSince(long cutoffMillis, int limit) {
+        return collect(byActivity.headSet(new Entry(LOWEST, Long.MIN_VALUE, cutoffMillis), false), limit);
+    }
+
+    private List<Entry> collect(NavigableSet<Entry> range, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative.");
+        }
+        List<Entry> result = new ArrayList<>(Math.min(limit, 64));
+        Iterator<Entry> it = range.iterator();
+        while (result.size() < limit && it.hasNext()) {
+            Entry entry = it.next();
+            // skip an entry that a posting has replaced while we walked
+            if (current.get(entry.accountNumber) == entry) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private static Entry probe(long balancePaise, long lastActivityMillis) {
+        return new Entry(LOWEST, balancePaise, lastActivityMillis);
+    }
+
+    private static long toPaise(double amount) {
+        return Math.round(amount * 100);
+    }
+}
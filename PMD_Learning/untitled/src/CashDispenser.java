@@ -0,0 +1,357 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Plans which notes to dispense for a withdrawal and takes them out of the
+ * terminal's cassettes.
+ *
+ * For every amount up to the table limit, the few plans with the fewest notes
+ * are computed once, on the first withdrawal, and shared by all dispensers with
+ * the same denominations.
+ * Dispensing walks those plans and claims the first one the cassettes can
+ * cover. Only when none fits (a cassette running low) does it search against
+ * the live counts, with a dynamic program over the amount in note units: a
+ * fixed number of steps per denomination and unit, capped at MAX_SEARCH_UNITS,
+ * so no amount can keep a terminal busy. Amounts above the cash in the
+ * cassettes are refused before any search. Cassette counters are CAS-updated
+ * atomics, each on its own cache line, so concurrent sessions never block each
+ * other. A claim that loses a race is rolled back and the next plan is tried.
+ */
+public class CashDispenser {
+
+    public static final int[] DEFAULT_DENOMINATIONS = {2000, 500, 200, 100};
+    public static final int DEFAULT_NOTES_PER_CASSETTE = 2000;
+    public static final int DEFAULT_TABLE_LIMIT = 20000;
+
+    private static final int PLANS_PER_AMOUNT = 8;
+    private static final int STRIDE = 8; // longs per counter: one 64-byte line each
+    private static final int SEARCH_ATTEMPTS = 3;
+    // largest amount, in note units, the live search takes on; a few MB of work arrays at four denominations
+    private static final int MAX_SEARCH_UNITS = 1 << 17;
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+    private static final Map<String, int[][][]> TABLES = new ConcurrentHashMap<>();
+
+    private final int[] denominations;
+    private final int unit;
+    private final String tableKey;
+    private final int tableUnits;
+    // built on first use, so terminals reach their first prompt without paying for it
+    private volatile int[][][] plans;
+    private final AtomicLongArray cassettes;
+    private final LongAdder tableHits = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+
+    /**
+     * @param denominations note values, largest first
+     * @param notesPerCassette initial load, one entry per denomination
+     * @param tableLimit largest amount with precomputed plans; larger amounts are searched
+     */
+    public CashDispenser(int[] denominations, int[] notesPerCassette, int tableLimit) {
+        if (denominations.length == 0 || denominations.length != notesPerCassette.length) {
+            throw new IllegalArgumentException("Need one cassette count per denomination.");
+        }
+        for (int i = 1; i < denominations.length; i++) {
+            if (denominations[i] <= 0 || denominations[i] >= denominations[i - 1]) {
+                throw new IllegalArgumentException("Denominations must be positive and in descending order.");
+            }
+        }
+        this.denominations = denominations.clone();
+        this.unit = gcd(this.denominations);
+        this.tableKey = Arrays.toString(this.denominations) + "/" + tableLimit;
+        this.tableUnits = tableLimit / unit;
+        this.cassettes = new AtomicLongArray(denominations.length * STRIDE);
+        for (int i = 0; i < denominations.length; i++) {
+            cassettes.set(i * STRIDE, notesPerCassette[i]);
+        }
+    }
+
+    /**
+     * Standard rupee cassettes, fully loaded
+     */
+    public static CashDispenser withDefaults() {
+        int[] notes = new int[DEFAULT_DENOMINATIONS.length];
+        Arrays.fill(notes, DEFAULT_NOTES_PER_CASSETTE);
+        return new CashDispenser(DEFAULT_DENOMINATIONS, notes, DEFAULT_TABLE_LIMIT);
+    }
+
+    /**
+     * @return true if the amount is a whole number of the smallest note unit
+     */
+    public boolean isDispensable(double amount) {
+        long paise = Math.round(amount * 100);
+        return paise > 0 && paise % (unit * 100L) == 0;
+    }
+
+    public int getUnit() {
+        return unit;
+    }
+
+    /**
+     * Plans and claims the notes for an amount
+     * @return notes taken per denomination, or null if the amount is not dispensable
+     *         or the cassettes cannot cover it
+     */
+    public int[] dispense(double amount) {
+        if (!isDispensable(amount)) {
+            return null;
+        }
+        long units = Math.round(amount * 100) / (unit * 100L);
+        if (units <= tableUnits) {
+            for (int[] plan : plans()[(int) units]) {
+                if (tryClaim(plan)) {
+                    tableHits.increment();
+                    return plan.clone();
+                }
+            }
+        }
+        for (int attempt = 0; attempt < SEARCH_ATTEMPTS; attempt++) {
+            if (units > MAX_SEARCH_UNITS || units * unit > cashAvailable()) {
+                return null;
+            }
+            searches.increment();
+            int[] plan = search(units * unit);
+            if (plan == null) {
+                return null;
+            }
+            if (tryClaim(plan)) {
+                return plan;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts notes back, e.g. when the account declines after the notes were claimed
+     */
+    public void restore(int[] notes) {
+        for (int i = 0; i < notes.length; i++) {
+            if (notes[i] != 0) {
+                cassettes.addAndGet(i * STRIDE, notes[i]);
+            }
+        }
+    }
+
+    /**
+     * Replenishes one cassette
+     */
+    public void load(int denomination, int notes) {
+        for (int i = 0; i < denominations.length; i++) {
+            if (denominations[i] == denomination) {
+                cassettes.addAndGet(i * STRIDE, notes);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No cassette for ₹" + denomination);
+    }
+
+    public long getNotes(int denomination) {
+        for (int i = 0; i < denominations.length; i++) {
+            if (denominations[i] == denomination) {
+                return cassettes.get(i * STRIDE);
+            }
+        }
+        return 0;
+    }
+
+    public int[] getDenominations() {
+        return denominations.clone();
+    }
+
+    public long getTableHits() {
+        return tableHits.sum();
+    }
+
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    /**
+     * @return e.g. "2 x ₹500, 1 x ₹200"
+     */
+    public String describe(int[] notes) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < notes.length; i++) {
+            if (notes[i] > 0) {
+                if (text.length() > 0) {
+                    text.append(", ");
+                }
+                text.append(notes[i]).append(" x ₹").append(denominations[i]);
+            }
+        }
+        return text.toString();
+    }
+
+    // all-or-nothing: CAS each cassette down, rolling back on the first shortfall
+    private boolean tryClaim(int[] plan) {
+        for (int i = 0; i < plan.length; i++) {
+            if (plan[i] == 0) {
+                continue;
+            }
+            int slot = i * STRIDE;
+            while (true) {
+                long available = cassettes.get(slot);
+                if (available < plan[i]) {
+                    for (int j = 0; j < i; j++) {
+                        if (plan[j] != 0) {
+                            cassettes.addAndGet(j * STRIDE, plan[j]);
+                        }
+                    }
+                    return false;
+                }
+                if (cassettes.compareAndSet(slot, available, available - plan[i])) {
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    private long cashAvailable() {
+        long total = 0;
+        for (int i = 0; i < denominations.length; i++) {
+            total += cassettes.get(i * STRIDE) * denominations[i];
+        }
+        return total;
+    }
+
+    /**
+     * Fewest notes for the amount against current counts, or null if no combination
+     * fits. Denominations are added smallest first; for each one, best[v] is the
+     * fewest notes making v units from the denominations so far. Taking t notes of
+     * value d at v only looks back along v - t*d, so per residue of d a sliding
+     * window minimum over the last count+1 entries gives every v in one pass.
+     */
+    private int[] search(long amount) {
+        int target = (int) (amount / unit);
+        int n = denominations.length;
+        int[] best = new int[target + 1];
+        int[] next = new int[target + 1];
+        int[] window = new int[target + 1];
+        int[][] taken = new int[n][];
+        Arrays.fill(best, UNREACHABLE);
+        best[0] = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            int d = denominations[i] / unit;
+            long count = Math.min(cassettes.get(i * STRIDE), target / d);
+            int[] take = new int[target + 1];
+            for (int r = 0; r < d && r <= target; r++) {
+                int head = 0;
+                int tail = 0;
+                for (int k = 0, v = r; v <= target; k++, v += d) {
+                    if (best[v] != UNREACHABLE) {
+                        // window holds steps j by rising best - j; on ties the older j (more notes of d) stays
+                        while (tail > head && windowKey(best, window[tail - 1], r, d) > best[v] - k) {
+                            tail--;
+                        }
+                        window[tail++] = k;
+                    }
+                    while (tail > head && window[head] < k - count) {
+                        head++;
+                    }
+                    if (tail > head) {
+                        int j = window[head];
+                        next[v] = windowKey(best, j, r, d) + k;
+                        take[v] = k - j;
+                    } else {
+                        next[v] = UNREACHABLE;
+                    }
+                }
+            }
+            taken[i] = take;
+            int[] swap = best;
+            best = next;
+            next = swap;
+        }
+        if (best[target] == UNREACHABLE) {
+            return null;
+        }
+        int[] plan = new int[n];
+        int v = target;
+        for (int i = 0; i < n; i++) {
+            plan[i] = taken[i][v];
+            v -= plan[i] * (denominations[i] / unit);
+        }
+        return plan;
+    }
+
+    private static int windowKey(int[] best, int step, int residue, int d) {
+        return best[residue + step * d] - step;
+    }
+
+    private int[][][] plans() {
+        int[][][] table = plans;
+        if (table == null) {
+            table = TABLES.computeIfAbsent(tableKey, key -> buildTable(denominations, unit, tableUnits));
+            plans = table;
+        }
+        return table;
+    }
+
+    /**
+     * For each amount (in units) the plans with the fewest notes, preferring larger notes on ties
+     */
+    static int[][][] buildTable(int[] denominations, int unit, int maxUnits) {
+        int[][][] table = new int[maxUnits + 1][][];
+        for (int units = 0; units <= maxUnits; units++) {
+            List<int[]> best = new ArrayList<>(PLANS_PER_AMOUNT + 1);
+            enumerate((long) units * unit, 0, denominations, new int[denominations.length], best);
+            table[units] = best.toArray(new int[0][]);
+        }
+        return table;
+    }
+
+    // keeps the PLANS_PER_AMOUNT best in order; enumeration runs largest notes first,
+    // so inserting after equal counts keeps larger notes ahead on ties
+    private static void enumerate(long remaining, int index, int[] denominations, int[] plan, List<int[]> best) {
+        if (index == denominations.length - 1) {
+            if (remaining % denominations[index] == 0) {
+                plan[index] = (int) (remaining / denominations[index]);
+                int notes = noteCount(plan);
+                int at = best.size();
+                while (at > 0 && noteCount(best.get(at - 1)) > notes) {
+                    at--;
+                }
+                if (at < PLANS_PER_AMOUNT) {
+                    best.add(at, plan.clone());
+                    if (best.size() > PLANS_PER_AMOUNT) {
+                        best.remove(PLANS_PER_AMOUNT);
+                    }
+                }
+            }
+            return;
+        }
+        for (long count = remaining / denominations[index]; count >= 0; count--) {
+            plan[index] = (int) count;
+            enumerate(remaining - count * denominations[index], index + 1, denominations, plan, best);
+        }
+        plan[index] = 0;
+    }
+
+    private static int noteCount(int[] plan) {
+        int total = 0;
+        for (int notes : plan) {
+            total += notes;
+        }
+        return total;
+    }
+
+    private static int gcd(int[] values) {
+        int g = values[0];
+        for (int value : values) {
+            int a = g;
+            int b = value;
+            while (b != 0) {
+                int t = a % b;
+                a = b;
+                b = t;
+            }
+            g = a;
+        }
+        return g;
+    }
+}
@@ -0,0 +1,156 @@
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks how much has been withdrawn today against a fixed daily limit.
+ * The current day and the amount used (in paise) are packed into a single
+ * AtomicLong, so a check is one CAS and never allocates. The counter resets
+ * lazily: the first reservation on a new day simply starts from zero.
+ * Days follow the local calendar, so a day across a daylight-saving change
+ * is 23 or 25 hours long and still resets at local midnight.
+ */
+public class DailyLimitCounter {
+    private static final int USED_BITS = 42;
+    private static final long USED_MASK = (1L << USED_BITS) - 1;
+
+    private final long limitPaise;
+    private final ZoneId zone;
+    private final LongSupplier clock;
+    private final AtomicLong state = new AtomicLong();
+    // the local day the clock was last in, so the zone rules are consulted once a day
+    private volatile Day day;
+
+    public DailyLimitCounter(double dailyLimit) {
+        this(dailyLimit, System::currentTimeMillis);
+    }
+
+    DailyLimitCounter(double dailyLimit, LongSupplier clock) {
+        if (dailyLimit <= 0) {
+            throw new IllegalArgumentException("Daily limit must be positive.");
+        }
+        this.limitPaise = toPaise(dailyLimit);
+        if (limitPaise > USED_MASK) {
+            throw new IllegalArgumentException("Daily limit is too large.");
+        }
+        this.clock = clock;
+        this.zone = ZoneId.systemDefault();
+        this.day = dayAt(clock.getAsLong());
+    }
+
+    /**
+     * Reserves the amount against today's limit
+     * @param amount the amount about to be withdrawn
+     * @return true if the amount fits in what is left of today's limit; false for
+     *         amounts that are not a positive number of paise
+     */
+    public boolean tryReserve(double amount) {
+        if (!Double.isFinite(amount)) {
+            return false;
+        }
+        long paise = toPaise(amount);
+        if (paise <= 0) {
+            return false;
+        }
+        long today = currentDay();
+        while (true) {
+            long current = state.get();
+            long used = dayOf(current) == today ? usedOf(current) : 0;
+            if (paise > limitPaise - used) {
+                return false;
+            }
+            if (state.compareAndSet(current, pack(today, used + paise))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a reservation whose withdrawal did not go through.
+     * A reservation made on an earlier day has already been reset and is ignored.
+     * @param amount the amount previously reserved
+     */
+    public void release(double amount) {
+        if (!Double.isFinite(amount)) {
+            return;
+        }
+        long paise = toPaise(amount);
+        if (paise <= 0) {
+            return;
+        }
+        long today = currentDay();
+        while (true) {
+            long current = state.get();
+            if (dayOf(current) != today) {
+                return;
+            }
+            long used = Math.max(0, usedOf(current) - paise);
+            if (state.compareAndSet(current, pack(today, used))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the amount that can still be withdrawn today
+     */
+    public double getRemaining() {
+        long current = state.get();
+        long used = dayOf(current) == currentDay() ? usedOf(current) : 0;
+        return (limitPaise - used) / 100.0;
+    }
+
+    public double getLimit() {
+        return limitPaise / 100.0;
+    }
+
+    private long currentDay() {
+        long now = clock.getAsLong();
+        Day current = day;
+        if (now < current.startMillis || now >= current.endMillis) {
+            current = dayAt(now);
+            day = current;
+        }
+        return current.number;
+    }
+
+    private Day dayAt(long millis) {
+        LocalDate date = Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+        long start = date.atStartOfDay(zone).toInstant().toEpochMilli();
+        long end = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        return new Day(date.toEpochDay() & ((1L << (64 - USED_BITS)) - 1), start, end);
+    }
+
+    private static long pack(long day, long usedPaise) {
+        return (day << USED_BITS) | usedPaise;
+    }
+
+    private static long dayOf(long packed) {
+        return packed >>> USED_BITS;
+    }
+
+    private static long usedOf(long packed) {
+        return packed & USED_MASK;
+    }
+
+    private static long toPaise(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    /**
+     * One local calendar day: its number and the instants it starts and ends
+     */
+    private static final class Day {
+        final long number;
+        final long startMillis;
+        final long endMillis;
+
+        Day(long number, long startMillis, long endMillis) {
+            this.number = number;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-of-day job that accrues interest and charges maintenance fees on every account.
+ * Accounts are split into fixed-size partitions and processed on a dedicated
+ * fork-join pool, so live sessions never share workers with the batch. They are
+ * taken from the registry one window (a partition per worker) at a time, so an
+ * on-disk store only has that window of accounts loaded at once. Every
+ * posting goes through the account's own ledger methods, so it gets a normal
+ * Transaction record. Throughput is capped by a per-second account budget.
+ */
+public class EndOfDayBatch {
+
+    /**
+     * An account the batch can post to; implemented by each variant's BankAccount
+     */
+    public interface Account {
+        double getBalance();
+
+        /** Credits interest and records it in the account history */
+        void creditInterest(double amount);
+
+        /** Debits a fee, records it and returns the amount actually charged */
+        double chargeFee(double amount);
+    }
+
+    /**
+     * Totals for one run of the batch
+     */
+    public static class Summary {
+        private final long accountsProcessed;
+        private final double totalInterest;
+        private final long feesCharged;
+        private final double totalFees;
+        private final long elapsedMillis;
+
+        Summary(long accountsProcessed, double totalInterest, long feesCharged, double totalFees, long elapsedMillis) {
+            this.accountsProcessed = accountsProcessed;
+            this.totalInterest = totalInterest;
+            this.feesCharged = feesCharged;
+            this.totalFees = totalFees;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getAccountsProcessed() { return accountsProcessed; }
+        public double getTotalInterest() { return totalInterest; }
+        public long getFeesCharged() { return feesCharged; }
+        public double getTotalFees() { return totalFees; }
+        public long getElapsedMillis() { return elapsedMillis; }
+
+        @Override
+        public String toString() {
+            return String.format("%d accounts | Interest: ₹%.2f | Fees: %d (₹%.2f) | %d ms",
+                    accountsProcessed, totalInterest, feesCharged, totalFees, elapsedMillis);
+        }
+    }
+
+    private static final int PARTITION_SIZE = 4096;
+
+    private final double annualInterestRate;
+    private final double minimumBalance;
+    private final double maintenanceFee;
+    private final int parallelism;
+    private final long maxAccountsPerSecond;
+
+    /**
+     * @param annualInterestRate interest rate per year, e.g. 0.035 for 3.5%
+     * @param minimumBalance accounts below this balance are charged the maintenance fee
+     * @param maintenanceFee fee charged per day to accounts below the minimum balance
+     * @param parallelism worker threads; keep below the core count to leave room for live sessions
+     * @param maxAccountsPerSecond throttle across all workers, or 0 for no throttle
+     */
+    public EndOfDayBatch(double annualInterestRate, double minimumBalance, double maintenanceFee,
+                         int parallelism, long maxAccountsPerSecond) {
+        if (annualInterestRate < 0 || minimumBalance < 0 || maintenanceFee < 0) {
+            throw new IllegalArgumentException("Rates, balances and fees must not be negative.");
+        }
+        if (parallelism <= 0 || maxAccountsPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid parallelism or throttle.");
+        }
+        this.annualInterestRate = annualInterestRate;
+        this.minimumBalance = minimumBalance;
+        this.maintenanceFee = maintenanceFee;
+        this.parallelism = parallelism;
+        this.maxAccountsPerSecond = maxAccountsPerSecond;
+    }
+
+    /**
+     * Default settings: half the cores, no throttle
+     */
+    public static EndOfDayBatch withDefaults(double annualInterestRate, double minimumBalance, double maintenanceFee) {
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        return new EndOfDayBatch(annualInterestRate, minimumBalance, maintenanceFee, workers, 0);
+    }
+
+    /**
+     * Runs the batch over every account
+     * @param accounts the account registry values, iterated once
+     * @return totals for the run
+     */
+    public Summary run(Iterable<? extends Account> accounts) {
+        long start = System.nanoTime();
+        Totals totals = new Totals();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Account[] window = new Account[PARTITION_SIZE * parallelism];
+            int size = 0;
+            for (Account account : accounts) {
+                window[size++] = account;
+                if (size == window.length) {
+                    pool.invoke(new PartitionTask(window, 0, size, totals, start));
+                    Arrays.fill(window, null);
+                    size = 0;
+                }
+            }
+            pool.invoke(new PartitionTask(window, 0, size, totals, start));
+        } finally {
+            pool.shutdown();
+        }
+        return new Summary(totals.accounts.sum(), totals.interest.sum(), totals.fees.sum(), totals.feeAmount.sum(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Interest for one day, rounded down to the paisa
+     */
+    double dailyInterest(double balance) {
+        if (balance <= 0) {
+            return 0;
+        }
+        return Math.floor(balance * annualInterestRate / 365 * 100) / 100;
+    }
+
+    private void process(Account account, Totals totals) {
+        double balance = account.getBalance();
+        double interest = dailyInterest(balance);
+        if (interest > 0) {
+            account.creditInterest(interest);
+            totals.interest.add(interest);
+        }
+        if (maintenanceFee > 0 && balance < minimumBalance) {
+            double charged = account.chargeFee(maintenanceFee);
+            if (charged > 0) {
+                totals.fees.increment();
+                totals.feeAmount.add(charged);
+            }
+        }
+        totals.accounts.increment();
+    }
+
+    /**
+     * Sleeps until the global processed count is back under the per-second budget
+     */
+    private void throttle(Totals totals, long startNanos) {
+        if (maxAccountsPerSecond == 0) {
+            return;
+        }
+        long allowedAtNanos = startNanos + totals.accounts.sum() * 1_000_000_000L / maxAccountsPerSecond;
+        long wait = allowedAtNanos - System.nanoTime();
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private static class Totals {
+        final LongAdder accounts = new LongAdder();
+        final DoubleAdder interest = new DoubleAdder();
+        final LongAdder fees = new LongAdder();
+        final DoubleAdder feeAmount = new DoubleAdder();
+    }
+
+    private class PartitionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Account[] accounts;
+        private final int from;
+        private final int to;
+        private final Totals totals;
+        private final long startNanos;
+
+        PartitionTask(Account[] accounts, int from, int to, Totals totals, long startNanos) {
+            this.accounts = accounts;
+            this.from = from;
+            this.to = to;
+            this.totals = totals;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARTITION_SIZE) {
+                for (int i = from; i < to; i++) {
+                    process(accounts[i], totals);
+                }
+                throttle(totals, startNanos);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PartitionTask(accounts, from, mid, totals, startNanos),
+                      new PartitionTask(accounts, mid, to, totals, startNanos));
+        }
+    }
+}
@@ -0,0 +1,650 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UTFDataFormatException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Embedded on-disk account and transaction store with write-behind.
+ *
+ * Two append-only files live in the store directory. accounts.dat holds account
+ * records ([int length][UTF number][codec bytes]); the newest record for a number
+ * wins. transactions.dat holds postings ([int length][long previous offset for the
+ * account][JournalEntry]), chained backwards per account so history reads touch
+ * only that account's records. On open both files are scanned once to rebuild the
+ * number-to-offset indexes; a torn record at the tail is cut off. Postings keep
+ * their transaction's LedgerClock sequence id, and the clock is seeded past the
+ * highest stored one, so ids stay unique across restarts.
+ *
+ * The heap keeps the indexes, an LRU of hot accounts, and weak references to every
+ * account in use, so a session always gets the same instance (and the same lock)
+ * as everyone else. Postings and changed accounts are queued and a flusher thread
+ * writes them in batches: one positional write per file and one force per batch,
+ * the file equivalent of a batched prepared statement. Posting never waits on disk.
+ */
+public class FileLedgerStore<A> implements AccountRepository<A>, TransactionRepository {
+
+    private static final long FLUSH_INTERVAL_NANOS = 20_000_000L;
+    private static final int WAKE_FLUSHER_AT = 1024;
+
+    private final Codec<A> codec;
+    private final int hotCapacity;
+    private final boolean force;
+    private final Path directory;
+    private final FileChannel accountFile;
+    private final FileChannel transactionFile;
+    private final FileLock lock;
+
+    private final Map<String, Long> accountOffsets = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastTransactionOffsets = new ConcurrentHashMap<>();
+    private final Map<String, KeyedReference<A>> live = new ConcurrentHashMap<>();
+    private final ReferenceQueue<A> cleared = new ReferenceQueue<>();
+    private final LinkedHashMap<String, A> hot;
+
+    private final Map<String, A> dirty = new ConcurrentHashMap<>();
+    private final Queue<JournalEntry> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong transactions = new AtomicLong();
+
+    private final Object flushLock = new Object();
+    private final ReusableBuffer buffer = new ReusableBuffer();
+    private long accountEnd;
+    private long transactionEnd;
+    private long accountRecords;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    /**
+     * One stored account's balance and last posting time, as reported by forEachStored
+     */
+    @FunctionalInterface
+    public interface StoredAccountVisitor {
+        void visit(String accountNumber, double balance, long lastActivityMillis);
+    }
+
+    private static final class KeyedReference<A> extends WeakReference<A> {
+        final String key;
+
+        KeyedReference(String key, A account, ReferenceQueue<A> queue) {
+            super(account, queue);
+            this.key = key;
+        }
+    }
+
+    private static final class ReusableBuffer extends ByteArrayOutputStream {
+        ReusableBuffer() {
+            super(64 * 1024);
+        }
+
+        ByteBuffer view() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Opens (or creates) the store in the directory
+     * @param hotCapacity accounts kept on the heap when nobody is using them
+     * @param force whether each batch is forced to the device before the next one
+     * @throws IOException if the files cannot be opened or another process holds the store
+     */
+    public FileLedgerStore(Path directory, Codec<A> codec, int hotCapacity, boolean force) throws IOException {
+        this.codec = codec;
+        this.hotCapacity = hotCapacity;
+        this.force = force;
+        this.directory = directory;
+        this.hot = new LinkedHashMap<String, A>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, A> eldest) {
+                return size() > FileLedgerStore.this.hotCapacity;
+            }
+        };
+        Files.createDirectories(directory);
+        this.accountFile = FileChannel.open(directory.resolve("accounts.dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.transactionFile = FileChannel.open(directory.resolve("transactions.dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.lock = accountFile.tryLock();
+        if (lock == null) {
+            accountFile.close();
+            transactionFile.close();
+            throw new IOException("Store " + directory + " is in use by another process");
+        }
+        this.accountEnd = scanAccounts();
+        this.transactionEnd = scanTransactions();
+        this.flusher = new Thread(this::flushLoop, "ledger-store-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+        // write-behind: whatever is still queued at exit goes to disk
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                close();
+            } catch (IOException e) {
+                System.err.println("Ledger store: final flush failed: " + e.getMessage());
+            }
+        }, "ledger-store-shutdown"));
+    }
+
+    // --- accounts ---
+
+    @Override
+    public A find(String accountNumber) {
+        return find(accountNumber, true);
+    }
+
+    // promote is false for batch scans, so a pass over the book does not flush out the hot set
+    private A find(String accountNumber, boolean promote) {
+        A account = liveInstance(accountNumber);
+        if (account != null) {
+            if (promote) {
+                touch(accountNumber, account);
+            }
+            return account;
+        }
+        Long offset = accountOffsets.get(accountNumber);
+        if (offset == null) {
+            return null;
+        }
+        A loaded;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRecord(accountFile, offset)));
+            in.readUTF(); // the number, already known
+            loaded = codec.read(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read account " + accountNumber, e);
+        }
+        synchronized (live) {
+            // another thread may have loaded it meanwhile; everyone must share one instance
+            A existing = liveInstance(accountNumber);
+            if (existing != null) {
+                loaded = existing;
+            } else {
+                register(accountNumber, loaded);
+            }
+        }
+        if (promote) {
+            touch(accountNumber, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Reports every stored account without loading it, for indexes built when the store
+     * opens. Balance and time come from the account's last posting; an account that has
+     * never posted is decoded with reader (not the codec, so nothing is attached to it)
+     * and reported with time 0.
+     */
+    public void forEachStored(Reader<A> reader, ToDoubleFunction<A> balanceOf, StoredAccountVisitor visitor)
+            throws IOException {
+        flush();
+        for (Map.Entry<String, Long> account : accountOffsets.entrySet()) {
+            String key = account.getKey();
+            Long posting = lastTransactionOffsets.get(key);
+            if (posting != null) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRecord(transactionFile, posting)));
+                in.readLong(); // the previous posting, not needed
+                JournalEntry entry = JournalEntry.readFrom(in);
+                visitor.visit(key, entry.getBalanceAfterPaise() / 100.0, entry.getTimestampMillis());
+            } else {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRecord(accountFile, account.getValue())));
+                in.readUTF(); // the number, already known
+                visitor.visit(key, balanceOf.applyAsDouble(reader.read(in)), 0);
+            }
+        }
+    }
+
+    @Override
+    public boolean insert(A account) {
+        String key = codec.key(account);
+        synchronized (live) {
+            if (liveInstance(key) != null || accountOffsets.containsKey(key)) {
+                return false;
+            }
+            register(key, account);
+        }
+        touch(key, account);
+        markDirty(key, account);
+        return true;
+    }
+
+    @Override
+    public void save(A account) {
+        String key = codec.key(account);
+        synchronized (live) {
+            if (liveInstance(key) != account) {
+                register(key, account);
+            }
+        }
+        touch(key, account);
+        markDirty(key, account);
+    }
+
+    /**
+     * A view that loads each account only when iteration reaches it and keeps none of
+     * them, so a batch over the book holds just the accounts it is working on. Accounts
+     * passed over are not promoted into the hot set.
+     */
+    @Override
+    public Collection<A> all() {
+        return new AbstractCollection<A>() {
+            @Override
+            public Iterator<A> iterator() {
+                Iterator<String> keys = keys().iterator();
+                return new Iterator<A>() {
+                    private A next;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (next == null && keys.hasNext()) {
+                            next = find(keys.next(), false);
+                        }
+                        return next != null;
+                    }
+
+                    @Override
+                    public A next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        A account = next;
+                        next = null;
+                        return account;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return FileLedgerStore.this.size();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return keys().size();
+    }
+
+    /**
+     * @return the store directory, where other durable state of the terminal can be kept alongside
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private Set<String> keys() {
+        Set<String> keys = new HashSet<>(accountOffsets.keySet());
+        for (KeyedReference<A> ref : live.values()) {
+            if (ref.get() != null) {
+                keys.add(ref.key);
+            }
+        }
+        return keys;
+    }
+
+    public int getHotCount() {
+        synchronized (hot) {
+            return hot.size();
+        }
+    }
+
+    // --- transactions ---
+
+    @Override
+    public void onPosted(long sequence, String accountNumber, String type, double amount, double balanceAfter,
+                         long timestampMillis) {
+        pending.add(new JournalEntry(sequence, accountNumber, type, Math.round(amount * 100),
+                Math.round(balanceAfter * 100), timestampMillis));
+        A account = liveInstance(accountNumber);
+        if (account != null) {
+            dirty.put(accountNumber, account);
+        }
+        if (pendingCount.incrementAndGet() == WAKE_FLUSHER_AT) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    @Override
+    public List<JournalEntry> history(String accountNumber, int max) throws IOException {
+        flush();
+        List<JournalEntry> result = new ArrayList<>();
+        Long offset = lastTransactionOffsets.get(accountNumber);
+        long next = offset == null ? -1 : offset;
+        while (next >= 0 && result.size() < max) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRecord(transactionFile, next)));
+            next = in.readLong();
+            result.add(JournalEntry.readFrom(in));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    @Override
+    public void replay(String accountNumber, Consumer<JournalEntry> sink) throws IOException {
+        flush();
+        // the chain runs newest first, so only the offsets are collected before reading forwards
+        long[] offsets = new long[64];
+        int count = 0;
+        ByteBuffer previous = ByteBuffer.allocate(8);
+        Long head = lastTransactionOffsets.get(accountNumber);
+        long next = head == null ? -1 : head;
+        while (next >= 0) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = next;
+            previous.clear();
+            readFully(transactionFile, previous, next + 4);
+            next = previous.getLong(0);
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRecord(transactionFile, offsets[i])));
+            in.readLong(); // the previous posting, already followed
+            sink.accept(JournalEntry.readFrom(in));
+        }
+    }
+
+    // one sequential pass over the log, up to what the flush just wrote
+    @Override
+    public void forEachPosting(Consumer<JournalEntry> sink) throws IOException {
+        long end;
+        synchronized (flushLock) {
+            flush();
+            end = transactionEnd;
+        }
+        long position = 0;
+        try (DataInputStream in = openForScan("transactions.dat")) {
+            byte[] body;
+            while (position < end && (body = nextRecord(in, end - position)) != null) {
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                record.readLong(); // the previous posting of the account, not needed
+                sink.accept(JournalEntry.readFrom(record));
+                position += 4 + body.length;
+            }
+        }
+    }
+
+    @Override
+    public long transactionCount() {
+        return transactions.get() + pendingCount.get();
+    }
+
+    // --- write-behind ---
+
+    /**
+     * Writes every queued posting and changed account now
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            writeTransactions();
+            writeAccounts();
+            if (force) {
+                transactionFile.force(false);
+                accountFile.force(false);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        boolean compact = accountRecords > 2L * accountOffsets.size() + 1024;
+        if (compact) {
+            compactAccounts();
+        }
+        lock.release();
+        accountFile.close();
+        transactionFile.close();
+    }
+
+    private void flushLoop() {
+        while (running) {
+            LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+            try {
+                flush();
+            } catch (IOException e) {
+                System.err.println("Ledger store: flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void writeTransactions() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        buffer.reset();
+        DataOutputStream out = new DataOutputStream(buffer);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        Map<String, Long> newHeads = new LinkedHashMap<>();
+        int written = 0;
+        JournalEntry entry;
+        while ((entry = pending.poll()) != null) {
+            String key = entry.getAccountNumber();
+            Long previous = newHeads.containsKey(key) ? newHeads.get(key) : lastTransactionOffsets.get(key);
+            record.reset();
+            recordOut.writeLong(previous == null ? -1 : previous);
+            entry.writeTo(recordOut);
+            newHeads.put(key, transactionEnd + buffer.size());
+            out.writeInt(record.size());
+            record.writeTo(out);
+            written++;
+        }
+        out.flush();
+        writeFully(transactionFile, buffer.view(), transactionEnd);
+        transactionEnd += buffer.size();
+        lastTransactionOffsets.putAll(newHeads);
+        pendingCount.addAndGet(-written);
+        transactions.addAndGet(written);
+    }
+
+    private void writeAccounts() throws IOException {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        buffer.reset();
+        DataOutputStream out = new DataOutputStream(buffer);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        Map<String, Long> offsets = new LinkedHashMap<>();
+        for (String key : dirty.keySet()) {
+            // removed before it is encoded, so a change made meanwhile marks it dirty again
+            A account = dirty.remove(key);
+            if (account == null) {
+                continue;
+            }
+            record.reset();
+            recordOut.writeUTF(key);
+            codec.write(account, recordOut);
+            offsets.put(key, accountEnd + buffer.size());
+            out.writeInt(record.size());
+            record.writeTo(out);
+        }
+        out.flush();
+        writeFully(accountFile, buffer.view(), accountEnd);
+        accountEnd += buffer.size();
+        accountOffsets.putAll(offsets);
+        accountRecords += offsets.size();
+    }
+
+    // rewrites accounts.dat with only the newest record per account
+    private void compactAccounts() throws IOException {
+        Path temp = directory.resolve("accounts.dat.tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            for (long offset : accountOffsets.values()) {
+                byte[] body = readRecord(accountFile, offset);
+                ByteBuffer record = ByteBuffer.allocate(4 + body.length);
+                record.putInt(body.length).put(body).flip();
+                writeFully(out, record, position);
+                position += 4 + body.length;
+            }
+            out.force(true);
+        }
+        Files.move(temp, directory.resolve("accounts.dat"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // --- instance tracking ---
+
+    private A liveInstance(String key) {
+        KeyedReference<A> ref = live.get(key);
+        return ref == null ? null : ref.get();
+    }
+
+    private void register(String key, A account) {
+        Reference<? extends A> stale;
+        while ((stale = cleared.poll()) != null) {
+            live.remove(((KeyedReference<?>) stale).key, stale);
+        }
+        live.put(key, new KeyedReference<>(key, account, cleared));
+    }
+
+    private void touch(String key, A account) {
+        synchronized (hot) {
+            hot.put(key, account);
+        }
+    }
+
+    private void markDirty(String key, A account) {
+        dirty.put(key, account);
+    }
+
+    // --- file access ---
+
+    private long scanAccounts() throws IOException {
+        long position = 0;
+        long size = accountFile.size();
+        try (DataInputStream in = openForScan("accounts.dat")) {
+            byte[] body;
+            while ((body = nextRecord(in, size - position)) != null) {
+                String key = new DataInputStream(new ByteArrayInputStream(body)).readUTF();
+                accountOffsets.put(key, position);
+                accountRecords++;
+                position += 4 + body.length;
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            // end of the last complete record
+        }
+        accountFile.truncate(position);
+        return position;
+    }
+
+    private long scanTransactions() throws IOException {
+        long position = 0;
+        long count = 0;
+        long lastSequence = 0;
+        long size = transactionFile.size();
+        try (DataInputStream in = openForScan("transactions.dat")) {
+            byte[] body;
+            while ((body = nextRecord(in, size - position)) != null) {
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                record.readLong();
+                JournalEntry entry = JournalEntry.readFrom(record);
+                lastTransactionOffsets.put(entry.getAccountNumber(), position);
+                lastSequence = Math.max(lastSequence, entry.getSequence());
+                count++;
+                position += 4 + body.length;
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            // end of the last complete record
+        }
+        transactionFile.truncate(position);
+        // postings keep their transaction ids, so new ones must follow the stored ones
+        LedgerClock.seedSequence(lastSequence);
+        transactions.set(count);
+        return position;
+    }
+
+    // the next record body, or null at the end or at a length the rest of the file cannot hold (a torn tail)
+    private static byte[] nextRecord(DataInputStream in, long remaining) throws IOException {
+        if (remaining < 4) {
+            return null;
+        }
+        int length = in.readInt();
+        if (length < 0 || length > remaining - 4) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return body;
+    }
+
+    private DataInputStream openForScan(String file) throws IOException {
+        InputStream stream = Files.newInputStream(directory.resolve(file));
+        return new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+    }
+
+    private static byte[] readRecord(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(channel, header, offset);
+        int length = header.getInt(0);
+        if (length < 0 || length > channel.size() - offset - 4) {
+            throw new IOException("Record at " + offset + " has a corrupt length " + length);
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(channel, body, offset + 4);
+        return body.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position);
+            if (read < 0) {
+                throw new EOFException("Record at " + position + " is truncated");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous fraud/anomaly scoring stage on the transaction flow.
+ *
+ * The customer path only does two things: a screening check against values the
+ * scorer has already published for the account (two volatile reads), and a
+ * non-blocking publish of the event into a pre-allocated ring. A single
+ * background thread drains the ring, keeps per-account sliding-window features
+ * in primitive fields and runs the pluggable Scorer. Accounts scoring above the
+ * threshold are put on hold, which makes their withdrawals fail screening
+ * until the hold is released after review or expires. If the ring is full the
+ * event is dropped and counted, never waited on.
+ */
+public class FraudMonitor {
+
+    public static final byte DEPOSIT = 0;
+    public static final byte WITHDRAWAL = 1;
+
+    /**
+     * Scores one event against the account's features; higher is more suspicious
+     */
+    public interface Scorer {
+        double score(AccountState state, byte kind, long amountPaise, long timestampMillis);
+    }
+
+    private static final int WINDOW = 16;
+    private static final long VELOCITY_WINDOW_MILLIS = 10 * 60 * 1000L;
+    private static final int MIN_SAMPLES = 5;
+    private static final double SCREEN_SIGMAS = 6.0;
+    private static final LocalTime ODD_HOURS_END = LocalTime.of(5, 0);
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    public static final long DEFAULT_HOLD_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Per-account feature state. Everything except the published screening
+     * fields is written only by the scoring thread.
+     */
+    public static class AccountState {
+        private final String accountId;
+        private final FraudMonitor monitor;
+
+        // sliding window of recent withdrawal times, for velocity
+        private final long[] recentWithdrawals = new long[WINDOW];
+        private int windowIndex;
+
+        // running mean and variance of withdrawal amounts (Welford)
+        private long samples;
+        private double meanPaise;
+        private double m2;
+
+        private long events;
+        private long oddHourEvents;
+
+        // published to the customer path; the account is held until this time
+        private final AtomicLong heldUntilMillis = new AtomicLong();
+        private volatile double screenLimitPaise = Double.POSITIVE_INFINITY;
+
+        AccountState(String accountId, FraudMonitor monitor) {
+            this.accountId = accountId;
+            this.monitor = monitor;
+        }
+
+        public String getAccountId() { return accountId; }
+        public boolean isHeld() { return LedgerClock.currentTimeMillis() < heldUntilMillis.get(); }
+        public long getSamples() { return samples; }
+        public double getMeanAmount() { return meanPaise / 100; }
+
+        public double getStdDevAmount() {
+            return samples < 2 ? 0 : Math.sqrt(m2 / (samples - 1)) / 100;
+        }
+
+        /**
+         * Earlier withdrawals within ten minutes of the given time
+         */
+        public int velocity(long nowMillis) {
+            int count = 0;
+            for (long t : recentWithdrawals) {
+                if (t != 0 && nowMillis - t <= VELOCITY_WINDOW_MILLIS) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * How many standard deviations the amount is from this account's usual withdrawal
+         */
+        public double zScore(long amountPaise) {
+            if (samples < MIN_SAMPLES) {
+                return 0;
+            }
+            double sd = Math.sqrt(m2 / (samples - 1));
+            if (sd == 0) {
+                return amountPaise > meanPaise ? SCREEN_SIGMAS : 0;
+            }
+            return (amountPaise - meanPaise) / sd;
+        }
+
+        public double oddHourRatio() {
+            return events == 0 ? 0 : (double) oddHourEvents / events;
+        }
+
+        /**
+         * Critical-path check before a withdrawal is applied. An amount far outside
+         * the account's usual range puts the account on hold as well.
+         * @return false if the account is (now) on hold
+         */
+        public boolean screenWithdrawal(double amount) {
+            if (isHeld()) {
+                return false;
+            }
+            if (amount * 100 > screenLimitPaise) {
+                monitor.hold(this);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Hands a completed deposit or withdrawal to the scoring thread; never blocks
+         */
+        public void record(byte kind, double amount) {
+            monitor.publish(this, kind, Math.round(amount * 100), LedgerClock.currentTimeMillis());
+        }
+
+        /**
+         * Clears a hold after review, before it expires
+         */
+        public void release() {
+            heldUntilMillis.set(0);
+        }
+
+        // only the caller that moves the account onto hold counts it
+        boolean tryHold(long nowMillis, long holdMillis) {
+            long until = heldUntilMillis.get();
+            return until <= nowMillis && heldUntilMillis.compareAndSet(until, nowMillis + holdMillis);
+        }
+
+        void update(byte kind, long amountPaise, long timestampMillis, boolean oddHour) {
+            events++;
+            if (oddHour) {
+                oddHourEvents++;
+            }
+            if (kind != WITHDRAWAL) {
+                return;
+            }
+            recentWithdrawals[windowIndex] = timestampMillis;
+            windowIndex = (windowIndex + 1) % WINDOW;
+            samples++;
+            double delta = amountPaise - meanPaise;
+            meanPaise += delta / samples;
+            m2 += delta * (amountPaise - meanPaise);
+            if (samples >= MIN_SAMPLES) {
+                // never tighter than four times the usual amount, so steady spenders are not screened out
+                double sd = Math.sqrt(m2 / (samples - 1));
+                screenLimitPaise = Math.max(meanPaise + SCREEN_SIGMAS * sd, meanPaise * 4);
+            }
+        }
+    }
+
+    private final Scorer scorer;
+    private final double holdThreshold;
+    private final long holdMillis;
+    private final Consumer<AccountState> onHold;
+    private final ZoneId zone = ZoneId.systemDefault();
+    // the local day of the last event scored, so the zone rules are consulted once a day
+    private volatile Day day;
+
+    // single-consumer ring of pre-allocated primitive slots
+    private final int mask;
+    private final AccountState[] slotAccount;
+    private final byte[] slotKind;
+    private final long[] slotAmount;
+    private final long[] slotTime;
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder holds = new LongAdder();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    /**
+     * @param scorer the scoring model
+     * @param holdThreshold score at or above which the account is put on hold
+     * @param holdMillis how long a hold lasts unless released after review
+     * @param ringCapacity events buffered between the customer path and the scorer (rounded up to a power of two)
+     * @param onHold called once when an account is put on hold; keep it cheap, it may run on the customer path
+     */
+    public FraudMonitor(Scorer scorer, double holdThreshold, long holdMillis, int ringCapacity,
+                        Consumer<AccountState> onHold) {
+        if (ringCapacity <= 0 || holdMillis <= 0) {
+            throw new IllegalArgumentException("Ring capacity and hold duration must be positive.");
+        }
+        int capacity = Integer.highestOneBit(Math.max(2, ringCapacity - 1)) << 1;
+        this.scorer = scorer;
+        this.holdThreshold = holdThreshold;
+        this.holdMillis = holdMillis;
+        this.onHold = onHold;
+        this.mask = capacity - 1;
+        this.slotAccount = new AccountState[capacity];
+        this.slotKind = new byte[capacity];
+        this.slotAmount = new long[capacity];
+        this.slotTime = new long[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        this.worker = new Thread(this::drain, "fraud-monitor");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Monitor with the default scorer, 8192-event ring and no hold callback; holds last
+     * an hour, or -Datm.fraud.holdMinutes
+     */
+    public static FraudMonitor withDefaults() {
+        long holdMillis = TimeUnit.MINUTES.toMillis(Long.getLong("atm.fraud.holdMinutes",
+                TimeUnit.MILLISECONDS.toMinutes(DEFAULT_HOLD_MILLIS)));
+        return new FraudMonitor(defaultScorer(), 1.0, holdMillis, 8192, state -> { });
+    }
+
+    /**
+     * Velocity, amount z-score and odd-hour activity, each contributing to the score
+     */
+    public static Scorer defaultScorer() {
+        return (state, kind, amountPaise, timestampMillis) -> {
+            if (kind != WITHDRAWAL) {
+                return 0;
+            }
+            double score = 0;
+            int velocity = state.velocity(timestampMillis);
+            if (velocity > 5) {
+                score += 0.2 * (velocity - 5);
+            }
+            double z = state.zScore(amountPaise);
+            if (z > 3) {
+                score += 0.25 * (z - 3);
+            }
+            if (state.oddHourRatio() < 0.1 && state.monitor.isOddHour(timestampMillis)) {
+                score += 0.3;
+            }
+            return score;
+        };
+    }
+
+    public AccountState register(String accountId) {
+        return new AccountState(accountId, this);
+    }
+
+    public long getDroppedEvents() {
+        return dropped.sum();
+    }
+
+    public long getHolds() {
+        return holds.sum();
+    }
+
+    /**
+     * Stops the scoring thread after it drains what is already buffered
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    void publish(AccountState state, byte kind, long amountPaise, long timestampMillis) {
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail.get() > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+        int slot = (int) seq & mask;
+        slotAccount[slot] = state;
+        slotKind[slot] = kind;
+        slotAmount[slot] = amountPaise;
+        slotTime[slot] = timestampMillis;
+        published.lazySet(slot, seq);
+    }
+
+    private void drain() {
+        long seq = 0;
+        int idle = 0;
+        long parkNanos = 0;
+        while (running || seq < head.get()) {
+            int slot = (int) seq & mask;
+            if (published.get(slot) != seq) {
+                // spin briefly for a burst, then park for longer and longer while idle
+                if (++idle > 100) {
+                    parkNanos = parkNanos == 0 ? 50_000 : Math.min(parkNanos * 2, MAX_IDLE_PARK_NANOS);
+                    LockSupport.parkNanos(parkNanos);
+                } else {
+                    Thread.onSpinWait();
+                }
+                continue;
+            }
+            idle = 0;
+            parkNanos = 0;
+            AccountState state = slotAccount[slot];
+            byte kind = slotKind[slot];
+            long amount = slotAmount[slot];
+            long time = slotTime[slot];
+            slotAccount[slot] = null;
+            tail.lazySet(++seq);
+            score(state, kind, amount, time);
+        }
+    }
+
+    private void score(AccountState state, byte kind, long amountPaise, long timestampMillis) {
+        boolean oddHour = isOddHour(timestampMillis);
+        // score against the history before this event, then fold the event in
+        double score = scorer.score(state, kind, amountPaise, timestampMillis);
+        state.update(kind, amountPaise, timestampMillis, oddHour);
+        if (score >= holdThreshold) {
+            hold(state);
+        }
+    }
+
+    private void hold(AccountState state) {
+        if (state.tryHold(LedgerClock.currentTimeMillis(), holdMillis)) {
+            holds.increment();
+            onHold.accept(state);
+        }
+    }
+
+    /**
+     * Midnight to 5 AM local time, by the zone rules in force on that day
+     */
+    boolean isOddHour(long timestampMillis) {
+        Day current = day;
+        if (current == null || timestampMillis < current.startMillis || timestampMillis >= current.endMillis) {
+            current = dayAt(timestampMillis);
+            day = current;
+        }
+        return timestampMillis < current.oddUntilMillis;
+    }
+
+    private Day dayAt(long millis) {
+        LocalDate date = Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+        return new Day(date.atStartOfDay(zone).toInstant().toEpochMilli(),
+                date.atTime(ODD_HOURS_END).atZone(zone).toInstant().toEpochMilli(),
+                date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli());
+    }
+
+    /**
+     * One local calendar day: the instants it starts, its odd hours end, and it ends
+     */
+    private static final class Day {
+        final long startMillis;
+        final long oddUntilMillis;
+        final long endMillis;
+
+        Day(long startMillis, long oddUntilMillis, long endMillis) {
+            this.startMillis = startMillis;
+            this.oddUntilMillis = oddUntilMillis;
+            this.endMillis = endMillis;
+        }
+    }
+}
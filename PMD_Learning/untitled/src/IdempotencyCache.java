@@ -0,0 +1,187 @@
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the outcome of recently applied requests by idempotency key, so a
+ * terminal retrying a timed-out deposit or withdrawal gets the original result
+ * instead of having the request applied twice.
+ *
+ * Keys are hashed (with their account) to 64 bits and stored with the outcome and
+ * insertion time in two parallel long arrays per stripe: 16 bytes a slot, no entry
+ * objects. Each stripe keeps two generations. When the current one is a TTL old
+ * it becomes the previous one and the previous one is cleared in bulk, so
+ * eviction never walks individual entries. Only a generation that stopped taking
+ * keys a full TTL ago is cleared, so no key is forgotten before its TTL; a burst
+ * of keys grows the tables instead. Every entry is also checked against its own
+ * insertion time, so nothing is replayed after the TTL.
+ *
+ * A 64-bit key hash can in principle collide; at a few million live keys the
+ * odds are around one in ten million.
+ */
+public class IdempotencyCache {
+
+    public static final int MISSING = -1;
+
+    private static final int STRIPES = 64;
+    private static final int INITIAL_SLOTS = 16;
+    private static final int OUTCOME_BITS = 8;
+    private static final long OUTCOME_MASK = (1L << OUTCOME_BITS) - 1;
+
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * @param ttlMillis how long an outcome is replayed; memory grows with the keys seen in two TTLs
+     */
+    public IdempotencyCache(long ttlMillis) {
+        this(ttlMillis, System::currentTimeMillis);
+    }
+
+    IdempotencyCache(long ttlMillis, LongSupplier clock) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("TTL must be positive.");
+        }
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        long now = clock.getAsLong();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(now);
+        }
+    }
+
+    /**
+     * Fifteen-minute replay window
+     */
+    public static IdempotencyCache withDefaults() {
+        return new IdempotencyCache(15 * 60 * 1000L);
+    }
+
+    /**
+     * @param scope what the key is unique within, usually the account number
+     * @return the outcome remembered for the key, or MISSING
+     */
+    public int lookup(String scope, String key) {
+        long h = hash(scope, key);
+        return stripes[(int) (h >>> 58)].lookup(h, clock.getAsLong());
+    }
+
+    /**
+     * @param outcome a small result code, 0 to 255
+     */
+    public void remember(String scope, String key, int outcome) {
+        if ((outcome & ~OUTCOME_MASK) != 0) {
+            throw new IllegalArgumentException("Outcome must be between 0 and 255.");
+        }
+        long h = hash(scope, key);
+        stripes[(int) (h >>> 58)].remember(h, outcome, clock.getAsLong());
+    }
+
+    /**
+     * FNV-1a over both strings, then a 64-bit finalizer; never 0, which marks a free slot
+     */
+    static long hash(String scope, String key) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < scope.length(); i++) {
+            h = (h ^ scope.charAt(i)) * 0x100000001B3L;
+        }
+        h = (h ^ 0xFFFF) * 0x100000001B3L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private final class Stripe {
+        private long[] keys = new long[INITIAL_SLOTS];
+        private long[] values = new long[INITIAL_SLOTS];
+        private int size;
+        private long[] oldKeys = new long[INITIAL_SLOTS];
+        private long[] oldValues = new long[INITIAL_SLOTS];
+        private long generationStart;
+
+        Stripe(long now) {
+            this.generationStart = now;
+        }
+
+        synchronized int lookup(long h, long now) {
+            rotateIfDue(now);
+            int outcome = find(keys, values, h, now);
+            return outcome != MISSING ? outcome : find(oldKeys, oldValues, h, now);
+        }
+
+        synchronized void remember(long h, int outcome, long now) {
+            rotateIfDue(now);
+            if ((size + 1) * 4 > keys.length * 3) {
+                grow();
+            }
+            if (insert(keys, values, h, (now << OUTCOME_BITS) | outcome)) {
+                size++;
+            }
+        }
+
+        private int find(long[] table, long[] data, long h, long now) {
+            int mask = table.length - 1;
+            for (int i = (int) h & mask; ; i = (i + 1) & mask) {
+                long k = table[i];
+                if (k == 0) {
+                    return MISSING;
+                }
+                if (k == h) {
+                    long v = data[i];
+                    return now - (v >>> OUTCOME_BITS) < ttlMillis ? (int) (v & OUTCOME_MASK) : MISSING;
+                }
+            }
+        }
+
+        private void rotateIfDue(long now) {
+            if (now - generationStart >= ttlMillis) {
+                rotate(now);
+            }
+        }
+
+        // current becomes previous; the old previous, whose newest key is a TTL old, is cleared and reused
+        private void rotate(long now) {
+            long[] recycledKeys = oldKeys;
+            long[] recycledValues = oldValues;
+            oldKeys = keys;
+            oldValues = values;
+            Arrays.fill(recycledKeys, 0);
+            keys = recycledKeys;
+            values = recycledValues;
+            size = 0;
+            generationStart = now;
+        }
+
+        private void grow() {
+            long[] oldTable = keys;
+            long[] oldData = values;
+            keys = new long[oldTable.length * 2];
+            values = new long[oldTable.length * 2];
+            for (int i = 0; i < oldTable.length; i++) {
+                if (oldTable[i] != 0) {
+                    insert(keys, values, oldTable[i], oldData[i]);
+                }
+            }
+        }
+
+        // returns true if a new slot was used
+        private boolean insert(long[] table, long[] data, long h, long value) {
+            int mask = table.length - 1;
+            for (int i = (int) h & mask; ; i = (i + 1) & mask) {
+                if (table[i] == 0) {
+                    table[i] = h;
+                    data[i] = value;
+                    return true;
+                }
+                if (table[i] == h) {
+                    data[i] = value;
+                    return false;
+                }
+            }
+        }
+    }
+}
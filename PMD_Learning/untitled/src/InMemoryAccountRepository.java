@@ -0,0 +1,42 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The whole book on the heap, as the terminals have always kept it
+ */
+public class InMemoryAccountRepository<A> implements AccountRepository<A> {
+    private final Map<String, A> accounts = new ConcurrentHashMap<>();
+    private final Function<A, String> key;
+
+    public InMemoryAccountRepository(Function<A, String> key) {
+        this.key = key;
+    }
+
+    @Override
+    public A find(String accountNumber) {
+        return accounts.get(accountNumber);
+    }
+
+    @Override
+    public boolean insert(A account) {
+        return accounts.putIfAbsent(key.apply(account), account) == null;
+    }
+
+    @Override
+    public void save(A account) {
+        accounts.put(key.apply(account), account);
+    }
+
+    @Override
+    public Collection<A> all() {
+        return Collections.unmodifiableCollection(accounts.values());
+    }
+
+    @Override
+    public int size() {
+        return accounts.size();
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * One replicated ledger posting. Amounts are kept in paise, and the entry
+ * carries the absolute balance after the posting, so applying it twice is harmless.
+ */
+public class JournalEntry {
+    private final long sequence;
+    private final String accountNumber;
+    private final String type;
+    private final long amountPaise;
+    private final long balanceAfterPaise;
+    private final long timestampMillis;
+
+    public JournalEntry(long sequence, String accountNumber, String type, long amountPaise,
+                        long balanceAfterPaise, long timestampMillis) {
+        this.sequence = sequence;
+        this.accountNumber = accountNumber;
+        this.type = type;
+        this.amountPaise = amountPaise;
+        this.balanceAfterPaise = balanceAfterPaise;
+        this.timestampMillis = timestampMillis;
+    }
+
+    public long getSequence() { return sequence; }
+    public String getAccountNumber() { return accountNumber; }
+    public String getType() { return type; }
+    public long getAmountPaise() { return amountPaise; }
+    public long getBalanceAfterPaise() { return balanceAfterPaise; }
+    public long getTimestampMillis() { return timestampMillis; }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(sequence);
+        out.writeUTF(accountNumber);
+        out.writeUTF(type);
+        out.writeLong(amountPaise);
+        out.writeLong(balanceAfterPaise);
+        out.writeLong(timestampMillis);
+    }
+
+    static JournalEntry readFrom(DataInputStream in) throws IOException {
+        return new JournalEntry(in.readLong(), in.readUTF(), in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d %s %s: ₹%.2f | Balance: ₹%.2f", sequence, accountNumber, type,
+                amountPaise / 100.0, balanceAfterPaise / 100.0);
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cheap timestamps and transaction sequence ids for the posting path.
+ *
+ * A daemon thread refreshes a cached wall-clock reading every millisecond, so
+ * stamping a transaction is a volatile read instead of a clock call. The cached
+ * value never goes backwards, even if the system clock is stepped back. Sequence
+ * ids come from one atomic counter: unique and strictly increasing across the
+ * process, and across restarts once seeded from the ledger store, which gives every transaction a stable identity for ordering and replay.
+ *
+ * The ticker starts on the first read and parks for good once a whole second
+ * passes without one; the next read takes the clock itself and wakes it again.
+ * An idle process therefore spends nothing on it.
+ */
+public final class LedgerClock {
+
+    private static final long TICK_NANOS = 1_000_000L;
+    private static final int IDLE_TICKS = 1000;
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final AtomicLong NOW = new AtomicLong(System.currentTimeMillis());
+    // set by readers, cleared by the ticker once per idle period; false means the cached value may be stale
+    private static volatile boolean demanded;
+    private static volatile Thread ticker;
+
+    private LedgerClock() {
+    }
+
+    /**
+     * @return wall-clock milliseconds, at most about one tick stale and never decreasing
+     */
+    public static long currentTimeMillis() {
+        if (!demanded) {
+            return wake();
+        }
+        return NOW.get();
+    }
+
+    /**
+     * @return the next transaction sequence id, starting at 1
+     */
+    public static long nextSequence() {
+        return SEQUENCE.incrementAndGet();
+    }
+
+    /**
+     * Makes every later id larger than the given one, for ids read back from storage
+     */
+    public static void seedSequence(long lastUsed) {
+        SEQUENCE.accumulateAndGet(lastUsed, Math::max);
+    }
+
+    /**
+     * @return the last sequence id handed out
+     */
+    public static long lastSequence() {
+        return SEQUENCE.get();
+    }
+
+    // slow path: the ticker is idle or about to check for readers
+    private static long wake() {
+        demanded = true;
+        long time = refresh();
+        Thread current = ticker;
+        if (current == null) {
+            current = start();
+        }
+        LockSupport.unpark(current);
+        return time;
+    }
+
+    private static synchronized Thread start() {
+        if (ticker == null) {
+            Thread thread = new Thread(LedgerClock::tick, "ledger-clock");
+            thread.setDaemon(true);
+            thread.start();
+            ticker = thread;
+        }
+        return ticker;
+    }
+
+    private static long refresh() {
+        return NOW.accumulateAndGet(System.currentTimeMillis(), Math::max);
+    }
+
+    private static void tick() {
+        int ticks = 0;
+        while (true) {
+            refresh();
+            if (++ticks == IDLE_TICKS) {
+                ticks = 0;
+                if (!demanded) {
+                    // nobody read the clock for a whole period; sleep until someone does
+                    LockSupport.park();
+                    continue;
+                }
+                demanded = false;
+            }
+            LockSupport.parkNanos(TICK_NANOS);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live stream of ledger events for any number of subscribers.
+ *
+ * Posting never waits for a subscriber: offer() appends the event to each
+ * subscriber's bounded buffer and returns. Delivery happens on a shared pool of
+ * daemon threads, at most one task per subscriber at a time, and each task hands
+ * over as many buffered events as the subscriber has requested, in one batch.
+ * Subscribers control the pace with request(n) as usual. One that falls a full
+ * buffer behind is cancelled with an error rather than silently missing events,
+ * and can resubscribe and catch up from the history.
+ *
+ * With no subscribers, offer() is a single read of an empty list.
+ */
+public class LedgerEventPublisher<T> implements Flow.Publisher<T> {
+
+    public static final int DEFAULT_BUFFER = 1024;
+
+    private static final int MAX_BATCH = 256;
+    private static final ExecutorService DELIVERY = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2), task -> {
+                Thread thread = new Thread(task, "ledger-events");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final int bufferSize;
+    private final Executor executor;
+    private volatile boolean closed;
+
+    public LedgerEventPublisher() {
+        this(DEFAULT_BUFFER, DELIVERY);
+    }
+
+    /**
+     * @param bufferSize events buffered per subscriber before it is dropped
+     * @param executor runs delivery; subscriber callbacks execute here
+     */
+    public LedgerEventPublisher(int bufferSize, Executor executor) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive.");
+        }
+        this.bufferSize = bufferSize;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Subscription subscription = new Subscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        // added only after onSubscribe returns, so no event can overtake it
+        if (!subscription.cancelled) {
+            subscriptions.add(subscription);
+        }
+        if (closed) {
+            subscription.finish();
+        }
+    }
+
+    /**
+     * Hands an event to every current subscriber without blocking
+     * @return the number of subscribers it was buffered for
+     */
+    public int offer(T event) {
+        int delivered = 0;
+        for (Subscription subscription : subscriptions) {
+            if (subscription.enqueue(event)) {
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Completes every subscriber once its buffered events are delivered
+     */
+    public void close() {
+        closed = true;
+        for (Subscription subscription : subscriptions) {
+            subscription.finish();
+        }
+    }
+
+    private final class Subscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final Object[] buffer = new Object[bufferSize];
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private int head;
+        private int count;
+        private boolean overflowed;
+        private boolean finishing;
+        private Throwable requestError;
+        private volatile boolean cancelled;
+
+        Subscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        boolean enqueue(T event) {
+            synchronized (this) {
+                if (cancelled || overflowed) {
+                    return false;
+                }
+                if (count == buffer.length) {
+                    overflowed = true;
+                } else {
+                    buffer[(head + count) % buffer.length] = event;
+                    count++;
+                }
+            }
+            schedule();
+            return true;
+        }
+
+        void finish() {
+            synchronized (this) {
+                finishing = true;
+            }
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                synchronized (this) {
+                    requestError = new IllegalArgumentException("Requested " + n + " events; must be positive.");
+                }
+            } else {
+                demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            synchronized (this) {
+                count = 0;
+                Arrays.fill(buffer, null);
+            }
+        }
+
+        private void schedule() {
+            if (work.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        // one drain at a time per subscriber; events that arrive meanwhile bump the work count
+        @Override
+        public void run() {
+            Object[] batch = new Object[Math.min(MAX_BATCH, buffer.length)];
+            int missed = 1;
+            while (true) {
+                while (!cancelled) {
+                    int n;
+                    Throwable error;
+                    boolean complete;
+                    synchronized (this) {
+                        error = requestError != null ? requestError
+                                : overflowed ? new IllegalStateException(
+                                        "Subscriber fell " + buffer.length + " events behind the ledger") : null;
+                        n = (int) Math.min(Math.min(demand.get(), count), batch.length);
+                        for (int i = 0; i < n; i++) {
+                            batch[i] = buffer[head];
+                            buffer[head] = null;
+                            head = (head + 1) % buffer.length;
+                        }
+                        count -= n;
+                        complete = finishing && count == 0;
+                    }
+                    if (error != null) {
+                        cancel();
+                        subscriber.onError(error);
+                        return;
+                    }
+                    if (n == 0) {
+                        if (complete) {
+                            cancel();
+                            subscriber.onComplete();
+                            return;
+                        }
+                        break;
+                    }
+                    if (!deliver(batch, n)) {
+                        return;
+                    }
+                    demand.addAndGet(-n);
+                }
+                missed = work.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean deliver(Object[] batch, int n) {
+            for (int i = 0; i < n; i++) {
+                if (cancelled) {
+                    return false;
+                }
+                try {
+                    subscriber.onNext((T) batch[i]);
+                } catch (RuntimeException e) {
+                    // a subscriber that throws has broken the contract; stop serving it
+                    cancel();
+                    return false;
+                } finally {
+                    batch[i] = null;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * Notified after every balance change an account records.
+ * Called while the account is still locked, so calls for one account arrive in
+ * ledger order; implementations must be quick and must not block.
+ */
+@FunctionalInterface
+public interface LedgerListener {
+    /**
+     * @param sequence the transaction's LedgerClock sequence id
+     */
+    void onPosted(long sequence, String accountNumber, String type, double amount, double balanceAfter,
+                  long timestampMillis);
+
+    /**
+     * Calls this listener and then the other one
+     */
+    default LedgerListener andThen(LedgerListener other) {
+        return (sequence, accountNumber, type, amount, balanceAfter, timestampMillis) -> {
+            onPosted(sequence, accountNumber, type, amount, balanceAfter, timestampMillis);
+            other.onPosted(sequence, accountNumber, type, amount, balanceAfter, timestampMillis);
+        };
+    }
+}
@@ -0,0 +1,836 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Reconciles the ATM ledger against the switch's settlement file at end of day.
+ *
+ * Both sides are sorted externally: rows are routed by transaction id into
+ * partitions, so both sides of a transaction meet in one partition whatever
+ * account each names. Each partition collects rows in a bounded buffer, and a
+ * full buffer is sorted by transaction id and spilled to a temporary run file.
+ * Each partition then merges its runs (in several passes if there are more than
+ * can be open at once) and walks the two sorted streams side by side, matching
+ * rows by transaction id and comparing accounts and amounts. Memory is bounded by
+ * the row budget and the open runs, whatever the size of the day.
+ *
+ * Every phase runs in parallel on a dedicated fork-join pool: the ledger is read
+ * one group of accounts per task, a block of history at a time so sessions are
+ * only blocked for one block copy, or from an on-disk store straight off its
+ * transaction log in one sequential pass, without loading any account; the settlement file is split into byte ranges
+ * parsed concurrently; and partitions are merged independently.
+ *
+ * The ledger side is every deposit and withdrawal posted in the reconciled time
+ * window, identified by its global sequence id. The settlement file is CSV with
+ * one row per transaction: {@code transaction_id,account,amount}, the amount in
+ * rupees with up to two decimals; an optional header line is skipped. Mismatches
+ * are written as CSV:
+ * {@code kind,transaction_id,account,ledger_amount,settlement_amount,settlement_account},
+ * the last column empty when the settlement has no such transaction.
+ */
+public class LedgerReconciler {
+
+    /**
+     * An account whose postings can be read with their sequence ids; implemented by each variant's BankAccount
+     */
+    public interface Journal {
+        String getAccountNumber();
+
+        /**
+         * Emits up to max postings starting at history index from, oldest first
+         * @return the number of postings emitted, 0 once the end is reached
+         */
+        int exportJournal(int from, int max, JournalSink sink);
+    }
+
+    /**
+     * Receives one posting at a time
+     */
+    public interface JournalSink {
+        void posting(long sequence, long timestampMillis, String type, double amount);
+    }
+
+    public enum Kind {
+        MISSING_IN_SETTLEMENT, MISSING_IN_LEDGER, AMOUNT_MISMATCH, ACCOUNT_MISMATCH, DUPLICATE_IN_LEDGER,
+        DUPLICATE_IN_SETTLEMENT
+    }
+
+    /**
+     * One transaction the two sides disagree on
+     */
+    public static class Mismatch {
+        private final Kind kind;
+        private final long transactionId;
+        private final String accountNumber;
+        private final long ledgerPaise;
+        private final long settlementPaise;
+        private final String settlementAccountNumber;
+
+        Mismatch(Kind kind, long transactionId, String accountNumber, long ledgerPaise, long settlementPaise,
+                 String settlementAccountNumber) {
+            this.kind = kind;
+            this.transactionId = transactionId;
+            this.accountNumber = accountNumber;
+            this.ledgerPaise = ledgerPaise;
+            this.settlementPaise = settlementPaise;
+            this.settlementAccountNumber = settlementAccountNumber;
+        }
+
+        public Kind getKind() { return kind; }
+        public long getTransactionId() { return transactionId; }
+        public String getAccountNumber() { return accountNumber; }
+        /** Amount on the ledger side; 0 if the ledger has no such transaction */
+        public double getLedgerAmount() { return ledgerPaise / 100.0; }
+        /** Amount on the settlement side; 0 if the settlement has no such transaction */
+        public double getSettlementAmount() { return settlementPaise / 100.0; }
+        /** Account on the settlement side; null if the settlement has no such transaction */
+        public String getSettlementAccountNumber() { return settlementAccountNumber; }
+
+        @Override
+        public String toString() {
+            if (kind == Kind.ACCOUNT_MISMATCH) {
+                return String.format("#%d %s %s (settlement account %s, ledger ₹%.2f, settlement ₹%.2f)", transactionId,
+                        accountNumber, kind, settlementAccountNumber, getLedgerAmount(), getSettlementAmount());
+            }
+            return String.format("#%d %s %s (ledger ₹%.2f, settlement ₹%.2f)", transactionId, accountNumber, kind,
+                    getLedgerAmount(), getSettlementAmount());
+        }
+    }
+
+    /**
+     * Outcome of one reconciliation run
+     */
+    public static class Report {
+        private final long ledgerRows;
+        private final long settlementRows;
+        private final long matched;
+        private final long mismatchCount;
+        private final long malformedRows;
+        private final long runsSpilled;
+        private final List<Mismatch> mismatches;
+        private final long elapsedMillis;
+
+        Report(long ledgerRows, long settlementRows, long matched, long mismatchCount, long malformedRows,
+               long runsSpilled, List<Mismatch> mismatches, long elapsedMillis) {
+            this.ledgerRows = ledgerRows;
+            this.settlementRows = settlementRows;
+            this.matched = matched;
+            this.mismatchCount = mismatchCount;
+            this.malformedRows = malformedRows;
+            this.runsSpilled = runsSpilled;
+            this.mismatches = mismatches;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getLedgerRows() { return ledgerRows; }
+        public long getSettlementRows() { return settlementRows; }
+        public long getMatched() { return matched; }
+        public long getMismatchCount() { return mismatchCount; }
+        /** Settlement lines that could not be parsed; not reconciled */
+        public long getMalformedRows() { return malformedRows; }
+        /** Sorted runs written to disk, both sides */
+        public long getRunsSpilled() { return runsSpilled; }
+        /** The first mismatches found, up to the reconciler's reporting limit; all are in the mismatch file */
+        public List<Mismatch> getMismatches() { return mismatches; }
+        public long getElapsedMillis() { return elapsedMillis; }
+        public boolean isClean() { return mismatchCount == 0 && malformedRows == 0; }
+
+        @Override
+        public String toString() {
+            return String.format("%d ledger rows | %d settlement rows | %d matched | %d mismatches | %d malformed | %d runs | %d ms",
+                    ledgerRows, settlementRows, matched, mismatchCount, malformedRows, runsSpilled, elapsedMillis);
+        }
+    }
+
+    private static final int BLOCK_ROWS = 1024;
+    private static final int MIN_BUFFER_ROWS = 4096;
+    private static final int MAX_FAN_IN = 64;
+    private static final int IO_BUFFER = 64 * 1024;
+    private static final int MISMATCH_FLUSH_CHARS = 64 * 1024;
+    private static final Comparator<Row> BY_ID = Comparator.comparingLong(row -> row.id);
+
+    private final int parallelism;
+    private final int partitions;
+    private final int maxRowsInMemory;
+    private final int maxReported;
+    private final Path tempDir;
+
+    /**
+     * @param parallelism worker threads
+     * @param partitions account partitions; each is merged on its own
+     * @param maxRowsInMemory rows buffered across all partitions before they are spilled to disk
+     * @param maxReported mismatches kept in the report; all are written and counted
+     * @param tempDir where sorted runs are spilled
+     */
+    public LedgerReconciler(int parallelism, int partitions, int maxRowsInMemory, int maxReported, Path tempDir) {
+        if (parallelism <= 0 || partitions <= 0 || maxRowsInMemory <= 0 || maxReported < 0) {
+            throw new IllegalArgumentException("Invalid parallelism, partitions, row budget or report limit.");
+        }
+        this.parallelism = parallelism;
+        this.partitions = partitions;
+        this.maxRowsInMemory = maxRowsInMemory;
+        this.maxReported = maxReported;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Half the cores, four partitions per worker, two million rows in memory, up to
+     * 1000 reported mismatches, runs in the system temp directory
+     */
+    public static LedgerReconciler withDefaults() {
+        int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        return new LedgerReconciler(parallelism, parallelism * 4, 1 << 21, 1000,
+                Paths.get(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * Reconciles the deposits and withdrawals posted in [fromMillis, toMillis) against a settlement file
+     * @param accounts the account registry values
+     * @param mismatchFile created or truncated; receives every mismatch
+     */
+    public Report reconcile(Collection<? extends Journal> accounts, Path settlementFile, Path mismatchFile,
+                            long fromMillis, long toMillis) throws IOException {
+        return reconcile(parts -> {
+            List<Callable<Void>> reads = new ArrayList<>();
+            for (List<Journal> group : groupAccounts(accounts)) {
+                reads.add(() -> readLedger(group, parts, fromMillis, toMillis));
+            }
+            return reads;
+        }, settlementFile, mismatchFile);
+    }
+
+    /**
+     * Reconciles as above, reading the ledger side from the store's transaction log
+     * instead of from the accounts, so no account is loaded
+     * @param ledger the store the accounts post to
+     * @param mismatchFile created or truncated; receives every mismatch
+     */
+    public Report reconcile(TransactionRepository ledger, Path settlementFile, Path mismatchFile,
+                            long fromMillis, long toMillis) throws IOException {
+        return reconcile(parts -> Collections.singletonList(() -> readLog(ledger, parts, fromMillis, toMillis)),
+                settlementFile, mismatchFile);
+    }
+
+    private Report reconcile(LedgerReads ledgerReads, Path settlementFile, Path mismatchFile) throws IOException {
+        long start = System.nanoTime();
+        Path runDir = Files.createTempDirectory(tempDir, "reconcile-");
+        Totals totals = new Totals();
+        // both sides' buffers share the budget, plus one in-flight spill per worker
+        int bufferRows = Math.max(MIN_BUFFER_ROWS, maxRowsInMemory / (2 * partitions + parallelism));
+        Partition[] parts = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            parts[i] = new Partition(i, runDir, bufferRows, totals);
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (Writer out = Files.newBufferedWriter(mismatchFile, StandardCharsets.UTF_8)) {
+            out.write("kind,transaction_id,account,ledger_amount,settlement_amount,settlement_account\n");
+            MismatchWriter writer = new MismatchWriter(out);
+
+            List<Callable<Void>> reads = new ArrayList<>(ledgerReads.tasks(parts));
+            long size = Files.size(settlementFile);
+            long rangeSize = Math.max(IO_BUFFER, (size + parallelism - 1) / parallelism);
+            for (long from = 0; from < size; from += rangeSize) {
+                long rangeStart = from;
+                long rangeEnd = Math.min(size, from + rangeSize);
+                reads.add(() -> readSettlement(settlementFile, rangeStart, rangeEnd, parts, totals));
+            }
+            run(pool, reads);
+
+            List<Callable<Void>> merges = new ArrayList<>();
+            for (Partition part : parts) {
+                merges.add(() -> part.reconcile(writer));
+            }
+            run(pool, merges);
+        } finally {
+            pool.shutdown();
+            deleteRecursively(runDir);
+        }
+        return new Report(totals.ledgerRows.sum(), totals.settlementRows.sum(), totals.matched.sum(),
+                totals.mismatches.sum(), totals.malformed.sum(), totals.runs.sum(),
+                Collections.unmodifiableList(new ArrayList<>(totals.reported)), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Only cash movements go through the switch; interest and fees are booked internally
+     */
+    static boolean isSwitchPosting(String type) {
+        return type.equalsIgnoreCase("DEPOSIT") || type.equalsIgnoreCase("WITHDRAWAL");
+    }
+
+    // by transaction id, not account: a settlement row naming the wrong account must still meet its ledger row
+    private int partitionOf(long transactionId) {
+        int h = Long.hashCode(transactionId);
+        return Math.floorMod(h ^ (h >>> 16), partitions);
+    }
+
+    // one ledger read task per group of accounts
+    private List<List<Journal>> groupAccounts(Collection<? extends Journal> accounts) {
+        List<List<Journal>> groups = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (Journal account : accounts) {
+            int h = account.getAccountNumber().hashCode();
+            groups.get(Math.floorMod(h ^ (h >>> 16), partitions)).add(account);
+        }
+        return groups;
+    }
+
+    private static void run(ForkJoinPool pool, List<Callable<Void>> tasks) throws IOException {
+        for (Future<Void> done : pool.invokeAll(tasks)) {
+            try {
+                done.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IllegalStateException("Reconciliation task failed", cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Reconciliation interrupted", e);
+            }
+        }
+    }
+
+    // --- Phase 1: route and spill both sides ---
+
+    /**
+     * The tasks that feed the ledger side into the partitions
+     */
+    @FunctionalInterface
+    private interface LedgerReads {
+        List<Callable<Void>> tasks(Partition[] parts);
+    }
+
+    private Void readLedger(List<Journal> accounts, Partition[] parts, long fromMillis, long toMillis) throws IOException {
+        Block block = new Block();
+        for (Journal account : accounts) {
+            String accountNumber = account.getAccountNumber();
+            int index = 0;
+            int n;
+            // copied out a block at a time, buffered outside the account lock
+            while ((n = account.exportJournal(index, BLOCK_ROWS, block.reset())) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (block.timestamps[i] >= fromMillis && block.timestamps[i] < toMillis
+                            && isSwitchPosting(block.types[i])) {
+                        parts[partitionOf(block.sequences[i])].ledger
+                                .add(new Row(block.sequences[i], paise(block.amounts[i]), accountNumber));
+                    }
+                }
+                index += n;
+            }
+        }
+        return null;
+    }
+
+    private Void readLog(TransactionRepository ledger, Partition[] parts, long fromMillis, long toMillis)
+            throws IOException {
+        try {
+            ledger.forEachPosting(entry -> {
+                long time = entry.getTimestampMillis();
+                if (time >= fromMillis && time < toMillis && isSwitchPosting(entry.getType())) {
+                    try {
+                        parts[partitionOf(entry.getSequence())].ledger
+                                .add(new Row(entry.getSequence(), entry.getAmountPaise(), entry.getAccountNumber()));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return null;
+    }
+
+    private Void readSettlement(Path file, long start, long end, Partition[] parts, Totals totals) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             InputStream in = Channels.newInputStream(channel.position(Math.max(0, start - 1)))) {
+            byte[] buf = new byte[IO_BUFFER];
+            byte[] line = new byte[256];
+            int length = 0;
+            long position = Math.max(0, start - 1);
+            // the line running into this range belongs to the previous one
+            boolean skipping = start > 0;
+            long lineStart = position;
+            int n;
+            while (lineStart < end && (n = in.read(buf)) > 0) {
+                for (int i = 0; i < n && lineStart < end; i++, position++) {
+                    byte b = buf[i];
+                    if (b != '\n') {
+                        if (!skipping) {
+                            if (length == line.length) {
+                                line = Arrays.copyOf(line, length * 2);
+                            }
+                            line[length++] = b;
+                        }
+                        continue;
+                    }
+                    if (!skipping) {
+                        acceptSettlement(line, length, lineStart, parts, totals);
+                    }
+                    skipping = false;
+                    length = 0;
+                    lineStart = position + 1;
+                }
+            }
+            // last line of the file without a newline
+            if (!skipping && length > 0 && lineStart < end) {
+                acceptSettlement(line, length, lineStart, parts, totals);
+            }
+        }
+        return null;
+    }
+
+    private void acceptSettlement(byte[] line, int length, long lineStart, Partition[] parts, Totals totals)
+            throws IOException {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        if (length == 0) {
+            return;
+        }
+        Row row = parseSettlement(line, length);
+        if (row != null) {
+            parts[partitionOf(row.id)].settlement.add(row);
+        } else if (lineStart != 0) {
+            // the first line may be a header
+            totals.malformed.increment();
+        }
+    }
+
+    /**
+     * Parses {@code id,account,amount}
+     * @return the row, or null if the line is not one
+     */
+    private static Row parseSettlement(byte[] line, int length) {
+        int comma1 = indexOf(line, 0, length);
+        int comma2 = comma1 < 0 ? -1 : indexOf(line, comma1 + 1, length);
+        if (comma1 <= 0 || comma2 <= comma1 + 1 || comma2 == length - 1) {
+            return null;
+        }
+        long id = 0;
+        for (int i = 0; i < comma1; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9 || id > (Long.MAX_VALUE - digit) / 10) {
+                return null;
+            }
+            id = id * 10 + digit;
+        }
+        long amount = parsePaise(line, comma2 + 1, length);
+        if (amount == Long.MIN_VALUE) {
+            return null;
+        }
+        return new Row(id, amount, new String(line, comma1 + 1, comma2 - comma1 - 1, StandardCharsets.US_ASCII));
+    }
+
+    private static int indexOf(byte[] line, int from, int length) {
+        for (int i = from; i < length; i++) {
+            if (line[i] == ',') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // "-12.5" -> -1250; Long.MIN_VALUE if not an amount with at most two decimals
+    private static long parsePaise(byte[] line, int from, int to) {
+        boolean negative = line[from] == '-';
+        int i = negative ? from + 1 : from;
+        long rupees = 0;
+        int digits = 0;
+        for (; i < to && line[i] != '.'; i++, digits++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9 || rupees > Long.MAX_VALUE / 1000) {
+                return Long.MIN_VALUE;
+            }
+            rupees = rupees * 10 + digit;
+        }
+        long fraction = 0;
+        int decimals = 0;
+        if (i < to) {
+            for (i++; i < to; i++, decimals++) {
+                int digit = line[i] - '0';
+                if (digit < 0 || digit > 9 || decimals == 2) {
+                    return Long.MIN_VALUE;
+                }
+                fraction = fraction * 10 + digit;
+            }
+        }
+        if (digits == 0 && decimals == 0) {
+            return Long.MIN_VALUE;
+        }
+        long paise = rupees * 100 + (decimals == 1 ? fraction * 10 : fraction);
+        return negative ? -paise : paise;
+    }
+
+    private static long paise(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static class Totals {
+        final LongAdder ledgerRows = new LongAdder();
+        final LongAdder settlementRows = new LongAdder();
+        final LongAdder matched = new LongAdder();
+        final LongAdder mismatches = new LongAdder();
+        final LongAdder malformed = new LongAdder();
+        final LongAdder runs = new LongAdder();
+        final AtomicInteger reportedCount = new AtomicInteger();
+        final Queue<Mismatch> reported = new ConcurrentLinkedQueue<>();
+    }
+
+    private static final class Row {
+        final long id;
+        final long amountPaise;
+        final String account;
+
+        Row(long id, long amountPaise, String account) {
+            this.id = id;
+            this.amountPaise = amountPaise;
+            this.account = account;
+        }
+    }
+
+    /**
+     * Reusable column buffers for one block of postings
+     */
+    private static class Block implements JournalSink {
+        final long[] sequences = new long[BLOCK_ROWS];
+        final long[] timestamps = new long[BLOCK_ROWS];
+        final String[] types = new String[BLOCK_ROWS];
+        final double[] amounts = new double[BLOCK_ROWS];
+        private int size;
+
+        Block reset() {
+            size = 0;
+            return this;
+        }
+
+        @Override
+        public void posting(long sequence, long timestampMillis, String type, double amount) {
+            sequences[size] = sequence;
+            timestamps[size] = timestampMillis;
+            types[size] = type;
+            amounts[size] = amount;
+            size++;
+        }
+    }
+
+    /**
+     * One side of a partition: a buffer that is sorted and spilled as a run whenever it fills
+     */
+    private static final class Side {
+        private final String name;
+        private final Path dir;
+        private final int bufferRows;
+        private final LongAdder rowCount;
+        private final Totals totals;
+        private final Queue<Path> runs = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger runIds = new AtomicInteger();
+        private Row[] buffer;
+        private int size;
+
+        Side(String name, Path dir, int bufferRows, LongAdder rowCount, Totals totals) {
+            this.name = name;
+            this.dir = dir;
+            this.bufferRows = bufferRows;
+            this.rowCount = rowCount;
+            this.totals = totals;
+        }
+
+        void add(Row row) throws IOException {
+            Row[] full = null;
+            synchronized (this) {
+                if (buffer == null) {
+                    buffer = new Row[bufferRows];
+                }
+                buffer[size++] = row;
+                if (size == buffer.length) {
+                    // swap the buffer out and spill it without holding up the other workers
+                    full = buffer;
+                    buffer = null;
+                    size = 0;
+                }
+            }
+            if (full != null) {
+                spill(full, full.length);
+            }
+        }
+
+        /**
+         * Spills what is left in memory
+         * @return every run of this side
+         */
+        List<Path> finish() throws IOException {
+            Row[] rest;
+            int n;
+            synchronized (this) {
+                rest = buffer;
+                n = size;
+                buffer = null;
+                size = 0;
+            }
+            if (rest != null && n > 0) {
+                spill(rest, n);
+            }
+            return new ArrayList<>(runs);
+        }
+
+        private void spill(Row[] rows, int n) throws IOException {
+            Arrays.sort(rows, 0, n, BY_ID);
+            Path run = nextRun();
+            try (DataOutputStream out = openRun(run)) {
+                for (int i = 0; i < n; i++) {
+                    writeRow(out, rows[i]);
+                }
+            }
+            runs.add(run);
+            rowCount.add(n);
+            totals.runs.increment();
+        }
+
+        Path nextRun() {
+            return dir.resolve(name + "-" + runIds.getAndIncrement() + ".run");
+        }
+    }
+
+    private static DataOutputStream openRun(Path run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), IO_BUFFER));
+    }
+
+    private static void writeRow(DataOutputStream out, Row row) throws IOException {
+        out.writeLong(row.id);
+        out.writeLong(row.amountPaise);
+        out.writeUTF(row.account);
+    }
+
+    // --- Phase 2: merge each partition and compare ---
+
+    private final class Partition {
+        final Side ledger;
+        final Side settlement;
+        private final Totals totals;
+
+        Partition(int index, Path dir, int bufferRows, Totals totals) {
+            this.ledger = new Side("p" + index + "-ledger", dir, bufferRows, totals.ledgerRows, totals);
+            this.settlement = new Side("p" + index + "-settlement", dir, bufferRows, totals.settlementRows, totals);
+            this.totals = totals;
+        }
+
+        Void reconcile(MismatchWriter writer) throws IOException {
+            StringBuilder found = new StringBuilder();
+            try (RunMerger l = new RunMerger(reduce(ledger)); RunMerger s = new RunMerger(reduce(settlement))) {
+                long lastLedger = -1;
+                long lastSettlement = -1;
+                boolean hasL = l.next();
+                boolean hasS = s.next();
+                while (hasL || hasS) {
+                    if (hasL && l.row.id == lastLedger) {
+                        mismatch(found, writer, Kind.DUPLICATE_IN_LEDGER, l.row, l.row.amountPaise, 0, null);
+                        hasL = l.next();
+                    } else if (hasS && s.row.id == lastSettlement) {
+                        mismatch(found, writer, Kind.DUPLICATE_IN_SETTLEMENT, s.row, 0, s.row.amountPaise, s.row.account);
+                        hasS = s.next();
+                    } else if (!hasS || (hasL && l.row.id < s.row.id)) {
+                        mismatch(found, writer, Kind.MISSING_IN_SETTLEMENT, l.row, l.row.amountPaise, 0, null);
+                        lastLedger = l.row.id;
+                        hasL = l.next();
+                    } else if (!hasL || s.row.id < l.row.id) {
+                        mismatch(found, writer, Kind.MISSING_IN_LEDGER, s.row, 0, s.row.amountPaise, s.row.account);
+                        lastSettlement = s.row.id;
+                        hasS = s.next();
+                    } else {
+                        if (!l.row.account.equals(s.row.account)) {
+                            mismatch(found, writer, Kind.ACCOUNT_MISMATCH, l.row, l.row.amountPaise, s.row.amountPaise,
+                                    s.row.account);
+                        } else if (l.row.amountPaise == s.row.amountPaise) {
+                            totals.matched.increment();
+                        } else {
+                            mismatch(found, writer, Kind.AMOUNT_MISMATCH, l.row, l.row.amountPaise, s.row.amountPaise,
+                                    s.row.account);
+                        }
+                        lastLedger = l.row.id;
+                        lastSettlement = s.row.id;
+                        hasL = l.next();
+                        hasS = s.next();
+                    }
+                }
+            }
+            writer.write(found);
+            return null;
+        }
+
+        private void mismatch(StringBuilder found, MismatchWriter writer, Kind kind, Row row,
+                              long ledgerPaise, long settlementPaise, String settlementAccount) throws IOException {
+            totals.mismatches.increment();
+            if (totals.reportedCount.getAndIncrement() < maxReported) {
+                totals.reported.add(new Mismatch(kind, row.id, row.account, ledgerPaise, settlementPaise,
+                        settlementAccount));
+            }
+            found.append(kind).append(',').append(row.id).append(',').append(row.account).append(',');
+            appendAmount(found, ledgerPaise).append(',');
+            appendAmount(found, settlementPaise).append(',');
+            found.append(settlementAccount == null ? "" : settlementAccount).append('\n');
+            if (found.length() >= MISMATCH_FLUSH_CHARS) {
+                writer.write(found);
+            }
+        }
+
+        /**
+         * Merges runs a fan-in at a time until they can all be opened together
+         */
+        private List<Path> reduce(Side side) throws IOException {
+            List<Path> runs = side.finish();
+            while (runs.size() > MAX_FAN_IN) {
+                List<Path> group = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+                runs = new ArrayList<>(runs.subList(MAX_FAN_IN, runs.size()));
+                Path merged = side.nextRun();
+                try (RunMerger in = new RunMerger(group); DataOutputStream out = openRun(merged)) {
+                    while (in.next()) {
+                        writeRow(out, in.row);
+                    }
+                }
+                for (Path run : group) {
+                    Files.delete(run);
+                }
+                runs.add(merged);
+            }
+            return runs;
+        }
+    }
+
+    private static StringBuilder appendAmount(StringBuilder out, long paise) {
+        long abs = Math.abs(paise);
+        if (paise < 0) {
+            out.append('-');
+        }
+        out.append(abs / 100).append('.');
+        long fraction = abs % 100;
+        return out.append(fraction < 10 ? "0" : "").append(fraction);
+    }
+
+    /**
+     * Serializes partitions' mismatch chunks into the one output file
+     */
+    private static final class MismatchWriter {
+        private final Writer out;
+
+        MismatchWriter(Writer out) {
+            this.out = out;
+        }
+
+        void write(StringBuilder chunk) throws IOException {
+            if (chunk.length() > 0) {
+                synchronized (this) {
+                    out.append(chunk);
+                }
+                chunk.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Sorted rows of several runs, smallest id first
+     */
+    private static final class RunMerger implements AutoCloseable {
+        private final PriorityQueue<RunReader> heads = new PriorityQueue<>(
+                Comparator.comparingLong((RunReader reader) -> reader.row.id));
+        private final List<RunReader> readers = new ArrayList<>();
+        Row row;
+
+        RunMerger(List<Path> runs) throws IOException {
+            try {
+                for (Path run : runs) {
+                    RunReader reader = new RunReader(run);
+                    readers.add(reader);
+                    if (reader.next()) {
+                        heads.add(reader);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        boolean next() throws IOException {
+            RunReader head = heads.poll();
+            if (head == null) {
+                row = null;
+                return false;
+            }
+            row = head.row;
+            if (head.next()) {
+                heads.add(head);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RunReader reader : readers) {
+                reader.in.close();
+            }
+        }
+    }
+
+    private static final class RunReader {
+        final DataInputStream in;
+        Row row;
+
+        RunReader(Path run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), IO_BUFFER));
+        }
+
+        boolean next() throws IOException {
+            long id;
+            try {
+                id = in.readLong();
+            } catch (EOFException e) {
+                row = null;
+                return false;
+            }
+            row = new Row(id, in.readLong(), in.readUTF());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Audits the book: every history row's balance must be the previous balance plus
+ * its amount for a credit, or minus it for a debit, the first row must follow from the opening balance, and
+ * the last row must match the account's current balance. Amounts are compared in
+ * whole paise, so floating-point noise in the doubles is not reported.
+ *
+ * Accounts are split into partitions on a dedicated fork-join pool and taken
+ * from the registry a window at a time, as in EndOfDayBatch. A long history is further cut into chunks that are checked in
+ * parallel: each chunk copies its rows (plus the row before it) out of the
+ * account a block at a time, then checks them without holding the account lock,
+ * so live sessions are only ever blocked for one block copy.
+ */
+public class LedgerVerifier {
+
+    /**
+     * An account whose journal can be audited; implemented by each variant's BankAccount
+     */
+    public interface Account extends StatementExporter.Statement {
+        double getBalance();
+
+        /** Balance before the first row of the history */
+        double getOpeningBalance();
+
+        int getTransactionCount();
+
+        /** Whether a row of this type takes money out of the account */
+        boolean isDebit(String type);
+    }
+
+    /**
+     * One broken invariant
+     */
+    public static class Discrepancy {
+        private final String accountNumber;
+        private final int row;
+        private final double expected;
+        private final double actual;
+        private final String problem;
+
+        Discrepancy(String accountNumber, int row, double expected, double actual, String problem) {
+            this.accountNumber = accountNumber;
+            this.row = row;
+            this.expected = expected;
+            this.actual = actual;
+            this.problem = problem;
+        }
+
+        public String getAccountNumber() { return accountNumber; }
+        /** History index of the offending row, or -1 for the account balance itself */
+        public int getRow() { return row; }
+        public double getExpected() { return expected; }
+        public double getActual() { return actual; }
+        public String getProblem() { return problem; }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s: %s (expected ₹%.2f, found ₹%.2f)", accountNumber,
+                    row < 0 ? "balance" : "row " + row, problem, expected, actual);
+        }
+    }
+
+    /**
+     * Outcome of one audit run
+     */
+    public static class Report {
+        private final long accountsChecked;
+        private final long rowsChecked;
+        private final long discrepancyCount;
+        private final List<Discrepancy> discrepancies;
+        private final long elapsedMillis;
+
+        Report(long accountsChecked, long rowsChecked, long discrepancyCount, List<Discrepancy> discrepancies,
+               long elapsedMillis) {
+            this.accountsChecked = accountsChecked;
+            this.rowsChecked = rowsChecked;
+            this.discrepancyCount = discrepancyCount;
+            this.discrepancies = discrepancies;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getAccountsChecked() { return accountsChecked; }
+        public long getRowsChecked() { return rowsChecked; }
+        public long getDiscrepancyCount() { return discrepancyCount; }
+        /** The first discrepancies found, up to the verifier's reporting limit */
+        public List<Discrepancy> getDiscrepancies() { return discrepancies; }
+        public long getElapsedMillis() { return elapsedMillis; }
+        public boolean isClean() { return discrepancyCount == 0; }
+
+        @Override
+        public String toString() {
+            return String.format("%d accounts | %d rows | %d discrepancies | %d ms",
+                    accountsChecked, rowsChecked, discrepancyCount, elapsedMillis);
+        }
+    }
+
+    private static final int PARTITION_SIZE = 256;
+    private static final int BLOCK_ROWS = 1024;
+    private static final int FINAL_CHECK_ATTEMPTS = 3;
+
+    private final int parallelism;
+    private final int chunkRows;
+    private final int maxReported;
+
+    /**
+     * @param parallelism worker threads
+     * @param chunkRows histories longer than this are split into chunks of this many rows
+     * @param maxReported discrepancies kept in the report; all are counted
+     */
+    public LedgerVerifier(int parallelism, int chunkRows, int maxReported) {
+        if (parallelism <= 0 || chunkRows <= 0 || maxReported < 0) {
+            throw new IllegalArgumentException("Invalid parallelism, chunk size or report limit.");
+        }
+        this.parallelism = parallelism;
+        this.chunkRows = chunkRows;
+        this.maxReported = maxReported;
+    }
+
+    /**
+     * Half the cores, 64k-row chunks, up to 1000 reported discrepancies
+     */
+    public static LedgerVerifier withDefaults() {
+        return new LedgerVerifier(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 64 * 1024, 1000);
+    }
+
+    /**
+     * Audits every account
+     * @param accounts the account registry values, iterated once
+     */
+    public Report verify(Iterable<? extends Account> accounts) {
+        long start = System.nanoTime();
+        Totals totals = new Totals();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Account[] window = new Account[PARTITION_SIZE * parallelism];
+            int size = 0;
+            for (Account account : accounts) {
+                window[size++] = account;
+                if (size == window.length) {
+                    pool.invoke(new PartitionTask(window, 0, size, totals));
+                    Arrays.fill(window, null);
+                    size = 0;
+                }
+            }
+            pool.invoke(new PartitionTask(window, 0, size, totals));
+        } finally {
+            pool.shutdown();
+        }
+        List<Discrepancy> found = new ArrayList<>(totals.reported);
+        return new Report(totals.accounts.sum(), totals.rows.sum(), totals.discrepancies.sum(),
+                Collections.unmodifiableList(found), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static long paise(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    private void report(Totals totals, Discrepancy discrepancy) {
+        totals.discrepancies.increment();
+        if (totals.reportedCount.getAndIncrement() < maxReported) {
+            totals.reported.add(discrepancy);
+        }
+    }
+
+    // runs on a pool worker, so long histories can fork their chunks
+    private void verifyAccount(Account account, Totals totals) {
+        int count = account.getTransactionCount();
+        if (count <= chunkRows) {
+            verifyChunk(account, 0, count, totals);
+        } else {
+            List<ChunkTask> chunks = new ArrayList<>();
+            for (int from = 0; from < count; from += chunkRows) {
+                chunks.add(new ChunkTask(account, from, Math.min(count, from + chunkRows), totals));
+            }
+            ForkJoinTask.invokeAll(chunks);
+        }
+        verifyBalance(account, count, totals);
+        totals.accounts.increment();
+    }
+
+    /**
+     * Checks rows [from, to) of one history against their predecessors
+     */
+    private void verifyChunk(Account account, int from, int to, Totals totals) {
+        Rows rows = new Rows(Math.min(BLOCK_ROWS, to - from + 1));
+        long previous;
+        if (from == 0) {
+            previous = paise(account.getOpeningBalance());
+        } else {
+            if (account.exportTransactions(from - 1, 1, rows.reset()) != 1) {
+                return; // history shorter than when the audit was planned; nothing to check
+            }
+            previous = paise(rows.balances[0]);
+        }
+        int index = from;
+        while (index < to) {
+            int n = account.exportTransactions(index, Math.min(rows.capacity(), to - index), rows.reset());
+            if (n == 0) {
+                break;
+            }
+            // checked outside the account lock
+            for (int i = 0; i < n; i++) {
+                long amount = paise(rows.amounts[i]);
+                long balance = paise(rows.balances[i]);
+                boolean debit = account.isDebit(rows.types[i]);
+                long expected = debit ? previous - amount : previous + amount;
+                if (balance != expected) {
+                    // the amount moved the balance, just the wrong way
+                    boolean reversed = amount != 0 && balance == (debit ? previous + amount : previous - amount);
+                    report(totals, new Discrepancy(account.getAccountNumber(), index + i, expected / 100.0,
+                            rows.balances[i], rows.types[i] + (reversed
+                                    ? (debit ? " raised the balance" : " lowered the balance")
+                                    : " does not follow from the previous balance")));
+                }
+                previous = balance;
+            }
+            totals.rows.add(n);
+            index += n;
+        }
+    }
+
+    /**
+     * Compares the current balance with the last row, following the history if it grew meanwhile
+     */
+    private void verifyBalance(Account account, int verifiedRows, Totals totals) {
+        Rows rows = new Rows(BLOCK_ROWS);
+        int count = verifiedRows;
+        for (int attempt = 0; attempt < FINAL_CHECK_ATTEMPTS; attempt++) {
+            double balance = account.getBalance();
+            if (account.exportTransactions(count, BLOCK_ROWS, rows.reset()) == 0) {
+                double last;
+                if (count == 0) {
+                    last = account.getOpeningBalance();
+                } else {
+                    account.exportTransactions(count - 1, 1, rows.reset());
+                    last = rows.balances[0];
+                }
+                if (paise(balance) != paise(last)) {
+                    report(totals, new Discrepancy(account.getAccountNumber(), -1, last, balance,
+                            "balance does not match the last history row"));
+                }
+                return;
+            }
+            // postings arrived while auditing: check them too, then try again
+            int grown = account.getTransactionCount();
+            verifyChunk(account, count, grown, totals);
+            count = grown;
+        }
+        // the account is too busy to pin down; its rows were still checked
+    }
+
+    private static class Totals {
+        final LongAdder accounts = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder discrepancies = new LongAdder();
+        final AtomicInteger reportedCount = new AtomicInteger();
+        final Queue<Discrepancy> reported = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Reusable column buffers for one block of rows
+     */
+    private static class Rows implements StatementExporter.RowSink {
+        final String[] types;
+        final double[] amounts;
+        final double[] balances;
+        private int size;
+
+        Rows(int capacity) {
+            types = new String[capacity];
+            amounts = new double[capacity];
+            balances = new double[capacity];
+        }
+
+        int capacity() {
+            return types.length;
+        }
+
+        Rows reset() {
+            size = 0;
+            return this;
+        }
+
+        @Override
+        public void row(long timestampMillis, String type, double amount, double balanceAfter) {
+            types[size] = type;
+            amounts[size] = amount;
+            balances[size] = balanceAfter;
+            size++;
+        }
+    }
+
+    private class PartitionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Account[] accounts;
+        private final int from;
+        private final int to;
+        private final Totals totals;
+
+        PartitionTask(Account[] accounts, int from, int to, Totals totals) {
+            this.accounts = accounts;
+            this.from = from;
+            this.to = to;
+            this.totals = totals;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARTITION_SIZE) {
+                for (int i = from; i < to; i++) {
+                    verifyAccount(accounts[i], totals);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PartitionTask(accounts, from, mid, totals),
+                      new PartitionTask(accounts, mid, to, totals));
+        }
+    }
+
+    private class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Account account;
+        private final int from;
+        private final int to;
+        private final Totals totals;
+
+        ChunkTask(Account account, int from, int to, Totals totals) {
+            this.account = account;
+            this.from = from;
+            this.to = to;
+            this.totals = totals;
+        }
+
+        @Override
+        protected void compute() {
+            verifyChunk(account, from, to, totals);
+        }
+    }
+}
@@ -0,0 +1,483 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Load generator and session simulator for the five ATM variants.
+ *
+ * Each variant is compiled from src into its own class loader (their BankAccount,
+ * Transaction and ATM classes clash otherwise). Sessions are synthesized as the
+ * exact keystrokes a customer would type - failed logins, balance checks,
+ * deposits, withdrawals, history views - and fed to a fresh terminal through a
+ * per-thread System.in, while System.out is routed to a per-thread byte counter.
+ * That lets many sessions run concurrently in one JVM. Throughput, latency
+ * percentiles and allocation rate are reported per variant.
+ *
+ * Every simulated session logs in to the same account, so the per-account rate
+ * limit of the admission layer is turned off unless -Datm.admission.accountRate
+ * is given explicitly. A refused request consumes its keystrokes, so the rest of
+ * that session's script no longer lines up with the menus.
+ *
+ * Usage: java LoadGenerator [--src dir] [--variants claude,gemini,...|all]
+ *        [--sessions n] [--warmup n] [--concurrency n] [--seed n]
+ */
+public class LoadGenerator {
+
+    /**
+     * How to log in to and leave each variant
+     */
+    static class Profile {
+        final String name;
+        final String sourceFile;
+        final String terminalClass;
+        final String accountNumber;
+        final String pin;
+        final boolean asksToContinue;
+
+        Profile(String name, String sourceFile, String terminalClass, String accountNumber, String pin,
+                boolean asksToContinue) {
+            this.name = name;
+            this.sourceFile = sourceFile;
+            this.terminalClass = terminalClass;
+            this.accountNumber = accountNumber;
+            this.pin = pin;
+            this.asksToContinue = asksToContinue;
+        }
+    }
+
+    static final Map<String, Profile> PROFILES = new LinkedHashMap<>();
+
+    static {
+        PROFILES.put("claude", new Profile("claude", "claude_ATM.java", "ATM", "12345", "1234", false));
+        PROFILES.put("gemini", new Profile("gemini", "gemini_ATM.java", "gemini_ATM", "12345", "1234", false));
+        PROFILES.put("deepseek", new Profile("deepseek", "deepseek_ATM.java", "deepseek_ATM", "12345", "1111", true));
+        PROFILES.put("qwen", new Profile("qwen", "qwen_ATM.java", "ATM", "12345", "1234", false));
+        PROFILES.put("chatGpt", new Profile("chatGpt", "chatGpt_ATM.java", "ATM", "12345", "1111", false));
+    }
+
+    /**
+     * Relative weights of the menu operations in a synthesized session
+     */
+    static final int WEIGHT_BALANCE = 40;
+    static final int WEIGHT_DEPOSIT = 20;
+    static final int WEIGHT_WITHDRAW = 25;
+    static final int WEIGHT_HISTORY = 15;
+    static final double RETRY_LOGIN_RATE = 0.05;
+    static final double LOCKED_OUT_RATE = 0.01;
+    static final int MAX_OPERATIONS = 6;
+
+    /**
+     * Builds the keystrokes for one customer session
+     */
+    static String synthesizeSession(Profile profile, SplittableRandom random) {
+        StringBuilder script = new StringBuilder(128);
+        double roll = random.nextDouble();
+        if (roll < LOCKED_OUT_RATE) {
+            for (int i = 0; i < 3; i++) {
+                script.append(profile.accountNumber).append('\n').append("0000\n");
+            }
+            if (profile.asksToContinue) {
+                script.append("no\n");
+            }
+            return script.toString();
+        }
+        if (roll < LOCKED_OUT_RATE + RETRY_LOGIN_RATE) {
+            script.append(profile.accountNumber).append('\n').append("0000\n");
+        }
+        script.append(profile.accountNumber).append('\n').append(profile.pin).append('\n');
+
+        int operations = 1 + random.nextInt(MAX_OPERATIONS);
+        int total = WEIGHT_BALANCE + WEIGHT_DEPOSIT + WEIGHT_WITHDRAW + WEIGHT_HISTORY;
+        for (int i = 0; i < operations; i++) {
+            int pick = random.nextInt(total);
+            if (pick < WEIGHT_BALANCE) {
+                script.append("1\n");
+            } else if (pick < WEIGHT_BALANCE + WEIGHT_DEPOSIT) {
+                script.append("2\n").append(500 * (1 + random.nextInt(10))).append('\n');
+            } else if (pick < WEIGHT_BALANCE + WEIGHT_DEPOSIT + WEIGHT_WITHDRAW) {
+                script.append("3\n").append(100 * (1 + random.nextInt(20))).append('\n');
+            } else {
+                script.append("4\n");
+            }
+        }
+        script.append("5\n");
+        if (profile.asksToContinue) {
+            script.append("no\n");
+        }
+        return script.toString();
+    }
+
+    // --- Per-thread console redirection ---
+
+    /**
+     * System.in replacement that reads from the calling thread's session script
+     */
+    static class RoutedInputStream extends InputStream {
+        private final ThreadLocal<InputStream> current = new ThreadLocal<>();
+
+        void route(InputStream in) {
+            current.set(in);
+        }
+
+        private InputStream in() throws IOException {
+            InputStream in = current.get();
+            if (in == null) {
+                throw new IOException("No session routed to " + Thread.currentThread().getName());
+            }
+            return in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in().available();
+        }
+
+        @Override
+        public void close() {
+            // terminals close their Scanner on exit; the shared stream must stay open
+        }
+    }
+
+    /**
+     * Counts and discards console output
+     */
+    static class CountingSink extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    /**
+     * System.out replacement that hands every call to a per-thread stream, so
+     * sessions never contend on one PrintStream lock
+     */
+    static class RoutedPrintStream extends PrintStream {
+        private final ThreadLocal<PrintStream> current;
+
+        RoutedPrintStream(PrintStream fallback) {
+            super(fallback, true);
+            this.current = ThreadLocal.withInitial(() -> fallback);
+        }
+
+        void route(PrintStream out) {
+            current.set(out);
+        }
+
+        private PrintStream out() {
+            return current.get();
+        }
+
+        @Override public void write(int b) { out().write(b); }
+        @Override public void write(byte[] buf, int off, int len) { out().write(buf, off, len); }
+        @Override public void flush() { out().flush(); }
+        @Override public void print(boolean b) { out().print(b); }
+        @Override public void print(char c) { out().print(c); }
+        @Override public void print(int i) { out().print(i); }
+        @Override public void print(long l) { out().print(l); }
+        @Override public void print(float f) { out().print(f); }
+        @Override public void print(double d) { out().print(d); }
+        @Override public void print(char[] s) { out().print(s); }
+        @Override public void print(String s) { out().print(s); }
+        @Override public void print(Object obj) { out().print(obj); }
+        @Override public void println() { out().println(); }
+        @Override public void println(boolean x) { out().println(x); }
+        @Override public void println(char x) { out().println(x); }
+        @Override public void println(int x) { out().println(x); }
+        @Override public void println(long x) { out().println(x); }
+        @Override public void println(float x) { out().println(x); }
+        @Override public void println(double x) { out().println(x); }
+        @Override public void println(char[] x) { out().println(x); }
+        @Override public void println(String x) { out().println(x); }
+        @Override public void println(Object x) { out().println(x); }
+        @Override public PrintStream printf(String format, Object... args) { return out().printf(format, args); }
+        @Override public PrintStream printf(Locale l, String format, Object... args) { return out().printf(l, format, args); }
+        @Override public PrintStream format(String format, Object... args) { return out().format(format, args); }
+        @Override public PrintStream format(Locale l, String format, Object... args) { return out().format(l, format, args); }
+        @Override public PrintStream append(CharSequence csq) { return out().append(csq); }
+        @Override public PrintStream append(CharSequence csq, int start, int end) { return out().append(csq, start, end); }
+        @Override public PrintStream append(char c) { return out().append(c); }
+    }
+
+    // --- Variant loading ---
+
+    /**
+     * Compiles one variant (plus the shared classes it uses) into its own class loader
+     */
+    static Class<?> loadTerminal(Path srcDir, Profile profile, Path workDir) throws IOException, ClassNotFoundException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("A JDK is required to compile the ATM variants.");
+        }
+        Path variantSrc = Files.createDirectories(workDir.resolve(profile.name).resolve("src"));
+        Path classes = Files.createDirectories(workDir.resolve(profile.name).resolve("classes"));
+        try (DirectoryStream<Path> shared = Files.newDirectoryStream(srcDir, "*.java")) {
+            for (Path file : shared) {
+                if (!file.getFileName().toString().endsWith("_ATM.java")) {
+                    Files.copy(file, variantSrc.resolve(file.getFileName()));
+                }
+            }
+        }
+        String source = Files.readString(srcDir.resolve(profile.sourceFile), StandardCharsets.UTF_8);
+        String launcher = profile.sourceFile.substring(0, profile.sourceFile.length() - ".java".length());
+        if (!launcher.equals(profile.terminalClass)) {
+            // only the terminal is driven; some launchers start another variant and don't compile on their own
+            source = stripClass(source, launcher);
+        }
+        Path variantFile = Files.writeString(variantSrc.resolve(profile.sourceFile), source, StandardCharsets.UTF_8);
+        int status = compiler.run(null, null, null, "-nowarn", "-encoding", "UTF-8",
+                "-sourcepath", variantSrc.toString(), "-d", classes.toString(), variantFile.toString());
+        if (status != 0) {
+            throw new IllegalStateException("Could not compile " + profile.sourceFile);
+        }
+        URLClassLoader loader = new URLClassLoader(new URL[] {classes.toUri().toURL()},
+                LoadGenerator.class.getClassLoader().getParent());
+        return loader.loadClass(profile.terminalClass);
+    }
+
+    /**
+     * Removes a top-level "public class name { ... }" declaration, and the line comment just above it
+     */
+    static String stripClass(String source, String className) {
+        int start = source.indexOf("public class " + className);
+        if (start < 0) {
+            return source;
+        }
+        int open = source.indexOf('{', start);
+        int depth = 0;
+        int end = open;
+        for (; end < source.length(); end++) {
+            char c = source.charAt(end);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                break;
+            }
+        }
+        int lineStart = source.lastIndexOf('\n', start - 1);
+        int prevLine = source.lastIndexOf('\n', lineStart - 1);
+        if (lineStart > 0 && source.substring(prevLine + 1, lineStart).trim().startsWith("//")) {
+            start = prevLine + 1;
+        }
+        return source.substring(0, start) + source.substring(Math.min(end + 1, source.length()));
+    }
+
+    // --- Running ---
+
+    static class Result {
+        final String variant;
+        final long[] latenciesNanos;
+        final long sessions;
+        final long errors;
+        final long elapsedNanos;
+        final long allocatedBytes;
+        final long outputBytes;
+
+        Result(String variant, long[] latenciesNanos, long errors, long elapsedNanos, long allocatedBytes,
+               long outputBytes) {
+            this.variant = variant;
+            this.latenciesNanos = latenciesNanos;
+            this.sessions = latenciesNanos.length;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.outputBytes = outputBytes;
+        }
+
+        long percentileMicros(double p) {
+            if (sessions == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(sessions - 1, Math.ceil(p * sessions) - 1);
+            return latenciesNanos[Math.max(0, index)] / 1000;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            return String.format("%-9s %8d %6d %10.1f %8d %8d %8d %8d %10.1f %9.1f",
+                    variant, sessions, errors, sessions / seconds,
+                    percentileMicros(0.50), percentileMicros(0.90), percentileMicros(0.99), percentileMicros(0.999),
+                    sessions == 0 ? 0.0 : allocatedBytes / 1024.0 / sessions,
+                    allocatedBytes / 1024.0 / 1024.0 / seconds);
+        }
+
+        static String header() {
+            return String.format("%-9s %8s %6s %10s %8s %8s %8s %8s %10s %9s",
+                    "variant", "sessions", "errors", "sess/s", "p50 µs", "p90 µs", "p99 µs", "p99.9 µs",
+                    "KB/sess", "MB/s");
+        }
+    }
+
+    /**
+     * Runs the given number of sessions against one variant at the given concurrency
+     */
+    static Result run(Profile profile, Class<?> terminal, int sessions, int concurrency, long seed,
+                      RoutedInputStream in, RoutedPrintStream out) throws InterruptedException {
+        Constructor<?> constructor;
+        Method start;
+        try {
+            constructor = terminal.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            start = terminal.getDeclaredMethod("start");
+            start.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(profile.name + " has no no-arg terminal with start()", e);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] latencies = new long[sessions];
+        AtomicInteger next = new AtomicInteger();
+        LongAdder errors = new LongAdder();
+        LongAdder allocated = new LongAdder();
+        LongAdder output = new LongAdder();
+        CountDownLatch ready = new CountDownLatch(concurrency);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int w = 0; w < concurrency; w++) {
+            SplittableRandom random = new SplittableRandom(seed + w);
+            Thread worker = new Thread(() -> {
+                CountingSink sink = new CountingSink();
+                out.route(new PrintStream(sink, false, StandardCharsets.UTF_8));
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int i;
+                while ((i = next.getAndIncrement()) < sessions) {
+                    byte[] script = synthesizeSession(profile, random).getBytes(StandardCharsets.UTF_8);
+                    in.route(new ByteArrayInputStream(script));
+                    long allocBefore = threads.getCurrentThreadAllocatedBytes();
+                    long begin = System.nanoTime();
+                    try {
+                        start.invoke(constructor.newInstance());
+                    } catch (ReflectiveOperationException | RuntimeException e) {
+                        errors.increment();
+                    }
+                    latencies[i] = System.nanoTime() - begin;
+                    allocated.add(threads.getCurrentThreadAllocatedBytes() - allocBefore);
+                }
+                output.add(sink.bytes);
+            }, "session-" + profile.name + "-" + w);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        Arrays.sort(latencies);
+        return new Result(profile.name, latencies, errors.sum(), elapsed, allocated.sum(), output.sum());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path srcDir = Paths.get("src");
+        List<String> variants = new ArrayList<>(PROFILES.keySet());
+        int sessions = 20_000;
+        int warmup = 2_000;
+        int concurrency = Runtime.getRuntime().availableProcessors();
+        long seed = 42;
+
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--src": srcDir = Paths.get(value); i++; break;
+                case "--variants":
+                    if (!"all".equals(value)) {
+                        variants = Arrays.asList(value.split(","));
+                    }
+                    i++;
+                    break;
+                case "--sessions": sessions = Integer.parseInt(value); i++; break;
+                case "--warmup": warmup = Integer.parseInt(value); i++; break;
+                case "--concurrency": concurrency = Integer.parseInt(value); i++; break;
+                case "--seed": seed = Long.parseLong(value); i++; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.err.println("Usage: java LoadGenerator [--src dir] [--variants a,b|all] [--sessions n]"
+                            + " [--warmup n] [--concurrency n] [--seed n]");
+                    System.exit(2);
+            }
+        }
+        if (System.getProperty("atm.admission.accountRate") == null) {
+            System.setProperty("atm.admission.accountRate", "Infinity");
+        }
+
+        PrintStream console = System.out;
+        InputStream originalIn = System.in;
+        RoutedInputStream in = new RoutedInputStream();
+        RoutedPrintStream out = new RoutedPrintStream(console);
+        Path workDir = Files.createTempDirectory("atm-load");
+
+        console.printf("Sessions: %d (+%d warmup) | Concurrency: %d | Seed: %d%n", sessions, warmup, concurrency, seed);
+        console.println(Result.header());
+        System.setIn(in);
+        System.setOut(out);
+        try {
+            for (String name : variants) {
+                Profile profile = PROFILES.get(name);
+                if (profile == null) {
+                    console.println("Unknown variant: " + name);
+                    continue;
+                }
+                Class<?> terminal = loadTerminal(srcDir, profile, workDir);
+                if (warmup > 0) {
+                    run(profile, terminal, warmup, concurrency, seed ^ 0x5DEECE66DL, in, out);
+                }
+                console.println(run(profile, terminal, sessions, concurrency, seed, in, out));
+            }
+        } finally {
+            System.setOut(console);
+            System.setIn(originalIn);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Follower side of journal replication, a hot standby for a primary terminal.
+ * Connects to a ReplicationPrimary, loads its snapshot, then applies journal
+ * batches as they arrive and acknowledges each one. Everything is written to a
+ * FileLedgerStore in the follower's own directory, in the same layout the
+ * primary's store uses: each account's full stored form (holder and PIN
+ * included) and every posting with its transaction id. The replica serves
+ * read-only balance and history queries, so that traffic can move off the
+ * primary. On disconnect it reconnects and resyncs from a fresh snapshot,
+ * dropping postings it already has.
+ *
+ * promote() stops following and closes the store; a terminal started with
+ * -Datm.store.dir set to the directory then opens it as its own, with every
+ * balance, PIN and history the primary had acknowledged. Fencing the old
+ * primary, so two terminals never post at once, is left to the operator.
+ *
+ * Run as its own process: java ReplicationFollower [port] [directory]
+ */
+public class ReplicationFollower implements Closeable {
+
+    private static final long RECONNECT_DELAY_NANOS = 500_000_000L;
+    private static final int HOT_ACCOUNTS = 10_000;
+
+    /**
+     * Read-only copy of one account. The stored form is kept as the primary wrote
+     * it, except for the balance at its end, which follows the replicated postings.
+     */
+    public static class ReplicaAccount {
+        private final String accountNumber;
+        private final String holderName;
+        private volatile byte[] storedForm;
+        private volatile long balancePaise;
+        // the newest posting applied, or -1 until it has been looked up in the store
+        private long lastSequence = -1;
+
+        ReplicaAccount(byte[] storedForm) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(storedForm));
+            this.accountNumber = in.readUTF();
+            this.holderName = in.readUTF();
+            this.storedForm = storedForm;
+            this.balancePaise = Math.round(readBalance(storedForm) * 100);
+        }
+
+        public String getAccountNumber() {
+            return accountNumber;
+        }
+
+        public String getHolderName() {
+            return holderName;
+        }
+
+        public double getBalance() {
+            return balancePaise / 100.0;
+        }
+
+        void writeTo(DataOutput out) throws IOException {
+            byte[] form = storedForm;
+            out.write(form, 0, form.length - 8);
+            out.writeDouble(getBalance());
+        }
+
+        static ReplicaAccount readFrom(DataInput in) throws IOException {
+            // the store hands the codec one record's stream, so the rest of it is the stored form
+            return new ReplicaAccount(((InputStream) in).readAllBytes());
+        }
+
+        private static double readBalance(byte[] storedForm) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(storedForm, storedForm.length - 8, 8));
+            return in.readDouble();
+        }
+    }
+
+    private final int port;
+    private final Path directory;
+    private final FileLedgerStore<ReplicaAccount> store;
+    private final Thread receiver;
+    private volatile long appliedSequence;
+    private volatile boolean connected;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+
+    /**
+     * Starts following the primary listening on the given loopback port
+     * @param directory where the replica's store is kept; an existing replica is caught up, not rebuilt
+     * @throws IOException if the store cannot be opened
+     */
+    public ReplicationFollower(int port, Path directory) throws IOException {
+        this.port = port;
+        this.directory = directory;
+        this.store = new FileLedgerStore<>(directory,
+                AccountRepository.Codec.of(ReplicaAccount::getAccountNumber, ReplicaAccount::writeTo,
+                        ReplicaAccount::readFrom),
+                HOT_ACCOUNTS, true);
+        this.receiver = new Thread(this::follow, "replication-follower");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return the replicated account, or null if the follower has never seen it
+     */
+    public ReplicaAccount getAccount(String accountNumber) {
+        return store.find(accountNumber);
+    }
+
+    /**
+     * @return up to count most recent postings of the account, oldest first
+     */
+    public List<JournalEntry> getRecentHistory(String accountNumber, int count) throws IOException {
+        return store.history(accountNumber, count);
+    }
+
+    public int getAccountCount() {
+        return store.size();
+    }
+
+    /**
+     * Stops following and closes the replica's store, so a terminal can take it over
+     * @return the directory to start the new primary terminal on (-Datm.store.dir)
+     */
+    public Path promote() throws IOException {
+        close();
+        try {
+            receiver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+        return directory;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private void follow() {
+        while (running) {
+            try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket = s;
+                if (!running) {
+                    break;
+                }
+                s.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                if (in.readInt() != ReplicationPrimary.MAGIC || in.readByte() != ReplicationPrimary.VERSION) {
+                    throw new IOException("Not a compatible replication primary");
+                }
+                connected = true;
+                while (running) {
+                    byte frame = in.readByte();
+                    if (frame == ReplicationPrimary.SNAPSHOT) {
+                        loadSnapshot(in);
+                    } else if (frame == ReplicationPrimary.BATCH) {
+                        applyBatch(in);
+                    } else {
+                        throw new IOException("Unknown frame type " + frame);
+                    }
+                    // acknowledged only once it is on disk
+                    store.flush();
+                    out.writeLong(appliedSequence);
+                    out.flush();
+                }
+            } catch (EOFException e) {
+                // primary closed the stream
+            } catch (IOException e) {
+                if (running && connected) {
+                    System.err.println("Replication: connection lost: " + e.getMessage());
+                }
+            }
+            connected = false;
+            if (running) {
+                LockSupport.parkNanos(RECONNECT_DELAY_NANOS);
+            }
+        }
+    }
+
+    private void loadSnapshot(DataInputStream in) throws IOException {
+        while (in.readBoolean()) {
+            in.readUTF(); // the number, also at the start of the stored form
+            byte[] storedForm = new byte[in.readInt()];
+            in.readFully(storedForm);
+            ReplicaAccount received = new ReplicaAccount(storedForm);
+            ReplicaAccount account = store.find(received.getAccountNumber());
+            if (account == null) {
+                store.insert(received);
+            } else {
+                account.storedForm = storedForm;
+                account.balancePaise = received.balancePaise;
+                store.save(account);
+            }
+        }
+        long last = appliedSequence;
+        while (in.readBoolean()) {
+            last = Math.max(last, apply(JournalEntry.readFrom(in)));
+        }
+        appliedSequence = Math.max(last, in.readLong());
+    }
+
+    private void applyBatch(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        long last = appliedSequence;
+        for (int i = 0; i < count; i++) {
+            last = Math.max(last, apply(JournalEntry.readFrom(in)));
+        }
+        appliedSequence = last;
+    }
+
+    // postings of one account arrive in id order, so anything at or below the newest one held is a repeat
+    private long apply(JournalEntry entry) throws IOException {
+        ReplicaAccount account = store.find(entry.getAccountNumber());
+        if (account != null) {
+            if (account.lastSequence < 0) {
+                List<JournalEntry> newest = store.history(account.getAccountNumber(), 1);
+                account.lastSequence = newest.isEmpty() ? 0 : newest.get(0).getSequence();
+            }
+            if (entry.getSequence() <= account.lastSequence) {
+                return entry.getSequence();
+            }
+            account.lastSequence = entry.getSequence();
+            account.balancePaise = entry.getBalanceAfterPaise();
+        }
+        store.onPosted(entry.getSequence(), entry.getAccountNumber(), entry.getType(), entry.getAmountPaise() / 100.0,
+                entry.getBalanceAfterPaise() / 100.0, entry.getTimestampMillis());
+        return entry.getSequence();
+    }
+
+    /**
+     * Runs a follower with a small read-only query console
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+        Path directory = Paths.get(args.length > 1 ? args[1] : "replica");
+        ReplicationFollower follower = new ReplicationFollower(port, directory);
+        try (Scanner scanner = new Scanner(System.in)) {
+            System.out.println("Following primary on port " + port + " into " + directory
+                    + ". Commands: balance <acc>, history <acc>, status, promote, exit");
+            while (scanner.hasNextLine()) {
+                String[] command = scanner.nextLine().trim().split("\\s+");
+                if (command[0].equals("exit")) {
+                    break;
+                } else if (command[0].equals("promote")) {
+                    Path promoted = follower.promote();
+                    System.out.println("Stopped following. Start the terminal with -Datm.store.dir=" + promoted);
+                    return;
+                } else if (command[0].equals("status")) {
+                    System.out.printf("Connected: %s | Accounts: %d | Applied sequence: %d%n",
+                            follower.isConnected(), follower.getAccountCount(), follower.getAppliedSequence());
+                } else if (command.length == 2 && (command[0].equals("balance") || command[0].equals("history"))) {
+                    ReplicaAccount account = follower.getAccount(command[1]);
+                    if (account == null) {
+                        System.out.println("Unknown account: " + command[1]);
+                    } else if (command[0].equals("balance")) {
+                        System.out.printf("%s: ₹%.2f%n", account.getHolderName(), account.getBalance());
+                    } else {
+                        follower.getRecentHistory(command[1], 10).forEach(System.out::println);
+                    }
+                } else {
+                    System.out.println("Commands: balance <acc>, history <acc>, status, promote, exit");
+                }
+            }
+        }
+        follower.promote();
+    }
+}
@@ -0,0 +1,281 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Primary side of journal replication. Every ledger posting is queued, under its
+ * transaction's sequence id, for each connected follower; a shipper thread per
+ * follower drains its queue in batches and writes them without waiting for the
+ * previous batch to be acknowledged. Followers acknowledge asynchronously.
+ *
+ * A new follower first receives a snapshot, then the live stream. The snapshot
+ * holds every account's stored form (what its writeTo writes: the number first,
+ * the balance last, holder and PIN in between) and, when the book is kept in a
+ * TransactionRepository, every posting in it, so the follower ends up with a full
+ * copy of the store. An in-memory book has no journal to send; its follower's
+ * history starts at the snapshot. A follower that falls more than the queue
+ * capacity behind is disconnected; it reconnects and resyncs from a fresh snapshot
+ * instead of slowing the primary.
+ *
+ * Wire format (DataOutputStream): int MAGIC, byte VERSION, then frames tagged
+ * 'S' (repeated [true, UTF account, int length, stored form], false, repeated
+ * [true, JournalEntry], false, long sequence) and 'B' (int count, count x
+ * JournalEntry). Followers answer with long acked sequences.
+ */
+public class ReplicationPrimary implements LedgerListener, Closeable {
+
+    static final int MAGIC = 0x41544D52; // "ATMR"
+    static final byte VERSION = 2;
+    static final byte SNAPSHOT = 'S';
+    static final byte BATCH = 'B';
+
+    private static final int MAX_BATCH = 512;
+    private static final int QUEUE_CAPACITY = 1 << 20;
+
+    /**
+     * Supplies the accounts and the journal for a follower's initial snapshot
+     */
+    public interface SnapshotSource {
+        /** Calls the sink once per account with its number and stored form */
+        void forEachAccount(RecordSink sink) throws IOException;
+
+        /** Calls the sink with every posting kept, oldest first; nothing for an in-memory book */
+        void forEachPosting(Consumer<JournalEntry> sink) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface RecordSink {
+        void record(String accountNumber, byte[] storedForm) throws IOException;
+    }
+
+    private final ServerSocket server;
+    private final SnapshotSource snapshots;
+    private final AtomicLong sequence = new AtomicLong();
+    private final List<FollowerLink> followers = new CopyOnWriteArrayList<>();
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    /**
+     * Starts listening for followers on the loopback interface
+     * @param port the port to listen on, or 0 for any free port
+     */
+    public ReplicationPrimary(int port, SnapshotSource snapshots) throws IOException {
+        this.server = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+        this.snapshots = snapshots;
+        this.acceptor = new Thread(this::acceptFollowers, "replication-acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public long getLastSequence() {
+        return sequence.get();
+    }
+
+    public int getFollowerCount() {
+        return followers.size();
+    }
+
+    /**
+     * @return the lowest sequence every connected follower has applied (transaction ids)
+     */
+    public long getAckedSequence() {
+        long acked = sequence.get();
+        for (FollowerLink link : followers) {
+            acked = Math.min(acked, link.acked);
+        }
+        return acked;
+    }
+
+    @Override
+    public void onPosted(long sequence, String accountNumber, String type, double amount, double balanceAfter,
+                         long timestampMillis) {
+        this.sequence.accumulateAndGet(sequence, Math::max);
+        if (followers.isEmpty()) {
+            return;
+        }
+        JournalEntry entry = new JournalEntry(sequence, accountNumber, type, Math.round(amount * 100),
+                Math.round(balanceAfter * 100), timestampMillis);
+        for (FollowerLink link : followers) {
+            if (!link.queue.offer(entry)) {
+                link.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        server.close();
+        for (FollowerLink link : followers) {
+            link.close();
+        }
+    }
+
+    private void acceptFollowers() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                FollowerLink link = new FollowerLink(socket);
+                // register before the snapshot so nothing posted during it is missed;
+                // the follower drops postings it already has from the snapshot
+                followers.add(link);
+                link.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Replication: accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private class FollowerLink {
+        private final Socket socket;
+        private final BlockingQueue<JournalEntry> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        private volatile long acked;
+        private volatile boolean open = true;
+
+        FollowerLink(Socket socket) {
+            this.socket = socket;
+        }
+
+        void start() {
+            Thread shipper = new Thread(this::ship, "replication-shipper-" + socket.getPort());
+            shipper.setDaemon(true);
+            shipper.start();
+            Thread acks = new Thread(this::readAcks, "replication-acks-" + socket.getPort());
+            acks.setDaemon(true);
+            acks.start();
+        }
+
+        private void ship() {
+            List<JournalEntry> batch = new ArrayList<>(MAX_BATCH);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                sendSnapshot(out);
+                while (open) {
+                    JournalEntry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    out.writeByte(BATCH);
+                    out.writeInt(batch.size());
+                    for (JournalEntry entry : batch) {
+                        entry.writeTo(out);
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException | InterruptedException e) {
+                // follower went away; it resyncs from a snapshot when it reconnects
+            } finally {
+                close();
+            }
+        }
+
+        private void sendSnapshot(DataOutputStream out) throws IOException {
+            long snapshotSeq = sequence.get();
+            out.writeByte(SNAPSHOT);
+            snapshots.forEachAccount((accountNumber, storedForm) -> {
+                out.writeBoolean(true);
+                out.writeUTF(accountNumber);
+                out.writeInt(storedForm.length);
+                out.write(storedForm);
+            });
+            out.writeBoolean(false);
+            try {
+                snapshots.forEachPosting(entry -> {
+                    try {
+                        out.writeBoolean(true);
+                        entry.writeTo(out);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.writeBoolean(false);
+            out.writeLong(snapshotSeq);
+            out.flush();
+        }
+
+        private void readAcks() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                while (open) {
+                    acked = in.readLong();
+                }
+            } catch (IOException e) {
+                // connection closed
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            followers.remove(this);
+            queue.clear();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Convenience for callers that keep accounts in a repository
+     * @param journal the postings to send, or null when the book is only in memory
+     */
+    public static <A> SnapshotSource snapshotOf(Iterable<A> accounts, Function<A, String> number,
+                                                AccountRepository.Writer<A> writer, TransactionRepository journal) {
+        return new SnapshotSource() {
+            @Override
+            public void forEachAccount(RecordSink sink) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+                DataOutputStream out = new DataOutputStream(bytes);
+                for (A account : accounts) {
+                    bytes.reset();
+                    writer.write(account, out);
+                    out.flush();
+                    sink.record(number.apply(account), bytes.toByteArray());
+                }
+            }
+
+            @Override
+            public void forEachPosting(Consumer<JournalEntry> sink) throws IOException {
+                if (journal != null) {
+                    journal.forEachPosting(sink);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,99 @@
+import java.lang.invoke.VarHandle;
+
+/**
+ * Balance and last posting of one account, published for lock-free reads.
+ *
+ * Writers are already serialized by the account lock; each posting bumps the
+ * version to odd, stores the fields, and bumps it back to even. Readers take no
+ * lock: they read the version, the fields and the version again, and retry only
+ * if a write overlapped (a handful of stores, so in practice almost never).
+ * Balance inquiries therefore never wait on, or slow down, deposit/withdraw.
+ * Values are kept as raw double bits, so readers see exactly what the account holds.
+ */
+public class SeqlockBalance {
+
+    /**
+     * A consistent view of the balance and the posting that produced it
+     */
+    public static class Snapshot {
+        private final long version;
+        private final double balance;
+        private final String lastType;
+        private final double lastAmount;
+        private final long lastTimestampMillis;
+
+        Snapshot(long version, double balance, String lastType, double lastAmount, long lastTimestampMillis) {
+            this.version = version;
+            this.balance = balance;
+            this.lastType = lastType;
+            this.lastAmount = lastAmount;
+            this.lastTimestampMillis = lastTimestampMillis;
+        }
+
+        /** Number of postings published so far */
+        public long getVersion() { return version; }
+        public double getBalance() { return balance; }
+        /** @return the last posting's type, or null before the first posting */
+        public String getLastType() { return lastType; }
+        public double getLastAmount() { return lastAmount; }
+        public long getLastTimestampMillis() { return lastTimestampMillis; }
+    }
+
+    private volatile long version;
+    private long balanceBits;
+    private String lastType;
+    private long lastAmountBits;
+    private long lastTimestampMillis;
+
+    public SeqlockBalance(double initialBalance) {
+        this.balanceBits = Double.doubleToRawLongBits(initialBalance);
+    }
+
+    /**
+     * Publishes a posting. Callers must hold the account lock.
+     */
+    public void publish(double balance, String type, double amount, long timestampMillis) {
+        long v = version;
+        version = v + 1;
+        VarHandle.storeStoreFence();
+        balanceBits = Double.doubleToRawLongBits(balance);
+        lastType = type;
+        lastAmountBits = Double.doubleToRawLongBits(amount);
+        lastTimestampMillis = timestampMillis;
+        version = v + 2;
+    }
+
+    public double getBalance() {
+        while (true) {
+            long v = version;
+            long bits = balanceBits;
+            VarHandle.loadLoadFence();
+            if ((v & 1) == 0 && v == version) {
+                return Double.longBitsToDouble(bits);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Postings published so far, counting one in progress; a single volatile read
+     */
+    public long getVersion() {
+        return (version + 1) >>> 1;
+    }
+
+    public Snapshot snapshot() {
+        while (true) {
+            long v = version;
+            long bits = balanceBits;
+            String type = lastType;
+            long amountBits = lastAmountBits;
+            long timestamp = lastTimestampMillis;
+            VarHandle.loadLoadFence();
+            if ((v & 1) == 0 && v == version) {
+                return new Snapshot(v >>> 1, Double.longBitsToDouble(bits), type, Double.longBitsToDouble(amountBits), timestamp);
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
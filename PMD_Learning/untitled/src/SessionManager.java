@@ -0,0 +1,312 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tracks logged-in terminal sessions and expires the ones left idle.
+ *
+ * Deadlines live in a hierarchical timing wheel: four wheels of 64 slots, the
+ * first with a slot per tick and each next one with a slot per 64 slots of the
+ * one below. A session sits in one slot as a node of a doubly linked list, so
+ * scheduling and cancelling are a few pointer updates whatever the number of
+ * sessions, and the only memory per session is the Session object itself. One
+ * daemon thread turns the wheel every tick; each time the lowest wheel wraps, the
+ * next slot of the wheel above is cascaded down into it.
+ *
+ * Activity does not move a session: touch() only records the time. When the
+ * session's slot comes due and it has been active since it was scheduled, it is
+ * rescheduled at its new deadline instead of expired, so a busy session costs a
+ * volatile write per input and one reschedule per timeout period.
+ */
+public class SessionManager {
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 120_000;
+    public static final long DEFAULT_TICK_MILLIS = 100;
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    // 64^4 ticks, about 19 days at the default tick
+    private static final long MAX_TICKS = 1L << (WHEEL_BITS * LEVELS);
+
+    private static final int ACTIVE = 0;
+    private static final int CLOSED = 1;
+    private static final int EXPIRED = 2;
+
+    /**
+     * One login; created by open() and ended by close() or by expiring
+     */
+    public final class Session {
+        private final String accountNumber;
+        private final Runnable onExpire;
+        private volatile long lastActive;
+        private volatile int state;
+        // wheel links, guarded by the manager
+        private long deadlineTick;
+        private Session prev;
+        private Session next;
+
+        Session(String accountNumber, Runnable onExpire, long now) {
+            this.accountNumber = accountNumber;
+            this.onExpire = onExpire;
+            this.lastActive = now;
+        }
+
+        // list head of a slot
+        Session() {
+            this(null, null, 0);
+            prev = this;
+            next = this;
+        }
+
+        public String getAccountNumber() {
+            return accountNumber;
+        }
+
+        /**
+         * Records activity on the session
+         * @return false if the session has ended or timed out; the user must log in again
+         */
+        public boolean touch() {
+            if (state != ACTIVE) {
+                return false;
+            }
+            long now = LedgerClock.currentTimeMillis();
+            if (now - lastActive >= idleTimeoutMillis) {
+                // due, but the wheel has not reached it yet
+                expire(this);
+                return false;
+            }
+            lastActive = now;
+            return true;
+        }
+
+        public boolean isActive() {
+            return state == ACTIVE && LedgerClock.currentTimeMillis() - lastActive < idleTimeoutMillis;
+        }
+
+        public long getIdleMillis() {
+            return Math.max(0, LedgerClock.currentTimeMillis() - lastActive);
+        }
+
+        /**
+         * Logs out; the expiry callback does not run
+         */
+        public void close() {
+            synchronized (SessionManager.this) {
+                if (state == ACTIVE) {
+                    unlink(this);
+                    state = CLOSED;
+                    active--;
+                }
+            }
+        }
+    }
+
+    private final long idleTimeoutMillis;
+    private final long tickMillis;
+    private final Session[][] wheels = new Session[LEVELS][WHEEL_SIZE];
+    private long currentTick;
+    private int active;
+
+    /**
+     * @param idleTimeoutMillis inactivity after which a session expires
+     * @param tickMillis resolution of the wheel; sessions expire up to one tick late
+     */
+    public SessionManager(long idleTimeoutMillis, long tickMillis) {
+        if (tickMillis <= 0 || idleTimeoutMillis <= 0 || idleTimeoutMillis / tickMillis >= MAX_TICKS - 1) {
+            throw new IllegalArgumentException("Invalid idle timeout or tick.");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.tickMillis = tickMillis;
+        for (Session[] wheel : wheels) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = new Session();
+            }
+        }
+        this.currentTick = LedgerClock.currentTimeMillis() / tickMillis;
+        Thread ticker = new Thread(this::turn, "session-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Two minutes idle, or -Datm.session.idleSeconds, on a 100 ms tick
+     */
+    public static SessionManager withDefaults() {
+        long idleSeconds = Long.getLong("atm.session.idleSeconds",
+                TimeUnit.MILLISECONDS.toSeconds(DEFAULT_IDLE_TIMEOUT_MILLIS));
+        return new SessionManager(TimeUnit.SECONDS.toMillis(idleSeconds), DEFAULT_TICK_MILLIS);
+    }
+
+    public Session open(String accountNumber) {
+        return open(accountNumber, null);
+    }
+
+    /**
+     * Starts tracking a login
+     * @param onExpire run on the wheel thread if the session times out; may be null
+     */
+    public Session open(String accountNumber, Runnable onExpire) {
+        long now = LedgerClock.currentTimeMillis();
+        Session session = new Session(accountNumber, onExpire, now);
+        synchronized (this) {
+            session.deadlineTick = Math.max(currentTick, ticks(now + idleTimeoutMillis));
+            place(session);
+            active++;
+        }
+        return session;
+    }
+
+    public synchronized int getActiveSessions() {
+        return active;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Runs every tick up to the given time, expiring sessions that are due; the
+     * wheel thread calls this, so callers only need it to drive a clock of their own
+     */
+    public void advance(long nowMillis) {
+        List<Session> expired = new ArrayList<>();
+        synchronized (this) {
+            long target = nowMillis / tickMillis;
+            while (currentTick <= target) {
+                if (active == 0) {
+                    // nothing scheduled: skip the idle ticks
+                    currentTick = target + 1;
+                    break;
+                }
+                if ((currentTick & WHEEL_MASK) == 0) {
+                    cascade(1);
+                }
+                fire(wheels[0][(int) (currentTick & WHEEL_MASK)], nowMillis, expired);
+                currentTick++;
+            }
+        }
+        for (Session session : expired) {
+            notifyExpired(session);
+        }
+    }
+
+    private void turn() {
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        while (true) {
+            LockSupport.parkNanos(tickNanos);
+            advance(LedgerClock.currentTimeMillis());
+        }
+    }
+
+    private void expire(Session session) {
+        synchronized (this) {
+            if (session.state != ACTIVE) {
+                return;
+            }
+            unlink(session);
+            session.state = EXPIRED;
+            active--;
+        }
+        notifyExpired(session);
+    }
+
+    private static void notifyExpired(Session session) {
+        if (session.onExpire != null) {
+            try {
+                session.onExpire.run();
+            } catch (RuntimeException e) {
+                // one failing callback must not stop the wheel
+                System.err.println("Session expiry callback failed: " + e);
+            }
+        }
+    }
+
+    private long ticks(long millis) {
+        return (millis + tickMillis - 1) / tickMillis;
+    }
+
+    /**
+     * Links a session into the slot for its deadline, on the lowest wheel whose span reaches it
+     */
+    private void place(Session session) {
+        long delta = session.deadlineTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        Session head = wheels[level][(int) ((session.deadlineTick >>> (WHEEL_BITS * level)) & WHEEL_MASK)];
+        session.prev = head.prev;
+        session.next = head;
+        head.prev.next = session;
+        head.prev = session;
+    }
+
+    private static void unlink(Session session) {
+        if (session.prev != null) {
+            session.prev.next = session.next;
+            session.next.prev = session.prev;
+            session.prev = null;
+            session.next = null;
+        }
+    }
+
+    /**
+     * Moves the current slot of a higher wheel down; its sessions are now less than one of its slots away
+     */
+    private void cascade(int level) {
+        int index = (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        Session session = detach(wheels[level][index]);
+        while (session != null) {
+            Session following = session.next;
+            session.next = null;
+            place(session);
+            session = following;
+        }
+        if (index == 0 && level + 1 < LEVELS) {
+            cascade(level + 1);
+        }
+    }
+
+    /**
+     * Expires the sessions of a due slot that stayed idle, and reschedules the ones that did not
+     */
+    private void fire(Session head, long nowMillis, List<Session> expired) {
+        Session session = detach(head);
+        while (session != null) {
+            Session following = session.next;
+            session.next = null;
+            long idleUntil = session.lastActive + idleTimeoutMillis;
+            if (nowMillis >= idleUntil) {
+                session.state = EXPIRED;
+                active--;
+                expired.add(session);
+            } else {
+                session.deadlineTick = ticks(idleUntil);
+                place(session);
+            }
+            session = following;
+        }
+    }
+
+    /**
+     * Empties a slot
+     * @return its sessions as a list chained through next, or null
+     */
+    private static Session detach(Session head) {
+        if (head.next == head) {
+            return null;
+        }
+        Session first = head.next;
+        head.prev.next = null;
+        head.prev = head;
+        head.next = head;
+        for (Session session = first; session != null; session = session.next) {
+            session.prev = null;
+        }
+        return first;
+    }
+}
@@ -0,0 +1,714 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thin routing layer in front of the account shards. Single-account requests
+ * (authenticate, balance, deposit, withdraw) go straight to the shard that owns
+ * the account number; nothing is cached here, so any number of routers can run
+ * side by side. Transfers use two-phase commit: the source shard holds the
+ * funds, the target shard parks the credit, and only when both have prepared
+ * are both committed. A failed prepare aborts whatever was already prepared.
+ *
+ * The commit decision is forced to a decision log before either side is told,
+ * and marked done only once both sides have applied it. Decisions not done are
+ * sent again by recover(), which runs on open and then on a schedule; shards
+ * answer repeated commits with the recorded outcome, so re-sending is safe.
+ * Shards never abort a prepared transaction on their own. Instead recover() asks
+ * each shard for the prepared transactions whose hold time has passed, and aborts
+ * the ones this router prepared but never decided to commit: a transfer still in
+ * progress is left alone, and one with no logged decision can never be committed.
+ * The router's id and an epoch bumped on every open are kept in the log and form
+ * the top of each transaction id, so a restarted router recognises what an
+ * earlier run of it prepared. Transfers another router prepared are left to that
+ * router.
+ *
+ * Usable in-process by a terminal, or as its own process speaking the shard
+ * protocol plus TRANSFER: java ShardRouter port host:port [host:port ...]
+ * (shard addresses in shard-index order), with the shared secret in
+ * ATM_SHARD_SECRET (or -Datm.shard.secret), the decision log in
+ * -Datm.shard.decisionLog (router-decisions.log by default) and the recovery
+ * interval in -Datm.shard.recoverSeconds (30 by default).
+ */
+public class ShardRouter implements ShardServer.Handler, Closeable {
+
+    private static final int COMMIT_ATTEMPTS = 5;
+    private static final long COMMIT_RETRY_NANOS = 100_000_000L;
+    public static final long DEFAULT_RECOVER_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Shard owning the account. String.hashCode is fixed by the language spec,
+     * so every router and shard process agrees on the placement.
+     */
+    public static int shardOf(String accountNumber, int shardCount) {
+        int h = accountNumber.hashCode() * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), shardCount);
+    }
+
+    private final Remote[] shards;
+    private final DecisionLog decisions;
+    private final long txPrefix;
+    private final AtomicLong txCounter = new AtomicLong();
+    private final LongAdder inDoubt = new LongAdder();
+    // debit ids of transfers between their first prepare and their decision
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+    private final Thread recoverer;
+    private volatile boolean running = true;
+
+    /**
+     * Opens the decision log, finishes any transfers it records as decided but not
+     * done, and then does so again every 30 seconds, or -Datm.shard.recoverSeconds
+     * @param shardAddresses shard endpoints, in shard-index order
+     * @param connectionsPerShard pooled connections kept to each shard
+     * @param secret the secret the shards expect
+     * @param decisionLog file the commit decisions are forced to
+     */
+    public ShardRouter(List<InetSocketAddress> shardAddresses, int connectionsPerShard, String secret,
+                       Path decisionLog) throws IOException {
+        this(shardAddresses, connectionsPerShard, secret, decisionLog,
+                TimeUnit.SECONDS.toMillis(Long.getLong("atm.shard.recoverSeconds",
+                        TimeUnit.MILLISECONDS.toSeconds(DEFAULT_RECOVER_MILLIS))));
+    }
+
+    /**
+     * @param recoverMillis how often recover() runs in the background
+     */
+    public ShardRouter(List<InetSocketAddress> shardAddresses, int connectionsPerShard, String secret,
+                       Path decisionLog, long recoverMillis) throws IOException {
+        if (shardAddresses.isEmpty() || connectionsPerShard <= 0) {
+            throw new IllegalArgumentException("Need at least one shard and one connection per shard.");
+        }
+        if (recoverMillis <= 0) {
+            throw new IllegalArgumentException("The recovery interval must be positive.");
+        }
+        this.shards = new Remote[shardAddresses.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Remote(shardAddresses.get(i), connectionsPerShard, secret);
+        }
+        this.decisions = new DecisionLog(decisionLog);
+        this.txPrefix = ((long) decisions.routerId << 48) | ((long) decisions.epoch << 32);
+        recover();
+        this.recoverer = new Thread(() -> recoverLoop(recoverMillis), "shard-recovery");
+        this.recoverer.setDaemon(true);
+        this.recoverer.start();
+    }
+
+    /**
+     * Re-sends commit for every logged decision that is not yet done, then aborts
+     * the in-doubt transactions on every shard that this router prepared and never
+     * decided; runs on a schedule, and can be called at once when a shard is back
+     * @return decisions still outstanding because a shard could not be reached
+     */
+    public int recover() {
+        int outstanding = 0;
+        for (Decision decision : decisions.outstanding()) {
+            if (!decisions.claim(decision)) {
+                continue; // being finished by its transfer
+            }
+            if (!finish(decision).isDone()) {
+                outstanding++;
+            }
+        }
+        for (Remote shard : shards) {
+            abortUndecided(shard);
+        }
+        return outstanding;
+    }
+
+    // presumed abort: a prepared transaction of ours with no logged decision and no transfer working on it
+    private void abortUndecided(Remote shard) {
+        long after = Long.MIN_VALUE;
+        while (true) {
+            ShardServer.Reply reply = shard.inDoubt(after);
+            if (!reply.isOk()) {
+                return; // none left, or the shard is unreachable until the next run
+            }
+            long txId = reply.getBalancePaise();
+            after = txId;
+            long debitTx = txId & ~1L;
+            if ((txId >>> 48) != decisions.routerId || inFlight.contains(debitTx) || decisions.isOpen(debitTx)) {
+                continue;
+            }
+            shard.abort(txId);
+        }
+    }
+
+    private void recoverLoop(long intervalMillis) {
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            int outstanding = recover();
+            if (outstanding > 0) {
+                System.err.printf("Router: %d decided transfers still waiting for a shard%n", outstanding);
+            }
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Commits that could not be delivered to a participant after retries, or that a
+     * participant refused; they stay in the decision log for the next recover()
+     */
+    public long getInDoubtTransfers() {
+        return inDoubt.sum();
+    }
+
+    private Remote shardFor(String accountNumber) {
+        return shards[shardOf(accountNumber, shards.length)];
+    }
+
+    @Override
+    public ShardServer.Reply authenticate(String accountNumber, String pin) {
+        return shardFor(accountNumber).authenticate(accountNumber, pin);
+    }
+
+    @Override
+    public ShardServer.Reply balance(String accountNumber) {
+        return shardFor(accountNumber).balance(accountNumber);
+    }
+
+    @Override
+    public ShardServer.Reply deposit(String accountNumber, long amountPaise) {
+        return shardFor(accountNumber).deposit(accountNumber, amountPaise);
+    }
+
+    @Override
+    public ShardServer.Reply withdraw(String accountNumber, long amountPaise) {
+        return shardFor(accountNumber).withdraw(accountNumber, amountPaise);
+    }
+
+    @Override
+    public ShardServer.Reply prepareDebit(long txId, String accountNumber, long amountPaise) {
+        return shardFor(accountNumber).prepareDebit(txId, accountNumber, amountPaise);
+    }
+
+    @Override
+    public ShardServer.Reply prepareCredit(long txId, String accountNumber, long amountPaise) {
+        return shardFor(accountNumber).prepareCredit(txId, accountNumber, amountPaise);
+    }
+
+    // a bare transaction id does not say which shard holds it
+    @Override
+    public ShardServer.Reply commit(long txId) {
+        return ShardServer.Reply.of(ShardServer.UNSUPPORTED);
+    }
+
+    @Override
+    public ShardServer.Reply abort(long txId) {
+        return ShardServer.Reply.of(ShardServer.UNSUPPORTED);
+    }
+
+    /**
+     * Two-phase transfer between any two accounts
+     * @return the source account's reply; its balance is the source balance after the transfer
+     */
+    @Override
+    public ShardServer.Reply transfer(String fromAccount, String toAccount, long amountPaise) {
+        if (amountPaise <= 0 || fromAccount.equals(toAccount)) {
+            return ShardServer.Reply.of(ShardServer.INVALID_AMOUNT);
+        }
+        Remote source = shardFor(fromAccount);
+        Remote target = shardFor(toAccount);
+        // each participant gets its own id, so both halves can live on one shard
+        long debitTx = txPrefix | txCounter.getAndAdd(2);
+        long creditTx = debitTx + 1;
+        Decision decision;
+        inFlight.add(debitTx);
+        try {
+            ShardServer.Reply debit = source.prepareDebit(debitTx, fromAccount, amountPaise);
+            if (!debit.isOk()) {
+                if (debit.getStatus() == ShardServer.UNAVAILABLE) {
+                    source.abort(debitTx);
+                }
+                return debit;
+            }
+            ShardServer.Reply credit = target.prepareCredit(creditTx, toAccount, amountPaise);
+            if (!credit.isOk()) {
+                target.abort(creditTx);
+                source.abort(debitTx);
+                return credit;
+            }
+
+            // both prepared: the decision is commit, and it must survive a crash before either side hears it
+            try {
+                decision = decisions.decide(debitTx, creditTx, shardOf(fromAccount, shards.length),
+                        shardOf(toAccount, shards.length));
+            } catch (IOException e) {
+                System.err.println("Router: decision log write failed: " + e.getMessage());
+                target.abort(creditTx);
+                source.abort(debitTx);
+                return ShardServer.Reply.of(ShardServer.UNAVAILABLE);
+            }
+        } finally {
+            // an undecided transfer is no longer running; a decided one is in the log until done
+            inFlight.remove(debitTx);
+        }
+        return finish(decision).debit;
+    }
+
+    // phase two of a logged commit decision, claimed by the caller: debit first, then credit;
+    // done only once both sides have applied it
+    private Outcome finish(Decision decision) {
+        ShardServer.Reply debit = commitWithRetry(shards[decision.sourceShard], decision.debitTx);
+        ShardServer.Reply credit = applied(debit)
+                ? commitWithRetry(shards[decision.targetShard], decision.creditTx)
+                : ShardServer.Reply.of(ShardServer.UNAVAILABLE);
+        boolean done = applied(debit) && applied(credit);
+        if (done) {
+            try {
+                decisions.done(decision);
+            } catch (IOException e) {
+                // the decision is simply finished again after a restart
+                System.err.println("Router: decision log write failed: " + e.getMessage());
+            }
+        } else {
+            if (!decision.reported && (refused(debit) || refused(credit))) {
+                // only an abort we did not send, e.g. a shard that lost its state, gets here
+                decision.reported = true;
+                inDoubt.increment();
+                System.err.printf("Router: transfer %x (credit %x) was decided but a shard refused to commit it;"
+                        + " it stays in the decision log until reconciled%n", decision.debitTx, decision.creditTx);
+            }
+            decisions.release(decision);
+        }
+        return new Outcome(debit, done);
+    }
+
+    // a commit the shard has applied, now or before; a shard never forgets a transaction it has not decided,
+    // and only this router decides ours, so UNKNOWN_TX is a commit whose outcome has outlived its retention
+    private static boolean applied(ShardServer.Reply reply) {
+        return reply.isOk() || reply.getStatus() == ShardServer.UNKNOWN_TX;
+    }
+
+    private static boolean refused(ShardServer.Reply reply) {
+        return reply.getStatus() == ShardServer.ABORTED;
+    }
+
+    // a repeated commit gets the recorded outcome
+    private ShardServer.Reply commitWithRetry(Remote shard, long txId) {
+        ShardServer.Reply reply = shard.commit(txId);
+        for (int attempt = 1; reply.getStatus() == ShardServer.UNAVAILABLE && attempt < COMMIT_ATTEMPTS; attempt++) {
+            LockSupport.parkNanos(COMMIT_RETRY_NANOS);
+            reply = shard.commit(txId);
+        }
+        if (reply.getStatus() == ShardServer.UNAVAILABLE) {
+            inDoubt.increment();
+            System.err.printf("Router: commit of transaction %x not delivered to %s%n", txId, shard.address);
+        }
+        return reply;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        recoverer.interrupt();
+        try {
+            recoverer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Remote shard : shards) {
+            shard.close();
+        }
+        decisions.close();
+    }
+
+    private static class Outcome {
+        final ShardServer.Reply debit;
+        final boolean done;
+
+        Outcome(ShardServer.Reply debit, boolean done) {
+            this.debit = debit;
+            this.done = done;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+    }
+
+    /**
+     * One logged commit decision; busy while a thread is finishing it
+     */
+    private static class Decision {
+        final long debitTx;
+        final long creditTx;
+        final int sourceShard;
+        final int targetShard;
+        boolean busy;
+        boolean reported;
+
+        Decision(long debitTx, long creditTx, int sourceShard, int targetShard) {
+            this.debitTx = debitTx;
+            this.creditTx = creditTx;
+            this.sourceShard = sourceShard;
+            this.targetShard = targetShard;
+        }
+    }
+
+    /**
+     * Append-only log of commit decisions. It starts with the router's id and the
+     * epoch of this run. A decision record (debit tx, credit tx, source and target
+     * shard) is forced to disk before phase two; a done record (the debit tx)
+     * follows once both shards have applied it and is not forced, since finishing
+     * a decision twice is harmless. Opening the log rewrites it with the next
+     * epoch and only the outstanding decisions; a torn record at the end is ignored.
+     */
+    private static class DecisionLog {
+        private static final byte ROUTER = 'R';
+        private static final byte DECIDE = 'D';
+        private static final byte DONE = 'F';
+        private static final int ROUTER_BYTES = 1 + 2 + 2;
+        private static final int DECIDE_BYTES = 1 + 8 + 8 + 4 + 4;
+
+        final int routerId;
+        final int epoch;
+        private final FileChannel channel;
+        private final ByteBuffer record = ByteBuffer.allocate(DECIDE_BYTES);
+        private final Map<Long, Decision> open = new LinkedHashMap<>();
+
+        DecisionLog(Path file) throws IOException {
+            int storedId = -1;
+            int storedEpoch = 0;
+            if (Files.exists(file)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                    while (true) {
+                        byte kind = in.readByte();
+                        if (kind == ROUTER) {
+                            storedId = in.readUnsignedShort();
+                            storedEpoch = in.readUnsignedShort();
+                        } else if (kind == DECIDE) {
+                            long debitTx = in.readLong();
+                            open.put(debitTx, new Decision(debitTx, in.readLong(), in.readInt(), in.readInt()));
+                        } else if (kind == DONE) {
+                            open.remove(in.readLong());
+                        } else {
+                            System.err.println("Router: decision log is corrupt past this point; ignoring the rest");
+                            break;
+                        }
+                    }
+                } catch (EOFException e) {
+                    // end of the log, or a record torn by a crash
+                }
+            }
+            this.routerId = storedId >= 0 ? storedId : ThreadLocalRandom.current().nextInt(1 << 16);
+            this.epoch = (storedEpoch + 1) & 0xFFFF;
+            Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocate(ROUTER_BYTES + open.size() * DECIDE_BYTES);
+                buffer.put(ROUTER).putShort((short) routerId).putShort((short) epoch);
+                for (Decision decision : open.values()) {
+                    buffer.put(DECIDE).putLong(decision.debitTx).putLong(decision.creditTx)
+                          .putInt(decision.sourceShard).putInt(decision.targetShard);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(true);
+            }
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        synchronized List<Decision> outstanding() {
+            return new ArrayList<>(open.values());
+        }
+
+        synchronized boolean isOpen(long debitTx) {
+            return open.containsKey(debitTx);
+        }
+
+        // false if another thread is already finishing it, or it is done
+        synchronized boolean claim(Decision decision) {
+            if (decision.busy || !open.containsKey(decision.debitTx)) {
+                return false;
+            }
+            decision.busy = true;
+            return true;
+        }
+
+        synchronized void release(Decision decision) {
+            decision.busy = false;
+        }
+
+        // the new decision is returned claimed by the caller
+        synchronized Decision decide(long debitTx, long creditTx, int sourceShard, int targetShard)
+                throws IOException {
+            record.clear();
+            record.put(DECIDE).putLong(debitTx).putLong(creditTx).putInt(sourceShard).putInt(targetShard).flip();
+            write();
+            channel.force(false);
+            Decision decision = new Decision(debitTx, creditTx, sourceShard, targetShard);
+            decision.busy = true;
+            open.put(debitTx, decision);
+            return decision;
+        }
+
+        synchronized void done(Decision decision) throws IOException {
+            open.remove(decision.debitTx);
+            record.clear();
+            record.put(DONE).putLong(decision.debitTx).flip();
+            write();
+        }
+
+        private void write() throws IOException {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        }
+
+        synchronized void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Router: decision log close failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Client side of one shard or router process, over a fixed pool of lazily
+     * opened connections. Terminals talking to a router process use this directly.
+     */
+    public static class Remote implements ShardServer.Handler, Closeable {
+        private final InetSocketAddress address;
+        private final String secret;
+        private final BlockingQueue<Connection> pool;
+
+        /**
+         * @param secret the secret the shard or router process expects
+         */
+        public Remote(InetSocketAddress address, int connections, String secret) {
+            this.address = address;
+            this.secret = secret;
+            this.pool = new ArrayBlockingQueue<>(connections);
+            for (int i = 0; i < connections; i++) {
+                pool.add(new Connection());
+            }
+        }
+
+        @Override
+        public ShardServer.Reply authenticate(String accountNumber, String pin) {
+            return call(out -> {
+                out.writeByte(ShardServer.AUTHENTICATE);
+                out.writeUTF(accountNumber);
+                out.writeUTF(pin);
+            });
+        }
+
+        @Override
+        public ShardServer.Reply balance(String accountNumber) {
+            return call(out -> {
+                out.writeByte(ShardServer.BALANCE);
+                out.writeUTF(accountNumber);
+            });
+        }
+
+        @Override
+        public ShardServer.Reply deposit(String accountNumber, long amountPaise) {
+            return call(out -> {
+                out.writeByte(ShardServer.DEPOSIT);
+                out.writeUTF(accountNumber);
+                out.writeLong(amountPaise);
+            });
+        }
+
+        @Override
+        public ShardServer.Reply withdraw(String accountNumber, long amountPaise) {
+            return call(out -> {
+                out.writeByte(ShardServer.WITHDRAW);
+                out.writeUTF(accountNumber);
+                out.writeLong(amountPaise);
+            });
+        }
+
+        @Override
+        public ShardServer.Reply prepareDebit(long txId, String accountNumber, long amountPaise) {
+            return call(out -> {
+                out.writeByte(ShardServer.PREPARE_DEBIT);
+                out.writeLong(txId);
+                out.writeUTF(accountNumber);
+                out.writeLong(amountPaise);
+            });
+        }
+
+        @Override
+        public ShardServer.Reply prepareCredit(long txId, String accountNumber, long amountPaise) {
+            return call(out -> {
+                out.writeByte(ShardServer.PREPARE_CREDIT);
+                out.writeLong(txId);
+                out.writeUTF(accountNumber);
+                out.writeLong(amountPaise);
+            });
+        }
+
+        @Override
+        public ShardServer.Reply commit(long txId) {
+            return call(out -> {
+                out.writeByte(ShardServer.COMMIT);
+                out.writeLong(txId);
+            });
+        }
+
+        @Override
+        public ShardServer.Reply abort(long txId) {
+            return call(out -> {
+                out.writeByte(ShardServer.ABORT);
+                out.writeLong(txId);
+            });
+        }
+
+        @Override
+        public ShardServer.Reply transfer(String fromAccount, String toAccount, long amountPaise) {
+            return call(out -> {
+                out.writeByte(ShardServer.TRANSFER);
+                out.writeUTF(fromAccount);
+                out.writeUTF(toAccount);
+                out.writeLong(amountPaise);
+            });
+        }
+
+        @Override
+        public ShardServer.Reply inDoubt(long afterTxId) {
+            return call(out -> {
+                out.writeByte(ShardServer.IN_DOUBT);
+                out.writeLong(afterTxId);
+            });
+        }
+
+        private ShardServer.Reply call(Request request) {
+            Connection connection;
+            try {
+                connection = pool.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return ShardServer.Reply.of(ShardServer.UNAVAILABLE);
+            }
+            try {
+                connection.ensureOpen(address, secret);
+                request.write(connection.out);
+                connection.out.flush();
+                byte status = connection.in.readByte();
+                return new ShardServer.Reply(status, connection.in.readLong());
+            } catch (IOException e) {
+                // drop the connection; the next caller reconnects
+                connection.close();
+                return ShardServer.Reply.of(ShardServer.UNAVAILABLE);
+            } finally {
+                pool.add(connection);
+            }
+        }
+
+        @Override
+        public void close() {
+            List<Connection> drained = new ArrayList<>();
+            pool.drainTo(drained);
+            for (Connection connection : drained) {
+                connection.close();
+            }
+            pool.addAll(drained);
+        }
+    }
+
+    private static class Connection {
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        void ensureOpen(InetSocketAddress address, String secret) throws IOException {
+            if (socket == null) {
+                Socket s = new Socket();
+                s.connect(address, 2000);
+                s.setTcpNoDelay(true);
+                socket = s;
+                in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                out.writeByte(ShardServer.HELLO);
+                out.writeUTF(secret);
+                out.flush();
+                byte status = in.readByte();
+                in.readLong();
+                if (status != ShardServer.OK) {
+                    throw new IOException("Shard " + address + " rejected the secret");
+                }
+            }
+        }
+
+        void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+                socket = null;
+            }
+        }
+    }
+
+    /**
+     * Runs a router process: java ShardRouter port host:port [host:port ...]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: java ShardRouter <port> <host:port> [<host:port> ...]");
+            System.exit(2);
+        }
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            int colon = args[i].lastIndexOf(':');
+            addresses.add(new InetSocketAddress(args[i].substring(0, colon), Integer.parseInt(args[i].substring(colon + 1))));
+        }
+        String secret = ShardServer.configuredSecret();
+        if (secret == null || secret.isEmpty()) {
+            System.err.println("Set ATM_SHARD_SECRET (or -Datm.shard.secret) to the secret shared with the shards.");
+            System.exit(2);
+        }
+        Path decisionLog = Paths.get(System.getProperty("atm.shard.decisionLog", "router-decisions.log"));
+        try (ShardRouter router = new ShardRouter(addresses, 8, secret, decisionLog);
+             ShardServer server = new ShardServer(ShardServer.configuredBindAddress(), Integer.parseInt(args[0]),
+                     secret, router)) {
+            System.out.printf("Router on port %d over %d shards%n", server.getPort(), router.getShardCount());
+            Thread.currentThread().join();
+        }
+    }
+}
@@ -0,0 +1,578 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One shard of the account registry, served over TCP. Each shard process owns
+ * the accounts whose number hashes to its index (see ShardRouter.shardOf) and
+ * refuses requests for anyone else's. Besides plain deposit/withdraw it takes
+ * part in two-phase transfers: prepare places a hold (debit) or parks a pending
+ * credit, commit applies it, abort releases it. Commit and abort are idempotent:
+ * the outcome of a decided transaction is remembered for a while, so a
+ * coordinator that lost a reply and asks again gets the same answer. A prepared
+ * transaction is a yes vote and the shard never decides it alone, since the
+ * coordinator may already have logged a commit for it. Once its hold time has
+ * passed it is only reported as in doubt (IN_DOUBT), and the coordinator that
+ * prepared it commits or aborts it from its decision log.
+ *
+ * Balances, holds and remembered outcomes live only in this process: a
+ * restarted shard starts again from its seed file.
+ *
+ * Wire format (DataOutputStream): request = byte op + fields, reply = byte status
+ * + long balance paise. Connections are long-lived and carry one request at a time.
+ * The first request on a connection must be HELLO with the shared secret; anything
+ * else, or a wrong secret, closes the connection. The server listens on loopback
+ * unless given another address.
+ *
+ * Run as its own process: java ShardServer index count port seed.csv
+ * (seed lines: accountNumber,holderName,pin,balance; other shards' lines are skipped),
+ * with the secret in ATM_SHARD_SECRET (or -Datm.shard.secret) and -Datm.shard.bind
+ * to listen on an address other than loopback.
+ */
+public class ShardServer implements Closeable {
+
+    static final byte AUTHENTICATE = 1;
+    static final byte BALANCE = 2;
+    static final byte DEPOSIT = 3;
+    static final byte WITHDRAW = 4;
+    static final byte PREPARE_DEBIT = 5;
+    static final byte PREPARE_CREDIT = 6;
+    static final byte COMMIT = 7;
+    static final byte ABORT = 8;
+    static final byte TRANSFER = 9;
+    static final byte HELLO = 10;
+    static final byte IN_DOUBT = 11;
+
+    public static final byte OK = 0;
+    public static final byte NOT_FOUND = 1;
+    public static final byte INSUFFICIENT_FUNDS = 2;
+    public static final byte INVALID_AMOUNT = 3;
+    public static final byte AUTH_FAILED = 4;
+    public static final byte UNKNOWN_TX = 5;
+    public static final byte WRONG_SHARD = 6;
+    public static final byte UNAVAILABLE = 7;
+    public static final byte UNSUPPORTED = 8;
+    /** Commit of a transaction that was aborted */
+    public static final byte ABORTED = 9;
+    /** Abort of a transaction that was already committed */
+    public static final byte COMMITTED = 10;
+
+    public static final long DEFAULT_HOLD_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    public static final long DEFAULT_RETAIN_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Outcome of one request
+     */
+    public static class Reply {
+        private final byte status;
+        private final long balancePaise;
+
+        public Reply(byte status, long balancePaise) {
+            this.status = status;
+            this.balancePaise = balancePaise;
+        }
+
+        public static Reply of(byte status) {
+            return new Reply(status, 0);
+        }
+
+        public byte getStatus() { return status; }
+        public boolean isOk() { return status == OK; }
+        public double getBalance() { return balancePaise / 100.0; }
+        long getBalancePaise() { return balancePaise; }
+    }
+
+    /**
+     * The operations a shard (or a router in front of shards) serves
+     */
+    public interface Handler {
+        Reply authenticate(String accountNumber, String pin);
+        Reply balance(String accountNumber);
+        Reply deposit(String accountNumber, long amountPaise);
+        Reply withdraw(String accountNumber, long amountPaise);
+        Reply prepareDebit(long txId, String accountNumber, long amountPaise);
+        Reply prepareCredit(long txId, String accountNumber, long amountPaise);
+        Reply commit(long txId);
+        Reply abort(long txId);
+
+        default Reply transfer(String fromAccount, String toAccount, long amountPaise) {
+            return Reply.of(UNSUPPORTED);
+        }
+
+        /**
+         * The lowest-numbered prepared transaction above afterTxId whose hold time has
+         * passed, as the reply's balance field; UNKNOWN_TX when there is none
+         */
+        default Reply inDoubt(long afterTxId) {
+            return Reply.of(UNSUPPORTED);
+        }
+    }
+
+    /**
+     * The accounts owned by one shard
+     */
+    public static class Store implements Handler {
+        private final int shardIndex;
+        private final int shardCount;
+        private final long holdMillis;
+        private final long retainMillis;
+        private final Map<String, ShardAccount> accounts = new ConcurrentHashMap<>();
+        // prepared transactions, and decided ones until their retention runs out
+        private final Map<Long, Pending> transactions = new ConcurrentHashMap<>();
+
+        /**
+         * Holds are reported in doubt after two minutes, or -Datm.shard.holdSeconds;
+         * outcomes are remembered for an hour, or -Datm.shard.retainMinutes
+         */
+        public Store(int shardIndex, int shardCount) {
+            this(shardIndex, shardCount,
+                    TimeUnit.SECONDS.toMillis(Long.getLong("atm.shard.holdSeconds",
+                            TimeUnit.MILLISECONDS.toSeconds(DEFAULT_HOLD_MILLIS))),
+                    TimeUnit.MINUTES.toMillis(Long.getLong("atm.shard.retainMinutes",
+                            TimeUnit.MILLISECONDS.toMinutes(DEFAULT_RETAIN_MILLIS))));
+        }
+
+        /**
+         * @param holdMillis how long a prepared transaction waits for commit or abort before it is reported in doubt
+         * @param retainMillis how long the outcome of a decided transaction is remembered
+         */
+        public Store(int shardIndex, int shardCount, long holdMillis, long retainMillis) {
+            if (holdMillis <= 0 || retainMillis <= 0) {
+                throw new IllegalArgumentException("Hold and retention times must be positive.");
+            }
+            this.shardIndex = shardIndex;
+            this.shardCount = shardCount;
+            this.holdMillis = holdMillis;
+            this.retainMillis = retainMillis;
+            Thread sweeper = new Thread(this::sweepLoop, "shard-sweeper-" + shardIndex);
+            sweeper.setDaemon(true);
+            sweeper.start();
+        }
+
+        /**
+         * @return false if the account belongs to another shard
+         */
+        public boolean open(String accountNumber, String pin, double balance) {
+            if (ShardRouter.shardOf(accountNumber, shardCount) != shardIndex) {
+                return false;
+            }
+            accounts.put(accountNumber, new ShardAccount(pin, Math.round(balance * 100)));
+            return true;
+        }
+
+        public int size() {
+            return accounts.size();
+        }
+
+        @Override
+        public Reply authenticate(String accountNumber, String pin) {
+            ShardAccount account = accounts.get(accountNumber);
+            if (account == null) {
+                return Reply.of(ownerCheck(accountNumber));
+            }
+            return Reply.of(account.pin.equals(pin) ? OK : AUTH_FAILED);
+        }
+
+        @Override
+        public Reply balance(String accountNumber) {
+            ShardAccount account = accounts.get(accountNumber);
+            if (account == null) {
+                return Reply.of(ownerCheck(accountNumber));
+            }
+            synchronized (account) {
+                return new Reply(OK, account.balancePaise);
+            }
+        }
+
+        @Override
+        public Reply deposit(String accountNumber, long amountPaise) {
+            ShardAccount account = accounts.get(accountNumber);
+            if (account == null) {
+                return Reply.of(ownerCheck(accountNumber));
+            }
+            if (amountPaise <= 0) {
+                return Reply.of(INVALID_AMOUNT);
+            }
+            synchronized (account) {
+                account.balancePaise += amountPaise;
+                return new Reply(OK, account.balancePaise);
+            }
+        }
+
+        @Override
+        public Reply withdraw(String accountNumber, long amountPaise) {
+            ShardAccount account = accounts.get(accountNumber);
+            if (account == null) {
+                return Reply.of(ownerCheck(accountNumber));
+            }
+            if (amountPaise <= 0) {
+                return Reply.of(INVALID_AMOUNT);
+            }
+            synchronized (account) {
+                if (amountPaise > account.balancePaise - account.heldPaise) {
+                    return new Reply(INSUFFICIENT_FUNDS, account.balancePaise);
+                }
+                account.balancePaise -= amountPaise;
+                return new Reply(OK, account.balancePaise);
+            }
+        }
+
+        @Override
+        public Reply prepareDebit(long txId, String accountNumber, long amountPaise) {
+            ShardAccount account = accounts.get(accountNumber);
+            if (account == null) {
+                return Reply.of(ownerCheck(accountNumber));
+            }
+            if (amountPaise <= 0) {
+                return Reply.of(INVALID_AMOUNT);
+            }
+            synchronized (account) {
+                if (amountPaise > account.balancePaise - account.heldPaise) {
+                    return new Reply(INSUFFICIENT_FUNDS, account.balancePaise);
+                }
+                account.heldPaise += amountPaise;
+            }
+            if (transactions.putIfAbsent(txId, new Pending(account, amountPaise, true, deadline())) != null) {
+                synchronized (account) {
+                    account.heldPaise -= amountPaise;
+                }
+                return Reply.of(UNKNOWN_TX);
+            }
+            return Reply.of(OK);
+        }
+
+        @Override
+        public Reply prepareCredit(long txId, String accountNumber, long amountPaise) {
+            ShardAccount account = accounts.get(accountNumber);
+            if (account == null) {
+                return Reply.of(ownerCheck(accountNumber));
+            }
+            if (amountPaise <= 0) {
+                return Reply.of(INVALID_AMOUNT);
+            }
+            if (transactions.putIfAbsent(txId, new Pending(account, amountPaise, false, deadline())) != null) {
+                return Reply.of(UNKNOWN_TX);
+            }
+            return Reply.of(OK);
+        }
+
+        @Override
+        public Reply commit(long txId) {
+            Pending tx = transactions.get(txId);
+            if (tx == null) {
+                return Reply.of(UNKNOWN_TX);
+            }
+            synchronized (tx) {
+                if (tx.state == Pending.PREPARED) {
+                    synchronized (tx.account) {
+                        if (tx.debit) {
+                            tx.account.heldPaise -= tx.amountPaise;
+                            tx.account.balancePaise -= tx.amountPaise;
+                        } else {
+                            tx.account.balancePaise += tx.amountPaise;
+                        }
+                        tx.balanceAfterPaise = tx.account.balancePaise;
+                    }
+                    tx.decide(Pending.COMMITTED, retainUntil());
+                }
+                return tx.state == Pending.COMMITTED ? new Reply(OK, tx.balanceAfterPaise) : Reply.of(ABORTED);
+            }
+        }
+
+        @Override
+        public Reply abort(long txId) {
+            Pending tx = transactions.get(txId);
+            if (tx == null) {
+                return Reply.of(UNKNOWN_TX);
+            }
+            synchronized (tx) {
+                if (tx.state == Pending.PREPARED) {
+                    release(tx);
+                }
+                return tx.state == Pending.ABORTED ? Reply.of(OK) : new Reply(COMMITTED, tx.balanceAfterPaise);
+            }
+        }
+
+        @Override
+        public Reply inDoubt(long afterTxId) {
+            long now = LedgerClock.currentTimeMillis();
+            long found = 0;
+            boolean any = false;
+            for (Map.Entry<Long, Pending> entry : transactions.entrySet()) {
+                long txId = entry.getKey();
+                Pending tx = entry.getValue();
+                if (txId > afterTxId && (!any || txId < found) && tx.state == Pending.PREPARED
+                        && tx.expiresMillis <= now) {
+                    found = txId;
+                    any = true;
+                }
+            }
+            return any ? new Reply(OK, found) : Reply.of(UNKNOWN_TX);
+        }
+
+        // caller holds the transaction's monitor
+        private void release(Pending tx) {
+            if (tx.debit) {
+                synchronized (tx.account) {
+                    tx.account.heldPaise -= tx.amountPaise;
+                }
+            }
+            tx.decide(Pending.ABORTED, retainUntil());
+        }
+
+        private long deadline() {
+            return LedgerClock.currentTimeMillis() + holdMillis;
+        }
+
+        private long retainUntil() {
+            return LedgerClock.currentTimeMillis() + retainMillis;
+        }
+
+        // forgets old outcomes; prepared transactions wait for their coordinator however long it takes
+        private void sweepLoop() {
+            long interval = Math.max(10, Math.min(holdMillis, retainMillis) / 4);
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = LedgerClock.currentTimeMillis();
+                for (Iterator<Pending> it = transactions.values().iterator(); it.hasNext(); ) {
+                    Pending tx = it.next();
+                    if (tx.expiresMillis > now) {
+                        continue;
+                    }
+                    synchronized (tx) {
+                        if (tx.state != Pending.PREPARED && tx.expiresMillis <= now) {
+                            it.remove();
+                        }
+                    }
+                }
+            }
+        }
+
+        private byte ownerCheck(String accountNumber) {
+            return ShardRouter.shardOf(accountNumber, shardCount) == shardIndex ? NOT_FOUND : WRONG_SHARD;
+        }
+    }
+
+    private static class ShardAccount {
+        final String pin;
+        long balancePaise;
+        long heldPaise;
+
+        ShardAccount(String pin, long balancePaise) {
+            this.pin = pin;
+            this.balancePaise = balancePaise;
+        }
+    }
+
+    /**
+     * One side of a two-phase transaction; state and timings are guarded by its monitor
+     */
+    private static class Pending {
+        static final int PREPARED = 0;
+        static final int COMMITTED = 1;
+        static final int ABORTED = 2;
+
+        final ShardAccount account;
+        final long amountPaise;
+        final boolean debit;
+        volatile int state = PREPARED;
+        long balanceAfterPaise;
+        // when it is reported in doubt while prepared, end of retention once decided
+        volatile long expiresMillis;
+
+        Pending(ShardAccount account, long amountPaise, boolean debit, long expiresMillis) {
+            this.account = account;
+            this.amountPaise = amountPaise;
+            this.debit = debit;
+            this.expiresMillis = expiresMillis;
+        }
+
+        void decide(int outcome, long retainUntilMillis) {
+            state = outcome;
+            expiresMillis = retainUntilMillis;
+        }
+    }
+
+    // --- Network serving, shared by shards and the router process ---
+
+    private final ServerSocket server;
+    private final byte[] secret;
+    private final Handler handler;
+    private volatile boolean running = true;
+
+    /**
+     * Serves the handler on the given loopback port
+     * @param secret shared secret every client must present before its first request
+     */
+    public ShardServer(int port, String secret, Handler handler) throws IOException {
+        this(InetAddress.getLoopbackAddress(), port, secret, handler);
+    }
+
+    /**
+     * Serves the handler on the given address and port; bind to a routable address
+     * only when shards and routers live on other hosts
+     */
+    public ShardServer(InetAddress bindAddress, int port, String secret, Handler handler) throws IOException {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("A shard secret is required.");
+        }
+        this.server = new ServerSocket();
+        this.server.bind(new InetSocketAddress(bindAddress, port));
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.handler = handler;
+        Thread acceptor = new Thread(this::accept, "shard-acceptor-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        server.close();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread connection = new Thread(() -> serve(socket), "shard-connection-" + socket.getPort());
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Shard: accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            boolean trusted = in.readByte() == HELLO
+                    && MessageDigest.isEqual(secret, in.readUTF().getBytes(StandardCharsets.UTF_8));
+            out.writeByte(trusted ? OK : AUTH_FAILED);
+            out.writeLong(0);
+            out.flush();
+            if (!trusted) {
+                System.err.println("Shard: rejected unauthenticated connection from " + s.getRemoteSocketAddress());
+                return;
+            }
+            while (running) {
+                Reply reply = dispatch(in.readByte(), in);
+                out.writeByte(reply.getStatus());
+                out.writeLong(reply.getBalancePaise());
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // client disconnected
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Shard: connection failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private Reply dispatch(byte op, DataInputStream in) throws IOException {
+        switch (op) {
+            case AUTHENTICATE:
+                return handler.authenticate(in.readUTF(), in.readUTF());
+            case BALANCE:
+                return handler.balance(in.readUTF());
+            case DEPOSIT:
+                return handler.deposit(in.readUTF(), in.readLong());
+            case WITHDRAW:
+                return handler.withdraw(in.readUTF(), in.readLong());
+            case PREPARE_DEBIT:
+                return handler.prepareDebit(in.readLong(), in.readUTF(), in.readLong());
+            case PREPARE_CREDIT:
+                return handler.prepareCredit(in.readLong(), in.readUTF(), in.readLong());
+            case COMMIT:
+                return handler.commit(in.readLong());
+            case ABORT:
+                return handler.abort(in.readLong());
+            case TRANSFER:
+                return handler.transfer(in.readUTF(), in.readUTF(), in.readLong());
+            case IN_DOUBT:
+                return handler.inDoubt(in.readLong());
+            default:
+                throw new IOException("Unknown operation " + op);
+        }
+    }
+
+    /**
+     * The shared secret from ATM_SHARD_SECRET or -Datm.shard.secret, or null if neither is set
+     */
+    public static String configuredSecret() {
+        String secret = System.getenv("ATM_SHARD_SECRET");
+        return secret != null && !secret.isEmpty() ? secret : System.getProperty("atm.shard.secret");
+    }
+
+    /**
+     * Loopback, or the address in -Datm.shard.bind
+     */
+    static InetAddress configuredBindAddress() throws IOException {
+        String bind = System.getProperty("atm.shard.bind");
+        return bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+    }
+
+    /**
+     * Runs one shard process: java ShardServer index count port seed.csv
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 4) {
+            System.err.println("Usage: java ShardServer <index> <count> <port> <seed.csv>");
+            System.exit(2);
+        }
+        int index = Integer.parseInt(args[0]);
+        int count = Integer.parseInt(args[1]);
+        int port = Integer.parseInt(args[2]);
+        String secret = configuredSecret();
+        if (secret == null || secret.isEmpty()) {
+            System.err.println("Set ATM_SHARD_SECRET (or -Datm.shard.secret) to the secret shared with the routers.");
+            System.exit(2);
+        }
+        Store store = new Store(index, count);
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[3]), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (fields.length == 4 && !line.startsWith("#")) {
+                    store.open(fields[0].trim(), fields[2].trim(), Double.parseDouble(fields[3].trim()));
+                }
+            }
+        }
+        try (ShardServer server = new ShardServer(configuredBindAddress(), port, secret, store)) {
+            System.out.printf("Shard %d/%d serving %d accounts on %s%n", index, count, store.size(),
+                    server.server.getLocalSocketAddress());
+            Thread.currentThread().join();
+        }
+    }
+}
@@ -0,0 +1,787 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Standing instructions: recurring debits, credits and transfers between
+ * accounts (loan EMIs, SIPs, utility bills, salary sweeps).
+ *
+ * Instructions are indexed by due time in a sorted map of tick buckets, each
+ * bucket a plain array of the instructions due in that tick. One daemon thread
+ * wakes every tick, takes the buckets that have come due and posts them through
+ * the accounts' own ledger methods in batches, releasing the index between
+ * batches so scheduling and cancelling never wait behind a large run (the first
+ * of the month). There is no thread or timer per instruction, and an idle
+ * schedule costs one map lookup per tick.
+ *
+ * A debit the balance does not cover is retried after a delay, a few times, and
+ * then that occurrence is recorded as missed and the instruction moves on to its
+ * next one. Occurrences are computed from the first due date in the system time
+ * zone, so a monthly instruction on the 31st falls on the last day of shorter
+ * months and comes back to the 31st afterwards. Payments are never early and at
+ * most one tick late. Occurrences already past, when an instruction is scheduled
+ * with a first due date behind the clock or after the scheduler has fallen
+ * behind, are not paid one by one: only the latest is paid, once, and the rest
+ * are recorded on the instruction as missed. Missed occurrences, whether passed
+ * over or given up after their retries, stay listed on the instruction until
+ * payMissed pays them, and an instruction whose last occurrence has come keeps
+ * them listed until they are paid or it is cancelled. An instruction cancelled
+ * while its payment is being posted still makes that one payment.
+ *
+ * Opened with a file, every change to an instruction is appended to it before
+ * the change takes effect (the newest record per instruction wins), and the
+ * instructions are read back and scheduled again on restart. An occurrence that
+ * was being paid when the process stopped is recorded as missed, never paid a
+ * second time automatically; check the ledger before paying it.
+ */
+public class StandingInstructions {
+
+    public static final long DEFAULT_TICK_MILLIS = 1_000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = TimeUnit.HOURS.toMillis(4);
+    public static final int UNLIMITED = -1;
+
+    private static final int MAX_BATCH = 4096;
+
+    /**
+     * An account scheduled payments can post to; implemented by each variant's BankAccount
+     */
+    public interface Account {
+        /** Credits a scheduled payment and records it in the account history */
+        void creditStanding(double amount);
+
+        /** Debits a scheduled payment in full, or nothing if the balance does not cover it */
+        boolean debitStanding(double amount);
+    }
+
+    public enum Kind {
+        DEBIT, CREDIT, TRANSFER
+    }
+
+    public enum Frequency {
+        DAILY, WEEKLY, MONTHLY
+    }
+
+    public enum Status {
+        ACTIVE, COMPLETED, CANCELLED, FAILED
+    }
+
+    /**
+     * Read-only view of one instruction
+     */
+    public static final class Instruction {
+        private final long id;
+        private final Kind kind;
+        private final String fromAccount;
+        private final String toAccount;
+        private final double amount;
+        private final Frequency frequency;
+        private final long nextDueMillis;
+        private final int remaining;
+        private final int failedAttempts;
+        private final Status status;
+        private final long[] missedDueMillis;
+
+        Instruction(Entry entry) {
+            this.id = entry.id;
+            this.kind = entry.kind;
+            this.fromAccount = entry.fromAccount;
+            this.toAccount = entry.toAccount;
+            this.amount = entry.amountPaise / 100.0;
+            this.frequency = entry.frequency;
+            this.nextDueMillis = entry.dueMillis;
+            this.remaining = entry.remaining;
+            this.failedAttempts = entry.attempts;
+            this.status = entry.status;
+            this.missedDueMillis = Arrays.copyOf(entry.missed, entry.missedCount);
+        }
+
+        public long getId() { return id; }
+        public Kind getKind() { return kind; }
+        /** @return the debited account, or null for a credit */
+        public String getFromAccount() { return fromAccount; }
+        /** @return the credited account, or null for a debit */
+        public String getToAccount() { return toAccount; }
+        public double getAmount() { return amount; }
+        public Frequency getFrequency() { return frequency; }
+        public long getNextDueMillis() { return nextDueMillis; }
+        /** @return payments still to make, or UNLIMITED */
+        public int getRemaining() { return remaining; }
+        /** @return failed attempts at the current occurrence */
+        public int getFailedAttempts() { return failedAttempts; }
+        public Status getStatus() { return status; }
+        /** @return due times of the occurrences missed and not yet paid, oldest first */
+        public long[] getMissedDueMillis() { return missedDueMillis.clone(); }
+
+        @Override
+        public String toString() {
+            return String.format("#%d %s %s->%s ₹%.2f %s next %s [%s, %d missed]", id, kind, fromAccount, toAccount,
+                    amount, frequency, Instant.ofEpochMilli(nextDueMillis), status, missedDueMillis.length);
+        }
+    }
+
+    private final Function<String, ? extends Account> accounts;
+    private final long tickMillis;
+    private final int maxRetries;
+    private final long retryDelayMillis;
+    private final ZoneId zone;
+
+    // the index, guarded by this
+    private final TreeMap<Long, Bucket> byTick = new TreeMap<>();
+    private final Map<Long, Entry> byId = new HashMap<>();
+    private long nextId = 1;
+
+    // one run of due payments at a time; the batch arrays belong to it
+    private final Object firing = new Object();
+    private final Entry[] batch = new Entry[MAX_BATCH];
+    private final boolean[] paid = new boolean[MAX_BATCH];
+    private final LongAdder posted = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder missed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    // the instruction file, or null in memory; appended to under journalLock, which is taken before this
+    private final Object journalLock = new Object();
+    private FileChannel journal;
+    private long journalEnd;
+    private final ByteArrayOutputStream journalBuffer = new ByteArrayOutputStream(64 * 1024);
+    // changed since the last save, guarded by this
+    private final Map<Long, Entry> unsaved = new LinkedHashMap<>();
+
+    /**
+     * @param accounts finds an account by number, or returns null
+     * @param tickMillis how often due payments are fired; payments are up to one tick late
+     * @param maxRetries attempts after the first before an unpaid occurrence is missed
+     * @param retryDelayMillis wait between attempts at an unpaid debit
+     */
+    public StandingInstructions(Function<String, ? extends Account> accounts, long tickMillis, int maxRetries,
+                                long retryDelayMillis) {
+        if (tickMillis <= 0 || maxRetries < 0 || retryDelayMillis <= 0) {
+            throw new IllegalArgumentException("Invalid tick, retry count or retry delay.");
+        }
+        this.accounts = accounts;
+        this.tickMillis = tickMillis;
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+        this.zone = ZoneId.systemDefault();
+        Thread ticker = new Thread(this::turn, "standing-instructions");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * One-second ticks and three retries four hours apart, or -Datm.standing.tickMillis,
+     * -Datm.standing.retries and -Datm.standing.retryMinutes
+     */
+    public static StandingInstructions withDefaults(Function<String, ? extends Account> accounts) {
+        return new StandingInstructions(accounts,
+                Long.getLong("atm.standing.tickMillis", DEFAULT_TICK_MILLIS),
+                Integer.getInteger("atm.standing.retries", DEFAULT_MAX_RETRIES),
+                TimeUnit.MINUTES.toMillis(Long.getLong("atm.standing.retryMinutes",
+                        TimeUnit.MILLISECONDS.toMinutes(DEFAULT_RETRY_DELAY_MILLIS))));
+    }
+
+    /**
+     * The defaults, with every instruction also kept in the file so it survives a
+     * restart; instructions already in the file are scheduled again
+     * @throws IOException if the file cannot be read or written
+     */
+    public static StandingInstructions open(Function<String, ? extends Account> accounts, Path file)
+            throws IOException {
+        StandingInstructions instructions = withDefaults(accounts);
+        instructions.load(file);
+        return instructions;
+    }
+
+    /**
+     * Schedules a recurring debit to a payee outside the bank
+     * @param occurrences number of payments, or UNLIMITED
+     * @return the instruction id
+     */
+    public long scheduleDebit(String account, double amount, Frequency frequency, long firstDueMillis,
+                              int occurrences) {
+        return schedule(Kind.DEBIT, account, null, amount, frequency, firstDueMillis, occurrences);
+    }
+
+    /**
+     * Schedules a recurring credit from outside the bank
+     */
+    public long scheduleCredit(String account, double amount, Frequency frequency, long firstDueMillis,
+                               int occurrences) {
+        return schedule(Kind.CREDIT, null, account, amount, frequency, firstDueMillis, occurrences);
+    }
+
+    /**
+     * Schedules a recurring transfer between two accounts of the bank
+     */
+    public long scheduleTransfer(String fromAccount, String toAccount, double amount, Frequency frequency,
+                                 long firstDueMillis, int occurrences) {
+        if (fromAccount.equals(toAccount)) {
+            throw new IllegalArgumentException("Cannot transfer to the same account.");
+        }
+        return schedule(Kind.TRANSFER, fromAccount, toAccount, amount, frequency, firstDueMillis, occurrences);
+    }
+
+    private long schedule(Kind kind, String fromAccount, String toAccount, double amount, Frequency frequency,
+                          long firstDueMillis, int occurrences) {
+        long paise = Math.round(amount * 100);
+        if (paise <= 0) {
+            throw new IllegalArgumentException("Amount must be positive.");
+        }
+        if (occurrences == 0 || occurrences < UNLIMITED) {
+            throw new IllegalArgumentException("Occurrences must be positive or UNLIMITED.");
+        }
+        for (String account : new String[] {fromAccount, toAccount}) {
+            if (account != null && accounts.apply(account) == null) {
+                throw new IllegalArgumentException("Unknown account: " + account);
+            }
+        }
+        long id;
+        synchronized (this) {
+            Entry entry = new Entry(nextId++, kind, fromAccount, toAccount, paise, frequency, firstDueMillis,
+                    occurrences);
+            skipPast(entry, LedgerClock.currentTimeMillis());
+            byId.put(entry.id, entry);
+            place(entry);
+            changed(entry);
+            id = entry.id;
+        }
+        save();
+        return id;
+    }
+
+    /**
+     * Stops an instruction; its pending occurrence and any missed ones are not paid
+     * @return false if there is no such instruction
+     */
+    public boolean cancel(long id) {
+        synchronized (this) {
+            Entry entry = byId.remove(id);
+            if (entry == null) {
+                return false;
+            }
+            // left in its bucket and skipped when the bucket comes due
+            entry.status = Status.CANCELLED;
+            changed(entry);
+        }
+        save();
+        return true;
+    }
+
+    /**
+     * Tries again to pay the occurrences an instruction has missed, oldest first,
+     * stopping at the first one that cannot be paid
+     * @return occurrences paid
+     */
+    public int payMissed(long id) {
+        synchronized (firing) {
+            int paidCount = 0;
+            while (true) {
+                Entry entry;
+                synchronized (this) {
+                    entry = byId.get(id);
+                    if (entry == null || entry.missedCount == 0) {
+                        return paidCount;
+                    }
+                }
+                boolean paidNow = post(entry);
+                synchronized (this) {
+                    if (paidNow) {
+                        entry.removeOldestMissed();
+                        paidCount++;
+                    }
+                    if (entry.status == Status.FAILED
+                            || (entry.status == Status.COMPLETED && entry.missedCount == 0)) {
+                        byId.remove(id);
+                    }
+                    changed(entry);
+                }
+                save();
+                if (!paidNow) {
+                    return paidCount;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the instruction, or null if it has finished with nothing missed, or been cancelled
+     */
+    public synchronized Instruction get(long id) {
+        Entry entry = byId.get(id);
+        return entry == null ? null : new Instruction(entry);
+    }
+
+    /**
+     * @return up to limit instructions that debit or credit the account, including finished ones with missed occurrences
+     */
+    public synchronized List<Instruction> forAccount(String accountNumber, int limit) {
+        List<Instruction> result = new ArrayList<>();
+        for (Entry entry : byId.values()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            if (accountNumber.equals(entry.fromAccount) || accountNumber.equals(entry.toAccount)) {
+                result.add(new Instruction(entry));
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    public long getPosted() {
+        return posted.sum();
+    }
+
+    /**
+     * @return attempts that found the balance short and were scheduled again
+     */
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    /**
+     * @return occurrences given up after the last retry
+     */
+    public long getMissed() {
+        return missed.sum();
+    }
+
+    /**
+     * @return instructions stopped because an account no longer exists
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Posts every payment due up to the given time, in batches; the scheduler
+     * thread calls this every tick, so callers only need it to drive a clock of their own
+     * @return payments attempted
+     */
+    public int advance(long nowMillis) {
+        synchronized (firing) {
+            long dueTick = nowMillis / tickMillis;
+            int attempted = 0;
+            while (true) {
+                int n = takeDue(dueTick);
+                if (n == 0) {
+                    return attempted;
+                }
+                // the batch is on file as being paid before any money moves
+                save();
+                for (int i = 0; i < n; i++) {
+                    paid[i] = post(batch[i]);
+                }
+                synchronized (this) {
+                    for (int i = 0; i < n; i++) {
+                        reschedule(batch[i], paid[i], nowMillis);
+                        batch[i] = null;
+                    }
+                }
+                save();
+                attempted += n;
+            }
+        }
+    }
+
+    private void turn() {
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        while (true) {
+            LockSupport.parkNanos(tickNanos);
+            try {
+                advance(LedgerClock.currentTimeMillis());
+            } catch (RuntimeException e) {
+                System.err.println("Standing instructions: run failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // moves up to a batch of due, still active instructions out of the index
+    private synchronized int takeDue(long dueTick) {
+        int n = 0;
+        while (n < batch.length) {
+            Map.Entry<Long, Bucket> first = byTick.firstEntry();
+            if (first == null || first.getKey() > dueTick) {
+                break;
+            }
+            Bucket bucket = first.getValue();
+            while (n < batch.length && bucket.size > 0) {
+                Entry entry = bucket.entries[--bucket.size];
+                bucket.entries[bucket.size] = null;
+                if (entry.status == Status.ACTIVE) {
+                    entry.posting = true;
+                    changed(entry);
+                    batch[n++] = entry;
+                }
+            }
+            if (bucket.size == 0) {
+                byTick.pollFirstEntry();
+            }
+        }
+        return n;
+    }
+
+    // runs outside the index lock; only the account locks are taken
+    private boolean post(Entry entry) {
+        Account from = entry.fromAccount == null ? null : accounts.apply(entry.fromAccount);
+        Account to = entry.toAccount == null ? null : accounts.apply(entry.toAccount);
+        if ((entry.fromAccount != null && from == null) || (entry.toAccount != null && to == null)) {
+            entry.status = Status.FAILED;
+            failed.increment();
+            return false;
+        }
+        double amount = entry.amountPaise / 100.0;
+        if (from != null && !from.debitStanding(amount)) {
+            return false;
+        }
+        if (to != null) {
+            to.creditStanding(amount);
+        }
+        posted.increment();
+        return true;
+    }
+
+    private void reschedule(Entry entry, boolean paid, long nowMillis) {
+        entry.posting = false;
+        changed(entry);
+        if (entry.status != Status.ACTIVE) {
+            // cancelled while posting, or an account has gone
+            byId.remove(entry.id);
+            return;
+        }
+        if (!paid && entry.attempts < maxRetries) {
+            entry.attempts++;
+            entry.dueMillis = nowMillis + retryDelayMillis;
+            retried.increment();
+            place(entry);
+            return;
+        }
+        if (!paid) {
+            recordMissed(entry);
+        }
+        entry.attempts = 0;
+        if (entry.remaining != UNLIMITED && --entry.remaining == 0) {
+            entry.status = Status.COMPLETED;
+            if (entry.missedCount == 0) {
+                byId.remove(entry.id);
+            }
+            return;
+        }
+        entry.occurrence++;
+        entry.dueMillis = occurrenceMillis(entry, entry.occurrence);
+        skipPast(entry, nowMillis);
+        place(entry);
+    }
+
+    // moves an entry whose due time has passed on to its latest past occurrence, so a backlog
+    // is paid as one catch-up; the ones passed over are missed, and the final one is never passed over
+    private void skipPast(Entry entry, long nowMillis) {
+        while (entry.dueMillis <= nowMillis && entry.remaining != 1) {
+            long next = occurrenceMillis(entry, entry.occurrence + 1);
+            if (next > nowMillis) {
+                break;
+            }
+            recordMissed(entry);
+            entry.occurrence++;
+            entry.dueMillis = next;
+            entry.attempts = 0;
+            if (entry.remaining != UNLIMITED) {
+                entry.remaining--;
+            }
+        }
+    }
+
+    private void recordMissed(Entry entry) {
+        entry.addMissed(occurrenceMillis(entry, entry.occurrence));
+        missed.increment();
+    }
+
+    private long occurrenceMillis(Entry entry, int occurrence) {
+        ZonedDateTime first = Instant.ofEpochMilli(entry.firstDueMillis).atZone(zone);
+        switch (entry.frequency) {
+            case DAILY:
+                return first.plusDays(occurrence).toInstant().toEpochMilli();
+            case WEEKLY:
+                return first.plusWeeks(occurrence).toInstant().toEpochMilli();
+            default:
+                return first.plusMonths(occurrence).toInstant().toEpochMilli();
+        }
+    }
+
+    // the first tick at or after the due time, so nothing is paid early
+    private void place(Entry entry) {
+        long tick = Math.floorDiv(entry.dueMillis + tickMillis - 1, tickMillis);
+        byTick.computeIfAbsent(tick, t -> new Bucket()).add(entry);
+    }
+
+    // --- instruction file ---
+
+    // guarded by this; in memory nothing is tracked
+    private void changed(Entry entry) {
+        if (journal != null) {
+            unsaved.put(entry.id, entry);
+        }
+    }
+
+    /**
+     * Appends every changed instruction to the file in one write and forces it; a failed
+     * write is reported and the changes are tried again with the next save
+     */
+    private void save() {
+        synchronized (journalLock) {
+            List<Entry> written;
+            journalBuffer.reset();
+            DataOutputStream out = new DataOutputStream(journalBuffer);
+            synchronized (this) {
+                if (unsaved.isEmpty()) {
+                    return;
+                }
+                written = new ArrayList<>(unsaved.values());
+                try {
+                    writeRecords(out, written);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot encode standing instructions", e);
+                }
+                unsaved.clear();
+            }
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(journalBuffer.toByteArray());
+                long position = journalEnd;
+                while (bytes.hasRemaining()) {
+                    position += journal.write(bytes, position);
+                }
+                journal.force(false);
+                journalEnd = position;
+            } catch (IOException e) {
+                System.err.println("Standing instructions: save failed: " + e.getMessage());
+                synchronized (this) {
+                    for (Entry entry : written) {
+                        unsaved.putIfAbsent(entry.id, entry);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeRecords(DataOutputStream out, List<Entry> entries) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        for (Entry entry : entries) {
+            record.reset();
+            entry.writeTo(recordOut);
+            out.writeInt(record.size());
+            record.writeTo(out);
+        }
+        out.flush();
+    }
+
+    // reads the file back (the newest record per instruction wins, a torn tail is cut off),
+    // schedules what is still owed and rewrites the file with just that
+    private void load(Path file) throws IOException {
+        Map<Long, Entry> stored = new HashMap<>();
+        if (Files.exists(file)) {
+            long size = Files.size(file);
+            long position = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+                    64 * 1024))) {
+                while (size - position >= 4) {
+                    int length = in.readInt();
+                    if (length < 0 || length > size - position - 4) {
+                        break;
+                    }
+                    byte[] body = new byte[length];
+                    in.readFully(body);
+                    Entry entry = Entry.readFrom(new DataInputStream(new ByteArrayInputStream(body)));
+                    stored.put(entry.id, entry);
+                    position += 4 + length;
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                // end of the last complete record
+            }
+        }
+        long now = LedgerClock.currentTimeMillis();
+        int interrupted = 0;
+        synchronized (journalLock) {
+            List<Entry> kept = new ArrayList<>();
+            synchronized (this) {
+                for (Entry entry : stored.values()) {
+                    nextId = Math.max(nextId, entry.id + 1);
+                    boolean owed = entry.status == Status.ACTIVE
+                            || (entry.status == Status.COMPLETED && entry.missedCount > 0);
+                    if (!owed) {
+                        continue;
+                    }
+                    byId.put(entry.id, entry);
+                    if (entry.posting) {
+                        // stopped while this occurrence was being paid: it may or may not have been
+                        interrupted++;
+                        entry.attempts = maxRetries;
+                        reschedule(entry, false, now);
+                    } else if (entry.status == Status.ACTIVE) {
+                        skipPast(entry, now);
+                        place(entry);
+                    }
+                }
+                kept.addAll(byId.values());
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            journalBuffer.reset();
+            writeRecords(new DataOutputStream(journalBuffer), kept);
+            Files.write(temp, journalBuffer.toByteArray());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            synchronized (this) {
+                journal = channel;
+                journalEnd = journalBuffer.size();
+                unsaved.clear();
+            }
+        }
+        if (interrupted > 0) {
+            System.err.println("Standing instructions: " + interrupted
+                    + " payments were being made when the process stopped; recorded as missed, check the ledger before paying them");
+        }
+    }
+
+    /**
+     * Mutable state of one instruction; guarded by the scheduler except while being posted
+     */
+    private static final class Entry {
+        final long id;
+        final Kind kind;
+        final String fromAccount;
+        final String toAccount;
+        final long amountPaise;
+        final Frequency frequency;
+        final long firstDueMillis;
+        int remaining;
+        int occurrence;
+        int attempts;
+        long dueMillis;
+        volatile Status status = Status.ACTIVE;
+        // taken for payment and not yet rescheduled
+        boolean posting;
+        // due times of missed occurrences, oldest first
+        long[] missed = new long[0];
+        int missedCount;
+
+        Entry(long id, Kind kind, String fromAccount, String toAccount, long amountPaise, Frequency frequency,
+              long firstDueMillis, int remaining) {
+            this.id = id;
+            this.kind = kind;
+            this.fromAccount = fromAccount;
+            this.toAccount = toAccount;
+            this.amountPaise = amountPaise;
+            this.frequency = frequency;
+            this.firstDueMillis = firstDueMillis;
+            this.remaining = remaining;
+            this.dueMillis = firstDueMillis;
+        }
+
+        void addMissed(long dueMillis) {
+            if (missedCount == missed.length) {
+                missed = Arrays.copyOf(missed, Math.max(4, missedCount * 2));
+            }
+            missed[missedCount++] = dueMillis;
+        }
+
+        void removeOldestMissed() {
+            System.arraycopy(missed, 1, missed, 0, --missedCount);
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(id);
+            out.writeByte(kind.ordinal());
+            writeAccount(out, fromAccount);
+            writeAccount(out, toAccount);
+            out.writeLong(amountPaise);
+            out.writeByte(frequency.ordinal());
+            out.writeLong(firstDueMillis);
+            out.writeInt(remaining);
+            out.writeInt(occurrence);
+            out.writeInt(attempts);
+            out.writeLong(dueMillis);
+            out.writeByte(status.ordinal());
+            out.writeBoolean(posting);
+            out.writeInt(missedCount);
+            for (int i = 0; i < missedCount; i++) {
+                out.writeLong(missed[i]);
+            }
+        }
+
+        static Entry readFrom(DataInputStream in) throws IOException {
+            long id = in.readLong();
+            Kind kind = Kind.values()[in.readByte()];
+            String fromAccount = readAccount(in);
+            String toAccount = readAccount(in);
+            long amountPaise = in.readLong();
+            Frequency frequency = Frequency.values()[in.readByte()];
+            Entry entry = new Entry(id, kind, fromAccount, toAccount, amountPaise, frequency, in.readLong(),
+                    in.readInt());
+            entry.occurrence = in.readInt();
+            entry.attempts = in.readInt();
+            entry.dueMillis = in.readLong();
+            entry.status = Status.values()[in.readByte()];
+            entry.posting = in.readBoolean();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                entry.addMissed(in.readLong());
+            }
+            return entry;
+        }
+
+        private static void writeAccount(DataOutputStream out, String account) throws IOException {
+            out.writeBoolean(account != null);
+            if (account != null) {
+                out.writeUTF(account);
+            }
+        }
+
+        private static String readAccount(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+
+    /**
+     * Instructions due in one tick
+     */
+    private static final class Bucket {
+        Entry[] entries = new Entry[4];
+        int size;
+
+        void add(Entry entry) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = entry;
+        }
+    }
+}
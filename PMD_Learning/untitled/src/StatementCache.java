@@ -0,0 +1,200 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Rendered mini-statements, kept as the bytes the terminal writes.
+ *
+ * Each account has at most one entry, tagged with the account's posting version
+ * at the time it was rendered. Any deposit, withdrawal, interest or fee moves the
+ * version on, so a stale entry is simply never matched again and is replaced by
+ * the next render; nothing has to be told to invalidate. A repeated history
+ * request with no postings in between is a single buffer write. Entries also
+ * remember (weakly) which account object they were rendered from: a store that
+ * evicts an account and loads it again hands out a new object whose version
+ * starts over, and that must not match a statement of the old one.
+ *
+ * Entries are spread over stripes by account number. Each stripe is an LRU in
+ * access order with its share of the entry and byte budgets, and drops its least
+ * recently viewed statements when either is exceeded.
+ */
+public class StatementCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+    public static final long DEFAULT_MAX_BYTES = 4L << 20;
+
+    private static final int STRIPES = 16;
+    // what System.out encodes with, so cached bytes match what println would have written
+    private static final Charset OUTPUT_CHARSET = outputCharset();
+
+    private final int maxEntriesPerStripe;
+    private final long maxBytesPerStripe;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxEntries upper bound on statements held
+     * @param maxBytes upper bound on rendered bytes held
+     */
+    public StatementCache(int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Entry and byte limits must be positive.");
+        }
+        this.maxEntriesPerStripe = Math.max(1, maxEntries / STRIPES);
+        this.maxBytesPerStripe = Math.max(1, maxBytes / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Ten thousand statements in 4 MB, or -Datm.statement.cacheEntries / -Datm.statement.cacheKb
+     */
+    public static StatementCache withDefaults() {
+        return new StatementCache(Integer.getInteger("atm.statement.cacheEntries", DEFAULT_MAX_ENTRIES),
+                Long.getLong("atm.statement.cacheKb", DEFAULT_MAX_BYTES >> 10) << 10);
+    }
+
+    /**
+     * Writes the account's statement to out, rendering it only if there is no
+     * cached copy of this account at this version
+     * @param account the account object the statement is rendered from
+     * @param version the account's posting version, read before rendering
+     * @param renderer prints the statement; called on a miss only
+     */
+    public void write(String accountNumber, Object account, long version, Consumer<PrintStream> renderer,
+                      PrintStream out) {
+        byte[] rendered = get(accountNumber, account, version);
+        if (rendered == null) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+            PrintStream target = new PrintStream(buffer, false, OUTPUT_CHARSET);
+            renderer.accept(target);
+            target.flush();
+            rendered = buffer.toByteArray();
+            put(accountNumber, account, version, rendered);
+        }
+        out.write(rendered, 0, rendered.length);
+        out.flush();
+    }
+
+    /**
+     * @return the statement rendered from this account at exactly this version, or null
+     */
+    public byte[] get(String accountNumber, Object account, long version) {
+        Stripe stripe = stripeFor(accountNumber);
+        Entry entry;
+        synchronized (stripe) {
+            entry = stripe.entries.get(accountNumber);
+        }
+        if (entry != null && entry.version == version && entry.account.get() == account) {
+            hits.increment();
+            return entry.rendered;
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(String accountNumber, Object account, long version, byte[] rendered) {
+        if (rendered.length > maxBytesPerStripe) {
+            // would evict a whole stripe to make room; not worth keeping
+            invalidate(accountNumber);
+            return;
+        }
+        Stripe stripe = stripeFor(accountNumber);
+        synchronized (stripe) {
+            Entry previous = stripe.entries.get(accountNumber);
+            if (previous != null && previous.version > version && previous.account.get() == account) {
+                // a slower session rendered an older statement; keep the newer one
+                return;
+            }
+            if (previous != null) {
+                stripe.bytes -= previous.rendered.length;
+            }
+            stripe.entries.put(accountNumber, new Entry(account, version, rendered));
+            stripe.bytes += rendered.length;
+            Iterator<Entry> eldest = stripe.entries.values().iterator();
+            while (stripe.entries.size() > maxEntriesPerStripe || stripe.bytes > maxBytesPerStripe) {
+                stripe.bytes -= eldest.next().rendered.length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops an account's statement, for callers that replace the account object itself
+     */
+    public void invalidate(String accountNumber) {
+        Stripe stripe = stripeFor(accountNumber);
+        synchronized (stripe) {
+            Entry removed = stripe.entries.remove(accountNumber);
+            if (removed != null) {
+                stripe.bytes -= removed.rendered.length;
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+        return size;
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                bytes += stripe.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private Stripe stripeFor(String accountNumber) {
+        int h = accountNumber.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static Charset outputCharset() {
+        String name = System.getProperty("stdout.encoding", System.getProperty("sun.stdout.encoding"));
+        try {
+            return name != null ? Charset.forName(name) : Charset.defaultCharset();
+        } catch (IllegalArgumentException e) {
+            return Charset.defaultCharset();
+        }
+    }
+
+    private static final class Entry {
+        final WeakReference<Object> account;
+        final long version;
+        final byte[] rendered;
+
+        Entry(Object account, long version, byte[] rendered) {
+            this.account = new WeakReference<>(account);
+            this.version = version;
+            this.rendered = rendered;
+        }
+    }
+
+    private static final class Stripe {
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long bytes;
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams account statements to a file, either as gzip-compressed CSV or as a
+ * compact binary record format. Histories are pulled from each account a chunk
+ * at a time and encoded into one reusable buffer, so memory use stays constant
+ * no matter how many rows are exported. While the account is locked a chunk is
+ * only copied into staging arrays; encoding, compression and disk writes happen
+ * after the account is released, so a slow disk never holds up its postings.
+ *
+ * CSV fields containing a comma, quote or line break are quoted per RFC 4180.
+ *
+ * Binary layout (big-endian): the magic "ATMS" and a version byte, followed by
+ * records tagged 'A' (account: short length + UTF-8 number), 'T' (type
+ * definition: short id + short length + UTF-8 name) and 'R' (row: long
+ * timestamp millis, short type id, long amount paise, long balance paise).
+ */
+public class StatementExporter implements Closeable {
+
+    public enum Format { CSV_GZIP, BINARY }
+
+    /**
+     * Receives one transaction row at a time
+     */
+    public interface RowSink {
+        void row(long timestampMillis, String type, double amount, double balanceAfter);
+    }
+
+    /**
+     * An account whose history can be read in chunks; implemented by each variant's BankAccount
+     */
+    public interface Statement {
+        String getAccountNumber();
+
+        /**
+         * Emits up to max history rows starting at index from, oldest first
+         * @return the number of rows emitted, 0 once the end is reached
+         */
+        int exportTransactions(int from, int max, RowSink sink);
+    }
+
+    private static final int CHUNK_ROWS = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] MAGIC = {'A', 'T', 'M', 'S', 1};
+
+    private final FileChannel channel;
+    private final Format format;
+    private final ByteBuffer buffer;
+    private final OutputStream gzip;
+    private final Map<String, Short> typeIds = new HashMap<>();
+    private final StringBuilder line = new StringBuilder(128);
+    private final byte[] lineBytes = new byte[512];
+    // one chunk copied out of the account under its lock, written after it is released
+    private final long[] stagedTimes = new long[CHUNK_ROWS];
+    private final String[] stagedTypes = new String[CHUNK_ROWS];
+    private final long[] stagedAmounts = new long[CHUNK_ROWS];
+    private final long[] stagedBalances = new long[CHUNK_ROWS];
+    private int staged;
+    private String currentAccount;
+    private long rowCount;
+
+    private StatementExporter(FileChannel channel, Format format) throws IOException {
+        this.channel = channel;
+        this.format = format;
+        if (format == Format.CSV_GZIP) {
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.gzip = new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            writeAscii("account,timestamp,type,amount,balance_after\n");
+        } else {
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            this.gzip = null;
+            buffer.put(MAGIC);
+        }
+    }
+
+    /**
+     * Opens (and truncates) the target file for export
+     */
+    public static StatementExporter open(Path file, Format format) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return new StatementExporter(channel, format);
+    }
+
+    /**
+     * Streams one account's full history
+     * @return rows written for this account
+     */
+    public long export(Statement account) throws IOException {
+        long before = rowCount;
+        currentAccount = account.getAccountNumber();
+        if (format == Format.BINARY) {
+            byte[] number = currentAccount.getBytes(StandardCharsets.UTF_8);
+            ensure(3 + number.length);
+            buffer.put((byte) 'A').putShort((short) number.length).put(number);
+        }
+        RowSink sink = this::stageRow;
+        int from = 0;
+        int emitted;
+        while (true) {
+            staged = 0;
+            emitted = account.exportTransactions(from, CHUNK_ROWS, sink);
+            if (emitted <= 0) {
+                break;
+            }
+            for (int i = 0; i < staged; i++) {
+                writeRow(stagedTimes[i], stagedTypes[i], stagedAmounts[i], stagedBalances[i]);
+                stagedTypes[i] = null;
+            }
+            from += emitted;
+        }
+        return rowCount - before;
+    }
+
+    /**
+     * Streams every account's history, one account after another
+     * @return total rows written
+     */
+    public long exportAll(Iterable<? extends Statement> accounts) throws IOException {
+        long total = 0;
+        for (Statement account : accounts) {
+            total += export(account);
+        }
+        return total;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+            if (gzip != null) {
+                gzip.close();
+            } else {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    // runs under the account's lock: copy only
+    private void stageRow(long timestampMillis, String type, double amount, double balanceAfter) {
+        if (staged == CHUNK_ROWS) {
+            throw new IllegalStateException("Account emitted more rows than requested.");
+        }
+        stagedTimes[staged] = timestampMillis;
+        stagedTypes[staged] = type;
+        stagedAmounts[staged] = Math.round(amount * 100);
+        stagedBalances[staged] = Math.round(balanceAfter * 100);
+        staged++;
+    }
+
+    private void writeRow(long timestampMillis, String type, long amountPaise, long balancePaise)
+            throws IOException {
+        if (format == Format.BINARY) {
+            short typeId = typeId(type);
+            ensure(27);
+            buffer.put((byte) 'R').putLong(timestampMillis).putShort(typeId)
+                  .putLong(amountPaise).putLong(balancePaise);
+        } else {
+            line.setLength(0);
+            appendField(currentAccount);
+            line.append(',').append(timestampMillis).append(',');
+            appendField(type);
+            line.append(',');
+            appendPaise(amountPaise);
+            line.append(',');
+            appendPaise(balancePaise);
+            line.append('\n');
+            writeAscii(line);
+        }
+        rowCount++;
+    }
+
+    private void appendField(String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    private short typeId(String type) throws IOException {
+        Short id = typeIds.get(type);
+        if (id != null) {
+            return id;
+        }
+        short next = (short) typeIds.size();
+        byte[] name = type.getBytes(StandardCharsets.UTF_8);
+        ensure(5 + name.length);
+        buffer.put((byte) 'T').putShort(next).putShort((short) name.length).put(name);
+        typeIds.put(type, next);
+        return next;
+    }
+
+    private void appendPaise(long paise) {
+        if (paise < 0) {
+            line.append('-');
+            paise = -paise;
+        }
+        long fraction = paise % 100;
+        line.append(paise / 100).append('.');
+        if (fraction < 10) {
+            line.append('0');
+        }
+        line.append(fraction);
+    }
+
+    /**
+     * CSV rows are short; characters outside ASCII (e.g. ₹ in a type name) go through the slow path
+     */
+    private void writeAscii(CharSequence text) throws IOException {
+        int length = text.length();
+        if (length > lineBytes.length) {
+            writeBytes(text.toString().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c > 0x7F) {
+                writeBytes(text.toString().getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            lineBytes[i] = (byte) c;
+        }
+        ensure(length);
+        buffer.put(lineBytes, 0, length);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        ensure(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (gzip != null) {
+            gzip.write(buffer.array(), 0, buffer.position());
+        } else {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        buffer.clear();
+    }
+}
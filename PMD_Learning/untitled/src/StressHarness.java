@@ -0,0 +1,862 @@
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrency stress harness for the BankAccount classes of the five variants.
+ *
+ * Each variant is compiled into its own class loader as in LoadGenerator, and its
+ * BankAccount is driven directly, bypassing the terminal. Two kinds of test run:
+ *
+ * Actor tests, in the style of jcstress: every trial builds a fresh account, starts
+ * two or three actors on it at the same instant, and records what they observed
+ * and the final state as an outcome. Outcomes are tallied over many trials and
+ * each is marked acceptable or forbidden (an overdraft, a lost deposit, a balance
+ * read that never existed, a history row the balance has not caught up with).
+ *
+ * The hammer: many threads share a few accounts for a fixed time, depositing,
+ * withdrawing and reading balances and history as sessions would. Readers check
+ * every balance they see; afterwards each account is checked for lost updates, a
+ * negative balance, and a history whose rows add up to the balance. Throughput is
+ * reported so changes to the ledger's locking can be measured as well as checked;
+ * hammer accounts get a daily withdrawal limit no run reaches, so withdrawals keep
+ * posting for the whole run instead of being refused once the real limit is used.
+ *
+ * chatGpt keeps its history as printed strings, so its history checks are skipped.
+ * The exit status is 1 when any forbidden outcome or violation was seen.
+ *
+ * Usage: java StressHarness [--src dir] [--variants claude,gemini,...|all] [--trials n]
+ *        [--threads n] [--accounts n] [--seconds n] [--seed n]
+ */
+public class StressHarness {
+
+    static final double DEPOSIT = 7;
+    static final double WITHDRAWAL = 3;
+    static final double HAMMER_OPENING = 10_000;
+    // far above what a run withdraws, so the hammer measures postings rather than limit refusals
+    static final double HAMMER_DAILY_LIMIT = 1_000_000_000;
+    static final int TAIL_ROWS = 64;
+    static final int HISTORY_SCREEN_ODDS = 100;
+    static final int MAX_REPORTED = 10;
+
+    // --- Driving one variant's BankAccount ---
+
+    /**
+     * One variant's BankAccount, driven by reflection; the classes live in the variant's own loader
+     */
+    static final class Ledger {
+        final String variant;
+        private final Constructor<?> constructor;
+        private final Method deposit;
+        private final Method withdraw;
+        private final Method balance;
+        private final Method history;
+        private final Method count;
+        private final Method export;
+        private final Class<?> rowSink;
+        private final Field dailyLimit;
+        private final Constructor<?> limitCounter;
+
+        private Ledger(String variant, Class<?> account, ClassLoader loader) throws ReflectiveOperationException {
+            this.variant = variant;
+            Constructor<?> found = null;
+            for (Constructor<?> candidate : account.getConstructors()) {
+                if (candidate.getParameterCount() == 4) {
+                    found = candidate;
+                }
+            }
+            if (found == null) {
+                throw new NoSuchMethodException(variant + " BankAccount has no (number, holder, pin, balance) constructor");
+            }
+            this.constructor = found;
+            this.deposit = account.getMethod("deposit", double.class);
+            this.withdraw = account.getMethod("withdraw", double.class);
+            this.balance = account.getMethod("getBalance");
+            this.history = optional(account, "getTransactionHistory") != null
+                    ? account.getMethod("getTransactionHistory") : account.getMethod("viewTransactions");
+            this.count = optional(account, "getTransactionCount");
+            this.rowSink = count == null ? null : loader.loadClass("StatementExporter$RowSink");
+            this.export = count == null ? null
+                    : account.getMethod("exportTransactions", int.class, int.class, rowSink);
+            this.dailyLimit = account.getDeclaredField("dailyLimit");
+            this.limitCounter = loader.loadClass("DailyLimitCounter").getConstructor(double.class);
+            dailyLimit.setAccessible(true);
+            // BankAccount is package-private in every variant
+            constructor.setAccessible(true);
+            for (Method method : new Method[] {deposit, withdraw, balance, history, count, export}) {
+                if (method != null) {
+                    method.setAccessible(true);
+                }
+            }
+        }
+
+        static Ledger load(Path srcDir, LoadGenerator.Profile profile, Path workDir) throws Exception {
+            ClassLoader loader = LoadGenerator.loadTerminal(srcDir, profile, workDir).getClassLoader();
+            return new Ledger(profile.name, loader.loadClass("BankAccount"), loader);
+        }
+
+        private static Method optional(Class<?> type, String name) {
+            try {
+                return type.getMethod(name);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Opens an account; constructor arguments are matched by type, strings in (number, holder, pin) order
+         */
+        Object open(String number, double openingBalance) {
+            String[] strings = {number, "Stress Test", "1234"};
+            Class<?>[] types = constructor.getParameterTypes();
+            Object[] args = new Object[types.length];
+            int next = 0;
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == double.class) {
+                    args[i] = openingBalance;
+                } else if (types[i] == int.class) {
+                    args[i] = 1234;
+                } else {
+                    args[i] = strings[next++];
+                }
+            }
+            try {
+                return constructor.newInstance(args);
+            } catch (InvocationTargetException e) {
+                throw unwrap(e);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Swaps the account's daily withdrawal limit for a fresh one of the given size
+         */
+        void setDailyLimit(Object account, double limit) {
+            try {
+                dailyLimit.set(account, limitCounter.newInstance(limit));
+            } catch (InvocationTargetException e) {
+                throw unwrap(e);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        boolean deposit(Object account, double amount) {
+            return post(deposit, account, amount);
+        }
+
+        boolean withdraw(Object account, double amount) {
+            return post(withdraw, account, amount);
+        }
+
+        // variants answer a refused posting with false, or with an IllegalArgumentException
+        private boolean post(Method method, Object account, double amount) {
+            try {
+                Object accepted = method.invoke(account, amount);
+                return !(accepted instanceof Boolean) || (Boolean) accepted;
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IllegalArgumentException) {
+                    return false;
+                }
+                throw unwrap(e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        double balance(Object account) {
+            try {
+                return (Double) balance.invoke(account);
+            } catch (InvocationTargetException e) {
+                throw unwrap(e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Reads the history the way the terminals show it
+         * @return rows seen, or -1 where the history is only printed
+         */
+        int readHistory(Object account) {
+            try {
+                Object rows = history.invoke(account);
+                if (!(rows instanceof List)) {
+                    return -1;
+                }
+                int seen = 0;
+                for (Object row : (List<?>) rows) {
+                    if (row != null) {
+                        seen++;
+                    }
+                }
+                return seen;
+            } catch (InvocationTargetException e) {
+                throw unwrap(e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        boolean hasRows() {
+            return export != null;
+        }
+
+        int rowCount(Object account) {
+            try {
+                return (Integer) count.invoke(account);
+            } catch (InvocationTargetException e) {
+                throw unwrap(e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Copies up to max history rows starting at from into rows
+         */
+        int rows(Object account, int from, int max, Rows rows) {
+            try {
+                rows.size = 0;
+                return (Integer) export.invoke(account, from, Math.min(max, rows.capacity()), rows.sink(rowSink));
+            } catch (InvocationTargetException e) {
+                throw unwrap(e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static RuntimeException unwrap(InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                return (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            return new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Column buffers filled through a proxy for the variant's StatementExporter.RowSink
+     */
+    static final class Rows {
+        final double[] amounts;
+        final double[] balances;
+        int size;
+        private Object sink;
+
+        Rows(int capacity) {
+            amounts = new double[capacity];
+            balances = new double[capacity];
+        }
+
+        int capacity() {
+            return amounts.length;
+        }
+
+        Object sink(Class<?> type) {
+            if (sink == null) {
+                sink = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "row":
+                            amounts[size] = (Double) args[2];
+                            balances[size] = (Double) args[3];
+                            size++;
+                            return null;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "Rows[" + size + "/" + capacity() + "]";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+            }
+            return sink;
+        }
+    }
+
+    static long paise(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    static String rupees(double amount) {
+        return String.format("%.2f", amount);
+    }
+
+    // --- Actor tests ---
+
+    /**
+     * A jcstress-style test: actors run once per trial against a fresh account,
+     * and the arbiter turns what they saw into an outcome
+     */
+    abstract static class ActorTest {
+        final String name;
+        final int actors;
+
+        ActorTest(String name, int actors) {
+            this.name = name;
+            this.actors = actors;
+        }
+
+        abstract Object setUp(Ledger ledger, int trial);
+
+        abstract String actor(int index, Ledger ledger, Object account);
+
+        abstract String arbiter(Ledger ledger, Object account, String[] observed);
+
+        abstract boolean acceptable(String outcome);
+    }
+
+    static final List<ActorTest> ACTOR_TESTS = List.of(
+            // two customers emptying the same account: exactly one may succeed
+            new ActorTest("overdraft", 2) {
+                @Override
+                Object setUp(Ledger ledger, int trial) {
+                    return ledger.open("OD" + trial, 100);
+                }
+
+                @Override
+                String actor(int index, Ledger ledger, Object account) {
+                    return String.valueOf(ledger.withdraw(account, 100));
+                }
+
+                @Override
+                String arbiter(Ledger ledger, Object account, String[] observed) {
+                    return Arrays.toString(observed) + " balance=" + rupees(ledger.balance(account));
+                }
+
+                @Override
+                boolean acceptable(String outcome) {
+                    return outcome.equals("[true, false] balance=0.00") || outcome.equals("[false, true] balance=0.00");
+                }
+            },
+            // interleaved deposits must all land, in the balance and in the history
+            new ActorTest("lost-deposit", 2) {
+                static final int DEPOSITS = 50;
+
+                @Override
+                Object setUp(Ledger ledger, int trial) {
+                    return ledger.open("LD" + trial, 0);
+                }
+
+                @Override
+                String actor(int index, Ledger ledger, Object account) {
+                    int accepted = 0;
+                    for (int i = 0; i < DEPOSITS; i++) {
+                        if (ledger.deposit(account, 1)) {
+                            accepted++;
+                        }
+                    }
+                    return String.valueOf(accepted);
+                }
+
+                @Override
+                String arbiter(Ledger ledger, Object account, String[] observed) {
+                    String rows = "?";
+                    if (ledger.hasRows()) {
+                        Rows tail = new Rows(1);
+                        int count = ledger.rowCount(account);
+                        ledger.rows(account, count - 1, 1, tail);
+                        rows = rupees(tail.balances[0]);
+                    }
+                    return "accepted=" + observed[0] + "+" + observed[1] + " balance="
+                            + rupees(ledger.balance(account)) + " lastRow=" + rows;
+                }
+
+                @Override
+                boolean acceptable(String outcome) {
+                    String expected = rupees(2 * DEPOSITS);
+                    return outcome.equals("accepted=" + DEPOSITS + "+" + DEPOSITS + " balance=" + expected
+                            + " lastRow=" + expected)
+                            || outcome.equals("accepted=" + DEPOSITS + "+" + DEPOSITS + " balance=" + expected
+                            + " lastRow=?");
+                }
+            },
+            // a balance read racing a deposit and a withdrawal that needs it
+            new ActorTest("read-during-postings", 3) {
+                @Override
+                Object setUp(Ledger ledger, int trial) {
+                    return ledger.open("RP" + trial, 50);
+                }
+
+                @Override
+                String actor(int index, Ledger ledger, Object account) {
+                    switch (index) {
+                        case 0: return String.valueOf(ledger.deposit(account, 50));
+                        case 1: return String.valueOf(ledger.withdraw(account, 80));
+                        default: return rupees(ledger.balance(account));
+                    }
+                }
+
+                @Override
+                String arbiter(Ledger ledger, Object account, String[] observed) {
+                    return "deposit=" + observed[0] + " withdraw=" + observed[1] + " read=" + observed[2]
+                            + " balance=" + rupees(ledger.balance(account));
+                }
+
+                @Override
+                boolean acceptable(String outcome) {
+                    if (outcome.startsWith("deposit=true withdraw=true ")) {
+                        return outcome.endsWith(" balance=20.00")
+                                && (outcome.contains("read=50.00") || outcome.contains("read=100.00")
+                                || outcome.contains("read=20.00"));
+                    }
+                    if (outcome.startsWith("deposit=true withdraw=false ")) {
+                        return outcome.endsWith(" balance=100.00")
+                                && (outcome.contains("read=50.00") || outcome.contains("read=100.00"));
+                    }
+                    return false;
+                }
+            },
+            // once a history row is visible, the balance must already include it
+            new ActorTest("history-before-balance", 2) {
+                static final int DEPOSITS = 20;
+
+                @Override
+                Object setUp(Ledger ledger, int trial) {
+                    return ledger.open("HB" + trial, 0);
+                }
+
+                @Override
+                String actor(int index, Ledger ledger, Object account) {
+                    if (index == 0) {
+                        for (int i = 0; i < DEPOSITS; i++) {
+                            ledger.deposit(account, 10);
+                        }
+                        return "";
+                    }
+                    if (!ledger.hasRows()) {
+                        return "n/a";
+                    }
+                    Rows tail = new Rows(1);
+                    for (int i = 0; i < DEPOSITS; i++) {
+                        int count = ledger.rowCount(account);
+                        if (count > 0 && ledger.rows(account, count - 1, 1, tail) == 1
+                                && paise(ledger.balance(account)) < paise(tail.balances[0])) {
+                            return "balance behind history";
+                        }
+                    }
+                    return "consistent";
+                }
+
+                @Override
+                String arbiter(Ledger ledger, Object account, String[] observed) {
+                    return observed[1] + " balance=" + rupees(ledger.balance(account));
+                }
+
+                @Override
+                boolean acceptable(String outcome) {
+                    String expected = " balance=" + rupees(10 * DEPOSITS);
+                    return outcome.equals("consistent" + expected) || outcome.equals("n/a" + expected);
+                }
+            });
+
+    /**
+     * Runs one actor test: the actors meet at a barrier before and after every trial
+     */
+    static Map<String, Long> runActorTest(ActorTest test, Ledger ledger, int trials) throws InterruptedException {
+        Map<String, Long> outcomes = new TreeMap<>();
+        String[] observed = new String[test.actors];
+        Object[] current = new Object[1];
+        CyclicBarrier start = new CyclicBarrier(test.actors + 1);
+        CyclicBarrier end = new CyclicBarrier(test.actors + 1);
+        List<Thread> actors = new ArrayList<>();
+        for (int a = 0; a < test.actors; a++) {
+            int index = a;
+            Thread actor = new Thread(() -> {
+                try {
+                    for (int t = 0; t < trials; t++) {
+                        start.await();
+                        try {
+                            observed[index] = test.actor(index, ledger, current[0]);
+                        } catch (RuntimeException e) {
+                            observed[index] = e.getClass().getSimpleName();
+                        }
+                        end.await();
+                    }
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "actor-" + test.name + "-" + a);
+            actor.setDaemon(true);
+            actors.add(actor);
+            actor.start();
+        }
+        try {
+            for (int t = 0; t < trials; t++) {
+                current[0] = test.setUp(ledger, t);
+                start.await();
+                end.await();
+                String outcome;
+                try {
+                    outcome = test.arbiter(ledger, current[0], observed);
+                } catch (RuntimeException e) {
+                    outcome = e.getClass().getSimpleName();
+                }
+                outcomes.merge(outcome, 1L, Long::sum);
+            }
+        } catch (BrokenBarrierException e) {
+            throw new IllegalStateException("Actor test " + test.name + " lost an actor", e);
+        }
+        for (Thread actor : actors) {
+            actor.join();
+        }
+        return outcomes;
+    }
+
+    // --- Hammer ---
+
+    /**
+     * What the hammer threads did to one account
+     */
+    static final class Tally {
+        final LongAdder depositsAccepted = new LongAdder();
+        final LongAdder depositsRefused = new LongAdder();
+        final LongAdder withdrawalsAccepted = new LongAdder();
+        final LongAdder withdrawalsRefused = new LongAdder();
+    }
+
+    static final class HammerResult {
+        final String variant;
+        final int threads;
+        final long operations;
+        final long postings;
+        final long refused;
+        final long reads;
+        final long elapsedNanos;
+        final List<String> violations;
+        final long violationCount;
+
+        HammerResult(String variant, int threads, long operations, long postings, long refused, long reads,
+                     long elapsedNanos, List<String> violations, long violationCount) {
+            this.variant = variant;
+            this.threads = threads;
+            this.operations = operations;
+            this.postings = postings;
+            this.refused = refused;
+            this.reads = reads;
+            this.elapsedNanos = elapsedNanos;
+            this.violations = violations;
+            this.violationCount = violationCount;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            return String.format("%-9s %7d %11d %12.0f %12.0f %10d %10d %10s",
+                    variant, threads, operations, operations / seconds, postings / seconds, refused, reads,
+                    violationCount == 0 ? "pass" : violationCount + " FAIL");
+        }
+
+        static String header() {
+            return String.format("%-9s %7s %11s %12s %12s %10s %10s %10s",
+                    "variant", "threads", "ops", "ops/s", "postings/s", "refused", "reads", "result");
+        }
+    }
+
+    /**
+     * Collects violations; only the first few are kept for the report
+     */
+    static final class Violations {
+        final AtomicLong count = new AtomicLong();
+        final Queue<String> kept = new ConcurrentLinkedQueue<>();
+
+        void add(String violation) {
+            if (count.getAndIncrement() < MAX_REPORTED) {
+                kept.add(violation);
+            }
+        }
+    }
+
+    /**
+     * Shares a few accounts between many threads for a fixed time, then checks every account
+     */
+    static HammerResult hammer(Ledger ledger, int threads, int accountCount, long seconds, long seed)
+            throws InterruptedException {
+        Object[] accounts = new Object[accountCount];
+        Tally[] tallies = new Tally[accountCount];
+        int[] rowsBefore = new int[accountCount];
+        double[] balanceBefore = new double[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = ledger.open("H" + i, HAMMER_OPENING);
+            ledger.setDailyLimit(accounts[i], HAMMER_DAILY_LIMIT);
+            tallies[i] = new Tally();
+            rowsBefore[i] = ledger.hasRows() ? ledger.rowCount(accounts[i]) : 0;
+            balanceBefore[i] = ledger.balance(accounts[i]);
+        }
+
+        Violations violations = new Violations();
+        LongAdder operations = new LongAdder();
+        LongAdder reads = new LongAdder();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < threads; w++) {
+            SplittableRandom random = new SplittableRandom(seed + w);
+            Thread worker = new Thread(() -> {
+                Rows tail = new Rows(TAIL_ROWS);
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long done = 0;
+                long readsDone = 0;
+                while ((done & 255) != 0 || System.nanoTime() < deadline[0]) {
+                    int a = random.nextInt(accountCount);
+                    Object account = accounts[a];
+                    int pick = random.nextInt(100);
+                    try {
+                        if (pick < 35) {
+                            (ledger.deposit(account, DEPOSIT) ? tallies[a].depositsAccepted
+                                    : tallies[a].depositsRefused).increment();
+                        } else if (pick < 70) {
+                            (ledger.withdraw(account, WITHDRAWAL) ? tallies[a].withdrawalsAccepted
+                                    : tallies[a].withdrawalsRefused).increment();
+                        } else if (pick < 90) {
+                            checkBalanceRead(ledger.balance(account), a, violations);
+                            readsDone++;
+                        } else if (random.nextInt(HISTORY_SCREEN_ODDS) == 0 || !ledger.hasRows()) {
+                            // the full screen grows with the run, so it is kept rare to keep throughput comparable
+                            ledger.readHistory(account);
+                            readsDone++;
+                        } else {
+                            checkTail(ledger, account, a, tail, violations);
+                            readsDone++;
+                        }
+                    } catch (ConcurrentModificationException e) {
+                        violations.add("account H" + a + ": history read failed during postings (" + e + ")");
+                    } catch (RuntimeException e) {
+                        violations.add("account H" + a + ": " + e);
+                    }
+                    done++;
+                }
+                operations.add(done);
+                reads.add(readsDone);
+            }, "hammer-" + ledger.variant + "-" + w);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        deadline[0] = begin + seconds * 1_000_000_000L;
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long postings = 0;
+        long refused = 0;
+        for (int i = 0; i < accountCount; i++) {
+            Tally tally = tallies[i];
+            postings += tally.depositsAccepted.sum() + tally.withdrawalsAccepted.sum();
+            refused += tally.depositsRefused.sum() + tally.withdrawalsRefused.sum();
+            checkAccount(ledger, accounts[i], i, tally, balanceBefore[i], rowsBefore[i], violations);
+        }
+        return new HammerResult(ledger.variant, threads, operations.sum(), postings, refused, reads.sum(), elapsed,
+                new ArrayList<>(violations.kept), violations.count.get());
+    }
+
+    /**
+     * Every posting is a whole number of rupees, so any balance a reader sees must be one too
+     */
+    static void checkBalanceRead(double balance, int account, Violations violations) {
+        if (balance < 0) {
+            violations.add("account H" + account + ": negative balance read " + rupees(balance));
+        } else if (balance != Math.rint(balance)) {
+            violations.add("account H" + account + ": balance read " + balance + " was never posted");
+        }
+    }
+
+    /**
+     * The latest rows, copied while postings continue, must follow from one another
+     */
+    static void checkTail(Ledger ledger, Object account, int a, Rows tail, Violations violations) {
+        int count = ledger.rowCount(account);
+        int n = ledger.rows(account, Math.max(0, count - TAIL_ROWS), TAIL_ROWS, tail);
+        for (int i = 1; i < n; i++) {
+            long previous = paise(tail.balances[i - 1]);
+            long amount = paise(tail.amounts[i]);
+            long balance = paise(tail.balances[i]);
+            if (balance != previous + amount && balance != previous - amount) {
+                violations.add("account H" + a + ": history row " + rupees(tail.balances[i])
+                        + " does not follow " + rupees(tail.balances[i - 1]));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Once the threads have stopped: no lost updates, no overdraft, and a history that adds up
+     */
+    static void checkAccount(Ledger ledger, Object account, int a, Tally tally, double opening, int rowsBefore,
+                             Violations violations) {
+        String name = "account H" + a;
+        double balance = ledger.balance(account);
+        long deposits = tally.depositsAccepted.sum();
+        long withdrawals = tally.withdrawalsAccepted.sum();
+        long expected = paise(opening) + deposits * paise(DEPOSIT) - withdrawals * paise(WITHDRAWAL);
+        if (balance < 0) {
+            violations.add(name + ": negative balance " + rupees(balance));
+        }
+        if (paise(balance) != expected) {
+            violations.add(String.format("%s: lost update, balance %s after %d deposits and %d withdrawals, expected %s",
+                    name, rupees(balance), deposits, withdrawals, rupees(expected / 100.0)));
+        }
+        if (tally.depositsRefused.sum() > 0) {
+            violations.add(name + ": " + tally.depositsRefused.sum() + " valid deposits were refused");
+        }
+        if (!ledger.hasRows()) {
+            return;
+        }
+
+        int count = ledger.rowCount(account);
+        if (count - rowsBefore != deposits + withdrawals) {
+            violations.add(String.format("%s: %d history rows for %d postings", name, count - rowsBefore,
+                    deposits + withdrawals));
+        }
+        Rows rows = new Rows(1024);
+        long previous = paise(opening);
+        long credits = 0;
+        long debits = 0;
+        for (int from = rowsBefore; from < count; from += rows.size) {
+            if (ledger.rows(account, from, count - from, rows) == 0) {
+                break;
+            }
+            for (int i = 0; i < rows.size; i++) {
+                long amount = paise(rows.amounts[i]);
+                long after = paise(rows.balances[i]);
+                if (after == previous + amount) {
+                    credits++;
+                } else if (after == previous - amount) {
+                    debits++;
+                } else {
+                    violations.add(String.format("%s: history row %d balance %s does not follow %s", name, from + i,
+                            rupees(rows.balances[i]), rupees(previous / 100.0)));
+                }
+                previous = after;
+            }
+        }
+        if (previous != paise(balance)) {
+            violations.add(name + ": last history row " + rupees(previous / 100.0) + " but balance " + rupees(balance));
+        }
+        if (credits != deposits || debits != withdrawals) {
+            violations.add(String.format("%s: history has %d credits and %d debits for %d deposits and %d withdrawals",
+                    name, credits, debits, deposits, withdrawals));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path srcDir = Paths.get("src");
+        List<String> variants = new ArrayList<>(LoadGenerator.PROFILES.keySet());
+        int trials = 20_000;
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        int accounts = 4;
+        long seconds = 5;
+        long seed = 42;
+
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--src": srcDir = Paths.get(value); i++; break;
+                case "--variants":
+                    if (!"all".equals(value)) {
+                        variants = Arrays.asList(value.split(","));
+                    }
+                    i++;
+                    break;
+                case "--trials": trials = Integer.parseInt(value); i++; break;
+                case "--threads": threads = Integer.parseInt(value); i++; break;
+                case "--accounts": accounts = Integer.parseInt(value); i++; break;
+                case "--seconds": seconds = Long.parseLong(value); i++; break;
+                case "--seed": seed = Long.parseLong(value); i++; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.err.println("Usage: java StressHarness [--src dir] [--variants a,b|all] [--trials n]"
+                            + " [--threads n] [--accounts n] [--seconds n] [--seed n]");
+                    System.exit(2);
+            }
+        }
+
+        PrintStream console = System.out;
+        Path workDir = Files.createTempDirectory("atm-stress");
+        List<HammerResult> results = new ArrayList<>();
+        boolean failed = false;
+
+        console.printf("Trials: %d | Hammer: %d threads on %d accounts for %d s | Seed: %d%n",
+                trials, threads, accounts, seconds, seed);
+        // the variants print receipts; keep them off the report
+        System.setOut(new PrintStream(new LoadGenerator.CountingSink(), false, StandardCharsets.UTF_8));
+        try {
+            for (String name : variants) {
+                LoadGenerator.Profile profile = LoadGenerator.PROFILES.get(name);
+                if (profile == null) {
+                    console.println("Unknown variant: " + name);
+                    continue;
+                }
+                Ledger ledger = Ledger.load(srcDir, profile, workDir);
+                console.println();
+                console.println("== " + name);
+                for (ActorTest test : ACTOR_TESTS) {
+                    Map<String, Long> outcomes = runActorTest(test, ledger, trials);
+                    console.println("  " + test.name);
+                    for (Map.Entry<String, Long> outcome : outcomes.entrySet()) {
+                        boolean ok = test.acceptable(outcome.getKey());
+                        failed |= !ok;
+                        console.printf("    %10d  %-10s %s%n", outcome.getValue(), ok ? "ACCEPTABLE" : "FORBIDDEN",
+                                outcome.getKey());
+                    }
+                }
+                HammerResult result = hammer(ledger, threads, accounts, seconds, seed);
+                results.add(result);
+                failed |= result.violationCount > 0;
+                for (String violation : result.violations) {
+                    console.println("  violation: " + violation);
+                }
+            }
+        } finally {
+            System.setOut(console);
+        }
+
+        console.println();
+        console.println(HammerResult.header());
+        for (HammerResult result : results) {
+            console.println(result);
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+}
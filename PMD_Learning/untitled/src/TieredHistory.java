@@ -0,0 +1,442 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only account history that keeps only its recent tail on the heap.
+ *
+ * Entries are grouped into fixed-size pages. Once the in-memory tail holds two
+ * pages, the older one is encoded as one block (deflated, unless the codec has
+ * a compact block format of its own such as LedgerBlockCodec) and appended to a
+ * shared on-disk segment. Only its handle stays in memory, so heap use per
+ * account stops growing. Reads of spilled entries go through a process-wide LRU cache of
+ * decoded pages: paging through a statement touches the disk once per page,
+ * and the recent entries that history screens show never leave the heap.
+ *
+ * Segments are scratch space, not a durable ledger (that is FileLedgerStore's
+ * job). They live in a temporary directory, or -Datm.history.dir, are deleted
+ * once every page in them belongs to a collected history, and are removed at exit.
+ * If the disk cannot be written the history simply stays in memory.
+ */
+public class TieredHistory<T> extends AbstractList<T> implements RandomAccess {
+
+    /**
+     * Turns entries into bytes and back. Pages are encoded as one block, entry by
+     * entry unless the codec has a denser block format of its own.
+     */
+    public interface Codec<T> {
+        void write(T entry, DataOutput out) throws IOException;
+        T read(DataInput in) throws IOException;
+
+        default byte[] encodeBlock(List<T> entries) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(entries.size() * 48);
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (T entry : entries) {
+                write(entry, out);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        default List<T> decodeBlock(byte[] block, int count) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+            List<T> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(read(in));
+            }
+            return entries;
+        }
+
+        /**
+         * @return true if encoded blocks should also be deflated before they are stored
+         */
+        default boolean deflateBlocks() {
+            return true;
+        }
+    }
+
+    public static final int DEFAULT_PAGE_SIZE = 128;
+    public static final int DEFAULT_CACHE_PAGES = 1024;
+
+    private static final int PAGE_BITS = 24; // low bits of a cache key; the history id takes the rest
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final AtomicLong IDS = new AtomicLong();
+    private static final PageCache CACHE = new PageCache(Integer.getInteger("atm.history.cachePages", DEFAULT_CACHE_PAGES));
+    // zlib streams are costly to set up, so each thread keeps one of each and resets it
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private final Codec<T> codec;
+    private final int pageSize;
+    private final long id = IDS.incrementAndGet();
+    private final ArrayList<T> hot = new ArrayList<>();
+    private final Pages pages = new Pages();
+    private boolean spillFailed;
+
+    public TieredHistory(Codec<T> codec) {
+        this(codec, DEFAULT_PAGE_SIZE);
+    }
+
+    public TieredHistory(Codec<T> codec, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive.");
+        }
+        this.codec = codec;
+        this.pageSize = pageSize;
+        CLEANER.register(this, pages);
+    }
+
+    @Override
+    public synchronized boolean add(T entry) {
+        hot.add(entry);
+        modCount++;
+        if (hot.size() >= 2 * pageSize && !spillFailed) {
+            spillOldestPage();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized T get(int index) {
+        Objects.checkIndex(index, size());
+        int spilled = pages.count * pageSize;
+        if (index >= spilled) {
+            return hot.get(index - spilled);
+        }
+        return loadPage(index / pageSize).get(index % pageSize);
+    }
+
+    @Override
+    public synchronized int size() {
+        return pages.count * pageSize + hot.size();
+    }
+
+    /**
+     * Walks the entries present when it was created. Entries never move once
+     * added, so a history screen can be drawn while postings continue.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        int end = size();
+        return new Iterator<T>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public T next() {
+                if (next >= end) {
+                    throw new NoSuchElementException();
+                }
+                return get(next++);
+            }
+        };
+    }
+
+    /**
+     * @return bytes the spilled pages take on disk
+     */
+    public synchronized long getSpilledBytes() {
+        return pages.bytes();
+    }
+
+    /**
+     * @return entries held on the heap; the rest are in spilled pages
+     */
+    public synchronized int getHotSize() {
+        return hot.size();
+    }
+
+    public synchronized int getSpilledPages() {
+        return pages.count;
+    }
+
+    private void spillOldestPage() {
+        List<T> page = hot.subList(0, pageSize);
+        try {
+            byte[] block = codec.encodeBlock(page);
+            byte[] compressed = codec.deflateBlocks() ? deflate(block) : block;
+            long handle = SegmentStore.shared().write(compressed);
+            pages.add(handle, compressed.length);
+            page.clear();
+        } catch (IOException e) {
+            spillFailed = true;
+            System.err.println("History spill disabled, keeping entries in memory: " + e.getMessage());
+        }
+    }
+
+    private List<T> loadPage(int page) {
+        long key = (id << PAGE_BITS) | page;
+        List<T> entries = CACHE.get(key);
+        if (entries != null) {
+            return entries;
+        }
+        try {
+            byte[] stored = SegmentStore.shared().read(pages.handle(page), pages.length(page));
+            List<T> decoded = codec.decodeBlock(codec.deflateBlocks() ? inflate(stored) : stored, pageSize);
+            CACHE.put(key, decoded);
+            return decoded;
+        } catch (IOException | DataFormatException e) {
+            throw new IllegalStateException("Cannot read history page " + page, e);
+        }
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = DEFLATERS.get();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            ByteBuffer framed = ByteBuffer.allocate(4 + out.size());
+            framed.putInt(raw.length).put(out.toByteArray());
+            return framed.array();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    // framed as [int raw length][deflate stream]
+    private static byte[] inflate(byte[] framed) throws DataFormatException {
+        ByteBuffer in = ByteBuffer.wrap(framed);
+        byte[] raw = new byte[in.getInt()];
+        Inflater inflater = INFLATERS.get();
+        try {
+            inflater.setInput(framed, 4, framed.length - 4);
+            int n = 0;
+            while (n < raw.length) {
+                int read = inflater.inflate(raw, n, raw.length - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new DataFormatException("Truncated history page");
+                }
+                n += read;
+            }
+            return raw;
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Handles of one history's spilled pages; released when the history is collected
+     */
+    private static final class Pages implements Runnable {
+        private long[] handles = new long[8];
+        private int[] lengths = new int[8];
+        private int count;
+
+        synchronized void add(long handle, int length) {
+            if (count == handles.length) {
+                handles = Arrays.copyOf(handles, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            handles[count] = handle;
+            lengths[count] = length;
+            count++;
+        }
+
+        synchronized long handle(int page) {
+            return handles[page];
+        }
+
+        synchronized int length(int page) {
+            return lengths[page];
+        }
+
+        synchronized long bytes() {
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                total += lengths[i];
+            }
+            return total;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (count == 0) {
+                return;
+            }
+            SegmentStore store = SegmentStore.shared();
+            for (int i = 0; i < count; i++) {
+                store.release(handles[i], lengths[i]);
+            }
+            count = 0;
+        }
+    }
+
+    /**
+     * Decoded pages of every history, least recently used evicted first
+     */
+    private static final class PageCache {
+        private final Map<Long, List<?>> pages;
+
+        PageCache(int capacity) {
+            this.pages = new LinkedHashMap<Long, List<?>>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, List<?>> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized <T> List<T> get(long key) {
+            return (List<T>) pages.get(key);
+        }
+
+        synchronized void put(long key, List<?> page) {
+            pages.put(key, page);
+        }
+    }
+
+    /**
+     * Append-only segment files shared by all histories. A handle is the segment id
+     * in the high bits and the byte offset in the low 40.
+     */
+    static final class SegmentStore {
+        private static final long SEGMENT_BYTES = 64L << 20;
+        private static final int OFFSET_BITS = 40;
+        private static SegmentStore shared;
+
+        private Path directory;
+        private final Map<Integer, Segment> segments = new HashMap<>();
+        private Segment current;
+        private int nextId;
+
+        private SegmentStore(Path directory) {
+            this.directory = directory;
+        }
+
+        static synchronized SegmentStore shared() {
+            if (shared == null) {
+                shared = new SegmentStore(resolveDirectory());
+            }
+            return shared;
+        }
+
+        private static Path resolveDirectory() {
+            String dir = System.getProperty("atm.history.dir");
+            return dir != null ? Paths.get(dir) : null;
+        }
+
+        synchronized long write(byte[] data) throws IOException {
+            if (current == null || current.size + data.length > SEGMENT_BYTES) {
+                roll();
+            }
+            long offset = current.size;
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                current.channel.write(buffer, offset + buffer.position());
+            }
+            current.size += data.length;
+            current.live += data.length;
+            return ((long) current.id << OFFSET_BITS) | offset;
+        }
+
+        byte[] read(long handle, int length) throws IOException {
+            Segment segment;
+            synchronized (this) {
+                segment = segments.get((int) (handle >>> OFFSET_BITS));
+            }
+            if (segment == null) {
+                throw new IOException("History segment is gone");
+            }
+            long offset = handle & ((1L << OFFSET_BITS) - 1);
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (segment.channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("History segment is truncated");
+                }
+            }
+            return buffer.array();
+        }
+
+        synchronized void release(long handle, int length) {
+            Segment segment = segments.get((int) (handle >>> OFFSET_BITS));
+            if (segment == null) {
+                return;
+            }
+            segment.live -= length;
+            if (segment.live == 0 && segment != current) {
+                delete(segment);
+            }
+        }
+
+        private void roll() throws IOException {
+            if (directory == null) {
+                directory = Files.createTempDirectory("atm-history");
+                directory.toFile().deleteOnExit();
+            } else {
+                Files.createDirectories(directory);
+            }
+            Segment previous = current;
+            Path file = directory.resolve(String.format("history-%d-%06d.seg", ProcessHandle.current().pid(), nextId));
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            file.toFile().deleteOnExit();
+            current = new Segment(nextId++, file, channel);
+            segments.put(current.id, current);
+            if (previous != null && previous.live == 0) {
+                delete(previous);
+            }
+        }
+
+        private void delete(Segment segment) {
+            segments.remove(segment.id);
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                System.err.println("Could not delete history segment " + segment.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path file;
+        final FileChannel channel;
+        long size;
+        long live;
+
+        Segment(int id, Path file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+}
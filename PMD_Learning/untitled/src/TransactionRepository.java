@@ -0,0 +1,31 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Durable home for ledger postings, fed as a LedgerListener
+ */
+public interface TransactionRepository extends LedgerListener {
+
+    /**
+     * @return up to max most recent postings of the account, oldest first
+     */
+    List<JournalEntry> history(String accountNumber, int max) throws IOException;
+
+    /**
+     * Hands every posting of the account to the sink, oldest first, one at a time,
+     * so a long history is never held on the heap as a whole
+     */
+    void replay(String accountNumber, Consumer<JournalEntry> sink) throws IOException;
+
+    /**
+     * Hands every stored posting to the sink in the order it was stored, across all
+     * accounts, without loading any account
+     */
+    void forEachPosting(Consumer<JournalEntry> sink) throws IOException;
+
+    /**
+     * @return postings stored so far, across all accounts
+     */
+    long transactionCount();
+}
@@ -1,12 +1,28 @@
 import java.util.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
 
 // Class to represent a Bank Account
-class BankAccount {
+class BankAccount implements EndOfDayBatch.Account, StandingInstructions.Account {
+    static final double DAILY_WITHDRAWAL_LIMIT = 50000;
+    private static final IdempotencyCache REQUEST_KEYS = IdempotencyCache.withDefaults();
+    private static final LedgerEventPublisher<JournalEntry> LEDGER_EVENTS = new LedgerEventPublisher<>();
+
     private String accountNumber;
     private String holderName;
     private double balance;
     private String pin;
     private List<String> transactions;
+    private DailyLimitCounter dailyLimit;
+    private FraudMonitor.AccountState riskState;
+    private LedgerListener ledgerListener;
+    private volatile LedgerEventPublisher<JournalEntry> events;
+    private SeqlockBalance balanceView;
 
     // Constructor
     public BankAccount(String accountNumber, String holderName, String pin, double initialBalance) {
@@ -15,6 +31,8 @@ class BankAccount {
         this.pin = pin;
         this.balance = initialBalance;
         this.transactions = new ArrayList<>();
+        this.dailyLimit = new DailyLimitCounter(DAILY_WITHDRAWAL_LIMIT);
+        this.balanceView = new SeqlockBalance(initialBalance);
     }
 
     // Getter for account number
@@ -22,37 +40,205 @@ class BankAccount {
         return accountNumber;
     }
 
+    // Attach the asynchronous fraud scoring stage
+    public void setFraudMonitor(FraudMonitor monitor) {
+        this.riskState = monitor.register(accountNumber);
+    }
+
+    // Subscribe to every posting on this account (replication, auditing, ...)
+    public synchronized void addLedgerListener(LedgerListener listener) {
+        ledgerListener = ledgerListener == null ? listener : ledgerListener.andThen(listener);
+    }
+
+    // Live postings on this account, with back-pressure; created on first use
+    public synchronized Flow.Publisher<JournalEntry> events() {
+        if (events == null) {
+            events = new LedgerEventPublisher<>();
+        }
+        return events;
+    }
+
+    // Live postings on every account
+    public static Flow.Publisher<JournalEntry> ledgerEvents() {
+        return LEDGER_EVENTS;
+    }
+
+    // Stored form for on-disk repositories
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(accountNumber);
+        out.writeUTF(holderName);
+        out.writeUTF(pin);
+        out.writeDouble(getBalance());
+    }
+
+    public static BankAccount readFrom(DataInput in) throws IOException {
+        String accountNumber = in.readUTF();
+        String holderName = in.readUTF();
+        String pin = in.readUTF();
+        return new BankAccount(accountNumber, holderName, pin, in.readDouble());
+    }
+
+    // Refills the last transactions of a stored account from its postings; nothing is posted again
+    public synchronized void restoreHistory(List<JournalEntry> entries) {
+        for (JournalEntry entry : entries) {
+            if (transactions.size() == 5) {
+                transactions.remove(0);
+            }
+            transactions.add(describe(entry.getType()) + " ₹" + entry.getAmountPaise() / 100.0
+                    + " | Balance: ₹" + entry.getBalanceAfterPaise() / 100.0);
+        }
+    }
+
+    // History wording for a posting type, as recordTransaction writes it
+    private static String describe(String type) {
+        switch (type) {
+            case "Deposit": return "Deposited";
+            case "Withdrawal": return "Withdrew";
+            case "Standing Credit": return "Standing credit";
+            case "Standing Debit": return "Standing debit";
+            default: return type;
+        }
+    }
+
     // Verify PIN
     public boolean validatePIN(String enteredPIN) {
         return pin.equals(enteredPIN);
     }
 
-    // Check Balance
+    // Check Balance (lock-free read, never waits on deposit/withdraw)
     public double getBalance() {
-        return balance;
+        return balanceView.getBalance();
     }
 
     // Deposit Money
-    public void deposit(double amount) {
+    public synchronized void deposit(double amount) {
         if (amount > 0) {
             balance += amount;
             recordTransaction("Deposited ₹" + amount);
+            notifyPosted("Deposit", amount);
+            if (riskState != null) {
+                riskState.record(FraudMonitor.DEPOSIT, amount);
+            }
             System.out.println("₹" + amount + " deposited successfully.");
         } else {
             System.out.println("Invalid deposit amount.");
         }
     }
 
-    // Withdraw Money
-    public void withdraw(double amount) {
+    // Withdraw Money (returns whether the withdrawal went through)
+    public synchronized boolean withdraw(double amount) {
         if (amount <= 0) {
             System.out.println("Invalid withdrawal amount.");
         } else if (amount > balance) {
             System.out.println("Insufficient balance.");
+        } else if (riskState != null && !riskState.screenWithdrawal(amount)) {
+            System.out.println("Withdrawal held for review. Please contact your bank.");
+        } else if (!dailyLimit.tryReserve(amount)) {
+            System.out.println("Daily withdrawal limit exceeded. Remaining today: ₹" + dailyLimit.getRemaining());
         } else {
             balance -= amount;
             recordTransaction("Withdrew ₹" + amount);
+            notifyPosted("Withdrawal", amount);
+            if (riskState != null) {
+                riskState.record(FraudMonitor.WITHDRAWAL, amount);
+            }
             System.out.println("₹" + amount + " withdrawn successfully.");
+            return true;
+        }
+        return false;
+    }
+
+    // Outcome remembered for an idempotency key (1 applied, 0 declined), or IdempotencyCache.MISSING
+    public int requestOutcome(String idempotencyKey) {
+        return REQUEST_KEYS.lookup(accountNumber, idempotencyKey);
+    }
+
+    // Deposit applied at most once per idempotency key (terminal retries)
+    public synchronized void deposit(double amount, String idempotencyKey) {
+        if (REQUEST_KEYS.lookup(accountNumber, idempotencyKey) != IdempotencyCache.MISSING) {
+            System.out.println("Deposit already processed.");
+            return;
+        }
+        deposit(amount);
+        if (amount > 0) {
+            REQUEST_KEYS.remember(accountNumber, idempotencyKey, 1);
+        }
+    }
+
+    // Withdrawal applied at most once per idempotency key; a retry gets the original result
+    public synchronized boolean withdraw(double amount, String idempotencyKey) {
+        int seen = REQUEST_KEYS.lookup(accountNumber, idempotencyKey);
+        if (seen != IdempotencyCache.MISSING) {
+            System.out.println("Withdrawal already processed.");
+            return seen == 1;
+        }
+        boolean done = withdraw(amount);
+        REQUEST_KEYS.remember(accountNumber, idempotencyKey, done ? 1 : 0);
+        return done;
+    }
+
+    // Credit end-of-day interest
+    @Override
+    public synchronized void creditInterest(double amount) {
+        if (amount > 0) {
+            balance += amount;
+            recordTransaction("Interest ₹" + amount);
+            notifyPosted("Interest", amount);
+        }
+    }
+
+    // Charge maintenance fee (never below zero balance)
+    @Override
+    public synchronized double chargeFee(double amount) {
+        double charged = Math.min(amount, balance);
+        if (charged <= 0) {
+            return 0;
+        }
+        balance -= charged;
+        recordTransaction("Fee ₹" + charged);
+        notifyPosted("Fee", charged);
+        return charged;
+    }
+
+    // Standing instruction credit
+    @Override
+    public synchronized void creditStanding(double amount) {
+        if (amount > 0) {
+            balance += amount;
+            recordTransaction("Standing credit ₹" + amount);
+            notifyPosted("Standing Credit", amount);
+        }
+    }
+
+    // Standing instruction debit: all or nothing, no cash withdrawal limits
+    @Override
+    public synchronized boolean debitStanding(double amount) {
+        if (amount <= 0 || amount > balance) {
+            return false;
+        }
+        balance -= amount;
+        recordTransaction("Standing debit ₹" + amount);
+        notifyPosted("Standing Debit", amount);
+        return true;
+    }
+
+    // Publish the new balance and tell the ledger listener about a posting, still under the account lock
+    private void notifyPosted(String type, double amount) {
+        long now = LedgerClock.currentTimeMillis();
+        long sequence = LedgerClock.nextSequence();
+        balanceView.publish(balance, type, amount, now);
+        if (ledgerListener != null) {
+            ledgerListener.onPosted(sequence, accountNumber, type, amount, balance, now);
+        }
+        // history rows are plain strings here, so subscribers get journal entries
+        LedgerEventPublisher<JournalEntry> publisher = events;
+        if (publisher != null || LEDGER_EVENTS.hasSubscribers()) {
+            JournalEntry entry = new JournalEntry(sequence, accountNumber, type,
+                    Math.round(amount * 100), Math.round(balance * 100), now);
+            if (publisher != null) {
+                publisher.offer(entry);
+            }
+            LEDGER_EVENTS.offer(entry);
         }
     }
 
@@ -66,11 +252,16 @@ class BankAccount {
 
     // View transaction history
     public void viewTransactions() {
-        if (transactions.isEmpty()) {
+        // copy under the lock, print outside it, so other sessions can keep posting
+        List<String> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(transactions);
+        }
+        if (snapshot.isEmpty()) {
             System.out.println("No transactions found.");
         } else {
             System.out.println("---- Transaction History ----");
-            for (String t : transactions) {
+            for (String t : snapshot) {
                 System.out.println(t);
             }
         }
@@ -79,20 +270,101 @@ class BankAccount {
 
 // ATM Class to handle user interaction
 class ATM {
-    private Map<String, BankAccount> accounts;
+    private static final double CARD_DAILY_LIMIT = 20000;
+    private static final double ANNUAL_INTEREST_RATE = 0.035;
+    private static final double MINIMUM_BALANCE = 1000;
+    private static final double MAINTENANCE_FEE = 5;
+    // One scoring stage per process, shared by every terminal instance
+    private static final FraudMonitor FRAUD_MONITOR = FraudMonitor.withDefaults();
+    // Idle logins time out on one process-wide timing wheel
+    private static final SessionManager SESSIONS = SessionManager.withDefaults();
+    // Rate limits per terminal and per account, and the node's session cap
+    private static final AdmissionControl ADMISSION = AdmissionControl.withDefaults();
+    // Logins and money movements, written off the customer path
+    private static final AuditLog AUDIT = AuditLog.withDefaults();
+    private static final int HOT_ACCOUNTS = 10000;
+
+    private final AccountRepository<BankAccount> accounts;
+    private volatile ReplicationPrimary replication;
+    private StandingInstructions standing;
+    private Map<String, DailyLimitCounter> cardLimits;
     private Scanner scanner;
     private BankAccount currentAccount;
+    private DailyLimitCounter currentCardLimit;
+    private volatile SessionManager.Session session;
+    private AdmissionControl.Permit admission;
+    private final String terminalId = AdmissionControl.nextTerminalId();
+    private long requestSequence;
+    // a request whose outcome never came back, kept until it is repeated, with the notes claimed for it
+    private String unresolvedRequest;
+    private String unresolvedKey;
+    private int[] unresolvedNotes;
+    private final CashDispenser dispenser;
+    private final BalanceIndex balanceIndex;
 
     public ATM() {
-        accounts = new HashMap<>();
+        balanceIndex = new BalanceIndex();
+        accounts = openRepository();
+        cardLimits = new ConcurrentHashMap<>();
+        dispenser = CashDispenser.withDefaults();
         scanner = new Scanner(System.in);
         loadDummyAccounts(); // Add some sample data
+        if (accounts instanceof FileLedgerStore) {
+            standingInstructions(); // re-arm the stored EMIs and SIPs
+        }
+        startReplicationIfConfigured();
+    }
+
+    // In memory, or on disk when -Datm.store.dir is set
+    private AccountRepository<BankAccount> openRepository() {
+        String dir = System.getProperty("atm.store.dir");
+        if (dir != null) {
+            try {
+                FileLedgerStore<BankAccount> store = new FileLedgerStore<>(Paths.get(dir),
+                        AccountRepository.Codec.of(BankAccount::getAccountNumber, BankAccount::writeTo,
+                                in -> load(BankAccount.readFrom(in))),
+                        HOT_ACCOUNTS, Boolean.getBoolean("atm.store.force"));
+                // the whole book is indexed up front, not account by account as sessions load them
+                store.forEachStored(BankAccount::readFrom, BankAccount::getBalance, balanceIndex::track);
+                return store;
+            } catch (IOException e) {
+                System.err.println("Account store unavailable, keeping accounts in memory: " + e.getMessage());
+            }
+        }
+        return new InMemoryAccountRepository<>(BankAccount::getAccountNumber);
     }
 
-    // Load some pre-defined accounts
+    // Load some pre-defined accounts (skipped for ones already stored)
     private void loadDummyAccounts() {
-        accounts.put("12345", new BankAccount("12345", "Aman Singh", "1111", 10000));
-        accounts.put("67890", new BankAccount("67890", "Tarun Singh", "2222", 15000));
+        accounts.insert(prepare(new BankAccount("12345", "Aman Singh", "1111", 10000)));
+        accounts.insert(prepare(new BankAccount("67890", "Tarun Singh", "2222", 15000)));
+    }
+
+    // A stored account gets its last few postings back as history, then is wired up like a new one
+    private BankAccount load(BankAccount account) throws IOException {
+        if (accounts instanceof TransactionRepository) {
+            TransactionRepository store = (TransactionRepository) accounts;
+            account.restoreHistory(store.history(account.getAccountNumber(), 5));
+        }
+        return prepare(account);
+    }
+
+    // Hook an account (seeded or loaded from disk) up to fraud scoring, the store, the balance index and replication
+    private BankAccount prepare(BankAccount account) {
+        account.setFraudMonitor(FRAUD_MONITOR);
+        balanceIndex.track(account.getAccountNumber(), account.getBalance());
+        account.addLedgerListener(accounts);
+        account.addLedgerListener(balanceIndex);
+        account.addLedgerListener(this::replicate);
+        return account;
+    }
+
+    private void replicate(long sequence, String accountNumber, String type, double amount, double balanceAfter,
+                           long timestampMillis) {
+        ReplicationPrimary primary = replication;
+        if (primary != null) {
+            primary.onPosted(sequence, accountNumber, type, amount, balanceAfter, timestampMillis);
+        }
     }
 
     // Start the ATM
@@ -108,14 +380,33 @@ class ATM {
             System.out.print("Enter PIN: ");
             String pin = scanner.nextLine();
 
-            BankAccount account = accounts.get(accNo);
+            // Refused attempts don't count against the customer
+            AdmissionControl.Decision decision = ADMISSION.admitLogin(terminalId, accNo);
+            if (decision != AdmissionControl.Decision.ADMITTED) {
+                AUDIT.record(AuditLog.Event.LOGIN, terminalId, accNo, Double.NaN, decision.name());
+                System.out.println(decision.getMessage());
+                continue;
+            }
+
+            BankAccount account = accounts.find(accNo);
 
             if (account != null && account.validatePIN(pin)) {
                 currentAccount = account;
+                currentCardLimit = cardLimits.computeIfAbsent(accNo, card -> new DailyLimitCounter(CARD_DAILY_LIMIT));
+                session = SESSIONS.open(accNo, this::sessionExpired);
+                admission = ADMISSION.openSession();
+                AUDIT.record(AuditLog.Event.LOGIN, terminalId, accNo, Double.NaN, "OK");
                 System.out.println("\nLogin successful. Welcome, " + account.getAccountNumber() + "!");
-                showMenu();
+                // the admission slot goes back however the menu ends, end of input included
+                try {
+                    showMenu();
+                } finally {
+                    endSession();
+                }
                 return;
             } else {
+                AUDIT.record(AuditLog.Event.LOGIN, terminalId, accNo, Double.NaN,
+                        account == null ? "UNKNOWN_ACCOUNT" : "BAD_PIN");
                 attempts++;
                 System.out.println("Invalid account number or PIN. Attempts left: " + (3 - attempts));
             }
@@ -124,9 +415,139 @@ class ATM {
         System.out.println("Too many failed attempts. Exiting...");
     }
 
+    // Run end-of-day interest and fee batch
+    public EndOfDayBatch.Summary runEndOfDay() {
+        return EndOfDayBatch.withDefaults(ANNUAL_INTEREST_RATE, MINIMUM_BALANCE, MAINTENANCE_FEE)
+                .run(accounts.all());
+    }
+
+    // Recurring debits, credits and transfers (EMIs, SIPs, bills), fired in batches by one scheduler thread;
+    // kept in the store directory when there is one
+    public synchronized StandingInstructions standingInstructions() {
+        if (standing == null) {
+            if (accounts instanceof FileLedgerStore) {
+                Path file = ((FileLedgerStore<?>) accounts).getDirectory().resolve("instructions.dat");
+                try {
+                    standing = StandingInstructions.open(accounts::find, file);
+                } catch (IOException e) {
+                    System.err.println("Standing instructions not restored from " + file + ": " + e.getMessage());
+                }
+            }
+            if (standing == null) {
+                standing = StandingInstructions.withDefaults(accounts::find);
+            }
+        }
+        return standing;
+    }
+
+    // Largest balances, accounts below minimum, dormant accounts: from the balance index, no scan
+    public List<BalanceIndex.Entry> largestBalances(int n) {
+        return balanceIndex.largest(n);
+    }
+
+    public List<BalanceIndex.Entry> accountsBelowMinimumBalance(int limit) {
+        return balanceIndex.below(MINIMUM_BALANCE, limit);
+    }
+
+    public List<BalanceIndex.Entry> dormantAccounts(long idleMillis, int limit) {
+        return balanceIndex.inactiveSince(LedgerClock.currentTimeMillis() - idleMillis, limit);
+    }
+
+    // Event streams for notifications, statements and analytics
+    public Flow.Publisher<JournalEntry> accountEvents(String accountNumber) {
+        BankAccount account = accounts.find(accountNumber);
+        if (account == null) {
+            throw new IllegalArgumentException("Unknown account: " + accountNumber);
+        }
+        return account.events();
+    }
+
+    public Flow.Publisher<JournalEntry> ledgerEvents() {
+        return BankAccount.ledgerEvents();
+    }
+
+    // Stream the transaction journal to follower processes
+    public ReplicationPrimary startReplicationPrimary(int port) throws IOException {
+        ReplicationPrimary primary = new ReplicationPrimary(port,
+                ReplicationPrimary.snapshotOf(accounts.all(), BankAccount::getAccountNumber, BankAccount::writeTo,
+                        accounts instanceof TransactionRepository ? (TransactionRepository) accounts : null));
+        replication = primary;
+        return primary;
+    }
+
+    // Primary/follower mode is switched on with -Datm.replication.port=<port>
+    private void startReplicationIfConfigured() {
+        String port = System.getProperty("atm.replication.port");
+        if (port != null) {
+            try {
+                startReplicationPrimary(Integer.parseInt(port));
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Replication disabled: " + e.getMessage());
+            }
+        }
+    }
+
+    // Log out: stop tracking the session and drop the authenticated account
+    private synchronized void endSession() {
+        if (currentAccount != null) {
+            audit(AuditLog.Event.LOGOUT, Double.NaN, session != null && !session.isActive() ? "TIMED_OUT" : "OK");
+        }
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (admission != null) {
+            admission.close();
+            admission = null;
+        }
+        currentAccount = null;
+        currentCardLimit = null;
+    }
+
+    // Runs on the session wheel when the login times out, so an unattended terminal is logged out
+    // at once; a callback left over from an earlier login finds its session gone
+    private synchronized void sessionExpired() {
+        if (session != null && !session.isActive()) {
+            endSession();
+        }
+    }
+
+    // Checked after every prompt, so input that arrives after the idle timeout is not acted on
+    private boolean sessionActive() {
+        SessionManager.Session current = session;
+        if (current != null && current.touch()) {
+            return true;
+        }
+        System.out.println("Session timed out. Please log in again.");
+        return false;
+    }
+
+    // Queue an audit record for the logged-in account; never waits for the disk
+    private void audit(AuditLog.Event event, double amount, String outcome) {
+        AUDIT.record(event, terminalId, currentAccount.getAccountNumber(), amount, outcome);
+    }
+
+    // Each customer request gets its own idempotency key. A request whose outcome never came back
+    // (the account call failed) keeps its key, so repeating the same request cannot apply it twice
+    private String requestKey(String request) {
+        if (!request.equals(unresolvedRequest)) {
+            unresolvedRequest = request;
+            unresolvedKey = terminalId + "-" + (++requestSequence);
+            unresolvedNotes = null;
+        }
+        return unresolvedKey;
+    }
+
+    // The account answered, so the next request gets a fresh key
+    private void requestResolved() {
+        unresolvedRequest = null;
+        unresolvedKey = null;
+        unresolvedNotes = null;
+    }
+
     // Display the main menu
     private void showMenu() {
-        while (true) {
+        while (session != null) {
             System.out.println("\n---------- Main Menu ----------");
             System.out.println("1. Check Balance");
             System.out.println("2. Deposit Money");
@@ -135,8 +556,18 @@ class ATM {
             System.out.println("5. Exit");
             System.out.print("Choose option: ");
 
+            String input = scanner.nextLine();
+            if (!sessionActive()) {
+                return;
+            }
+            AdmissionControl.Decision decision = ADMISSION.admitRequest(terminalId, currentAccount.getAccountNumber());
+            if (decision != AdmissionControl.Decision.ADMITTED) {
+                System.out.println(decision.getMessage());
+                continue;
+            }
+
             try {
-                int choice = Integer.parseInt(scanner.nextLine());
+                int choice = Integer.parseInt(input);
 
                 switch (choice) {
                     case 1:
@@ -145,14 +576,77 @@ class ATM {
 
                     case 2:
                         System.out.print("Enter amount to deposit: ₹");
-                        double deposit = Double.parseDouble(scanner.nextLine());
-                        currentAccount.deposit(deposit);
+                        String depositInput = scanner.nextLine();
+                        if (!sessionActive()) {
+                            return;
+                        }
+                        double deposit = Double.parseDouble(depositInput);
+                        String depositKey = requestKey("DEPOSIT " + currentAccount.getAccountNumber() + " " + deposit);
+                        if (currentAccount.requestOutcome(depositKey) != IdempotencyCache.MISSING) {
+                            // a repeat of a deposit whose answer was lost: nothing is applied again
+                            requestResolved();
+                            audit(AuditLog.Event.DEPOSIT, deposit, "REPEATED");
+                            System.out.println("This deposit already went through. Balance: ₹" + currentAccount.getBalance());
+                            break;
+                        }
+                        currentAccount.deposit(deposit, depositKey);
+                        requestResolved();
+                        audit(AuditLog.Event.DEPOSIT, deposit, deposit > 0 ? "OK" : "INVALID_AMOUNT");
                         break;
 
                     case 3:
                         System.out.print("Enter amount to withdraw: ₹");
-                        double withdraw = Double.parseDouble(scanner.nextLine());
-                        currentAccount.withdraw(withdraw);
+                        String withdrawInput = scanner.nextLine();
+                        if (!sessionActive()) {
+                            return;
+                        }
+                        double withdraw = Double.parseDouble(withdrawInput);
+                        String withdrawKey = requestKey("WITHDRAWAL " + currentAccount.getAccountNumber() + " " + withdraw);
+                        int earlier = currentAccount.requestOutcome(withdrawKey);
+                        if (earlier != 1 && unresolvedNotes != null) {
+                            // the earlier attempt was never applied: its notes and card limit go back first
+                            dispenser.restore(unresolvedNotes);
+                            currentCardLimit.release(withdraw);
+                            unresolvedNotes = null;
+                        }
+                        // Reserve against the card and claim the notes first, give both back if the account refuses
+                        if (earlier != IdempotencyCache.MISSING) {
+                            // a repeat of a withdrawal whose answer was lost: no new notes are claimed
+                            audit(AuditLog.Event.WITHDRAWAL, withdraw, "REPEATED");
+                            System.out.println(earlier == 1 ? "This withdrawal already went through." : "This withdrawal was declined.");
+                            if (earlier == 1 && unresolvedNotes != null) {
+                                // the notes claimed for it were never handed over
+                                System.out.println("Please collect your cash: " + dispenser.describe(unresolvedNotes));
+                            }
+                            requestResolved();
+                        } else if (withdraw > 0 && !dispenser.isDispensable(withdraw)) {
+                            audit(AuditLog.Event.WITHDRAWAL, withdraw, "NOT_DISPENSABLE");
+                            System.out.println("Amount must be a multiple of ₹" + dispenser.getUnit() + ".");
+                        } else if (withdraw > currentAccount.getBalance()) {
+                            audit(AuditLog.Event.WITHDRAWAL, withdraw, "INSUFFICIENT_FUNDS");
+                            System.out.println("Insufficient balance.");
+                        } else if (withdraw > 0 && !currentCardLimit.tryReserve(withdraw)) {
+                            audit(AuditLog.Event.WITHDRAWAL, withdraw, "CARD_LIMIT");
+                            System.out.println("Daily card limit exceeded. Remaining today: ₹" + currentCardLimit.getRemaining());
+                        } else {
+                            int[] notes = withdraw > 0 ? dispenser.dispense(withdraw) : new int[0];
+                            // kept with the request if the account call fails, so a repeat can settle them
+                            unresolvedNotes = notes;
+                            boolean withdrawn = notes != null && currentAccount.withdraw(withdraw, withdrawKey);
+                            requestResolved();
+                            if (notes == null) {
+                                currentCardLimit.release(withdraw);
+                                audit(AuditLog.Event.WITHDRAWAL, withdraw, "OUT_OF_NOTES");
+                                System.out.println("This ATM cannot dispense that amount right now.");
+                            } else if (withdrawn) {
+                                audit(AuditLog.Event.WITHDRAWAL, withdraw, "OK");
+                                System.out.println("Please collect your cash: " + dispenser.describe(notes));
+                            } else {
+                                dispenser.restore(notes);
+                                currentCardLimit.release(withdraw);
+                                audit(AuditLog.Event.WITHDRAWAL, withdraw, "DECLINED");
+                            }
+                        }
                         break;
 
                     case 4:
@@ -168,6 +662,11 @@ class ATM {
                 }
             } catch (NumberFormatException e) {
                 System.out.println("Invalid input. Please enter a valid number.");
+            } catch (RuntimeException e) {
+                System.out.println("Transaction failed: " + e.getMessage());
+                if (unresolvedRequest != null) {
+                    System.out.println("Repeat the same request to complete or confirm it; it will not be applied twice.");
+                }
             }
         }
     }
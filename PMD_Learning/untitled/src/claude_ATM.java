@@ -1,46 +1,130 @@
 import java.util.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 // Transaction class to record transaction history
 class Transaction {
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
+
     private String type;
     private double amount;
     private double balanceAfter;
-    private LocalDateTime timestamp;
+    private long sequence;
+    private long timestampMillis;
 
     public Transaction(String type, double amount, double balanceAfter) {
         this.type = type;
         this.amount = amount;
         this.balanceAfter = balanceAfter;
-        this.timestamp = LocalDateTime.now();
+        // Cached clock and a global sequence id: no clock call or date object per transaction
+        this.sequence = LedgerClock.nextSequence();
+        this.timestampMillis = LedgerClock.currentTimeMillis();
+    }
+
+    private Transaction(String type, double amount, double balanceAfter, long sequence, long timestampMillis) {
+        this.type = type;
+        this.amount = amount;
+        this.balanceAfter = balanceAfter;
+        this.sequence = sequence;
+        this.timestampMillis = timestampMillis;
+    }
+
+    // Older history pages are archived to disk as delta/varint blocks
+    static final TieredHistory.Codec<Transaction> CODEC = new LedgerBlockCodec<Transaction>() {
+        @Override protected String type(Transaction t) { return t.type; }
+        @Override protected double amount(Transaction t) { return t.amount; }
+        @Override protected double balanceAfter(Transaction t) { return t.balanceAfter; }
+        @Override protected long sequence(Transaction t) { return t.sequence; }
+        @Override protected long timestampMillis(Transaction t) { return t.timestampMillis; }
+
+        @Override
+        protected Transaction create(String type, double amount, double balanceAfter, long sequence, long timestampMillis) {
+            return new Transaction(type, amount, balanceAfter, sequence, timestampMillis);
+        }
+    };
+
+    // A posting read back from the ledger store, with its original sequence and time
+    static Transaction restored(JournalEntry entry) {
+        return new Transaction(entry.getType(), entry.getAmountPaise() / 100.0, entry.getBalanceAfterPaise() / 100.0,
+                entry.getSequence(), entry.getTimestampMillis());
+    }
+
+    // Getters
+    public String getType() {
+        return type;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public double getBalanceAfter() {
+        return balanceAfter;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    // Date object is only built when someone asks for it
+    public LocalDateTime getTimestamp() {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(timestampMillis), ZoneId.systemDefault());
     }
 
     @Override
     public String toString() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
         return String.format("%-12s | ₹%-10.2f | Balance: ₹%-10.2f | %s", 
-                           type, amount, balanceAfter, timestamp.format(formatter));
+                           type, amount, balanceAfter, getTimestamp().format(FORMATTER));
     }
 }
 
 // BankAccount class to manage account details
-class BankAccount {
+class BankAccount implements EndOfDayBatch.Account, LedgerVerifier.Account, LedgerReconciler.Journal,
+        StandingInstructions.Account {
+    static final double DAILY_WITHDRAWAL_LIMIT = 50000.00;
+    private static final IdempotencyCache REQUEST_KEYS = IdempotencyCache.withDefaults();
+    // Every posting on every account, for consumers that follow the whole book
+    private static final LedgerEventPublisher<JournalEntry> LEDGER_EVENTS = new LedgerEventPublisher<>();
+
     private String accountNumber;
     private String holderName;
     private double balance;
     private String pin;
-    private ArrayList<Transaction> transactionHistory;
+    private List<Transaction> transactionHistory;
+    private DailyLimitCounter dailyLimit;
+    private FraudMonitor.AccountState riskState;
+    private LedgerListener ledgerListener;
+    private volatile LedgerEventPublisher<Transaction> events;
+    private SeqlockBalance balanceView;
+    private double openingBalance;
 
     public BankAccount(String accountNumber, String holderName, double balance, String pin) {
         this.accountNumber = accountNumber;
         this.holderName = holderName;
         this.balance = balance;
         this.pin = pin;
-        this.transactionHistory = new ArrayList<>();
+        this.transactionHistory = new TieredHistory<>(Transaction.CODEC); // recent entries on the heap, older pages on disk
+        this.dailyLimit = new DailyLimitCounter(DAILY_WITHDRAWAL_LIMIT);
+        this.balanceView = new SeqlockBalance(balance);
+        this.openingBalance = balance;
     }
 
     // Getters
+    @Override
     public String getAccountNumber() {
         return accountNumber;
     }
@@ -49,8 +133,23 @@ class BankAccount {
         return holderName;
     }
 
+    // Lock-free read; never waits on deposit/withdraw
     public double getBalance() {
-        return balance;
+        return balanceView.getBalance();
+    }
+
+    // Balance together with the posting that produced it, read without the account lock
+    public SeqlockBalance.Snapshot getBalanceSnapshot() {
+        return balanceView.snapshot();
+    }
+
+    // Moves on with every posting; lock-free
+    public long getVersion() {
+        return balanceView.getVersion();
+    }
+
+    public double getRemainingDailyLimit() {
+        return dailyLimit.getRemaining();
     }
 
     // Validate PIN
@@ -58,52 +157,327 @@ class BankAccount {
         return this.pin.equals(enteredPin);
     }
 
+    // Attach the asynchronous fraud scoring stage
+    public void setFraudMonitor(FraudMonitor monitor) {
+        this.riskState = monitor.register(accountNumber);
+    }
+
+    public boolean isHeldForReview() {
+        return riskState != null && riskState.isHeld();
+    }
+
+    // Subscribe to every posting on this account (replication, auditing, ...)
+    public synchronized void addLedgerListener(LedgerListener listener) {
+        ledgerListener = ledgerListener == null ? listener : ledgerListener.andThen(listener);
+    }
+
+    // Live postings on this account, with back-pressure; created on first use
+    public synchronized Flow.Publisher<Transaction> events() {
+        if (events == null) {
+            events = new LedgerEventPublisher<>();
+        }
+        return events;
+    }
+
+    // Live postings on every account
+    public static Flow.Publisher<JournalEntry> ledgerEvents() {
+        return LEDGER_EVENTS;
+    }
+
+    // Stored form for on-disk repositories: number, holder, PIN and balance
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(accountNumber);
+        out.writeUTF(holderName);
+        out.writeUTF(pin);
+        out.writeDouble(getBalance());
+    }
+
+    public static BankAccount readFrom(DataInput in) throws IOException {
+        String accountNumber = in.readUTF();
+        String holderName = in.readUTF();
+        String pin = in.readUTF();
+        return new BankAccount(accountNumber, holderName, in.readDouble(), pin);
+    }
+
+    // Appends one stored posting to the history, oldest first; the first also fixes the opening balance.
+    // Nothing is posted again
+    public synchronized void restorePosting(JournalEntry entry) {
+        if (transactionHistory.isEmpty()) {
+            long amount = isDebit(entry.getType()) ? -entry.getAmountPaise() : entry.getAmountPaise();
+            openingBalance = (entry.getBalanceAfterPaise() - amount) / 100.0;
+        }
+        transactionHistory.add(Transaction.restored(entry));
+    }
+
+    // Whether a row of this type takes money out, for history restore and the ledger audit
+    @Override
+    public boolean isDebit(String type) {
+        return type.equals("WITHDRAWAL") || type.equals("FEE") || type.equals("STANDING DEBIT");
+    }
+
+    // Appends to history and notifies the ledger listener, still under the account lock
+    private void record(String type, double amount) {
+        Transaction transaction = new Transaction(type, amount, balance);
+        transactionHistory.add(transaction);
+        long now = transaction.getTimestampMillis();
+        balanceView.publish(balance, type, amount, now);
+        if (ledgerListener != null) {
+            ledgerListener.onPosted(transaction.getSequence(), accountNumber, type, amount, balance, now);
+        }
+        LedgerEventPublisher<Transaction> publisher = events;
+        if (publisher != null) {
+            publisher.offer(transaction);
+        }
+        if (LEDGER_EVENTS.hasSubscribers()) {
+            LEDGER_EVENTS.offer(new JournalEntry(transaction.getSequence(), accountNumber, type,
+                    Math.round(amount * 100), Math.round(balance * 100), now));
+        }
+    }
+
     // Deposit money
-    public boolean deposit(double amount) {
+    public synchronized boolean deposit(double amount) {
         if (amount <= 0) {
             return false;
         }
         balance += amount;
-        transactionHistory.add(new Transaction("DEPOSIT", amount, balance));
+        record("DEPOSIT", amount);
+        if (riskState != null) {
+            riskState.record(FraudMonitor.DEPOSIT, amount);
+        }
         return true;
     }
 
     // Withdraw money
-    public boolean withdraw(double amount) {
+    public synchronized boolean withdraw(double amount) {
         if (amount <= 0) {
             return false;
         }
         if (amount > balance) {
             return false;
         }
+        if (riskState != null && !riskState.screenWithdrawal(amount)) {
+            return false;
+        }
+        if (!dailyLimit.tryReserve(amount)) {
+            return false;
+        }
+        balance -= amount;
+        record("WITHDRAWAL", amount);
+        if (riskState != null) {
+            riskState.record(FraudMonitor.WITHDRAWAL, amount);
+        }
+        return true;
+    }
+
+    // Outcome remembered for an idempotency key (1 applied, 0 declined), or IdempotencyCache.MISSING
+    public int requestOutcome(String idempotencyKey) {
+        return REQUEST_KEYS.lookup(accountNumber, idempotencyKey);
+    }
+
+    // Deposit applied at most once per idempotency key; a retry gets the original result
+    public synchronized boolean deposit(double amount, String idempotencyKey) {
+        int seen = REQUEST_KEYS.lookup(accountNumber, idempotencyKey);
+        if (seen != IdempotencyCache.MISSING) {
+            return seen == 1;
+        }
+        boolean done = deposit(amount);
+        REQUEST_KEYS.remember(accountNumber, idempotencyKey, done ? 1 : 0);
+        return done;
+    }
+
+    // Withdrawal applied at most once per idempotency key; a retry gets the original result
+    public synchronized boolean withdraw(double amount, String idempotencyKey) {
+        int seen = REQUEST_KEYS.lookup(accountNumber, idempotencyKey);
+        if (seen != IdempotencyCache.MISSING) {
+            return seen == 1;
+        }
+        boolean done = withdraw(amount);
+        REQUEST_KEYS.remember(accountNumber, idempotencyKey, done ? 1 : 0);
+        return done;
+    }
+
+    // Credit end-of-day interest
+    @Override
+    public synchronized void creditInterest(double amount) {
+        if (amount <= 0) {
+            return;
+        }
+        balance += amount;
+        record("INTEREST", amount);
+    }
+
+    // Charge maintenance fee, never below zero balance
+    @Override
+    public synchronized double chargeFee(double amount) {
+        double charged = Math.min(amount, balance);
+        if (charged <= 0) {
+            return 0;
+        }
+        balance -= charged;
+        record("FEE", charged);
+        return charged;
+    }
+
+    // Scheduled credit from a standing instruction
+    @Override
+    public synchronized void creditStanding(double amount) {
+        if (amount <= 0) {
+            return;
+        }
+        balance += amount;
+        record("STANDING CREDIT", amount);
+    }
+
+    // Scheduled debit, all or nothing; the cash withdrawal limits do not apply
+    @Override
+    public synchronized boolean debitStanding(double amount) {
+        if (amount <= 0 || amount > balance) {
+            return false;
+        }
         balance -= amount;
-        transactionHistory.add(new Transaction("WITHDRAWAL", amount, balance));
+        record("STANDING DEBIT", amount);
         return true;
     }
 
     // Get transaction history
-    public ArrayList<Transaction> getTransactionHistory() {
+    public List<Transaction> getTransactionHistory() {
         return transactionHistory;
     }
+
+    // Balance before the first history row, for the ledger audit
+    @Override
+    public double getOpeningBalance() {
+        return openingBalance;
+    }
+
+    @Override
+    public synchronized int getTransactionCount() {
+        return transactionHistory.size();
+    }
+
+    // Stream history to a statement exporter, one chunk at a time
+    @Override
+    public synchronized int exportTransactions(int from, int max, StatementExporter.RowSink sink) {
+        int to = Math.min(transactionHistory.size(), from + max);
+        for (int i = from; i < to; i++) {
+            Transaction t = transactionHistory.get(i);
+            sink.row(t.getTimestampMillis(), t.getType(), t.getAmount(), t.getBalanceAfter());
+        }
+        return Math.max(0, to - from);
+    }
+
+    // Postings with their sequence ids, for reconciliation against the switch
+    @Override
+    public synchronized int exportJournal(int from, int max, LedgerReconciler.JournalSink sink) {
+        int to = Math.min(transactionHistory.size(), from + max);
+        for (int i = from; i < to; i++) {
+            Transaction t = transactionHistory.get(i);
+            sink.posting(t.getSequence(), t.getTimestampMillis(), t.getType(), t.getAmount());
+        }
+        return Math.max(0, to - from);
+    }
 }
 
 // ATM class to handle user interaction
 class ATM {
-    private HashMap<String, BankAccount> accounts;
+    private static final double CARD_DAILY_LIMIT = 20000.00;
+    private static final double ANNUAL_INTEREST_RATE = 0.035;
+    private static final double MINIMUM_BALANCE = 1000.00;
+    private static final double MAINTENANCE_FEE = 5.00;
+    // One scoring stage per process, shared by every terminal instance
+    private static final FraudMonitor FRAUD_MONITOR = FraudMonitor.withDefaults();
+    // Idle logins time out on one process-wide timing wheel
+    private static final SessionManager SESSIONS = SessionManager.withDefaults();
+    // Rate limits per terminal and per account, and the node's session cap
+    private static final AdmissionControl ADMISSION = AdmissionControl.withDefaults();
+    // Logins and money movements, written off the customer path
+    private static final AuditLog AUDIT = AuditLog.withDefaults();
+    private static final int HOT_ACCOUNTS = 10000;
+
+    private final AccountRepository<BankAccount> accounts;
+    private volatile ReplicationPrimary replication;
+    private StandingInstructions standing;
+    private Map<String, DailyLimitCounter> cardLimits;
     private BankAccount currentAccount;
+    private DailyLimitCounter currentCardLimit;
+    private volatile SessionManager.Session session;
+    private AdmissionControl.Permit admission;
+    private final String terminalId = AdmissionControl.nextTerminalId();
+    private long requestSequence;
+    // a request whose outcome never came back, kept until it is repeated, with the notes claimed for it
+    private String unresolvedRequest;
+    private String unresolvedKey;
+    private int[] unresolvedNotes;
+    private final CashDispenser dispenser;
+    private final StatementCache statements;
+    private final BalanceIndex balanceIndex;
     private Scanner scanner;
 
     public ATM() {
-        accounts = new HashMap<>();
+        balanceIndex = new BalanceIndex();
+        accounts = openRepository();
+        cardLimits = new ConcurrentHashMap<>();
+        dispenser = CashDispenser.withDefaults();
+        statements = StatementCache.withDefaults();
         scanner = new Scanner(System.in);
         initializeAccounts();
+        if (accounts instanceof FileLedgerStore) {
+            standingInstructions(); // re-arm the stored EMIs and SIPs
+        }
+        startReplicationIfConfigured();
+    }
+
+    // Accounts live on the heap unless -Datm.store.dir=<dir> points at an on-disk store
+    private AccountRepository<BankAccount> openRepository() {
+        String dir = System.getProperty("atm.store.dir");
+        if (dir != null) {
+            try {
+                FileLedgerStore<BankAccount> store = new FileLedgerStore<>(Paths.get(dir),
+                        AccountRepository.Codec.of(BankAccount::getAccountNumber, BankAccount::writeTo,
+                                in -> load(BankAccount.readFrom(in))),
+                        HOT_ACCOUNTS, Boolean.getBoolean("atm.store.force"));
+                // the whole book is indexed up front, not account by account as sessions load them
+                store.forEachStored(BankAccount::readFrom, BankAccount::getBalance, balanceIndex::track);
+                return store;
+            } catch (IOException e) {
+                System.err.println("Account store unavailable, keeping accounts in memory: " + e.getMessage());
+            }
+        }
+        return new InMemoryAccountRepository<>(BankAccount::getAccountNumber);
     }
 
-    // Initialize some sample accounts
+    // Initialize some sample accounts; accounts already in the store are kept as they are
     private void initializeAccounts() {
-        accounts.put("12345", new BankAccount("12345", "John Doe", 10000.00, "1234"));
-        accounts.put("67890", new BankAccount("67890", "Jane Smith", 25000.00, "5678"));
-        accounts.put("11111", new BankAccount("11111", "Bob Johnson", 5000.00, "9999"));
+        accounts.insert(prepare(new BankAccount("12345", "John Doe", 10000.00, "1234")));
+        accounts.insert(prepare(new BankAccount("67890", "Jane Smith", 25000.00, "5678")));
+        accounts.insert(prepare(new BankAccount("11111", "Bob Johnson", 5000.00, "9999")));
+    }
+
+    // A stored account gets its postings back as history, then is wired up like a seeded one
+    private BankAccount load(BankAccount account) throws IOException {
+        if (accounts instanceof TransactionRepository) {
+            TransactionRepository store = (TransactionRepository) accounts;
+            store.replay(account.getAccountNumber(), account::restorePosting);
+        }
+        return prepare(account);
+    }
+
+    // Every account, seeded or loaded from disk, posts to the store, the balance index and the replication stream
+    private BankAccount prepare(BankAccount account) {
+        account.setFraudMonitor(FRAUD_MONITOR);
+        balanceIndex.track(account.getAccountNumber(), account.getBalance());
+        account.addLedgerListener(accounts);
+        account.addLedgerListener(balanceIndex);
+        account.addLedgerListener(this::replicate);
+        return account;
+    }
+
+    private void replicate(long sequence, String accountNumber, String type, double amount, double balanceAfter,
+                           long timestampMillis) {
+        ReplicationPrimary primary = replication;
+        if (primary != null) {
+            primary.onPosted(sequence, accountNumber, type, amount, balanceAfter, timestampMillis);
+        }
     }
 
     // Start the ATM system
@@ -114,7 +488,12 @@ class ATM {
         System.out.println();
 
         if (authenticateUser()) {
-            showMainMenu();
+            // the admission slot goes back however the menu ends, end of input included
+            try {
+                showMainMenu();
+            } finally {
+                endSession();
+            }
         } else {
             System.out.println("\n❌ Too many failed attempts. Your card has been blocked.");
             System.out.println("Please contact your bank for assistance.");
@@ -135,15 +514,29 @@ class ATM {
                 System.out.print("Enter PIN: ");
                 String pin = scanner.nextLine().trim();
 
-                if (accounts.containsKey(accountNumber)) {
-                    BankAccount account = accounts.get(accountNumber);
+                // refused attempts are not counted against the customer
+                AdmissionControl.Decision decision = ADMISSION.admitLogin(terminalId, accountNumber);
+                if (decision != AdmissionControl.Decision.ADMITTED) {
+                    AUDIT.record(AuditLog.Event.LOGIN, terminalId, accountNumber, Double.NaN, decision.name());
+                    System.out.println("\n⏳ " + decision.getMessage());
+                    continue;
+                }
+
+                BankAccount account = accounts.find(accountNumber);
+                if (account != null) {
                     if (account.validatePin(pin)) {
                         currentAccount = account;
+                        currentCardLimit = cardLimits.computeIfAbsent(accountNumber, card -> new DailyLimitCounter(CARD_DAILY_LIMIT));
+                        session = SESSIONS.open(accountNumber, this::sessionExpired);
+                        admission = ADMISSION.openSession();
+                        AUDIT.record(AuditLog.Event.LOGIN, terminalId, accountNumber, Double.NaN, "OK");
                         System.out.println("\n✓ Authentication Successful!");
                         System.out.println("Welcome, " + currentAccount.getHolderName() + "!\n");
                         return true;
                     }
                 }
+                AUDIT.record(AuditLog.Event.LOGIN, terminalId, accountNumber, Double.NaN,
+                        account == null ? "UNKNOWN_ACCOUNT" : "BAD_PIN");
 
                 attempts--;
                 if (attempts > 0) {
@@ -166,7 +559,7 @@ class ATM {
     private void showMainMenu() {
         boolean running = true;
 
-        while (running) {
+        while (running && session != null) {
             try {
                 System.out.println("\n┌────────────────────────────────┐");
                 System.out.println("│          MAIN MENU             │");
@@ -179,7 +572,16 @@ class ATM {
                 System.out.println("└────────────────────────────────┘");
                 System.out.print("\nChoose option: ");
 
-                int choice = Integer.parseInt(scanner.nextLine().trim());
+                String input = scanner.nextLine().trim();
+                if (!sessionActive()) {
+                    break;
+                }
+                AdmissionControl.Decision decision = ADMISSION.admitRequest(terminalId, currentAccount.getAccountNumber());
+                if (decision != AdmissionControl.Decision.ADMITTED) {
+                    System.out.println("\n⏳ " + decision.getMessage());
+                    continue;
+                }
+                int choice = Integer.parseInt(input);
 
                 switch (choice) {
                     case 1:
@@ -207,12 +609,51 @@ class ATM {
 
             } catch (NumberFormatException e) {
                 System.out.println("\n❌ Invalid input. Please enter a number.");
+            } catch (NoSuchElementException e) {
+                // end of input: nobody is left at the terminal
+                running = false;
             } catch (Exception e) {
                 System.out.println("\n❌ An error occurred: " + e.getMessage());
             }
         }
     }
 
+    // Log out: stop tracking the session and drop the authenticated account
+    private synchronized void endSession() {
+        if (currentAccount != null) {
+            AUDIT.record(AuditLog.Event.LOGOUT, terminalId, currentAccount.getAccountNumber(), Double.NaN,
+                    session != null && !session.isActive() ? "TIMED_OUT" : "OK");
+        }
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (admission != null) {
+            admission.close();
+            admission = null;
+        }
+        currentAccount = null;
+        currentCardLimit = null;
+    }
+
+    // Runs on the session wheel when the login times out, so an unattended terminal is logged out
+    // at once; a callback left over from an earlier login finds its session gone
+    private synchronized void sessionExpired() {
+        if (session != null && !session.isActive()) {
+            endSession();
+        }
+    }
+
+    // Checked after every prompt, so input that arrives after the idle timeout is not acted on
+    private boolean sessionActive() {
+        SessionManager.Session current = session;
+        if (current != null && current.touch()) {
+            return true;
+        }
+        System.out.println("\n⌛ Session timed out. Please log in again.");
+        return false;
+    }
+
     // Check balance
     private void checkBalance() {
         System.out.println("\n═══════════════════════════════════");
@@ -220,7 +661,11 @@ class ATM {
         System.out.println("═══════════════════════════════════");
         System.out.printf("Account Number: %s%n", currentAccount.getAccountNumber());
         System.out.printf("Account Holder: %s%n", currentAccount.getHolderName());
-        System.out.printf("Current Balance: ₹%.2f%n", currentAccount.getBalance());
+        SeqlockBalance.Snapshot snapshot = currentAccount.getBalanceSnapshot();
+        System.out.printf("Current Balance: ₹%.2f%n", snapshot.getBalance());
+        if (snapshot.getLastType() != null) {
+            System.out.printf("Last Transaction: %s ₹%.2f%n", snapshot.getLastType(), snapshot.getLastAmount());
+        }
         System.out.println("═══════════════════════════════════");
     }
 
@@ -232,20 +677,41 @@ class ATM {
 
         try {
             System.out.print("Enter amount to deposit: ₹");
-            double amount = Double.parseDouble(scanner.nextLine().trim());
-
-            if (currentAccount.deposit(amount)) {
-                System.out.println("\n✓ Deposit Successful!");
-                System.out.printf("Deposited: ₹%.2f%n", amount);
-                System.out.printf("New Balance: ₹%.2f%n", currentAccount.getBalance());
+            String input = scanner.nextLine().trim();
+            if (!sessionActive()) {
+                return;
+            }
+            double amount = Double.parseDouble(input);
+
+            String key = requestKey("DEPOSIT " + currentAccount.getAccountNumber() + " " + amount);
+            int earlier = currentAccount.requestOutcome(key);
+            if (earlier != IdempotencyCache.MISSING) {
+                // a repeat of a deposit whose answer was lost: report it, apply nothing
+                requestResolved();
+                AUDIT.record(AuditLog.Event.DEPOSIT, terminalId, currentAccount.getAccountNumber(), amount, "REPEATED");
+                System.out.println(earlier == 1 ? "\n✓ This deposit already went through." : "\n❌ This deposit was declined.");
+                System.out.printf("Balance: ₹%.2f%n", currentAccount.getBalance());
             } else {
-                System.out.println("\n❌ Invalid amount. Amount must be positive.");
+                boolean deposited = currentAccount.deposit(amount, key);
+                requestResolved();
+                AUDIT.record(AuditLog.Event.DEPOSIT, terminalId, currentAccount.getAccountNumber(), amount,
+                        deposited ? "OK" : "INVALID_AMOUNT");
+                if (deposited) {
+                    System.out.println("\n✓ Deposit Successful!");
+                    System.out.printf("Deposited: ₹%.2f%n", amount);
+                    System.out.printf("New Balance: ₹%.2f%n", currentAccount.getBalance());
+                } else {
+                    System.out.println("\n❌ Invalid amount. Amount must be positive.");
+                }
             }
 
         } catch (NumberFormatException e) {
             System.out.println("\n❌ Invalid input. Please enter a valid number.");
         } catch (Exception e) {
             System.out.println("\n❌ Transaction failed: " + e.getMessage());
+            if (unresolvedRequest != null) {
+                System.out.println("Repeat the same request to complete or confirm it; it will not be applied twice.");
+            }
         }
 
         System.out.println("═══════════════════════════════════");
@@ -260,54 +726,246 @@ class ATM {
 
         try {
             System.out.print("Enter amount to withdraw: ₹");
-            double amount = Double.parseDouble(scanner.nextLine().trim());
+            String input = scanner.nextLine().trim();
+            if (!sessionActive()) {
+                return;
+            }
+            double amount = Double.parseDouble(input);
+
+            String key = requestKey("WITHDRAWAL " + currentAccount.getAccountNumber() + " " + amount);
+            int earlier = currentAccount.requestOutcome(key);
+            if (earlier != 1 && unresolvedNotes != null) {
+                // the earlier attempt was never applied: its notes and card limit go back first
+                dispenser.restore(unresolvedNotes);
+                currentCardLimit.release(amount);
+                unresolvedNotes = null;
+            }
 
-            if (amount <= 0) {
+            if (earlier != IdempotencyCache.MISSING) {
+                // a repeat of a withdrawal whose answer was lost: report it, reserve and dispense nothing new
+                auditWithdrawal(amount, "REPEATED");
+                System.out.println(earlier == 1 ? "\n✓ This withdrawal already went through." : "\n❌ This withdrawal was declined.");
+                if (earlier == 1 && unresolvedNotes != null) {
+                    // the notes claimed for it were never handed over
+                    System.out.println("Please collect your cash: " + dispenser.describe(unresolvedNotes));
+                }
+                requestResolved();
+                System.out.printf("Balance: ₹%.2f%n", currentAccount.getBalance());
+            } else if (amount <= 0) {
+                auditWithdrawal(amount, "INVALID_AMOUNT");
                 System.out.println("\n❌ Invalid amount. Amount must be positive.");
             } else if (amount > currentAccount.getBalance()) {
+                auditWithdrawal(amount, "INSUFFICIENT_FUNDS");
                 System.out.println("\n❌ Insufficient balance!");
                 System.out.printf("Available Balance: ₹%.2f%n", currentAccount.getBalance());
-            } else if (currentAccount.withdraw(amount)) {
-                System.out.println("\n✓ Withdrawal Successful!");
-                System.out.printf("Withdrawn: ₹%.2f%n", amount);
-                System.out.printf("New Balance: ₹%.2f%n", currentAccount.getBalance());
+            } else if (!dispenser.isDispensable(amount)) {
+                auditWithdrawal(amount, "NOT_DISPENSABLE");
+                System.out.printf("\n❌ Amount must be a multiple of ₹%d.%n", dispenser.getUnit());
+            } else if (!currentCardLimit.tryReserve(amount)) {
+                auditWithdrawal(amount, "CARD_LIMIT");
+                System.out.println("\n❌ Daily card withdrawal limit exceeded!");
+                System.out.printf("Remaining Card Limit Today: ₹%.2f%n", currentCardLimit.getRemaining());
+            } else {
+                // Claim the notes before touching the account; both go back if the account refuses
+                int[] notes = dispenser.dispense(amount);
+                // kept with the request if the account call fails, so a repeat can settle them
+                unresolvedNotes = notes;
+                boolean withdrawn = notes != null && currentAccount.withdraw(amount, key);
+                requestResolved();
+                if (notes == null) {
+                    currentCardLimit.release(amount);
+                    auditWithdrawal(amount, "OUT_OF_NOTES");
+                    System.out.println("\n❌ This ATM cannot dispense that amount right now. Please try a smaller amount.");
+                } else if (withdrawn) {
+                    auditWithdrawal(amount, "OK");
+                    System.out.println("\n✓ Withdrawal Successful!");
+                    System.out.printf("Withdrawn: ₹%.2f (%s)%n", amount, dispenser.describe(notes));
+                    System.out.printf("New Balance: ₹%.2f%n", currentAccount.getBalance());
+                } else if (currentAccount.isHeldForReview()) {
+                    dispenser.restore(notes);
+                    currentCardLimit.release(amount);
+                    auditWithdrawal(amount, "HELD");
+                    System.out.println("\n❌ Withdrawal held for review. Please contact your bank.");
+                } else {
+                    dispenser.restore(notes);
+                    currentCardLimit.release(amount);
+                    auditWithdrawal(amount, "DECLINED");
+                    System.out.println("\n❌ Withdrawal declined. Daily account limit reached or balance changed.");
+                    System.out.printf("Remaining Account Limit Today: ₹%.2f%n", currentAccount.getRemainingDailyLimit());
+                }
             }
 
         } catch (NumberFormatException e) {
             System.out.println("\n❌ Invalid input. Please enter a valid number.");
         } catch (Exception e) {
             System.out.println("\n❌ Transaction failed: " + e.getMessage());
+            if (unresolvedRequest != null) {
+                System.out.println("Repeat the same request to complete or confirm it; it will not be applied twice.");
+            }
         }
 
         System.out.println("═══════════════════════════════════");
     }
 
-    // View transaction history
+    private void auditWithdrawal(double amount, String outcome) {
+        AUDIT.record(AuditLog.Event.WITHDRAWAL, terminalId, currentAccount.getAccountNumber(), amount, outcome);
+    }
+
+    // Each customer request gets its own idempotency key. A request whose outcome never came back
+    // (the account call failed) keeps its key, so repeating the same request cannot apply it twice
+    private String requestKey(String request) {
+        if (!request.equals(unresolvedRequest)) {
+            unresolvedRequest = request;
+            unresolvedKey = terminalId + "-" + (++requestSequence);
+            unresolvedNotes = null;
+        }
+        return unresolvedKey;
+    }
+
+    // The account answered, so the next request gets a fresh key
+    private void requestResolved() {
+        unresolvedRequest = null;
+        unresolvedKey = null;
+        unresolvedNotes = null;
+    }
+
+    // Run end-of-day interest and fee batch over all accounts
+    public EndOfDayBatch.Summary runEndOfDay() {
+        return EndOfDayBatch.withDefaults(ANNUAL_INTEREST_RATE, MINIMUM_BALANCE, MAINTENANCE_FEE)
+                .run(accounts.all());
+    }
+
+    // Recurring debits, credits and transfers (EMIs, SIPs, bills), fired in batches by one scheduler thread;
+    // kept in the store directory when there is one
+    public synchronized StandingInstructions standingInstructions() {
+        if (standing == null) {
+            if (accounts instanceof FileLedgerStore) {
+                Path file = ((FileLedgerStore<?>) accounts).getDirectory().resolve("instructions.dat");
+                try {
+                    standing = StandingInstructions.open(accounts::find, file);
+                } catch (IOException e) {
+                    System.err.println("Standing instructions not restored from " + file + ": " + e.getMessage());
+                }
+            }
+            if (standing == null) {
+                standing = StandingInstructions.withDefaults(accounts::find);
+            }
+        }
+        return standing;
+    }
+
+    // Audit every account's journal against its balance, e.g. after the nightly batch
+    public LedgerVerifier.Report verifyLedger() {
+        return LedgerVerifier.withDefaults().verify(accounts.all());
+    }
+
+    // Operational queries, answered from the balance index instead of scanning every account
+    public List<BalanceIndex.Entry> largestBalances(int n) {
+        return balanceIndex.largest(n);
+    }
+
+    public List<BalanceIndex.Entry> accountsBelowMinimumBalance(int limit) {
+        return balanceIndex.below(MINIMUM_BALANCE, limit);
+    }
+
+    public List<BalanceIndex.Entry> dormantAccounts(long idleMillis, int limit) {
+        return balanceIndex.inactiveSince(LedgerClock.currentTimeMillis() - idleMillis, limit);
+    }
+
+    // Event streams for notifications, statements and analytics
+    public Flow.Publisher<Transaction> accountEvents(String accountNumber) {
+        BankAccount account = accounts.find(accountNumber);
+        if (account == null) {
+            throw new IllegalArgumentException("Unknown account: " + accountNumber);
+        }
+        return account.events();
+    }
+
+    public Flow.Publisher<JournalEntry> ledgerEvents() {
+        return BankAccount.ledgerEvents();
+    }
+
+    // Stream the transaction journal to follower processes
+    public ReplicationPrimary startReplicationPrimary(int port) throws IOException {
+        ReplicationPrimary primary = new ReplicationPrimary(port,
+                ReplicationPrimary.snapshotOf(accounts.all(), BankAccount::getAccountNumber, BankAccount::writeTo,
+                        accounts instanceof TransactionRepository ? (TransactionRepository) accounts : null));
+        replication = primary;
+        return primary;
+    }
+
+    // Primary/follower mode is switched on with -Datm.replication.port=<port>
+    private void startReplicationIfConfigured() {
+        String port = System.getProperty("atm.replication.port");
+        if (port != null) {
+            try {
+                startReplicationPrimary(Integer.parseInt(port));
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Replication disabled: " + e.getMessage());
+            }
+        }
+    }
+
+    // Export statements (gzip CSV or binary) without loading history into memory
+    public long exportStatement(String accountNumber, Path file, StatementExporter.Format format) throws IOException {
+        BankAccount account = accounts.find(accountNumber);
+        if (account == null) {
+            throw new IllegalArgumentException("Unknown account: " + accountNumber);
+        }
+        try (StatementExporter exporter = StatementExporter.open(file, format)) {
+            return exporter.export(account);
+        }
+    }
+
+    public long exportAllStatements(Path file, StatementExporter.Format format) throws IOException {
+        try (StatementExporter exporter = StatementExporter.open(file, format)) {
+            return exporter.exportAll(accounts.all());
+        }
+    }
+
+    // End-of-day reconciliation of deposits and withdrawals against the switch's settlement file
+    public LedgerReconciler.Report reconcile(Path settlementFile, Path mismatchFile, long fromMillis, long toMillis)
+            throws IOException {
+        LedgerReconciler reconciler = LedgerReconciler.withDefaults();
+        if (accounts instanceof TransactionRepository) {
+            // straight off the store's transaction log, without loading the accounts
+            return reconciler.reconcile((TransactionRepository) accounts, settlementFile, mismatchFile, fromMillis, toMillis);
+        }
+        return reconciler.reconcile(accounts.all(), settlementFile, mismatchFile, fromMillis, toMillis);
+    }
+
+    // View transaction history; rendered once per posting and replayed from the statement cache
     private void viewTransactionHistory() {
-        System.out.println("\n═══════════════════════════════════════════════════════════════════════════");
-        System.out.println("                            TRANSACTION HISTORY");
-        System.out.println("═══════════════════════════════════════════════════════════════════════════");
+        BankAccount account = currentAccount;
+        statements.write(account.getAccountNumber(), account, account.getVersion(),
+                out -> renderTransactionHistory(account, out), System.out);
+    }
+
+    private static void renderTransactionHistory(BankAccount account, PrintStream out) {
+        out.println("\n═══════════════════════════════════════════════════════════════════════════");
+        out.println("                            TRANSACTION HISTORY");
+        out.println("═══════════════════════════════════════════════════════════════════════════");
 
-        ArrayList<Transaction> history = currentAccount.getTransactionHistory();
+        List<Transaction> history = account.getTransactionHistory();
 
         if (history.isEmpty()) {
-            System.out.println("No transactions found.");
+            out.println("No transactions found.");
         } else {
-            System.out.println("Type         | Amount       | Balance After  | Date & Time");
-            System.out.println("─────────────────────────────────────────────────────────────────────────");
+            out.println("Type         | Amount       | Balance After  | Date & Time");
+            out.println("─────────────────────────────────────────────────────────────────────────");
             
             // Display last 10 transactions
             int start = Math.max(0, history.size() - 10);
             for (int i = start; i < history.size(); i++) {
-                System.out.println(history.get(i));
+                out.println(history.get(i));
             }
 
             if (history.size() > 10) {
-                System.out.println("\n(Showing last 10 transactions)");
+                out.println("\n(Showing last 10 transactions)");
             }
         }
 
-        System.out.println("═══════════════════════════════════════════════════════════════════════════");
+        out.println("═══════════════════════════════════════════════════════════════════════════");
     }
 }
 
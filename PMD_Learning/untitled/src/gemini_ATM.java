@@ -1,7 +1,14 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Scanner;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.Collections;
 import java.util.List;
 
 // --- 1. Transaction Class (Encapsulation) ---
@@ -9,13 +16,44 @@ class Transaction {
     private final String type;
     private final double amount;
     private final double newBalance;
+    private final long sequence;
     private final long timestamp;
 
     public Transaction(String type, double amount, double newBalance) {
         this.type = type;
         this.amount = amount;
         this.newBalance = newBalance;
-        this.timestamp = System.currentTimeMillis();
+        // Cached clock and a global sequence id instead of a clock call per transaction
+        this.sequence = LedgerClock.nextSequence();
+        this.timestamp = LedgerClock.currentTimeMillis();
+    }
+
+    private Transaction(String type, double amount, double newBalance, long sequence, long timestamp) {
+        this.type = type;
+        this.amount = amount;
+        this.newBalance = newBalance;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+    }
+
+    // Older history pages spill to disk in the compact delta/varint block format
+    static final TieredHistory.Codec<Transaction> CODEC = new LedgerBlockCodec<Transaction>() {
+        @Override protected String type(Transaction t) { return t.type; }
+        @Override protected double amount(Transaction t) { return t.amount; }
+        @Override protected double balanceAfter(Transaction t) { return t.newBalance; }
+        @Override protected long sequence(Transaction t) { return t.sequence; }
+        @Override protected long timestampMillis(Transaction t) { return t.timestamp; }
+
+        @Override
+        protected Transaction create(String type, double amount, double balanceAfter, long sequence, long timestampMillis) {
+            return new Transaction(type, amount, balanceAfter, sequence, timestampMillis);
+        }
+    };
+
+    // A posting read back from the ledger store, with its original sequence and time
+    static Transaction restored(JournalEntry entry) {
+        return new Transaction(entry.getType(), entry.getAmountPaise() / 100.0, entry.getBalanceAfterPaise() / 100.0,
+                entry.getSequence(), entry.getTimestampMillis());
     }
 
     @Override
@@ -25,31 +63,78 @@ class Transaction {
             timestamp, timestamp, timestamp, type, amount, newBalance
         );
     }
+
+    // Getters used by statement export
+    public String getType() {
+        return type;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public double getNewBalance() {
+        return newBalance;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
 }
 
 // --- 2. BankAccount Class (Encapsulation & Core Logic) ---
-class BankAccount {
+class BankAccount implements EndOfDayBatch.Account, LedgerVerifier.Account, LedgerReconciler.Journal,
+        StandingInstructions.Account {
+    static final double DAILY_WITHDRAWAL_LIMIT = 50000.00;
+    private static final IdempotencyCache REQUEST_KEYS = IdempotencyCache.withDefaults();
+    // Every posting on every account, for consumers that follow the whole book
+    private static final LedgerEventPublisher<JournalEntry> LEDGER_EVENTS = new LedgerEventPublisher<>();
+
     private final String accountNumber;
     private final String accountHolderName;
     private final String pin;
     private double balance;
     private final List<Transaction> transactionHistory;
+    private final DailyLimitCounter dailyLimit;
+    private FraudMonitor.AccountState riskState;
+    private LedgerListener ledgerListener;
+    private volatile LedgerEventPublisher<Transaction> events;
+    private final SeqlockBalance balanceView;
+    private double openingBalance;
 
     public BankAccount(String accountNumber, String accountHolderName, String pin, double initialBalance) {
         this.accountNumber = accountNumber;
         this.accountHolderName = accountHolderName;
         this.pin = pin;
         this.balance = initialBalance;
-        this.transactionHistory = new ArrayList<>();
+        this.transactionHistory = new TieredHistory<>(Transaction.CODEC);
+        this.dailyLimit = new DailyLimitCounter(DAILY_WITHDRAWAL_LIMIT);
+        this.balanceView = new SeqlockBalance(initialBalance);
+        this.openingBalance = initialBalance;
     }
 
     // Getters for Abstraction and controlled access
+    @Override
     public String getAccountNumber() {
         return accountNumber;
     }
 
+    // Lock-free read; never waits on deposit/withdraw
     public double getBalance() {
-        return balance;
+        return balanceView.getBalance();
+    }
+
+    public SeqlockBalance.Snapshot getBalanceSnapshot() {
+        return balanceView.snapshot();
+    }
+
+    // Moves on with every posting; lock-free
+    public long getVersion() {
+        return balanceView.getVersion();
     }
     
     // Core Methods
@@ -57,49 +142,322 @@ class BankAccount {
         return this.pin.equals(inputPin);
     }
 
-    public void deposit(double amount) {
+    // Attach the asynchronous fraud scoring stage
+    public void setFraudMonitor(FraudMonitor monitor) {
+        this.riskState = monitor.register(accountNumber);
+    }
+
+    public boolean isHeldForReview() {
+        return riskState != null && riskState.isHeld();
+    }
+
+    // Subscribe to every posting on this account (replication, auditing, ...)
+    public synchronized void addLedgerListener(LedgerListener listener) {
+        ledgerListener = ledgerListener == null ? listener : ledgerListener.andThen(listener);
+    }
+
+    // Live postings on this account, with back-pressure; created on first use
+    public synchronized Flow.Publisher<Transaction> events() {
+        if (events == null) {
+            events = new LedgerEventPublisher<>();
+        }
+        return events;
+    }
+
+    // Live postings on every account
+    public static Flow.Publisher<JournalEntry> ledgerEvents() {
+        return LEDGER_EVENTS;
+    }
+
+    // Stored form for on-disk repositories: number, holder, PIN and balance
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(accountNumber);
+        out.writeUTF(accountHolderName);
+        out.writeUTF(pin);
+        out.writeDouble(getBalance());
+    }
+
+    public static BankAccount readFrom(DataInput in) throws IOException {
+        String accountNumber = in.readUTF();
+        String accountHolderName = in.readUTF();
+        String pin = in.readUTF();
+        return new BankAccount(accountNumber, accountHolderName, pin, in.readDouble());
+    }
+
+    // Appends one stored posting to the history, oldest first; the first also fixes the opening balance.
+    // Nothing is posted again
+    public synchronized void restorePosting(JournalEntry entry) {
+        if (transactionHistory.isEmpty()) {
+            long amount = isDebit(entry.getType()) ? -entry.getAmountPaise() : entry.getAmountPaise();
+            openingBalance = (entry.getBalanceAfterPaise() - amount) / 100.0;
+        }
+        transactionHistory.add(Transaction.restored(entry));
+    }
+
+    // Whether a row of this type takes money out, for history restore and the ledger audit
+    @Override
+    public boolean isDebit(String type) {
+        return type.equals("Withdrawal") || type.equals("Maintenance Fee") || type.equals("Standing Debit");
+    }
+
+    // Appends to history and notifies the ledger listener, still under the account lock
+    private void record(String type, double amount) {
+        Transaction transaction = new Transaction(type, amount, balance);
+        transactionHistory.add(transaction);
+        long now = transaction.getTimestamp();
+        balanceView.publish(balance, type, amount, now);
+        if (ledgerListener != null) {
+            ledgerListener.onPosted(transaction.getSequence(), accountNumber, type, amount, balance, now);
+        }
+        LedgerEventPublisher<Transaction> publisher = events;
+        if (publisher != null) {
+            publisher.offer(transaction);
+        }
+        if (LEDGER_EVENTS.hasSubscribers()) {
+            LEDGER_EVENTS.offer(new JournalEntry(transaction.getSequence(), accountNumber, type,
+                    Math.round(amount * 100), Math.round(balance * 100), now));
+        }
+    }
+
+    public synchronized void deposit(double amount) {
         if (amount <= 0) {
             throw new IllegalArgumentException("Deposit amount must be positive.");
         }
         balance += amount;
         // Record transaction
-        transactionHistory.add(new Transaction("Deposit", amount, balance));
+        record("Deposit", amount);
+        if (riskState != null) {
+            riskState.record(FraudMonitor.DEPOSIT, amount);
+        }
     }
 
-    public void withdraw(double amount) {
+    public synchronized void withdraw(double amount) {
         if (amount <= 0) {
             throw new IllegalArgumentException("Withdrawal amount must be positive.");
         }
         if (amount > balance) {
             throw new IllegalArgumentException("Insufficient balance.");
         }
+        if (riskState != null && !riskState.screenWithdrawal(amount)) {
+            throw new IllegalArgumentException("Withdrawal held for review. Please contact your bank.");
+        }
+        if (!dailyLimit.tryReserve(amount)) {
+            throw new IllegalArgumentException("Daily withdrawal limit exceeded. Remaining today: ₹"
+                    + String.format("%.2f", dailyLimit.getRemaining()));
+        }
         balance -= amount;
         // Record transaction
-        transactionHistory.add(new Transaction("Withdrawal", amount, balance));
+        record("Withdrawal", amount);
+        if (riskState != null) {
+            riskState.record(FraudMonitor.WITHDRAWAL, amount);
+        }
+    }
+
+    // Whether a request with this idempotency key has already been applied
+    public boolean isApplied(String idempotencyKey) {
+        return REQUEST_KEYS.lookup(accountNumber, idempotencyKey) != IdempotencyCache.MISSING;
+    }
+
+    // Retry-safe variants: a key that was already applied is not applied again, and false says so.
+    // Rejected requests throw before changing anything and are not remembered, so they can be retried.
+    public synchronized boolean deposit(double amount, String idempotencyKey) {
+        if (isApplied(idempotencyKey)) {
+            return false;
+        }
+        deposit(amount);
+        REQUEST_KEYS.remember(accountNumber, idempotencyKey, 1);
+        return true;
+    }
+
+    public synchronized boolean withdraw(double amount, String idempotencyKey) {
+        if (isApplied(idempotencyKey)) {
+            return false;
+        }
+        withdraw(amount);
+        REQUEST_KEYS.remember(accountNumber, idempotencyKey, 1);
+        return true;
+    }
+
+    // End-of-day postings, recorded like any other transaction
+    @Override
+    public synchronized void creditInterest(double amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Interest amount must be positive.");
+        }
+        balance += amount;
+        record("Interest", amount);
+    }
+
+    @Override
+    public synchronized double chargeFee(double amount) {
+        double charged = Math.min(amount, balance);
+        if (charged <= 0) {
+            return 0;
+        }
+        balance -= charged;
+        record("Maintenance Fee", charged);
+        return charged;
+    }
+
+    // Standing instructions: scheduled credits, and debits that are all or nothing (no cash limits)
+    @Override
+    public synchronized void creditStanding(double amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Scheduled amount must be positive.");
+        }
+        balance += amount;
+        record("Standing Credit", amount);
+    }
+
+    @Override
+    public synchronized boolean debitStanding(double amount) {
+        if (amount <= 0 || amount > balance) {
+            return false;
+        }
+        balance -= amount;
+        record("Standing Debit", amount);
+        return true;
     }
 
     public List<Transaction> getTransactionHistory() {
-        // Return a copy or unmodifiable list for safety
-        return List.copyOf(transactionHistory);
+        // Read-only view; copying would pull every spilled page back onto the heap
+        return Collections.unmodifiableList(transactionHistory);
+    }
+
+    // Audit support: the balance the history starts from, and its length
+    @Override
+    public double getOpeningBalance() {
+        return openingBalance;
+    }
+
+    @Override
+    public synchronized int getTransactionCount() {
+        return transactionHistory.size();
+    }
+
+    // Streams history in chunks without copying the whole list
+    @Override
+    public synchronized int exportTransactions(int from, int max, StatementExporter.RowSink sink) {
+        int to = Math.min(transactionHistory.size(), from + max);
+        for (int i = from; i < to; i++) {
+            Transaction t = transactionHistory.get(i);
+            sink.row(t.getTimestamp(), t.getType(), t.getAmount(), t.getNewBalance());
+        }
+        return Math.max(0, to - from);
+    }
+
+    // Postings with their sequence ids, for reconciliation against the switch
+    @Override
+    public synchronized int exportJournal(int from, int max, LedgerReconciler.JournalSink sink) {
+        int to = Math.min(transactionHistory.size(), from + max);
+        for (int i = from; i < to; i++) {
+            Transaction t = transactionHistory.get(i);
+            sink.posting(t.getSequence(), t.getTimestamp(), t.getType(), t.getAmount());
+        }
+        return Math.max(0, to - from);
     }
 }
 
 // --- 3. ATM Class (Main Application Logic & User Interface) ---
 public class gemini_ATM {
+    private static final double CARD_DAILY_LIMIT = 20000.00;
+    private static final double ANNUAL_INTEREST_RATE = 0.035;
+    private static final double MINIMUM_BALANCE = 1000.00;
+    private static final double MAINTENANCE_FEE = 5.00;
+    // One scoring stage per process, shared by every terminal instance
+    private static final FraudMonitor FRAUD_MONITOR = FraudMonitor.withDefaults();
+    // Idle logins time out on one process-wide timing wheel
+    private static final SessionManager SESSIONS = SessionManager.withDefaults();
+    // Rate limits per terminal and per account, and the node's session cap
+    private static final AdmissionControl ADMISSION = AdmissionControl.withDefaults();
+    // Logins and money movements, written off the customer path
+    private static final AuditLog AUDIT = AuditLog.withDefaults();
+    private static final int HOT_ACCOUNTS = 10000;
+
     private final Scanner scanner;
-    private final Map<String, BankAccount> accounts;
+    private final AccountRepository<BankAccount> accounts;
+    private volatile ReplicationPrimary replication;
+    private StandingInstructions standing;
+    private final Map<String, DailyLimitCounter> cardLimits;
     private BankAccount currentAccount;
+    private DailyLimitCounter currentCardLimit;
+    private volatile SessionManager.Session session;
+    private AdmissionControl.Permit admission;
+    private final String terminalId = AdmissionControl.nextTerminalId();
+    private long requestSequence;
+    // a request whose outcome never came back, kept until it is repeated, with the notes claimed for it
+    private String unresolvedRequest;
+    private String unresolvedKey;
+    private int[] unresolvedNotes;
+    private final CashDispenser dispenser;
+    private final StatementCache statements;
+    private final BalanceIndex balanceIndex;
 
     public gemini_ATM() {
         this.scanner = new Scanner(System.in);
-        this.accounts = new HashMap<>();
+        this.balanceIndex = new BalanceIndex();
+        this.accounts = openRepository();
+        this.cardLimits = new ConcurrentHashMap<>();
+        this.dispenser = CashDispenser.withDefaults();
+        this.statements = StatementCache.withDefaults();
         // Initialize with multiple sample accounts (Optional Enhancement)
         initializeAccounts(); 
+        if (accounts instanceof FileLedgerStore) {
+            standingInstructions(); // re-arm the stored EMIs and SIPs
+        }
+        startReplicationIfConfigured();
     }
 
+    // Heap-only unless -Datm.store.dir=<dir> names an on-disk store
+    private AccountRepository<BankAccount> openRepository() {
+        String dir = System.getProperty("atm.store.dir");
+        if (dir != null) {
+            try {
+                FileLedgerStore<BankAccount> store = new FileLedgerStore<>(Paths.get(dir),
+                        AccountRepository.Codec.of(BankAccount::getAccountNumber, BankAccount::writeTo,
+                                in -> load(BankAccount.readFrom(in))),
+                        HOT_ACCOUNTS, Boolean.getBoolean("atm.store.force"));
+                // the whole book is indexed up front, not account by account as sessions load them
+                store.forEachStored(BankAccount::readFrom, BankAccount::getBalance, balanceIndex::track);
+                return store;
+            } catch (IOException e) {
+                System.err.println("Account store unavailable, keeping accounts in memory: " + e.getMessage());
+            }
+        }
+        return new InMemoryAccountRepository<>(BankAccount::getAccountNumber);
+    }
+
+    // Seeds only accounts the store does not already hold
     private void initializeAccounts() {
-        accounts.put("12345", new BankAccount("12345", "Alice Smith", "1234", 10000.00));
-        accounts.put("98765", new BankAccount("98765", "Bob Johnson", "9876", 500.50));
+        accounts.insert(prepare(new BankAccount("12345", "Alice Smith", "1234", 10000.00)));
+        accounts.insert(prepare(new BankAccount("98765", "Bob Johnson", "9876", 500.50)));
+    }
+
+    // A stored account gets its postings back as history, then is wired up like a seeded one
+    private BankAccount load(BankAccount account) throws IOException {
+        if (accounts instanceof TransactionRepository) {
+            TransactionRepository store = (TransactionRepository) accounts;
+            store.replay(account.getAccountNumber(), account::restorePosting);
+        }
+        return prepare(account);
+    }
+
+    // Applied to seeded accounts and to every account loaded from disk
+    private BankAccount prepare(BankAccount account) {
+        account.setFraudMonitor(FRAUD_MONITOR);
+        balanceIndex.track(account.getAccountNumber(), account.getBalance());
+        account.addLedgerListener(accounts);
+        account.addLedgerListener(balanceIndex);
+        account.addLedgerListener(this::replicate);
+        return account;
+    }
+
+    private void replicate(long sequence, String accountNumber, String type, double amount, double balanceAfter,
+                           long timestampMillis) {
+        ReplicationPrimary primary = replication;
+        if (primary != null) {
+            primary.onPosted(sequence, accountNumber, type, amount, balanceAfter, timestampMillis);
+        }
     }
 
     // --- Main Control Flow ---
@@ -107,7 +465,12 @@ public class gemini_ATM {
         System.out.println("\n===== Welcome to Java ATM =====");
         
         if (authenticateUser()) {
-            runMainMenu();
+            // the admission slot goes back however the menu ends, end of input included
+            try {
+                runMainMenu();
+            } finally {
+                endSession();
+            }
         } else {
             System.out.println("❌ ATM Locked. Goodbye!");
         }
@@ -125,13 +488,27 @@ public class gemini_ATM {
             System.out.print("Enter PIN: ");
             String pin = scanner.nextLine();
             
-            BankAccount account = accounts.get(accNum);
+            // Refused attempts don't count against the customer
+            AdmissionControl.Decision decision = ADMISSION.admitLogin(terminalId, accNum);
+            if (decision != AdmissionControl.Decision.ADMITTED) {
+                AUDIT.record(AuditLog.Event.LOGIN, terminalId, accNum, Double.NaN, decision.name());
+                System.out.println("⏳ " + decision.getMessage());
+                continue;
+            }
+
+            BankAccount account = accounts.find(accNum);
 
             if (account != null && account.checkPin(pin)) {
                 this.currentAccount = account;
+                this.currentCardLimit = cardLimits.computeIfAbsent(accNum, card -> new DailyLimitCounter(CARD_DAILY_LIMIT));
+                this.session = SESSIONS.open(accNum, this::sessionExpired);
+                this.admission = ADMISSION.openSession();
+                AUDIT.record(AuditLog.Event.LOGIN, terminalId, accNum, Double.NaN, "OK");
                 System.out.println("\n✅ Authentication Successful. Welcome!");
                 return true;
             } else {
+                AUDIT.record(AuditLog.Event.LOGIN, terminalId, accNum, Double.NaN,
+                        account == null ? "UNKNOWN_ACCOUNT" : "BAD_PIN");
                 attempts++;
                 System.out.println("❌ Invalid Account Number or PIN. Attempts remaining: " + (MAX_ATTEMPTS - attempts));
             }
@@ -142,9 +519,17 @@ public class gemini_ATM {
     // --- Main Menu Loop ---
     private void runMainMenu() {
         boolean running = true;
-        while (running) {
+        while (running && session != null) {
             displayMenu();
             String input = scanner.nextLine();
+            if (!sessionActive()) {
+                break;
+            }
+            AdmissionControl.Decision decision = ADMISSION.admitRequest(terminalId, currentAccount.getAccountNumber());
+            if (decision != AdmissionControl.Decision.ADMITTED) {
+                System.out.println("⏳ " + decision.getMessage());
+                continue;
+            }
             try {
                 int choice = Integer.parseInt(input);
                 switch (choice) {
@@ -173,6 +558,41 @@ public class gemini_ATM {
         }
     }
 
+    // --- Logout: stop tracking the session and drop the authenticated account ---
+    private synchronized void endSession() {
+        if (currentAccount != null) {
+            audit(AuditLog.Event.LOGOUT, Double.NaN, session != null && !session.isActive() ? "TIMED_OUT" : "OK");
+        }
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (admission != null) {
+            admission.close();
+            admission = null;
+        }
+        currentAccount = null;
+        currentCardLimit = null;
+    }
+
+    // Runs on the session wheel when the login times out, so an unattended terminal is logged out
+    // at once; a callback left over from an earlier login finds its session gone
+    private synchronized void sessionExpired() {
+        if (session != null && !session.isActive()) {
+            endSession();
+        }
+    }
+
+    // Checked after every prompt, so input that arrives after the idle timeout is not acted on
+    private boolean sessionActive() {
+        SessionManager.Session current = session;
+        if (current != null && current.touch()) {
+            return true;
+        }
+        System.out.println("⌛ Session timed out. Please log in again.");
+        return false;
+    }
+
     private void displayMenu() {
         System.out.println("\n--- Main Menu ---");
         System.out.println("1. Check Balance");
@@ -186,56 +606,290 @@ public class gemini_ATM {
     // --- Core Functionalities ---
     
     private void checkBalance() {
-        System.out.printf("\nYour current balance is: ₹%.2f\n", currentAccount.getBalance());
+        SeqlockBalance.Snapshot snapshot = currentAccount.getBalanceSnapshot();
+        System.out.printf("\nYour current balance is: ₹%.2f\n", snapshot.getBalance());
+        if (snapshot.getLastType() != null) {
+            System.out.printf("Last transaction: %s of ₹%.2f\n", snapshot.getLastType(), snapshot.getLastAmount());
+        }
     }
 
     private void depositMoney() {
         System.out.print("Enter deposit amount: ₹");
+        String input = scanner.nextLine();
+        if (!sessionActive()) {
+            return;
+        }
         try {
-            double amount = Double.parseDouble(scanner.nextLine());
-            currentAccount.deposit(amount);
+            double amount = Double.parseDouble(input);
+            String key = requestKey("DEPOSIT " + currentAccount.getAccountNumber() + " " + amount);
+            boolean applied;
+            try {
+                applied = currentAccount.deposit(amount, key);
+            } catch (IllegalArgumentException e) {
+                requestResolved();
+                audit(AuditLog.Event.DEPOSIT, amount, "DECLINED");
+                throw e;
+            }
+            requestResolved();
+            if (!applied) {
+                // a repeat of a deposit whose answer was lost
+                audit(AuditLog.Event.DEPOSIT, amount, "REPEATED");
+                System.out.printf("✅ This deposit already went through. Balance: ₹%.2f\n", currentAccount.getBalance());
+                return;
+            }
+            audit(AuditLog.Event.DEPOSIT, amount, "OK");
             System.out.printf("✅ Deposit successful. New balance: ₹%.2f\n", currentAccount.getBalance());
         } catch (NumberFormatException e) {
             System.out.println("❌ Invalid input. Please enter a numerical amount.");
         } catch (IllegalArgumentException e) {
             // Catches negative/zero amount from BankAccount class
             System.out.println("❌ Deposit failed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            unknownOutcome("Deposit", e);
         }
     }
 
     private void withdrawMoney() {
         System.out.print("Enter withdrawal amount: ₹");
+        String input = scanner.nextLine();
+        if (!sessionActive()) {
+            return;
+        }
         try {
-            double amount = Double.parseDouble(scanner.nextLine());
-            currentAccount.withdraw(amount);
-            System.out.printf("✅ Withdrawal successful. New balance: ₹%.2f\n", currentAccount.getBalance());
+            double amount = Double.parseDouble(input);
+            String key = requestKey("WITHDRAWAL " + currentAccount.getAccountNumber() + " " + amount);
+            if (currentAccount.isApplied(key)) {
+                // a repeat of a withdrawal whose answer was lost: no card limit, no new notes
+                audit(AuditLog.Event.WITHDRAWAL, amount, "REPEATED");
+                System.out.printf("✅ This withdrawal already went through. Balance: ₹%.2f\n", currentAccount.getBalance());
+                if (unresolvedNotes != null) {
+                    // the notes claimed for it were never handed over
+                    System.out.println("   Please collect your cash: " + dispenser.describe(unresolvedNotes));
+                }
+                requestResolved();
+                return;
+            }
+            if (unresolvedNotes != null) {
+                // the earlier attempt was never applied: its notes and card limit go back first
+                dispenser.restore(unresolvedNotes);
+                currentCardLimit.release(amount);
+                unresolvedNotes = null;
+            }
+            if (amount > 0 && !dispenser.isDispensable(amount)) {
+                audit(AuditLog.Event.WITHDRAWAL, amount, "NOT_DISPENSABLE");
+                System.out.printf("❌ Withdrawal failed: Amount must be a multiple of ₹%d.\n", dispenser.getUnit());
+                return;
+            }
+            if (amount > currentAccount.getBalance()) {
+                audit(AuditLog.Event.WITHDRAWAL, amount, "INSUFFICIENT_FUNDS");
+                System.out.println("❌ Withdrawal failed: Insufficient balance.");
+                return;
+            }
+            // Per-card limit is reserved first and handed back if the account refuses
+            if (amount > 0 && !currentCardLimit.tryReserve(amount)) {
+                audit(AuditLog.Event.WITHDRAWAL, amount, "CARD_LIMIT");
+                System.out.printf("❌ Withdrawal failed: Daily card limit exceeded. Remaining today: ₹%.2f\n", currentCardLimit.getRemaining());
+                return;
+            }
+            int[] notes = amount > 0 ? dispenser.dispense(amount) : new int[0];
+            if (notes == null) {
+                currentCardLimit.release(amount);
+                audit(AuditLog.Event.WITHDRAWAL, amount, "OUT_OF_NOTES");
+                System.out.println("❌ Withdrawal failed: This ATM cannot dispense that amount right now.");
+                return;
+            }
+            // kept with the request if the account call fails, so a repeat can settle them
+            unresolvedNotes = notes;
+            boolean applied;
+            try {
+                applied = currentAccount.withdraw(amount, key);
+            } catch (IllegalArgumentException e) {
+                requestResolved();
+                dispenser.restore(notes);
+                currentCardLimit.release(amount);
+                audit(AuditLog.Event.WITHDRAWAL, amount, "DECLINED");
+                throw e;
+            }
+            requestResolved();
+            if (!applied) {
+                // applied by an earlier attempt after the check above: these notes stay in the cassette
+                dispenser.restore(notes);
+                currentCardLimit.release(amount);
+                audit(AuditLog.Event.WITHDRAWAL, amount, "REPEATED");
+                System.out.printf("✅ This withdrawal already went through. Balance: ₹%.2f\n", currentAccount.getBalance());
+                return;
+            }
+            audit(AuditLog.Event.WITHDRAWAL, amount, "OK");
+            System.out.printf("✅ Withdrawal successful. Dispensed %s. New balance: ₹%.2f\n",
+                    dispenser.describe(notes), currentAccount.getBalance());
         } catch (NumberFormatException e) {
             System.out.println("❌ Invalid input. Please enter a numerical amount.");
         } catch (IllegalArgumentException e) {
             // Catches insufficient balance or negative/zero amount
             System.out.println("❌ Withdrawal failed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            unknownOutcome("Withdrawal", e);
         }
     }
+
+    // The account call failed without an answer; the request keeps its key for the customer's retry
+    private void unknownOutcome(String request, RuntimeException e) {
+        System.out.println("❌ " + request + " failed: " + e.getMessage());
+        System.out.println("   Repeat the same request to complete or confirm it; it will not be applied twice.");
+    }
     
+    private void audit(AuditLog.Event event, double amount, String outcome) {
+        AUDIT.record(event, terminalId, currentAccount.getAccountNumber(), amount, outcome);
+    }
+
+    // Each customer request gets its own idempotency key. A request whose outcome never came back
+    // (the account call failed) keeps its key, so repeating the same request cannot apply it twice
+    private String requestKey(String request) {
+        if (!request.equals(unresolvedRequest)) {
+            unresolvedRequest = request;
+            unresolvedKey = terminalId + "-" + (++requestSequence);
+            unresolvedNotes = null;
+        }
+        return unresolvedKey;
+    }
+
+    // The account answered, so the next request gets a fresh key
+    private void requestResolved() {
+        unresolvedRequest = null;
+        unresolvedKey = null;
+        unresolvedNotes = null;
+    }
+
+    // Rendered once per posting; repeat views are replayed from the statement cache
     private void viewTransactionHistory() {
-        List<Transaction> history = currentAccount.getTransactionHistory();
-        System.out.println("\n--- Transaction History ---");
+        BankAccount account = currentAccount;
+        statements.write(account.getAccountNumber(), account, account.getVersion(),
+                out -> renderTransactionHistory(account, out), System.out);
+    }
+
+    private static void renderTransactionHistory(BankAccount account, PrintStream out) {
+        List<Transaction> history = account.getTransactionHistory();
+        out.println("\n--- Transaction History ---");
         
         if (history.isEmpty()) {
-            System.out.println("No transactions recorded yet.");
+            out.println("No transactions recorded yet.");
             return;
         }
 
         // Display up to the last 10 transactions
         int displayCount = 0;
         for (int i = history.size() - 1; i >= 0 && displayCount < 10; i--, displayCount++) {
-            System.out.println(history.get(i));
+            out.println(history.get(i));
         }
         
         if (history.size() > 10) {
-            System.out.println("... (Showing last 10 transactions)");
+            out.println("... (Showing last 10 transactions)");
+        }
+        out.println("---------------------------");
+    }
+
+    // --- End-of-Day Batch (interest accrual and maintenance fees) ---
+    public EndOfDayBatch.Summary runEndOfDay() {
+        return EndOfDayBatch.withDefaults(ANNUAL_INTEREST_RATE, MINIMUM_BALANCE, MAINTENANCE_FEE)
+                .run(accounts.all());
+    }
+
+    // --- Standing Instructions (EMIs, SIPs, utility bills), kept in the store directory when there is one ---
+    public synchronized StandingInstructions standingInstructions() {
+        if (standing == null) {
+            if (accounts instanceof FileLedgerStore) {
+                Path file = ((FileLedgerStore<?>) accounts).getDirectory().resolve("instructions.dat");
+                try {
+                    standing = StandingInstructions.open(accounts::find, file);
+                } catch (IOException e) {
+                    System.err.println("Standing instructions not restored from " + file + ": " + e.getMessage());
+                }
+            }
+            if (standing == null) {
+                standing = StandingInstructions.withDefaults(accounts::find);
+            }
+        }
+        return standing;
+    }
+
+    // --- Ledger Audit (every balance must follow from its history) ---
+    public LedgerVerifier.Report verifyLedger() {
+        return LedgerVerifier.withDefaults().verify(accounts.all());
+    }
+
+    // --- Operational Queries (balance index, no scan of the registry) ---
+    public List<BalanceIndex.Entry> largestBalances(int n) {
+        return balanceIndex.largest(n);
+    }
+
+    public List<BalanceIndex.Entry> accountsBelowMinimumBalance(int limit) {
+        return balanceIndex.below(MINIMUM_BALANCE, limit);
+    }
+
+    public List<BalanceIndex.Entry> dormantAccounts(long idleMillis, int limit) {
+        return balanceIndex.inactiveSince(LedgerClock.currentTimeMillis() - idleMillis, limit);
+    }
+
+    // --- Event Streams (notifications, statements, analytics) ---
+    public Flow.Publisher<Transaction> accountEvents(String accountNumber) {
+        BankAccount account = accounts.find(accountNumber);
+        if (account == null) {
+            throw new IllegalArgumentException("Unknown account: " + accountNumber);
+        }
+        return account.events();
+    }
+
+    public Flow.Publisher<JournalEntry> ledgerEvents() {
+        return BankAccount.ledgerEvents();
+    }
+
+    // --- Statement Export (gzip CSV or binary, streamed) ---
+    public long exportStatement(String accountNumber, Path file, StatementExporter.Format format) throws IOException {
+        BankAccount account = accounts.find(accountNumber);
+        if (account == null) {
+            throw new IllegalArgumentException("Unknown account: " + accountNumber);
+        }
+        try (StatementExporter exporter = StatementExporter.open(file, format)) {
+            return exporter.export(account);
+        }
+    }
+
+    public long exportAllStatements(Path file, StatementExporter.Format format) throws IOException {
+        try (StatementExporter exporter = StatementExporter.open(file, format)) {
+            return exporter.exportAll(accounts.all());
+        }
+    }
+
+    // --- Settlement Reconciliation (external sort, bounded memory) ---
+    public LedgerReconciler.Report reconcile(Path settlementFile, Path mismatchFile, long fromMillis, long toMillis)
+            throws IOException {
+        LedgerReconciler reconciler = LedgerReconciler.withDefaults();
+        if (accounts instanceof TransactionRepository) {
+            // straight off the store's transaction log, without loading the accounts
+            return reconciler.reconcile((TransactionRepository) accounts, settlementFile, mismatchFile, fromMillis, toMillis);
+        }
+        return reconciler.reconcile(accounts.all(), settlementFile, mismatchFile, fromMillis, toMillis);
+    }
+
+    // --- Journal Replication (primary side) ---
+    public ReplicationPrimary startReplicationPrimary(int port) throws IOException {
+        ReplicationPrimary primary = new ReplicationPrimary(port,
+                ReplicationPrimary.snapshotOf(accounts.all(), BankAccount::getAccountNumber, BankAccount::writeTo,
+                        accounts instanceof TransactionRepository ? (TransactionRepository) accounts : null));
+        replication = primary;
+        return primary;
+    }
+
+    // Primary/follower mode is switched on with -Datm.replication.port=<port>
+    private void startReplicationIfConfigured() {
+        String port = System.getProperty("atm.replication.port");
+        if (port != null) {
+            try {
+                startReplicationPrimary(Integer.parseInt(port));
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Replication disabled: " + e.getMessage());
+            }
         }
-        System.out.println("---------------------------");
     }
 
     // --- Main method to run the program ---
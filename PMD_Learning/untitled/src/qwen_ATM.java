@@ -1,4 +1,12 @@
 import java.util.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
 
 /**
  * Main class to run the ATM system
@@ -13,12 +21,24 @@ public class qwen_ATM {
 /**
  * Represents a bank account with essential details and operations
  */
-class BankAccount {
+class BankAccount implements EndOfDayBatch.Account, LedgerVerifier.Account, LedgerReconciler.Journal,
+        StandingInstructions.Account {
+    static final double DAILY_WITHDRAWAL_LIMIT = 50000.0;
+    private static final IdempotencyCache REQUEST_KEYS = IdempotencyCache.withDefaults();
+    // Every posting on every account, for consumers that follow the whole book
+    private static final LedgerEventPublisher<JournalEntry> LEDGER_EVENTS = new LedgerEventPublisher<>();
+
     private String accountNumber;
     private String accountHolderName;
     private double balance;
     private int pin;
     private List<Transaction> transactionHistory;
+    private DailyLimitCounter dailyLimit;
+    private FraudMonitor.AccountState riskState;
+    private LedgerListener ledgerListener;
+    private volatile LedgerEventPublisher<Transaction> events;
+    private SeqlockBalance balanceView;
+    private double openingBalance;
 
     /**
      * Constructor to initialize a bank account
@@ -28,10 +48,14 @@ class BankAccount {
         this.accountHolderName = accountHolderName;
         this.balance = balance;
         this.pin = pin;
-        this.transactionHistory = new ArrayList<>();
+        this.transactionHistory = new TieredHistory<>(Transaction.CODEC); // recent entries on the heap, older pages on disk
+        this.dailyLimit = new DailyLimitCounter(DAILY_WITHDRAWAL_LIMIT);
+        this.balanceView = new SeqlockBalance(balance);
+        this.openingBalance = balance;
     }
 
     // Getters (encapsulation)
+    @Override
     public String getAccountNumber() {
         return accountNumber;
     }
@@ -40,16 +64,155 @@ class BankAccount {
         return accountHolderName;
     }
 
+    /**
+     * Lock-free balance read; never waits on deposit/withdraw
+     */
     public double getBalance() {
-        return balance;
+        return balanceView.getBalance();
+    }
+
+    /**
+     * @return the balance together with the posting that produced it, read without the account lock
+     */
+    public SeqlockBalance.Snapshot getBalanceSnapshot() {
+        return balanceView.snapshot();
+    }
+
+    /**
+     * Moves on with every posting; lock-free
+     */
+    public long getVersion() {
+        return balanceView.getVersion();
     }
 
     public int getPin() {
         return pin;
     }
 
+    public double getRemainingDailyLimit() {
+        return dailyLimit.getRemaining();
+    }
+
+    public boolean isHeldForReview() {
+        return riskState != null && riskState.isHeld();
+    }
+
     public List<Transaction> getTransactionHistory() {
-        return new ArrayList<>(transactionHistory); // Return a copy to maintain encapsulation
+        return Collections.unmodifiableList(transactionHistory); // read-only view; a copy would reload every spilled page
+    }
+
+    /**
+     * @return the balance before the first history row, for the ledger audit
+     */
+    @Override
+    public double getOpeningBalance() {
+        return openingBalance;
+    }
+
+    @Override
+    public synchronized int getTransactionCount() {
+        return transactionHistory.size();
+    }
+
+    /**
+     * Attaches the asynchronous fraud scoring stage to this account
+     * @param monitor the shared fraud monitor
+     */
+    public void setFraudMonitor(FraudMonitor monitor) {
+        this.riskState = monitor.register(accountNumber);
+    }
+
+    /**
+     * Subscribes a listener to every posting on this account (replication, auditing, ...)
+     * @param listener the listener to add
+     */
+    public synchronized void addLedgerListener(LedgerListener listener) {
+        ledgerListener = ledgerListener == null ? listener : ledgerListener.andThen(listener);
+    }
+
+    /**
+     * Live postings on this account, with back-pressure; nothing is copied from the history
+     * @return the account's event stream, created on first use
+     */
+    public synchronized Flow.Publisher<Transaction> events() {
+        if (events == null) {
+            events = new LedgerEventPublisher<>();
+        }
+        return events;
+    }
+
+    /**
+     * Live postings on every account
+     * @return the process-wide event stream
+     */
+    public static Flow.Publisher<JournalEntry> ledgerEvents() {
+        return LEDGER_EVENTS;
+    }
+
+    /**
+     * Writes the stored form used by on-disk repositories: number, holder, PIN and balance
+     * @param out destination
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(accountNumber);
+        out.writeUTF(accountHolderName);
+        out.writeInt(pin);
+        out.writeDouble(getBalance());
+    }
+
+    /**
+     * Rebuilds an account written by writeTo
+     * @param in source
+     * @return the account, with an empty in-memory history until restorePosting fills it
+     */
+    public static BankAccount readFrom(DataInput in) throws IOException {
+        String accountNumber = in.readUTF();
+        String accountHolderName = in.readUTF();
+        int pin = in.readInt();
+        return new BankAccount(accountNumber, accountHolderName, in.readDouble(), pin);
+    }
+
+    /**
+     * Appends one stored posting to the history; nothing is posted again
+     * @param entry the account's next posting, oldest first; the first also fixes the opening balance
+     */
+    public synchronized void restorePosting(JournalEntry entry) {
+        if (transactionHistory.isEmpty()) {
+            long amount = isDebit(entry.getType()) ? -entry.getAmountPaise() : entry.getAmountPaise();
+            openingBalance = (entry.getBalanceAfterPaise() - amount) / 100.0;
+        }
+        transactionHistory.add(Transaction.restored(entry));
+    }
+
+    /**
+     * Whether a row of this type takes money out, for history restore and the ledger audit
+     */
+    @Override
+    public boolean isDebit(String type) {
+        return type.equals("Withdrawal") || type.equals("Maintenance Fee") || type.equals("Standing Debit");
+    }
+
+    /**
+     * Appends to the history and notifies the ledger listener, still under the account lock
+     * @param type the transaction type
+     * @param amount the amount moved
+     */
+    private void record(String type, double amount) {
+        Transaction transaction = new Transaction(type, amount, balance);
+        transactionHistory.add(transaction);
+        long now = transaction.getTimestampMillis();
+        balanceView.publish(balance, type, amount, now);
+        if (ledgerListener != null) {
+            ledgerListener.onPosted(transaction.getSequence(), accountNumber, type, amount, balance, now);
+        }
+        LedgerEventPublisher<Transaction> publisher = events;
+        if (publisher != null) {
+            publisher.offer(transaction);
+        }
+        if (LEDGER_EVENTS.hasSubscribers()) {
+            LEDGER_EVENTS.offer(new JournalEntry(transaction.getSequence(), accountNumber, type,
+                    Math.round(amount * 100), Math.round(balance * 100), now));
+        }
     }
 
     /**
@@ -57,26 +220,170 @@ class BankAccount {
      * @param amount the amount to deposit
      * @return true if successful, false otherwise
      */
-    public boolean deposit(double amount) {
+    public synchronized boolean deposit(double amount) {
         if (amount <= 0) {
             return false;
         }
         balance += amount;
-        transactionHistory.add(new Transaction("Deposit", amount, balance));
+        record("Deposit", amount);
+        if (riskState != null) {
+            riskState.record(FraudMonitor.DEPOSIT, amount);
+        }
         return true;
     }
 
     /**
-     * Withdraws money from the account
+     * Withdraws money from the account, subject to the daily withdrawal limit
      * @param amount the amount to withdraw
      * @return true if successful, false otherwise
      */
-    public boolean withdraw(double amount) {
+    public synchronized boolean withdraw(double amount) {
         if (amount <= 0 || amount > balance) {
             return false;
         }
+        if (riskState != null && !riskState.screenWithdrawal(amount)) {
+            return false;
+        }
+        if (!dailyLimit.tryReserve(amount)) {
+            return false;
+        }
         balance -= amount;
-        transactionHistory.add(new Transaction("Withdrawal", amount, balance));
+        record("Withdrawal", amount);
+        if (riskState != null) {
+            riskState.record(FraudMonitor.WITHDRAWAL, amount);
+        }
+        return true;
+    }
+
+    /**
+     * @return the outcome remembered for an idempotency key (1 applied, 0 declined),
+     *         or IdempotencyCache.MISSING if no request with it has reached the account
+     */
+    public int requestOutcome(String idempotencyKey) {
+        return REQUEST_KEYS.lookup(accountNumber, idempotencyKey);
+    }
+    
+    /**
+     * Deposits at most once per idempotency key; a retried request gets the original result
+     * @param amount the amount to deposit
+     * @param idempotencyKey identifies the request across retries
+     * @return true if successful, false otherwise
+     */
+    public synchronized boolean deposit(double amount, String idempotencyKey) {
+        int seen = REQUEST_KEYS.lookup(accountNumber, idempotencyKey);
+        if (seen != IdempotencyCache.MISSING) {
+            return seen == 1;
+        }
+        boolean done = deposit(amount);
+        REQUEST_KEYS.remember(accountNumber, idempotencyKey, done ? 1 : 0);
+        return done;
+    }
+
+    /**
+     * Withdraws at most once per idempotency key; a retried request gets the original result
+     * @param amount the amount to withdraw
+     * @param idempotencyKey identifies the request across retries
+     * @return true if successful, false otherwise
+     */
+    public synchronized boolean withdraw(double amount, String idempotencyKey) {
+        int seen = REQUEST_KEYS.lookup(accountNumber, idempotencyKey);
+        if (seen != IdempotencyCache.MISSING) {
+            return seen == 1;
+        }
+        boolean done = withdraw(amount);
+        REQUEST_KEYS.remember(accountNumber, idempotencyKey, done ? 1 : 0);
+        return done;
+    }
+
+    /**
+     * Streams a chunk of the history to a statement exporter without copying the list
+     * @param from index of the first transaction to emit
+     * @param max maximum number of transactions to emit
+     * @param sink receives each transaction
+     * @return number of transactions emitted
+     */
+    @Override
+    public synchronized int exportTransactions(int from, int max, StatementExporter.RowSink sink) {
+        int to = Math.min(transactionHistory.size(), from + max);
+        for (int i = from; i < to; i++) {
+            Transaction t = transactionHistory.get(i);
+            sink.row(t.getTimestampMillis(), t.getType(), t.getAmount(), t.getBalanceAfterTransaction());
+        }
+        return Math.max(0, to - from);
+    }
+
+    /**
+     * Streams a chunk of postings with their global sequence ids, for reconciliation
+     * @param from index of the first transaction to emit
+     * @param max maximum number of transactions to emit
+     * @param sink receives each posting
+     * @return number of postings emitted
+     */
+    @Override
+    public synchronized int exportJournal(int from, int max, LedgerReconciler.JournalSink sink) {
+        int to = Math.min(transactionHistory.size(), from + max);
+        for (int i = from; i < to; i++) {
+            Transaction t = transactionHistory.get(i);
+            sink.posting(t.getSequence(), t.getTimestampMillis(), t.getType(), t.getAmount());
+        }
+        return Math.max(0, to - from);
+    }
+
+    /**
+     * Credits end-of-day interest to the account
+     * @param amount the interest to credit
+     */
+    @Override
+    public synchronized void creditInterest(double amount) {
+        if (amount <= 0) {
+            return;
+        }
+        balance += amount;
+        record("Interest", amount);
+    }
+
+    /**
+     * Charges the maintenance fee, never taking the balance below zero
+     * @param amount the fee to charge
+     * @return the amount actually charged
+     */
+    @Override
+    public synchronized double chargeFee(double amount) {
+        double charged = Math.min(amount, balance);
+        if (charged <= 0) {
+            return 0;
+        }
+        balance -= charged;
+        record("Maintenance Fee", charged);
+        return charged;
+    }
+
+    /**
+     * Credits a payment scheduled by a standing instruction
+     * @param amount the amount to credit
+     */
+    @Override
+    public synchronized void creditStanding(double amount) {
+        if (amount <= 0) {
+            return;
+        }
+        balance += amount;
+        record("Standing Credit", amount);
+    }
+
+    /**
+     * Debits a payment scheduled by a standing instruction, in full or not at all;
+     * the cash withdrawal limits do not apply
+     * @param amount the amount to debit
+     * @return false if the balance does not cover it
+     */
+    @Override
+    public synchronized boolean debitStanding(double amount) {
+        if (amount <= 0 || amount > balance) {
+            return false;
+        }
+        balance -= amount;
+        record("Standing Debit", amount);
         return true;
     }
 }
@@ -88,13 +395,53 @@ class Transaction {
     private String type;
     private double amount;
     private double balanceAfterTransaction;
-    private Date timestamp;
+    private long sequence;
+    private long timestampMillis;
 
+    /**
+     * Stamps the transaction from the cached ledger clock and gives it the next global sequence id
+     */
     public Transaction(String type, double amount, double balanceAfterTransaction) {
         this.type = type;
         this.amount = amount;
         this.balanceAfterTransaction = balanceAfterTransaction;
-        this.timestamp = new Date();
+        this.sequence = LedgerClock.nextSequence();
+        this.timestampMillis = LedgerClock.currentTimeMillis();
+    }
+
+    /**
+     * Restores a transaction read back from a spilled history page
+     */
+    private Transaction(String type, double amount, double balanceAfterTransaction, long sequence, long timestampMillis) {
+        this.type = type;
+        this.amount = amount;
+        this.balanceAfterTransaction = balanceAfterTransaction;
+        this.sequence = sequence;
+        this.timestampMillis = timestampMillis;
+    }
+
+    /**
+     * Delta/varint block format used when older history pages are spilled to disk
+     */
+    static final TieredHistory.Codec<Transaction> CODEC = new LedgerBlockCodec<Transaction>() {
+        @Override protected String type(Transaction t) { return t.type; }
+        @Override protected double amount(Transaction t) { return t.amount; }
+        @Override protected double balanceAfter(Transaction t) { return t.balanceAfterTransaction; }
+        @Override protected long sequence(Transaction t) { return t.sequence; }
+        @Override protected long timestampMillis(Transaction t) { return t.timestampMillis; }
+
+        @Override
+        protected Transaction create(String type, double amount, double balanceAfter, long sequence, long timestampMillis) {
+            return new Transaction(type, amount, balanceAfter, sequence, timestampMillis);
+        }
+    };
+
+    /**
+     * Restores a posting read back from the ledger store, with its original sequence and time
+     */
+    static Transaction restored(JournalEntry entry) {
+        return new Transaction(entry.getType(), entry.getAmountPaise() / 100.0, entry.getBalanceAfterPaise() / 100.0,
+                entry.getSequence(), entry.getTimestampMillis());
     }
 
     // Getters
@@ -110,14 +457,25 @@ class Transaction {
         return balanceAfterTransaction;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * @return the timestamp as a Date, built on demand only
+     */
     public Date getTimestamp() {
-        return timestamp;
+        return new Date(timestampMillis);
     }
 
     @Override
     public String toString() {
         return String.format("%s - %s: ₹%.2f | Balance: ₹%.2f", 
-                           timestamp.toString().substring(0, 19), 
+                           getTimestamp().toString().substring(0, 19), 
                            type, amount, balanceAfterTransaction);
     }
 }
@@ -126,26 +484,269 @@ class Transaction {
  * ATM class that handles user interaction and main menu operations
  */
 class ATM {
+    private static final double CARD_DAILY_LIMIT = 20000.0;
+    private static final double ANNUAL_INTEREST_RATE = 0.035;
+    private static final double MINIMUM_BALANCE = 1000.0;
+    private static final double MAINTENANCE_FEE = 5.0;
+    // One scoring stage per process, shared by every terminal instance
+    private static final FraudMonitor FRAUD_MONITOR = FraudMonitor.withDefaults();
+    // Idle logins time out on one process-wide timing wheel
+    private static final SessionManager SESSIONS = SessionManager.withDefaults();
+    // Rate limits per terminal and per account, and the node's session cap
+    private static final AdmissionControl ADMISSION = AdmissionControl.withDefaults();
+    // Logins and money movements, written off the customer path
+    private static final AuditLog AUDIT = AuditLog.withDefaults();
+    private static final int HOT_ACCOUNTS = 10000;
+
     private Scanner scanner;
-    private Map<String, BankAccount> accounts;
+    private final AccountRepository<BankAccount> accounts;
+    private volatile ReplicationPrimary replication;
+    private StandingInstructions standing;
+    private Map<String, DailyLimitCounter> cardLimits;
     private BankAccount currentAccount;
+    private DailyLimitCounter currentCardLimit;
+    private volatile SessionManager.Session session;
+    private AdmissionControl.Permit admission;
+    private final String terminalId = AdmissionControl.nextTerminalId();
+    private long requestSequence;
+    /** A request whose outcome never came back, kept until it is repeated, with the notes claimed for it */
+    private String unresolvedRequest;
+    private String unresolvedKey;
+    private int[] unresolvedNotes;
+    private final CashDispenser dispenser;
+    private final StatementCache statements;
+    private final BalanceIndex balanceIndex;
 
     /**
      * Constructor to initialize the ATM with sample accounts
      */
     public ATM() {
         this.scanner = new Scanner(System.in);
-        this.accounts = new HashMap<>();
+        this.balanceIndex = new BalanceIndex();
+        this.accounts = openRepository();
+        this.cardLimits = new ConcurrentHashMap<>();
+        this.dispenser = CashDispenser.withDefaults();
+        this.statements = StatementCache.withDefaults();
         initializeSampleAccounts();
+        if (accounts instanceof FileLedgerStore) {
+            // re-arm the stored EMIs and SIPs
+            standingInstructions();
+        }
+        startReplicationIfConfigured();
+    }
+
+    /**
+     * Opens the on-disk store named by -Datm.store.dir, or keeps accounts in memory
+     * @return the account repository for this terminal
+     */
+    private AccountRepository<BankAccount> openRepository() {
+        String dir = System.getProperty("atm.store.dir");
+        if (dir != null) {
+            try {
+                FileLedgerStore<BankAccount> store = new FileLedgerStore<>(Paths.get(dir),
+                        AccountRepository.Codec.of(BankAccount::getAccountNumber, BankAccount::writeTo,
+                                in -> load(BankAccount.readFrom(in))),
+                        HOT_ACCOUNTS, Boolean.getBoolean("atm.store.force"));
+                // the whole book is indexed up front, not account by account as sessions load them
+                store.forEachStored(BankAccount::readFrom, BankAccount::getBalance, balanceIndex::track);
+                return store;
+            } catch (IOException e) {
+                System.err.println("Account store unavailable, keeping accounts in memory: " + e.getMessage());
+            }
+        }
+        return new InMemoryAccountRepository<>(BankAccount::getAccountNumber);
     }
 
     /**
-     * Initializes sample accounts for demonstration
+     * Initializes sample accounts for demonstration; accounts already stored are kept
      */
     private void initializeSampleAccounts() {
-        accounts.put("12345", new BankAccount("12345", "John Doe", 10000.0, 1234));
-        accounts.put("67890", new BankAccount("67890", "Jane Smith", 5000.0, 5678));
-        accounts.put("11111", new BankAccount("11111", "Alice Johnson", 15000.0, 1111));
+        accounts.insert(prepare(new BankAccount("12345", "John Doe", 10000.0, 1234)));
+        accounts.insert(prepare(new BankAccount("67890", "Jane Smith", 5000.0, 5678)));
+        accounts.insert(prepare(new BankAccount("11111", "Alice Johnson", 15000.0, 1111)));
+    }
+
+    /**
+     * Refills a stored account's history from the store's postings, then wires it up like a seeded one
+     * @return the same account
+     */
+    private BankAccount load(BankAccount account) throws IOException {
+        if (accounts instanceof TransactionRepository) {
+            TransactionRepository store = (TransactionRepository) accounts;
+            store.replay(account.getAccountNumber(), account::restorePosting);
+        }
+        return prepare(account);
+    }
+
+    /**
+     * Connects an account to the fraud monitor, the store, the balance index and the replication stream;
+     * used for seeded accounts and for every account loaded from disk
+     * @return the same account
+     */
+    private BankAccount prepare(BankAccount account) {
+        account.setFraudMonitor(FRAUD_MONITOR);
+        balanceIndex.track(account.getAccountNumber(), account.getBalance());
+        account.addLedgerListener(accounts);
+        account.addLedgerListener(balanceIndex);
+        account.addLedgerListener(this::replicate);
+        return account;
+    }
+
+    private void replicate(long sequence, String accountNumber, String type, double amount, double balanceAfter,
+                           long timestampMillis) {
+        ReplicationPrimary primary = replication;
+        if (primary != null) {
+            primary.onPosted(sequence, accountNumber, type, amount, balanceAfter, timestampMillis);
+        }
+    }
+
+    /**
+     * Runs the end-of-day interest accrual and maintenance fee batch
+     * @return totals for the run
+     */
+    public EndOfDayBatch.Summary runEndOfDay() {
+        return EndOfDayBatch.withDefaults(ANNUAL_INTEREST_RATE, MINIMUM_BALANCE, MAINTENANCE_FEE)
+                .run(accounts.all());
+    }
+
+    /**
+     * Recurring debits, credits and transfers (loan EMIs, SIPs, utility bills),
+     * started on first use (at startup with an on-disk store, whose directory
+     * keeps them across restarts) and fired in batches by one scheduler thread
+     * @return the scheduler for this terminal's accounts
+     */
+    public synchronized StandingInstructions standingInstructions() {
+        if (standing == null) {
+            if (accounts instanceof FileLedgerStore) {
+                Path file = ((FileLedgerStore<?>) accounts).getDirectory().resolve("instructions.dat");
+                try {
+                    standing = StandingInstructions.open(accounts::find, file);
+                } catch (IOException e) {
+                    System.err.println("Standing instructions not restored from " + file + ": " + e.getMessage());
+                }
+            }
+            if (standing == null) {
+                standing = StandingInstructions.withDefaults(accounts::find);
+            }
+        }
+        return standing;
+    }
+
+    /**
+     * Audits every account: each history row must follow from the one before it,
+     * and the balance must match the last row
+     * @return the audit report, listing any discrepancies
+     */
+    public LedgerVerifier.Report verifyLedger() {
+        return LedgerVerifier.withDefaults().verify(accounts.all());
+    }
+
+    /**
+     * @return up to n accounts, largest balance first; answered from the balance index
+     */
+    public List<BalanceIndex.Entry> largestBalances(int n) {
+        return balanceIndex.largest(n);
+    }
+
+    /**
+     * @return up to limit accounts below the minimum balance, smallest first
+     */
+    public List<BalanceIndex.Entry> accountsBelowMinimumBalance(int limit) {
+        return balanceIndex.below(MINIMUM_BALANCE, limit);
+    }
+
+    /**
+     * @return up to limit accounts with no posting in the last idleMillis, least recently active first
+     */
+    public List<BalanceIndex.Entry> dormantAccounts(long idleMillis, int limit) {
+        return balanceIndex.inactiveSince(LedgerClock.currentTimeMillis() - idleMillis, limit);
+    }
+
+    /**
+     * Subscribes downstream consumers (notifications, statements, analytics) to one account
+     * @param accountNumber the account to follow
+     * @return live postings on that account
+     */
+    public Flow.Publisher<Transaction> accountEvents(String accountNumber) {
+        BankAccount account = accounts.find(accountNumber);
+        if (account == null) {
+            throw new IllegalArgumentException("Unknown account: " + accountNumber);
+        }
+        return account.events();
+    }
+
+    /**
+     * @return live postings on every account
+     */
+    public Flow.Publisher<JournalEntry> ledgerEvents() {
+        return BankAccount.ledgerEvents();
+    }
+
+    /**
+     * Starts streaming the transaction journal to follower processes
+     * @param port loopback port followers connect to, or 0 for any free port
+     * @return the running primary
+     */
+    public ReplicationPrimary startReplicationPrimary(int port) throws IOException {
+        ReplicationPrimary primary = new ReplicationPrimary(port,
+                ReplicationPrimary.snapshotOf(accounts.all(), BankAccount::getAccountNumber, BankAccount::writeTo,
+                        accounts instanceof TransactionRepository ? (TransactionRepository) accounts : null));
+        replication = primary;
+        return primary;
+    }
+
+    /**
+     * Starts the replication primary when -Datm.replication.port=<port> is set
+     */
+    private void startReplicationIfConfigured() {
+        String port = System.getProperty("atm.replication.port");
+        if (port != null) {
+            try {
+                startReplicationPrimary(Integer.parseInt(port));
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Replication disabled: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Exports one account's full statement to a gzip CSV or binary file
+     * @return number of transactions written
+     */
+    public long exportStatement(String accountNumber, Path file, StatementExporter.Format format) throws IOException {
+        BankAccount account = accounts.find(accountNumber);
+        if (account == null) {
+            throw new IllegalArgumentException("Unknown account: " + accountNumber);
+        }
+        try (StatementExporter exporter = StatementExporter.open(file, format)) {
+            return exporter.export(account);
+        }
+    }
+
+    /**
+     * Exports every account's statement to a single gzip CSV or binary file
+     * @return number of transactions written
+     */
+    public long exportAllStatements(Path file, StatementExporter.Format format) throws IOException {
+        try (StatementExporter exporter = StatementExporter.open(file, format)) {
+            return exporter.exportAll(accounts.all());
+        }
+    }
+
+    /**
+     * Reconciles the deposits and withdrawals posted in [fromMillis, toMillis) against the
+     * switch's settlement file, sorting both sides on disk in bounded memory
+     * @param mismatchFile receives every mismatch as CSV
+     * @return totals for the run and the first mismatches
+     */
+    public LedgerReconciler.Report reconcile(Path settlementFile, Path mismatchFile, long fromMillis, long toMillis)
+            throws IOException {
+        LedgerReconciler reconciler = LedgerReconciler.withDefaults();
+        if (accounts instanceof TransactionRepository) {
+            // straight off the store's transaction log, without loading the accounts
+            return reconciler.reconcile((TransactionRepository) accounts, settlementFile, mismatchFile, fromMillis, toMillis);
+        }
+        return reconciler.reconcile(accounts.all(), settlementFile, mismatchFile, fromMillis, toMillis);
     }
 
     /**
@@ -157,7 +758,12 @@ class ATM {
         System.out.println("==================================");
         
         if (authenticateUser()) {
-            displayMainMenu();
+            // the admission slot goes back however the menu ends, end of input included
+            try {
+                displayMainMenu();
+            } finally {
+                endSession();
+            }
         } else {
             System.out.println("Maximum login attempts exceeded. Goodbye!");
         }
@@ -188,15 +794,29 @@ class ATM {
                     continue;
                 }
                 
+                // Refused attempts are not counted against the customer
+                AdmissionControl.Decision decision = ADMISSION.admitLogin(terminalId, accountNumber);
+                if (decision != AdmissionControl.Decision.ADMITTED) {
+                    AUDIT.record(AuditLog.Event.LOGIN, terminalId, accountNumber, Double.NaN, decision.name());
+                    System.out.println(decision.getMessage());
+                    continue;
+                }
+                
                 int pin = Integer.parseInt(pinInput);
-                BankAccount account = accounts.get(accountNumber);
+                BankAccount account = accounts.find(accountNumber);
                 
                 if (account != null && account.getPin() == pin) {
                     currentAccount = account;
+                    currentCardLimit = cardLimits.computeIfAbsent(accountNumber, card -> new DailyLimitCounter(CARD_DAILY_LIMIT));
+                    session = SESSIONS.open(accountNumber, this::sessionExpired);
+                    admission = ADMISSION.openSession();
+                    AUDIT.record(AuditLog.Event.LOGIN, terminalId, accountNumber, Double.NaN, "OK");
                     System.out.println("\nAuthentication successful!");
                     System.out.println("Welcome, " + currentAccount.getAccountHolderName() + "!");
                     return true;
                 } else {
+                    AUDIT.record(AuditLog.Event.LOGIN, terminalId, accountNumber, Double.NaN,
+                            account == null ? "UNKNOWN_ACCOUNT" : "BAD_PIN");
                     attempts++;
                     System.out.println("Invalid account number or PIN. Attempts remaining: " + 
                                      (MAX_ATTEMPTS - attempts));
@@ -217,7 +837,7 @@ class ATM {
     private void displayMainMenu() {
         boolean exit = false;
         
-        while (!exit) {
+        while (!exit && session != null) {
             System.out.println("\n==================================");
             System.out.println("            MAIN MENU             ");
             System.out.println("==================================");
@@ -230,7 +850,16 @@ class ATM {
             
             try {
                 System.out.print("Choose option (1-5): ");
-                int choice = Integer.parseInt(scanner.nextLine().trim());
+                String input = scanner.nextLine().trim();
+                if (!sessionActive()) {
+                    break;
+                }
+                AdmissionControl.Decision decision = ADMISSION.admitRequest(terminalId, currentAccount.getAccountNumber());
+                if (decision != AdmissionControl.Decision.ADMITTED) {
+                    System.out.println(decision.getMessage());
+                    continue;
+                }
+                int choice = Integer.parseInt(input);
                 
                 switch (choice) {
                     case 1:
@@ -258,12 +887,58 @@ class ATM {
         }
     }
 
+    /**
+     * Ends the login: stops tracking the session and drops the authenticated account
+     */
+    private synchronized void endSession() {
+        if (currentAccount != null) {
+            audit(AuditLog.Event.LOGOUT, Double.NaN, session != null && !session.isActive() ? "TIMED_OUT" : "OK");
+        }
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (admission != null) {
+            admission.close();
+            admission = null;
+        }
+        currentAccount = null;
+        currentCardLimit = null;
+    }
+
+    /**
+     * Runs on the session wheel when the login times out, so an unattended terminal is
+     * logged out at once; a callback left over from an earlier login finds its session gone
+     */
+    private synchronized void sessionExpired() {
+        if (session != null && !session.isActive()) {
+            endSession();
+        }
+    }
+
+    /**
+     * Checked after every prompt, so input that arrives after the idle timeout is not acted on
+     * @return false if the login has timed out
+     */
+    private boolean sessionActive() {
+        SessionManager.Session current = session;
+        if (current != null && current.touch()) {
+            return true;
+        }
+        System.out.println("Session timed out. Please log in again.");
+        return false;
+    }
+
     /**
      * Displays the current account balance
      */
     private void checkBalance() {
         System.out.println("\n==================================");
-        System.out.printf("Your current balance is: ₹%.2f%n", currentAccount.getBalance());
+        SeqlockBalance.Snapshot snapshot = currentAccount.getBalanceSnapshot();
+        System.out.printf("Your current balance is: ₹%.2f%n", snapshot.getBalance());
+        if (snapshot.getLastType() != null) {
+            System.out.printf("Last transaction: %s of ₹%.2f%n", snapshot.getLastType(), snapshot.getLastAmount());
+        }
         System.out.println("==================================");
     }
 
@@ -273,9 +948,29 @@ class ATM {
     private void depositMoney() {
         try {
             System.out.print("\nEnter deposit amount: ₹");
-            double amount = Double.parseDouble(scanner.nextLine().trim());
+            String input = scanner.nextLine().trim();
+            if (!sessionActive()) {
+                return;
+            }
+            double amount = Double.parseDouble(input);
+            
+            String key = requestKey("DEPOSIT " + currentAccount.getAccountNumber() + " " + amount);
+            int earlier = currentAccount.requestOutcome(key);
+            if (earlier != IdempotencyCache.MISSING) {
+                // a repeat of a deposit whose answer was lost
+                requestResolved();
+                audit(AuditLog.Event.DEPOSIT, amount, "REPEATED");
+                System.out.println("==================================");
+                System.out.println(earlier == 1 ? "This deposit already went through." : "This deposit was declined.");
+                System.out.printf("Balance: ₹%.2f%n", currentAccount.getBalance());
+                System.out.println("==================================");
+                return;
+            }
             
-            if (currentAccount.deposit(amount)) {
+            boolean deposited = currentAccount.deposit(amount, key);
+            requestResolved();
+            audit(AuditLog.Event.DEPOSIT, amount, deposited ? "OK" : "INVALID_AMOUNT");
+            if (deposited) {
                 System.out.println("==================================");
                 System.out.printf("Deposit successful! ₹%.2f deposited.%n", amount);
                 System.out.printf("New balance: ₹%.2f%n", currentAccount.getBalance());
@@ -289,6 +984,8 @@ class ATM {
             System.out.println("==================================");
             System.out.println("Invalid amount format! Please enter a valid number.");
             System.out.println("==================================");
+        } catch (RuntimeException e) {
+            unknownOutcome("Deposit", e);
         }
     }
 
@@ -298,49 +995,181 @@ class ATM {
     private void withdrawMoney() {
         try {
             System.out.print("\nEnter withdrawal amount: ₹");
-            double amount = Double.parseDouble(scanner.nextLine().trim());
+            String input = scanner.nextLine().trim();
+            if (!sessionActive()) {
+                return;
+            }
+            double amount = Double.parseDouble(input);
+            String key = requestKey("WITHDRAWAL " + currentAccount.getAccountNumber() + " " + amount);
+            int earlier = currentAccount.requestOutcome(key);
+            if (earlier != 1 && unresolvedNotes != null) {
+                // the earlier attempt was never applied: its notes and card limit go back first
+                dispenser.restore(unresolvedNotes);
+                currentCardLimit.release(amount);
+                unresolvedNotes = null;
+            }
+            if (earlier != IdempotencyCache.MISSING) {
+                // a repeat of a withdrawal whose answer was lost: no card limit, no new notes
+                audit(AuditLog.Event.WITHDRAWAL, amount, "REPEATED");
+                System.out.println("==================================");
+                System.out.println(earlier == 1 ? "This withdrawal already went through." : "This withdrawal was declined.");
+                if (earlier == 1 && unresolvedNotes != null) {
+                    // the notes claimed for it were never handed over
+                    System.out.println("Please collect your cash: " + dispenser.describe(unresolvedNotes));
+                }
+                requestResolved();
+                System.out.printf("Balance: ₹%.2f%n", currentAccount.getBalance());
+                System.out.println("==================================");
+                return;
+            }
             
-            if (currentAccount.withdraw(amount)) {
+            if (amount > 0 && !dispenser.isDispensable(amount)) {
+                audit(AuditLog.Event.WITHDRAWAL, amount, "NOT_DISPENSABLE");
+                System.out.println("==================================");
+                System.out.printf("Withdrawal amount must be a multiple of ₹%d!%n", dispenser.getUnit());
+                System.out.println("==================================");
+                return;
+            }
+            // Cheap checks first: balance and card limit, so the note search only runs for a payable amount
+            if (amount > 0 && amount > currentAccount.getBalance()) {
+                audit(AuditLog.Event.WITHDRAWAL, amount, "INSUFFICIENT_FUNDS");
+                System.out.println("==================================");
+                System.out.println("Insufficient funds! Your balance is insufficient for this withdrawal.");
+                System.out.printf("Current balance: ₹%.2f%n", currentAccount.getBalance());
+                System.out.println("==================================");
+                return;
+            }
+            if (amount > 0 && !currentCardLimit.tryReserve(amount)) {
+                audit(AuditLog.Event.WITHDRAWAL, amount, "CARD_LIMIT");
+                System.out.println("==================================");
+                System.out.println("Daily card withdrawal limit exceeded!");
+                System.out.printf("Remaining card limit today: ₹%.2f%n", currentCardLimit.getRemaining());
+                System.out.println("==================================");
+                return;
+            }
+            // Notes are claimed before the account is debited and go back to the cassettes unless it goes through
+            int[] notes = amount > 0 ? dispenser.dispense(amount) : new int[0];
+            if (notes == null) {
+                currentCardLimit.release(amount);
+                audit(AuditLog.Event.WITHDRAWAL, amount, "OUT_OF_NOTES");
+                System.out.println("==================================");
+                System.out.println("This ATM cannot dispense that amount right now!");
+                System.out.println("==================================");
+                return;
+            }
+            
+            // kept with the request if the account call fails, so a repeat can settle them
+            unresolvedNotes = notes;
+            boolean withdrawn = currentAccount.withdraw(amount, key);
+            requestResolved();
+            if (withdrawn) {
+                audit(AuditLog.Event.WITHDRAWAL, amount, "OK");
                 System.out.println("==================================");
                 System.out.printf("Withdrawal successful! ₹%.2f withdrawn.%n", amount);
+                System.out.println("Please collect your cash: " + dispenser.describe(notes));
                 System.out.printf("New balance: ₹%.2f%n", currentAccount.getBalance());
                 System.out.println("==================================");
-            } else if (amount <= 0) {
+                return;
+            }
+            dispenser.restore(notes);
+            currentCardLimit.release(amount);
+            if (amount <= 0) {
+                audit(AuditLog.Event.WITHDRAWAL, amount, "INVALID_AMOUNT");
                 System.out.println("==================================");
                 System.out.println("Invalid withdrawal amount! Amount must be positive.");
                 System.out.println("==================================");
-            } else {
+            } else if (amount > currentAccount.getBalance()) {
+                audit(AuditLog.Event.WITHDRAWAL, amount, "INSUFFICIENT_FUNDS");
                 System.out.println("==================================");
                 System.out.println("Insufficient funds! Your balance is insufficient for this withdrawal.");
                 System.out.printf("Current balance: ₹%.2f%n", currentAccount.getBalance());
                 System.out.println("==================================");
+            } else if (currentAccount.isHeldForReview()) {
+                audit(AuditLog.Event.WITHDRAWAL, amount, "HELD");
+                System.out.println("==================================");
+                System.out.println("Withdrawal held for review! Please contact your bank.");
+                System.out.println("==================================");
+            } else {
+                audit(AuditLog.Event.WITHDRAWAL, amount, "DECLINED");
+                System.out.println("==================================");
+                System.out.println("Daily account withdrawal limit exceeded!");
+                System.out.printf("Remaining account limit today: ₹%.2f%n", currentAccount.getRemainingDailyLimit());
+                System.out.println("==================================");
             }
         } catch (NumberFormatException e) {
             System.out.println("==================================");
             System.out.println("Invalid amount format! Please enter a valid number.");
             System.out.println("==================================");
+        } catch (RuntimeException e) {
+            unknownOutcome("Withdrawal", e);
+        }
+    }
+
+    /**
+     * The account call failed without an answer; the request keeps its key for the customer's retry
+     */
+    private void unknownOutcome(String request, RuntimeException e) {
+        System.out.println("==================================");
+        System.out.println(request + " failed: " + e.getMessage());
+        System.out.println("Repeat the same request to complete or confirm it; it will not be applied twice.");
+        System.out.println("==================================");
+    }
+
+    /**
+     * Queues an audit record for the logged-in account without waiting for the disk
+     */
+    private void audit(AuditLog.Event event, double amount, String outcome) {
+        AUDIT.record(event, terminalId, currentAccount.getAccountNumber(), amount, outcome);
+    }
+
+    /**
+     * The idempotency key for one customer request. A request whose outcome never came back
+     * (the account call failed) keeps its key, so repeating the same request cannot apply it twice
+     */
+    private String requestKey(String request) {
+        if (!request.equals(unresolvedRequest)) {
+            unresolvedRequest = request;
+            unresolvedKey = terminalId + "-" + (++requestSequence);
+            unresolvedNotes = null;
         }
+        return unresolvedKey;
+    }
+
+    /**
+     * The account answered, so the next request gets a fresh key
+     */
+    private void requestResolved() {
+        unresolvedRequest = null;
+        unresolvedKey = null;
+        unresolvedNotes = null;
     }
 
     /**
-     * Displays transaction history (last 10 transactions)
+     * Displays transaction history (last 10 transactions), rendered once per
+     * posting and replayed from the statement cache until the next one
      */
     private void viewTransactionHistory() {
-        List<Transaction> history = currentAccount.getTransactionHistory();
+        BankAccount account = currentAccount;
+        statements.write(account.getAccountNumber(), account, account.getVersion(),
+                out -> renderTransactionHistory(account, out), System.out);
+    }
+
+    private static void renderTransactionHistory(BankAccount account, PrintStream out) {
+        List<Transaction> history = account.getTransactionHistory();
         
-        System.out.println("\n==================================");
-        System.out.println("        TRANSACTION HISTORY       ");
-        System.out.println("==================================");
+        out.println("\n==================================");
+        out.println("        TRANSACTION HISTORY       ");
+        out.println("==================================");
         
         if (history.isEmpty()) {
-            System.out.println("No transactions found.");
+            out.println("No transactions found.");
         } else {
             // Display last 10 transactions (or all if less than 10)
             int startIndex = Math.max(0, history.size() - 10);
             for (int i = startIndex; i < history.size(); i++) {
-                System.out.println(history.get(i));
+                out.println(history.get(i));
             }
         }
-        System.out.println("==================================");
+        out.println("==================================");
     }
 }
\ No newline at end of file